@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HostCollection put and isInList with 10 to 10k discovered hosts.
+ * The DiscoverServer puts every host that responds, most of the times
+ * one that is in the list already, and a new host is put only once and
+ * then taken by the consumer with getLast, as the discovery does. The
+ * hosts looked up are the last in the list, the worst case of a hit.
+ *
+ * @author giorgio
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostCollectionBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int hosts;
+
+	private HostCollection collection;
+	private HostData last;
+	private HostData missing;
+	private HostData added;
+
+	@Setup
+	public void setup() {
+		collection = new HostCollection();
+		for (int i = 0; i < hosts; i++) collection.add(host(i));
+		// new instances, as the hosts are built from the received messages
+		last = host(hosts - 1);
+		missing = host(hosts);
+		added = host(hosts + 1);
+	}
+
+	@Benchmark
+	public boolean isInListHit() {
+		return collection.isInList(last);
+	}
+
+	@Benchmark
+	public boolean isInListMiss() {
+		return collection.isInList(missing);
+	}
+
+	@Benchmark
+	public int putExisting() {
+		collection.put(last);
+		return collection.size();
+	}
+
+	@Benchmark
+	public HostData putNew() {
+		collection.put(added);
+		HostData taken = collection.getLast();
+		// back to the same number of hosts
+		collection.hostList.remove(collection.hostList.size() - 1);
+		return taken;
+	}
+
+	private static HostData host(int i) {
+		return new HostData("host-" + i, "10.0." + (i / 250) + "." + (i % 250 + 1), (i % 2) == 0, Constants.PROTOCOL_VERSION);
+	}
+}
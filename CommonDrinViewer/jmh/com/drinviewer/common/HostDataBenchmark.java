@@ -0,0 +1,87 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HostData hashCode and equals, the latter called for every host in the
+ * list by the HostCollection lookups. The hosts compared are distinct
+ * instances with distinct strings, as the ones built from the received
+ * messages, so that equals cannot take the identity shortcuts.
+ *
+ * @author giorgio
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostDataBenchmark {
+
+	private HostData host;
+	private HostData same;
+	private HostData otherAddress;
+	private HostData otherHostname;
+
+	@Setup
+	public void setup() {
+		host = new HostData(new String("giorgio-desktop"), new String("192.168.1.66"), true, Constants.PROTOCOL_VERSION);
+		same = new HostData(new String("giorgio-desktop"), new String("192.168.1.66"), true, Constants.PROTOCOL_VERSION);
+		// differs at the last char of the first field compared
+		otherAddress = new HostData(new String("giorgio-desktop"), new String("192.168.1.67"), true, Constants.PROTOCOL_VERSION);
+		// same address, differs at the last char of the second field compared
+		otherHostname = new HostData(new String("giorgio-desktoq"), new String("192.168.1.66"), true, Constants.PROTOCOL_VERSION);
+	}
+
+	@Benchmark
+	public int hashCodeHost() {
+		return host.hashCode();
+	}
+
+	@Benchmark
+	public boolean equalsSame() {
+		return host.equals(same);
+	}
+
+	@Benchmark
+	public boolean equalsOtherAddress() {
+		return host.equals(otherAddress);
+	}
+
+	@Benchmark
+	public boolean equalsOtherHostname() {
+		return host.equals(otherHostname);
+	}
+}
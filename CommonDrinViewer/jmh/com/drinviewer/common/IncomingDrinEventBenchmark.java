@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IncomingDrinEvent encoding and decoding, with the java serialization
+ * used by the legacy devices and with the DrinEventCodec binary encoding,
+ * for an event without a caller image and for one with a contact photo
+ *
+ * @author giorgio
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncomingDrinEventBenchmark {
+
+	@Param({ "0", "16384" })
+	public int imageSize;
+
+	private IncomingDrinEvent event;
+	private byte[] serialized;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] imageData = null;
+		if (imageSize > 0) {
+			imageData = new byte[imageSize];
+			new Random(666).nextBytes(imageData);
+		}
+		event = new IncomingDrinEvent(this, "John Appleseed", "+39-666-666-66-66", imageData, Constants.SHOW_POPUP);
+		serialized = serialize();
+		encoded = codecEncode();
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(event);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+		Object read = in.readObject();
+		in.close();
+		return read;
+	}
+
+	@Benchmark
+	public byte[] codecEncode() throws IOException {
+		return DrinEventCodec.encode(event);
+	}
+
+	@Benchmark
+	public IncomingDrinEvent codecDecode() throws IOException {
+		return DrinEventCodec.decode(encoded, this);
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the text messages as the listeners do it, splitting them on
+ * MESSAGE_CHAR_SEPARATOR: the DISCOVER request read by the BroadCastListener,
+ * the PAIRME request read by the ServerListener and the DISCOVER_RESPONSE
+ * read by the devices. The indexOf variants get the same fields without
+ * the regex and the array, as a baseline. The parser variants use the
+ * DrinMessageParser on the received bytes, run them with -prof gc to see
+ * that gc.alloc.rate.norm is 0 bytes per message.
+ *
+ * @author giorgio
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParsingBenchmark {
+
+	private static final String UUID = "f47ac10b-58cc-4372-a567-0e02b2c3d479";
+
+	// not constants, not to be folded by the compiler
+	public String discover = Constants.DISCOVER_REQUEST + Constants.MESSAGE_CHAR_SEPARATOR + UUID;
+	public String pairMe = Constants.MESSAGE_PAIRME + Constants.MESSAGE_CHAR_SEPARATOR + UUID;
+	public String discoverResponse = Constants.DISCOVER_RESPONSE + Constants.MESSAGE_CHAR_SEPARATOR + Constants.MESSAGE_DEVICE_IS_PAIRED
+			+ Constants.MESSAGE_CHAR_SEPARATOR + "giorgio-desktop"
+			+ Constants.MESSAGE_CHAR_SEPARATOR + Constants.MESSAGE_PROTOCOL_VERSION + Constants.PROTOCOL_VERSION
+			+ Constants.MESSAGE_CHAR_SEPARATOR + Constants.DISCOVER_RESPONSE_END;
+	public String unpairMe = Constants.MESSAGE_UNPAIRME + Constants.MESSAGE_CHAR_SEPARATOR + UUID;
+	public String address = "192.168.1.66";
+
+	private final HostData host = new HostData();
+	private final DrinMessageParser parser = new DrinMessageParser();
+	private final String[] seenUUIDs = new String[16];
+
+	// the messages as received, in a buffer larger than them
+	private byte[] discoverBytes;
+	private byte[] pairMeBytes;
+	private byte[] unpairMeBytes;
+	private byte[] discoverResponseBytes;
+
+	@Setup
+	public void setup() {
+		discoverBytes = received(discover);
+		pairMeBytes = received(pairMe);
+		unpairMeBytes = received(unpairMe);
+		discoverResponseBytes = received(discoverResponse);
+	}
+
+	private static byte[] received(String message) {
+		byte[] buffer = new byte[Constants.BUFLEN];
+		byte[] bytes = message.getBytes();
+		System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+		return buffer;
+	}
+
+	@Benchmark
+	public String splitDiscover() {
+		String temp[] = discover.split(Constants.MESSAGE_CHAR_SEPARATOR);
+		return (temp.length > 1) ? temp[1] : null;
+	}
+
+	@Benchmark
+	public String indexOfDiscover() {
+		int separator = discover.indexOf(Constants.MESSAGE_CHAR_SEPARATOR);
+		return (separator >= 0) ? discover.substring(separator + 1) : null;
+	}
+
+	@Benchmark
+	public String splitPairMe() {
+		String temp[] = pairMe.split(Constants.MESSAGE_CHAR_SEPARATOR);
+		return (temp.length > 1) ? temp[1] : null;
+	}
+
+	@Benchmark
+	public String indexOfPairMe() {
+		int separator = pairMe.indexOf(Constants.MESSAGE_CHAR_SEPARATOR);
+		return (separator >= 0) ? pairMe.substring(separator + 1) : null;
+	}
+
+	@Benchmark
+	public String[] splitDiscoverResponse() {
+		return discoverResponse.split(Constants.MESSAGE_CHAR_SEPARATOR);
+	}
+
+	@Benchmark
+	public HostData parseDiscoverResponse() {
+		HostData.parseDiscoverResponse(discoverResponse, address, host);
+		return host;
+	}
+
+	@Benchmark
+	public String parserDiscover() {
+		// as the BroadCastListener does, the uuid of a known device
+		parser.parse(discoverBytes, 0, discover.length());
+		return (parser.getType() == DrinMessageParser.DISCOVER) ? parser.getField(1, seenUUIDs) : null;
+	}
+
+	@Benchmark
+	public String parserPairMe() {
+		parser.parse(pairMeBytes, 0, pairMe.length());
+		return (parser.getType() == DrinMessageParser.PAIRME) ? parser.getField(1, seenUUIDs) : null;
+	}
+
+	@Benchmark
+	public String parserUnpairMe() {
+		parser.parse(unpairMeBytes, 0, unpairMe.length());
+		return (parser.getType() == DrinMessageParser.UNPAIRME) ? parser.getField(1, seenUUIDs) : null;
+	}
+
+	@Benchmark
+	public int parserDiscoverResponse() {
+		// the fields the devices look at, but the host name
+		parser.parse(discoverResponseBytes, 0, discoverResponse.length());
+		if (parser.getType() != DrinMessageParser.DISCOVER_RESPONSE) return -1;
+		int version = parser.getFieldInt(3, Constants.MESSAGE_PROTOCOL_VERSION.length(), Constants.PROTOCOL_VERSION_LEGACY);
+		return parser.fieldEquals(1, Constants.MESSAGE_DEVICE_IS_PAIRED) ? version : -version;
+	}
+}
@@ -69,6 +69,38 @@ public class Constants {
 	public static final String MESSAGE_OK = "OK";
 	// a generic ERROR message
 	public static final String MESSAGE_ERROR = "ERROR";
+	// the heartbeat message sent by the device on a persistent connection
+	public static final String MESSAGE_HEARTBEAT = "HEARTBEAT";
+	// the message sent by the device to ask if the host has the image with the passed hash
+	public static final String MESSAGE_HASIMAGE = "HASIMAGE";
+	// the response of the host not having the image
+	public static final String MESSAGE_MISSING = "MISSING";
+	// prefix of the protocol version appended by the server to the DISCOVER_RESPONSE message
+	public static final String MESSAGE_PROTOCOL_VERSION = "PROTO";
+	
+	// protocol version of the servers not sending it: IncomingDrinEvent is sent as a serialized Object
+	public static final int    PROTOCOL_VERSION_LEGACY = 1;
+	// protocol version from which the IncomingDrinEvent is sent with the DrinEventCodec
+	public static final int    PROTOCOL_VERSION_BINARY = 2;
+	// protocol version from which the device keeps a persistent connection sending DrinEventCodec frames
+	public static final int    PROTOCOL_VERSION_FRAMED = 3;
+	// protocol version from which the device sends the image hash first, and the image only if the host has not cached it
+	public static final int    PROTOCOL_VERSION_IMAGE_CACHE = 4;
+	// protocol version from which the event frames end with the times of the device stages
+	public static final int    PROTOCOL_VERSION_TIMINGS = 5;
+	// protocol version from which the host acknowledges the event frames asking for it
+	public static final int    PROTOCOL_VERSION_EVENT_ACK = 6;
+	// protocol version implemented by this release
+	public static final int    PROTOCOL_VERSION = PROTOCOL_VERSION_EVENT_ACK;
+	
+	// interval between two heartbeats on a persistent connection
+	public static final int    HEARTBEAT_INTERVAL = 30000; // 30 seconds
+	// a persistent connection silent for this long is considered dead
+	public static final int    HEARTBEAT_TIMEOUT = HEARTBEAT_INTERVAL * 3;
+	// time to wait for the response to a HASIMAGE message
+	public static final int    IMAGE_QUERY_TIMEOUT = 2000; // 2 seconds
+	// time to wait for the acknowledgement of an event frame
+	public static final int    EVENT_ACK_TIMEOUT = 2000; // 2 seconds
 	
 	// size of the popup icon longest side
 	public static final int    ICON_SIZE = 96;
@@ -0,0 +1,373 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * persistent framed connection from the device to a desktop host.
+ *
+ * There's one connection per host and port, get it with getConnection.
+ * The socket is opened on first use and kept open by sending a heartbeat
+ * every HEARTBEAT_INTERVAL, if it breaks it's opened again on next use
+ * and the failed frame is sent once more.
+ * A write to a host that's gone away may not fail, so the events are
+ * sent acknowledged to the hosts knowing how to: an event that's not
+ * acknowledged in EVENT_ACK_TIMEOUT is sent once more on a new connection.
+ *
+ * @author giorgio
+ *
+ */
+public class DrinConnection {
+	/**
+	 * the open connections, keyed by address and port
+	 *
+	 */
+	private static final Map<String, DrinConnection> connections = new HashMap<String, DrinConnection>();
+
+	/**
+	 * timer sending the heartbeats of all the connections
+	 *
+	 */
+	private static Timer heartbeatTimer = null;
+
+	/**
+	 * address of the host
+	 *
+	 */
+	private final String address;
+
+	/**
+	 * port of the host
+	 *
+	 */
+	private final int port;
+
+	/**
+	 * socket for communication, null if not connected
+	 *
+	 */
+	private Socket socket = null;
+
+	/**
+	 * write to
+	 *
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * read from
+	 *
+	 */
+	private DataInputStream in;
+
+	/**
+	 * the heartbeat task of this connection, null if not connected
+	 *
+	 */
+	private TimerTask heartbeat = null;
+
+	private DrinConnection(String address, int port) {
+		this.address = address;
+		this.port = port;
+	}
+
+	/**
+	 * gets the connection to the passed host, creating it if needed
+	 *
+	 * @param address address of the host
+	 * @param port port of the host
+	 * @return the connection
+	 */
+	public static synchronized DrinConnection getConnection(String address, int port) {
+		String key = address + Constants.MESSAGE_CHAR_SEPARATOR + port;
+		DrinConnection connection = connections.get(key);
+		if (connection == null) {
+			connection = new DrinConnection(address, port);
+			connections.put(key, connection);
+		}
+		return connection;
+	}
+
+	/**
+	 * closes all the connections, to be called when
+	 * the hosts are no longer reachable
+	 */
+	public static synchronized void closeAllConnections() {
+		for (Iterator<DrinConnection> it = connections.values().iterator(); it.hasNext();) {
+			it.next().close();
+			it.remove();
+		}
+		if (heartbeatTimer != null) {
+			heartbeatTimer.cancel();
+			heartbeatTimer = null;
+		}
+	}
+
+	/**
+	 * gets the timer for the heartbeats, creating it if needed
+	 *
+	 * @return the timer
+	 */
+	private static synchronized Timer getHeartbeatTimer() {
+		if (heartbeatTimer == null) heartbeatTimer = new Timer("DrinViewer-heartbeat", true);
+		return heartbeatTimer;
+	}
+
+	/**
+	 * sends an event, opening the connection again
+	 * and resending it once if the connection is broken
+	 *
+	 * @param event the event to be sent
+	 * @throws IOException if the event cannot be sent
+	 */
+	public void sendDrinEvent(IncomingDrinEvent event) throws IOException {
+		sendDrinEvent(event, false);
+	}
+
+	/**
+	 * sends an event, opening the connection again and resending it
+	 * once if the connection is broken or the event is not acknowledged
+	 *
+	 * @param event the event to be sent
+	 * @param acknowledged true to wait for the host to acknowledge the event,
+	 *        if the host speaks PROTOCOL_VERSION_EVENT_ACK
+	 * @throws IOException if the event cannot be sent
+	 */
+	public synchronized void sendDrinEvent(IncomingDrinEvent event, boolean acknowledged) throws IOException {
+		try {
+			send(event, null, acknowledged);
+		} catch (IOException e) {
+			close();
+			send(event, null, acknowledged);
+		}
+	}
+
+	/**
+	 * sends an event asking the host first if it already has the
+	 * event image, the image is sent only if the host does not have it
+	 *
+	 * @param event the event to be sent
+	 * @throws IOException if the event cannot be sent
+	 */
+	public void sendCachedDrinEvent(IncomingDrinEvent event) throws IOException {
+		sendCachedDrinEvent(event, false);
+	}
+
+	/**
+	 * sends an event asking the host first if it already has the
+	 * event image, the image is sent only if the host does not have it
+	 *
+	 * @param event the event to be sent
+	 * @param acknowledged true to wait for the host to acknowledge the event,
+	 *        if the host speaks PROTOCOL_VERSION_EVENT_ACK
+	 * @throws IOException if the event cannot be sent
+	 */
+	public synchronized void sendCachedDrinEvent(IncomingDrinEvent event, boolean acknowledged) throws IOException {
+		if (event.imageData == null) {
+			sendDrinEvent(event, acknowledged);
+			return;
+		}
+
+		String imageHash = DrinEventCodec.imageHash(event.imageData);
+		String hasImage = Constants.MESSAGE_HASIMAGE + Constants.MESSAGE_CHAR_SEPARATOR + imageHash;
+		String response;
+		try {
+			open(event);
+			response = request(hasImage, Constants.IMAGE_QUERY_TIMEOUT);
+		} catch (IOException e) {
+			close();
+			open(event);
+			response = request(hasImage, Constants.IMAGE_QUERY_TIMEOUT);
+		}
+
+		if (response.startsWith(Constants.MESSAGE_HASIMAGE) && response.endsWith(Constants.MESSAGE_OK)) {
+			try {
+				send(event, imageHash, acknowledged);
+			} catch (IOException e) {
+				// the host may have lost the image together with the connection
+				close();
+				sendDrinEvent(event, acknowledged);
+			}
+		} else {
+			sendDrinEvent(event, acknowledged);
+		}
+	}
+
+	/**
+	 * writes an event frame and waits for it to be acknowledged
+	 *
+	 * @param event the event to be sent
+	 * @param imageHash the hash to be sent in place of the image, null to send the image
+	 * @param acknowledged true to wait for the host to acknowledge the event
+	 * @throws IOException if the event cannot be written or it's not acknowledged
+	 */
+	private void send(IncomingDrinEvent event, String imageHash, boolean acknowledged) throws IOException {
+		DataOutputStream stream = open(event);
+		if (imageHash != null) DrinEventCodec.writeCached(event, imageHash, stream, acknowledged);
+		else DrinEventCodec.write(event, stream, acknowledged);
+		stream.flush();
+
+		if (acknowledged) {
+			String response = readResponse(Constants.EVENT_ACK_TIMEOUT);
+			if (!response.startsWith(Constants.INCOMING_DRIN) || !response.endsWith(Constants.MESSAGE_OK)) {
+				throw new StreamCorruptedException("Event not acknowledged: " + response);
+			}
+		}
+	}
+
+	/**
+	 * sends a protocol message and waits for the response, opening the
+	 * connection again and resending it once if the connection is broken
+	 *
+	 * @param message the message to be sent
+	 * @param timeout milliseconds to wait for the response
+	 * @return the response of the host
+	 * @throws IOException if the message cannot be sent or no response is read
+	 */
+	public synchronized String sendMessage(String message, int timeout) throws IOException {
+		try {
+			return request(message, timeout);
+		} catch (IOException e) {
+			close();
+			return request(message, timeout);
+		}
+	}
+
+	/**
+	 * sends a protocol message and reads the response
+	 *
+	 * @param message the message to be sent
+	 * @param timeout milliseconds to wait for the response
+	 * @return the response of the host
+	 * @throws IOException
+	 */
+	private String request(String message, int timeout) throws IOException {
+		DrinEventCodec.writeMessage(message, open());
+		out.flush();
+		return readResponse(timeout);
+	}
+
+	/**
+	 * reads the response to what has been sent
+	 *
+	 * @param timeout milliseconds to wait for the response
+	 * @return the response of the host
+	 * @throws IOException if no response is read
+	 */
+	private String readResponse(int timeout) throws IOException {
+		socket.setSoTimeout(timeout);
+		try {
+			DrinFrame response = DrinEventCodec.readFrame(in, this);
+			if (response.type != DrinEventCodec.TYPE_MESSAGE) throw new StreamCorruptedException("Unexpected type " + response.type);
+			return response.message;
+		} finally {
+			socket.setSoTimeout(0);
+		}
+	}
+
+	/**
+	 * opens the connection if it's not open yet, and sets the
+	 * connect stage time of the event if it's being timed
+	 *
+	 * @param event the event to be sent
+	 * @return the stream to write the frames to
+	 * @throws IOException
+	 */
+	private DataOutputStream open(IncomingDrinEvent event) throws IOException {
+		DataOutputStream stream = open();
+		if (event.isTimed()) event.stamp(IncomingDrinEvent.STAGE_CONNECT);
+		return stream;
+	}
+
+	/**
+	 * opens the connection if it's not open yet
+	 *
+	 * @return the stream to write the frames to
+	 * @throws IOException
+	 */
+	private DataOutputStream open() throws IOException {
+		if (socket == null) {
+			Socket newSocket = new Socket(address, port);
+			try {
+				newSocket.setTcpNoDelay(true);
+				out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+				out.write(DrinEventCodec.STREAM_MAGIC);
+			} catch (IOException e) {
+				newSocket.close();
+				throw e;
+			}
+			socket = newSocket;
+
+			heartbeat = new TimerTask() {
+				@Override
+				public void run() {
+					sendHeartbeat();
+				}
+			};
+			getHeartbeatTimer().schedule(heartbeat, Constants.HEARTBEAT_INTERVAL, Constants.HEARTBEAT_INTERVAL);
+		}
+		return out;
+	}
+
+	/**
+	 * sends a heartbeat, closing the connection if the host
+	 * does not respond: it will be opened again on next use
+	 */
+	private synchronized void sendHeartbeat() {
+		if (socket == null) return;
+		try {
+			request(Constants.MESSAGE_HEARTBEAT, Constants.HEARTBEAT_INTERVAL);
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * closes the connection, it will be opened again on next use
+	 */
+	public synchronized void close() {
+		if (heartbeat != null) {
+			heartbeat.cancel();
+			heartbeat = null;
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			socket = null;
+			out = null;
+			in = null;
+		}
+	}
+}
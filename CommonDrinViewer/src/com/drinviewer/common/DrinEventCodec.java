@@ -0,0 +1,502 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * compact binary encoding of the IncomingDrinEvent, used in place
+ * of the java serialization when both sides support it.
+ *
+ * Every encoded item is a frame made of:
+ * - version byte
+ * - type byte
+ * - payload length (int)
+ * - payload
+ *
+ * The payload of a TYPE_EVENT frame is the action (int), then title,
+ * message and image each one as its length (int, -1 if null) followed
+ * by its bytes, title and message being UTF-8 encoded.
+ * The payload of a TYPE_EVENT_CACHED frame is the same, with the
+ * hex encoded image hash in place of the image.
+ * The type byte of a timed event frame has FLAG_TIMINGS set, and its
+ * payload ends with one more field, holding for each device stage the
+ * microseconds (int, -1 if not timed) elapsed from the stage to the
+ * writing of the frame: the reader places the device stages before the
+ * time it started reading the frame, so that no clock has to be shared.
+ * Only hosts speaking PROTOCOL_VERSION_TIMINGS know the flag. Readers
+ * skip whatever else an event payload may end with.
+ * The payload of a TYPE_MESSAGE frame is a UTF-8 encoded protocol
+ * message, such as the PAIRME request or the PAIRED response.
+ * The type byte of an event frame may have FLAG_ACKNOWLEDGE set, the
+ * host then answers with an INCOMING_DRIN OK message once the event
+ * has been read: only hosts speaking PROTOCOL_VERSION_EVENT_ACK know it.
+ *
+ * On a persistent connection the device sends STREAM_MAGIC and then
+ * any number of frames, the server answers with TYPE_MESSAGE frames.
+ *
+ * @author giorgio
+ *
+ */
+public final class DrinEventCodec {
+	/**
+	 * version of the encoding
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * type byte of an encoded IncomingDrinEvent
+	 */
+	public static final byte TYPE_EVENT = 1;
+
+	/**
+	 * type byte of an encoded protocol message
+	 */
+	public static final byte TYPE_MESSAGE = 2;
+
+	/**
+	 * type byte of an encoded IncomingDrinEvent having
+	 * the image hash in place of the image
+	 */
+	public static final byte TYPE_EVENT_CACHED = 3;
+
+	/**
+	 * flag of the type byte of an event frame to be acknowledged by the host
+	 */
+	public static final byte FLAG_ACKNOWLEDGE = 0x40;
+
+	/**
+	 * flag of the type byte of an event frame whose payload ends with the device timings
+	 */
+	public static final byte FLAG_TIMINGS = 0x20;
+
+	/**
+	 * bits of the type byte holding the type, the others are flags
+	 */
+	private static final byte TYPE_MASK = 0x0f;
+
+	/**
+	 * bytes sent by the device when opening a persistent connection,
+	 * they can never be the start of a java serialization stream
+	 */
+	public static final byte[] STREAM_MAGIC = { 'D', 'R', 'N', 'F' };
+
+	/**
+	 * number of bytes before the payload of a frame
+	 */
+	public static final int HEADER_LENGTH = 6;
+
+	/**
+	 * charset used for the strings
+	 */
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * algorithm used for the image hash
+	 */
+	private static final String HASH_ALGORITHM = "SHA-1";
+
+	/**
+	 * number of hex digits of the image hash
+	 */
+	private static final int HASH_LENGTH = 40;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * writes the encoded event
+	 *
+	 * @param event the event to be written
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	public static void write(IncomingDrinEvent event, DataOutput out) throws IOException {
+		write(event, out, false);
+	}
+
+	/**
+	 * writes the encoded event
+	 *
+	 * @param event the event to be written
+	 * @param out where to write it
+	 * @param acknowledge true to ask the host to acknowledge the event
+	 * @throws IOException
+	 */
+	public static void write(IncomingDrinEvent event, DataOutput out, boolean acknowledge) throws IOException {
+		writeEvent(flagged(TYPE_EVENT, acknowledge), event, event.imageData, out);
+	}
+
+	/**
+	 * writes the encoded event with the passed image hash in
+	 * place of the image, to be used when the host has the image
+	 *
+	 * @param event the event to be written
+	 * @param imageHash the hash of the event image
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	public static void writeCached(IncomingDrinEvent event, String imageHash, DataOutput out) throws IOException {
+		writeCached(event, imageHash, out, false);
+	}
+
+	/**
+	 * writes the encoded event with the passed image hash in
+	 * place of the image, to be used when the host has the image
+	 *
+	 * @param event the event to be written
+	 * @param imageHash the hash of the event image
+	 * @param out where to write it
+	 * @param acknowledge true to ask the host to acknowledge the event
+	 * @throws IOException
+	 */
+	public static void writeCached(IncomingDrinEvent event, String imageHash, DataOutput out, boolean acknowledge) throws IOException {
+		writeEvent(flagged(TYPE_EVENT_CACHED, acknowledge), event, imageHash.getBytes(CHARSET), out);
+	}
+
+	/**
+	 * sets the acknowledge flag of a type byte
+	 *
+	 * @param type the frame type
+	 * @param acknowledge true to set the flag
+	 * @return the type byte
+	 */
+	private static byte flagged(byte type, boolean acknowledge) {
+		return acknowledge ? (byte) (type | FLAG_ACKNOWLEDGE) : type;
+	}
+
+	/**
+	 * writes an event frame
+	 *
+	 * @param type the frame type
+	 * @param event the event to be written
+	 * @param image the last field, image or image hash
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	private static void writeEvent(byte type, IncomingDrinEvent event, byte[] image, DataOutput out) throws IOException {
+		byte[] title   = (event.title != null) ? event.title.getBytes(CHARSET) : null;
+		byte[] message = (event.message != null) ? event.message.getBytes(CHARSET) : null;
+		byte[] timings = event.isTimed() ? deviceTimings(event.stageTimes) : null;
+
+		out.writeByte(VERSION);
+		out.writeByte((timings != null) ? (byte) (type | FLAG_TIMINGS) : type);
+		out.writeInt(4 + fieldLength(title) + fieldLength(message) + fieldLength(image) + ((timings != null) ? fieldLength(timings) : 0));
+		out.writeInt(event.action);
+		writeField(title, out);
+		writeField(message, out);
+		writeField(image, out);
+		if (timings != null) writeField(timings, out);
+	}
+
+	/**
+	 * encodes the microseconds elapsed from each device stage to now
+	 *
+	 * @param stageTimes the stage times of the event
+	 * @return the encoded device stages
+	 */
+	private static byte[] deviceTimings(long[] stageTimes) {
+		long now = System.nanoTime();
+		byte[] timings = new byte[IncomingDrinEvent.DEVICE_STAGES * 4];
+		for (int i = 0; i < IncomingDrinEvent.DEVICE_STAGES; i++) {
+			int age = (stageTimes[i] != 0) ? (int) Math.min(Integer.MAX_VALUE, Math.max(0, (now - stageTimes[i]) / 1000)) : -1;
+			timings[i * 4]     = (byte) (age >>> 24);
+			timings[i * 4 + 1] = (byte) (age >>> 16);
+			timings[i * 4 + 2] = (byte) (age >>> 8);
+			timings[i * 4 + 3] = (byte) age;
+		}
+		return timings;
+	}
+
+	/**
+	 * writes a protocol message frame
+	 *
+	 * @param message the message to be written
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	public static void writeMessage(String message, DataOutput out) throws IOException {
+		byte[] bytes = message.getBytes(CHARSET);
+
+		out.writeByte(VERSION);
+		out.writeByte(TYPE_MESSAGE);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * reads an encoded event
+	 *
+	 * @param in where to read it from
+	 * @param source the source to be set in the event
+	 * @return the read event
+	 * @throws IOException if the data are not a valid encoded event
+	 */
+	public static IncomingDrinEvent read(DataInput in, Object source) throws IOException {
+		return read(in, source, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * reads an encoded event, refusing it before reading
+	 * its payload if it's longer than the passed length
+	 *
+	 * @param in where to read it from
+	 * @param source the source to be set in the event
+	 * @param maxLength max length of the payload
+	 * @return the read event
+	 * @throws IOException if the data are not a valid encoded event or it's too long
+	 */
+	public static IncomingDrinEvent read(DataInput in, Object source, int maxLength) throws IOException {
+		DrinFrame frame = readFrame(in, source, maxLength);
+		if (frame.type != TYPE_EVENT) throw new StreamCorruptedException("Unexpected type " + frame.type);
+		return frame.event;
+	}
+
+	/**
+	 * reads a frame of any type
+	 *
+	 * @param in where to read it from
+	 * @param source the source to be set in the event, if it's an event frame
+	 * @return the read frame
+	 * @throws IOException if the data are not a valid frame
+	 */
+	public static DrinFrame readFrame(DataInput in, Object source) throws IOException {
+		return readFrame(in, source, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * reads a frame of any type, refusing it before reading
+	 * its payload if it's longer than the passed length
+	 *
+	 * @param in where to read it from
+	 * @param source the source to be set in the event, if it's an event frame
+	 * @param maxLength max length of the payload
+	 * @return the read frame
+	 * @throws IOException if the data are not a valid frame or it's too long
+	 */
+	public static DrinFrame readFrame(DataInput in, Object source, int maxLength) throws IOException {
+		long start = System.nanoTime();
+		byte version = in.readByte();
+		if (version != VERSION) throw new StreamCorruptedException("Unsupported version " + version);
+
+		byte type = in.readByte();
+		boolean acknowledge = (type & FLAG_ACKNOWLEDGE) != 0;
+		boolean timed = (type & FLAG_TIMINGS) != 0;
+		type &= TYPE_MASK;
+		int length = in.readInt();
+		if (length > maxLength) throw new StreamCorruptedException("Frame too long " + length);
+
+		if (type == TYPE_MESSAGE) {
+			if (length < 0) throw new StreamCorruptedException("Invalid length " + length);
+			byte[] message = new byte[length];
+			in.readFully(message);
+			return new DrinFrame(new String(message, CHARSET));
+		} else if (type != TYPE_EVENT && type != TYPE_EVENT_CACHED) {
+			throw new StreamCorruptedException("Unsupported type " + type);
+		}
+
+		if (length < 4) throw new StreamCorruptedException("Invalid length " + length);
+
+		int action = in.readInt();
+		length -= 4;
+
+		byte[] title = readField(in, length);
+		length -= fieldLength(title);
+		byte[] message = readField(in, length);
+		length -= fieldLength(message);
+		byte[] image = readField(in, length);
+		length -= fieldLength(image);
+		byte[] timings = null;
+		if (timed) {
+			timings = readField(in, length);
+			length -= fieldLength(timings);
+		}
+		// skip what a newer device may have appended
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+
+		IncomingDrinEvent event = new IncomingDrinEvent(source,
+				(title != null) ? new String(title, CHARSET) : null,
+				(message != null) ? new String(message, CHARSET) : null,
+				action);
+
+		if (type == TYPE_EVENT_CACHED) {
+			if (image == null || !isImageHash(event.imageHash = new String(image, CHARSET))) {
+				throw new StreamCorruptedException("Invalid image hash");
+			}
+		} else {
+			event.imageData = image;
+		}
+
+		if (timings != null) {
+			for (int i = 0; i < IncomingDrinEvent.DEVICE_STAGES && i * 4 + 3 < timings.length; i++) {
+				int age = ((timings[i * 4] & 0xff) << 24) | ((timings[i * 4 + 1] & 0xff) << 16) | ((timings[i * 4 + 2] & 0xff) << 8) | (timings[i * 4 + 3] & 0xff);
+				if (age >= 0) event.stamp(i, start - age * 1000L);
+			}
+		}
+		event.stamp(IncomingDrinEvent.STAGE_RECEIVE, start);
+		event.stamp(IncomingDrinEvent.STAGE_DECODE);
+		return new DrinFrame(event, acknowledge);
+	}
+
+	/**
+	 * computes the hash identifying an image
+	 *
+	 * @param imageData the image
+	 * @return the hex encoded hash
+	 */
+	public static String imageHash(byte[] imageData) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(imageData);
+		} catch (NoSuchAlgorithmException e) {
+			// every java platform must have SHA-1
+			throw new IllegalStateException(e);
+		}
+
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2]     = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * tells if the passed string is a well formed image hash,
+	 * it's safe to be used as a file name if it is
+	 *
+	 * @param hash the string to be checked
+	 * @return true if it's a well formed image hash
+	 */
+	public static boolean isImageHash(String hash) {
+		if (hash == null || hash.length() != HASH_LENGTH) return false;
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			char c = hash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * tells if the passed bytes start with STREAM_MAGIC
+	 *
+	 * @param data the bytes to be checked
+	 * @param length number of valid bytes
+	 * @return true if the bytes start with STREAM_MAGIC
+	 */
+	public static boolean isStreamMagic(byte[] data, int length) {
+		if (length < STREAM_MAGIC.length) return false;
+		for (int i = 0; i < STREAM_MAGIC.length; i++) {
+			if (data[i] != STREAM_MAGIC[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * encodes the event to a byte array
+	 *
+	 * @param event the event to be encoded
+	 * @return the encoded event
+	 * @throws IOException
+	 */
+	public static byte[] encode(IncomingDrinEvent event) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + ((event.imageData != null) ? event.imageData.length : 0));
+		write(event, new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * decodes an event from a byte array
+	 *
+	 * @param data the encoded event
+	 * @param source the source to be set in the event
+	 * @return the decoded event
+	 * @throws IOException if the data are not a valid encoded event
+	 */
+	public static IncomingDrinEvent decode(byte[] data, Object source) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(data)), source);
+	}
+
+	/**
+	 * number of bytes used to write a field
+	 *
+	 * @param field the field
+	 * @return the field length plus the length prefix
+	 */
+	private static int fieldLength(byte[] field) {
+		return 4 + ((field != null) ? field.length : 0);
+	}
+
+	/**
+	 * writes a length prefixed field
+	 *
+	 * @param field the field to be written, may be null
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	private static void writeField(byte[] field, DataOutput out) throws IOException {
+		if (field == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(field.length);
+			out.write(field);
+		}
+	}
+
+	/**
+	 * reads a length prefixed field
+	 *
+	 * @param in where to read it from
+	 * @param available payload bytes not read yet
+	 * @return the field, null if it was written as null
+	 * @throws IOException if the field does not fit in the payload
+	 */
+	private static byte[] readField(DataInput in, int available) throws IOException {
+		// the length prefix must be in the payload too, or it's the next frame
+		if (available < 4) throw new StreamCorruptedException("Truncated field");
+		int length = in.readInt();
+		if (length == -1) return null;
+		if (length < 0 || length > available - 4) throw new StreamCorruptedException("Invalid field length " + length);
+
+		byte[] field = new byte[length];
+		in.readFully(field);
+		return field;
+	}
+
+	private DrinEventCodec() {
+		throw new AssertionError();
+	}
+}
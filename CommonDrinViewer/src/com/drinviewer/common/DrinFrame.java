@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+/**
+ * class for holding a frame read by the DrinEventCodec,
+ * either an IncomingDrinEvent or a protocol message
+ * 
+ * @author giorgio
+ *
+ */
+public class DrinFrame {
+	
+	/**
+	 * the frame type, as defined in DrinEventCodec
+	 * 
+	 */
+	public final byte type;
+	
+	/**
+	 * the protocol message, null if it's an event frame
+	 * 
+	 */
+	public final String message;
+	
+	/**
+	 * the event, null if it's a message frame
+	 * 
+	 */
+	public final IncomingDrinEvent event;
+	
+	/**
+	 * true if the device waits for the event to be acknowledged
+	 * 
+	 */
+	public final boolean acknowledge;
+	
+	/**
+	 * constructor for a protocol message frame
+	 * 
+	 * @param message the protocol message
+	 */
+	public DrinFrame(String message) {
+		this.type = DrinEventCodec.TYPE_MESSAGE;
+		this.message = message;
+		this.event = null;
+		this.acknowledge = false;
+	}
+	
+	/**
+	 * constructor for an event frame
+	 * 
+	 * @param event the event
+	 */
+	public DrinFrame(IncomingDrinEvent event) {
+		this(event, false);
+	}
+	
+	/**
+	 * constructor for an event frame
+	 * 
+	 * @param event the event
+	 * @param acknowledge true if the device waits for the event to be acknowledged
+	 */
+	public DrinFrame(IncomingDrinEvent event, boolean acknowledge) {
+		this.type = DrinEventCodec.TYPE_EVENT;
+		this.message = null;
+		this.event = event;
+		this.acknowledge = acknowledge;
+	}
+}
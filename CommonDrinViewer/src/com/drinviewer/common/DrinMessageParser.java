@@ -0,0 +1,266 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.common;
+
+/**
+ * tokenizer of the text protocol messages, working in place on the
+ * received bytes or string: the message is trimmed and split on
+ * MESSAGE_CHAR_SEPARATOR as String.trim and String.split would do,
+ * but the fields are kept as offsets in the message, so that parsing
+ * does not allocate anything. A field is turned into a String only
+ * when it's asked for.
+ *
+ * The message type is told by the first field, that must be exactly
+ * one of the protocol messages.
+ *
+ * This is not thread safe, every thread should use its own parser,
+ * and the parsed message must not be changed while it is being used.
+ *
+ * @author giorgio
+ *
+ */
+public final class DrinMessageParser {
+
+	/**
+	 * message types
+	 */
+	public static final int UNKNOWN = 0;
+	public static final int DISCOVER = 1;
+	public static final int DISCOVER_RESPONSE = 2;
+	public static final int PAIRME = 3;
+	public static final int UNPAIRME = 4;
+	public static final int INCOMING_DRIN = 5;
+	public static final int HASIMAGE = 6;
+	public static final int HEARTBEAT = 7;
+
+	/**
+	 * the first field of each message type, by type
+	 */
+	private static final String[] TYPES = { null, Constants.DISCOVER_REQUEST, Constants.DISCOVER_RESPONSE,
+		Constants.MESSAGE_PAIRME, Constants.MESSAGE_UNPAIRME, Constants.INCOMING_DRIN,
+		Constants.MESSAGE_HASIMAGE, Constants.MESSAGE_HEARTBEAT };
+
+	/**
+	 * max number of fields, the last one holds the rest of the message
+	 */
+	private static final int MAX_FIELDS = 8;
+
+	private static final char SEPARATOR = Constants.MESSAGE_CHAR_SEPARATOR.charAt(0);
+
+	/**
+	 * the parsed message, either bytes or a string
+	 */
+	private byte[] bytes;
+	private String string;
+
+	/**
+	 * offsets of the fields in the message, end excluded
+	 */
+	private final int[] starts = new int[MAX_FIELDS];
+	private final int[] ends = new int[MAX_FIELDS];
+	private int fieldCount;
+	private int type;
+
+	/**
+	 * parses a message received as bytes
+	 *
+	 * @param data the buffer holding the message
+	 * @param offset where the message starts
+	 * @param length the message length
+	 * @return the message type
+	 */
+	public int parse(byte[] data, int offset, int length) {
+		bytes = data;
+		string = null;
+		return tokenize(offset, offset + length);
+	}
+
+	/**
+	 * parses a message received as a string
+	 *
+	 * @param message the message
+	 * @return the message type
+	 */
+	public int parse(String message) {
+		bytes = null;
+		string = message;
+		return tokenize(0, message.length());
+	}
+
+	/**
+	 * gets the type of the parsed message
+	 *
+	 * @return one of the message types, UNKNOWN if it's not a protocol message
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * gets the number of fields of the parsed message,
+	 * the message type included
+	 *
+	 * @return the number of fields, as String.split would give
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * gets the length of a field
+	 *
+	 * @param field the field index
+	 * @return the length
+	 */
+	public int getFieldLength(int field) {
+		return ends[field] - starts[field];
+	}
+
+	/**
+	 * tells if a field is the passed value
+	 *
+	 * @param field the field index
+	 * @param value the value
+	 * @return true if it's equal
+	 */
+	public boolean fieldEquals(int field, String value) {
+		return field < fieldCount && getFieldLength(field) == value.length() && regionMatches(starts[field], value);
+	}
+
+	/**
+	 * tells if a field starts with the passed prefix
+	 *
+	 * @param field the field index
+	 * @param prefix the prefix
+	 * @return true if it starts with the prefix
+	 */
+	public boolean fieldStartsWith(int field, String prefix) {
+		return field < fieldCount && getFieldLength(field) >= prefix.length() && regionMatches(starts[field], prefix);
+	}
+
+	/**
+	 * gets the decimal number a field holds after the passed number of chars
+	 *
+	 * @param field the field index
+	 * @param skip the chars to be skipped, e.g. a prefix
+	 * @param defaultValue the value to be returned if it's not a number
+	 * @return the number, or defaultValue
+	 */
+	public int getFieldInt(int field, int skip, int defaultValue) {
+		if (field >= fieldCount) return defaultValue;
+		int from = starts[field] + skip;
+		int to = ends[field];
+		if (from >= to || to - from > 9) return defaultValue;
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			int c = charAt(i);
+			if (c < '0' || c > '9') return defaultValue;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * gets a field as a String, this is the only allocating method
+	 *
+	 * @param field the field index
+	 * @return the field, null if there is no such field
+	 */
+	public String getField(int field) {
+		if (field >= fieldCount) return null;
+		if (string != null) return string.substring(starts[field], ends[field]);
+		return new String(bytes, starts[field], getFieldLength(field));
+	}
+
+	/**
+	 * gets a field as a String out of the passed table, allocating it
+	 * only if it's not there: a field seen often, such as the uuid of
+	 * the known devices, comes out of the table without any garbage.
+	 * The table is made of pairs of slots, a field goes in the first
+	 * slot of its pair and pushes the one that was there to the second,
+	 * so that two fields having the same pair do not evict each other
+	 *
+	 * @param field the field index
+	 * @param table the strings seen so far, its length a power of 2, at least 2
+	 * @return the field, null if there is no such field
+	 */
+	public String getField(int field, String[] table) {
+		if (field >= fieldCount) return null;
+		int hash = 0;
+		for (int i = starts[field]; i < ends[field]; i++) hash = 31 * hash + charAt(i);
+		int slot = (hash ^ (hash >>> 16)) & (table.length - 2);
+		String seen = table[slot];
+		if (seen != null && fieldEquals(field, seen)) return seen;
+		seen = table[slot + 1];
+		if (seen != null && fieldEquals(field, seen)) {
+			// the most recent goes first
+			table[slot + 1] = table[slot];
+			return table[slot] = seen;
+		}
+		table[slot + 1] = table[slot];
+		return table[slot] = getField(field);
+	}
+
+	/**
+	 * splits the trimmed message and looks up its type
+	 *
+	 * @return the message type
+	 */
+	private int tokenize(int from, int to) {
+		// trim as String.trim does
+		while (from < to && charAt(from) <= ' ') from++;
+		while (to > from && charAt(to - 1) <= ' ') to--;
+
+		fieldCount = 0;
+		int start = from;
+		for (int i = from; i < to && fieldCount < MAX_FIELDS - 1; i++) {
+			if (charAt(i) == SEPARATOR) {
+				starts[fieldCount] = start;
+				ends[fieldCount++] = i;
+				start = i + 1;
+			}
+		}
+		starts[fieldCount] = start;
+		ends[fieldCount++] = to;
+		// trailing empty fields are dropped as String.split does
+		while (fieldCount > 1 && ends[fieldCount - 1] == starts[fieldCount - 1]) fieldCount--;
+
+		type = UNKNOWN;
+		for (int t = 1; t < TYPES.length; t++) {
+			if (fieldEquals(0, TYPES[t])) {
+				type = t;
+				break;
+			}
+		}
+		return type;
+	}
+
+	private boolean regionMatches(int offset, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (charAt(offset + i) != value.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private int charAt(int i) {
+		return (string != null) ? string.charAt(i) : (bytes[i] & 0xff);
+	}
+}
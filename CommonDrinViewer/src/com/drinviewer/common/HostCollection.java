@@ -140,7 +140,7 @@ public class HostCollection {
 		if (isInList(element))
 		{
 			int index = hostList.indexOf(element);
-			hostList.set(index, new HostData(element.hostname, element.address, isPaired ));
+			hostList.set(index, new HostData(element.hostname, element.address, isPaired, element.protocolVersion));
 		}
 	}
 	
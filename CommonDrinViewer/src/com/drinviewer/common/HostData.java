@@ -45,6 +45,13 @@ public class HostData {
 	 */
 	public boolean isPaired;
 	
+	/**
+	 * if the host is a server, the protocol version it has declared
+	 * while in DISCOVER phase. It's not part of the host identity,
+	 * so it's not used in equals and hashCode
+	 */
+	public int protocolVersion;
+	
 	/**
 	 * constructor, set all properties
 	 * to empty string and isPaired to false
@@ -53,6 +60,7 @@ public class HostData {
 		this.hostname = "";
 		this.address = "";
 		this.isPaired = false;
+		this.protocolVersion = Constants.PROTOCOL_VERSION_LEGACY;
 	}
 	
 	/**
@@ -65,6 +73,7 @@ public class HostData {
 		this.hostname = hostname;
 		this.address = address;
 		this.isPaired = false;
+		this.protocolVersion = Constants.PROTOCOL_VERSION_LEGACY;
 	}
 
 	/**
@@ -78,6 +87,66 @@ public class HostData {
 		this (hostname, address);
 		this.isPaired = isPaired;
 	}
+	
+	/**
+	 * constructor, sets hostname and IP address, isPaired and protocolVersion
+	 * 
+	 * @param hostname the server hostname to be set
+	 * @param address the server IP address to be set
+	 * @param isPaired true if the server is paired with the device
+	 * @param protocolVersion the protocol version declared by the server
+	 */
+	public HostData(String hostname, String address, boolean isPaired, int protocolVersion) {
+		this (hostname, address, isPaired);
+		this.protocolVersion = protocolVersion;
+	}
+
+	/**
+	 * fills the passed host with the data of a DISCOVER_RESPONSE
+	 * message: the paired state, the server host name if it has
+	 * sent one, its address otherwise, and the protocol version
+	 * declared by the servers that are not legacy ones
+	 *
+	 * @param message the received message
+	 * @param address the address the message came from
+	 * @param host the host to be filled
+	 * @return true if the message is a DISCOVER_RESPONSE and the host has been filled
+	 */
+	public static boolean parseDiscoverResponse(String message, String address, HostData host) {
+		DrinMessageParser parser = new DrinMessageParser();
+		parser.parse(message);
+		return parseDiscoverResponse(parser, address, host);
+	}
+
+	/**
+	 * fills the passed host with the data of an already parsed
+	 * DISCOVER_RESPONSE message, see parseDiscoverResponse(String, String, HostData)
+	 *
+	 * @param message the parsed message
+	 * @param address the address the message came from
+	 * @param host the host to be filled
+	 * @return true if the message is a DISCOVER_RESPONSE and the host has been filled
+	 */
+	public static boolean parseDiscoverResponse(DrinMessageParser message, String address, HostData host) {
+		if (message.getType() != DrinMessageParser.DISCOVER_RESPONSE) return false;
+
+		// for time being the server host name is its address
+		host.address = address;
+		host.hostname = address;
+		host.protocolVersion = Constants.PROTOCOL_VERSION_LEGACY;
+		// the paired parameter is (should be) always there, but double check it
+		host.isPaired = message.fieldEquals(1, Constants.MESSAGE_DEVICE_IS_PAIRED);
+		// if there are more than two fields, there's the host name in the received message
+		if (message.getFieldCount() > 2 && !message.fieldStartsWith(2, Constants.MESSAGE_PROTOCOL_VERSION)) host.hostname = message.getField(2);
+		// look for the protocol version, sent by the servers that are not legacy ones
+		for (int i = 2; i < message.getFieldCount(); i++) {
+			if (message.fieldStartsWith(i, Constants.MESSAGE_PROTOCOL_VERSION)) {
+				host.protocolVersion = message.getFieldInt(i, Constants.MESSAGE_PROTOCOL_VERSION.length(), Constants.PROTOCOL_VERSION_LEGACY);
+				break;
+			}
+		}
+		return true;
+	}
 
 	/**
 	 * calculates the Object hashCode
@@ -126,6 +195,6 @@ public class HostData {
 	@Override
 	public String toString() {
 		return "HostData [hostname=" + hostname + ", address=" + address
-				+ ", isPaired=" + isPaired + "]";
+				+ ", isPaired=" + isPaired + ", protocolVersion=" + protocolVersion + "]";
 	}		
 }
@@ -34,6 +34,31 @@ public class IncomingDrinEvent extends EventObject {
 	 */
 	private static final long serialVersionUID = 6432351239920679897L;
 
+	/**
+	 * the stages an event goes through, from the call on the device
+	 * to the popup on the desktop, indexes of stageTimes
+	 */
+	// the device has seen the call state change
+	public static final int STAGE_CALL = 0;
+	// the device connection to the host is ready
+	public static final int STAGE_CONNECT = 1;
+	// the host has started reading the event
+	public static final int STAGE_RECEIVE = 2;
+	// the host has decoded the event
+	public static final int STAGE_DECODE = 3;
+	// the host has dispatched the event to its listeners
+	public static final int STAGE_DISPATCH = 4;
+	// the event has been queued for the UI thread
+	public static final int STAGE_ENQUEUE = 5;
+	// the popup has been built
+	public static final int STAGE_BUILD = 6;
+	// the popup is visible
+	public static final int STAGE_VISIBLE = 7;
+	// number of stages
+	public static final int STAGES = 8;
+	// number of stages timed on the device, sent along with the event
+	public static final int DEVICE_STAGES = 2;
+
 	/**
 	 * the title to be displayed in the popup
 	 * 
@@ -51,11 +76,24 @@ public class IncomingDrinEvent extends EventObject {
 	 */
 	public byte[] imageData;
 	
+	/**
+	 * hash of the image, set in place of imageData
+	 * when the host already has the image
+	 */
+	public String imageHash;
+	
 	/**
 	 * request desktop action code
 	 */
 	public int action;
 	
+	/**
+	 * when the event has gone through each stage, as System.nanoTime
+	 * of this JVM or 0 if it has not, null if no stage has been timed.
+	 * It's not serialized: the device stages are sent by the DrinEventCodec
+	 */
+	public transient long[] stageTimes;
+	
 	/**
 	 * Instantiate the class
 	 * 
@@ -77,5 +115,36 @@ public class IncomingDrinEvent extends EventObject {
 		this(source, title, message, null, action);
 	}
 	
+	/**
+	 * sets the time of a stage to now
+	 * 
+	 * @param stage the stage, one of the STAGE constants
+	 */
+	public void stamp(int stage) {
+		stamp(stage, System.nanoTime());
+	}
+	
+	/**
+	 * sets the time of a stage
+	 * 
+	 * @param stage the stage, one of the STAGE constants
+	 * @param time the time, as System.nanoTime
+	 */
+	public void stamp(int stage, long time) {
+		if (stageTimes == null) stageTimes = new long[STAGES];
+		stageTimes[stage] = time;
+	}
 	
+	/**
+	 * tells if the event has been timed on the device
+	 * 
+	 * @return true if a device stage time is there
+	 */
+	public boolean isTimed() {
+		if (stageTimes == null) return false;
+		for (int i = 0; i < DEVICE_STAGES; i++) {
+			if (stageTimes[i] != 0) return true;
+		}
+		return false;
+	}
 }
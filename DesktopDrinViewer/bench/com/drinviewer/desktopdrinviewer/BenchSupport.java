@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+/**
+ * Helpers shared by the benchmarks and the load tests: the latency
+ * percentiles and the start of the TCP listeners, waiting for them
+ * to be bound so that a busy port stops the run at once.
+ *
+ * @author giorgio
+ *
+ */
+final class BenchSupport {
+
+	/**
+	 * millis a listener has to bind its port
+	 */
+	private static final int BIND_TIMEOUT = 5000;
+
+	private BenchSupport() {
+	}
+
+	/**
+	 * gets a percentile out of the sorted values
+	 *
+	 * @param sorted the sorted values
+	 * @param p the percentile to get, from 0 to 1
+	 * @return the value, 0 if there are no values
+	 */
+	static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	/**
+	 * runs the listener on a new daemon thread and waits for it to be listening
+	 *
+	 * @param listener the listener to be run
+	 * @param port the port to listen on
+	 * @return the thread running the listener
+	 * @throws IllegalStateException if the listener could not bind its port
+	 * @throws InterruptedException
+	 */
+	static Thread startListener(ServerListener listener, int port) throws InterruptedException {
+		listener.listenOnPort(port);
+		Thread listenerThread = new Thread(listener);
+		listenerThread.setDaemon(true);
+		listenerThread.start();
+		long deadline = System.currentTimeMillis() + BIND_TIMEOUT;
+		while (!listener.isListening()) {
+			if (!listenerThread.isAlive() || System.currentTimeMillis() > deadline) {
+				listener.terminate();
+				throw new IllegalStateException("the listener could not bind port " + port);
+			}
+			Thread.sleep(10);
+		}
+		return listenerThread;
+	}
+
+	/**
+	 * waits for the started server to be running
+	 *
+	 * @param server the server, already started
+	 * @throws IllegalStateException if the server could not bind its ports
+	 * @throws InterruptedException
+	 */
+	static void awaitRunning(DesktopServer server) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + BIND_TIMEOUT;
+		while (!server.isRunning()) {
+			if (System.currentTimeMillis() > deadline) {
+				server.stopServer();
+				throw new IllegalStateException("the server could not bind its ports");
+			}
+			Thread.sleep(10);
+		}
+	}
+}
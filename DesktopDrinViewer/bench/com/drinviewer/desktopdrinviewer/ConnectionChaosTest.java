@@ -0,0 +1,240 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinConnection;
+import com.drinviewer.common.DrinEventCodec;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Loopback chaos test of the ServerListener: some threads keep
+ * connecting and sending garbage, nothing at all, truncated requests
+ * and frames, objects that are not events and unknown requests, while
+ * a device keeps sending valid events on one-shot and on persistent
+ * connections. Prints the valid events sent and delivered, the
+ * broken connections/sec and the listener error counters: the
+ * listener must survive and deliver every valid event, with no
+ * server errors, or the test exits with status 1.
+ *
+ * The chaos threads connect from loopback addresses other than
+ * 127.0.0.1, that work out of the box on linux only.
+ *
+ * usage: ConnectionChaosTest [blocking|nio] [seconds] [chaos threads] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class ConnectionChaosTest {
+
+	private static final String VALID_TITLE = "valid";
+
+	/**
+	 * the broken requests, one for each kind of chaos
+	 */
+	private static byte[][] chaos;
+
+	public static void main(String[] args) throws Exception {
+		String mode  = (args.length > 0) ? args[0] : "blocking";
+		int seconds  = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int threads  = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+		final int port = (args.length > 3) ? Integer.parseInt(args[3]) : Constants.PORT + 700;
+
+		ServerListener listener;
+		if (mode.equals("nio")) {
+			listener = new NioServerListener();
+		} else {
+			listener = new ServerListener();
+			listener.setConnectionExecutor(ConnectionExecutors.newConnectionExecutor());
+		}
+		final AtomicLong delivered = new AtomicLong();
+		// every event counts, none must be coalesced
+		listener.getEventBus().addListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				if (VALID_TITLE.equals(event.title)) delivered.incrementAndGet();
+			}
+		}, DrinEventBus.SlowConsumerPolicy.DROP, 1 << 16);
+		Thread listenerThread = BenchSupport.startListener(listener, port);
+
+		chaos = buildChaos();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong broken = new AtomicLong();
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong failedSends = new AtomicLong();
+
+		Thread[] threadList = new Thread[threads + 1];
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			threadList[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(first);
+					for (int i = first; System.nanoTime() < end; i++) {
+						try {
+							// from its own address, not to share the connections caps with the device
+							Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port, InetAddress.getByName("127.0.1." + (first + 1)), 0);
+							int kind = i % (chaos.length + 2);
+							if (kind < chaos.length) {
+								socket.getOutputStream().write(chaos[kind]);
+								socket.shutdownOutput();
+							} else if (kind == chaos.length) {
+								// garbage
+								byte[] garbage = new byte[1 + random.nextInt(256)];
+								random.nextBytes(garbage);
+								socket.getOutputStream().write(garbage);
+							} else {
+								// half closed without sending anything
+								socket.shutdownOutput();
+							}
+							// wait for the listener to close its side, if it answers at all
+							socket.setSoTimeout(1000);
+							while (socket.getInputStream().read() >= 0);
+							socket.close();
+							broken.incrementAndGet();
+						} catch (Exception e) {
+							// the listener has closed on a broken request, that's fine
+							broken.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+
+		// the well behaved device, one event every 10ms on each connection kind
+		threadList[threads] = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				DrinConnection connection = DrinConnection.getConnection("127.0.0.1", port);
+				while (System.nanoTime() < end) {
+					IncomingDrinEvent event = new IncomingDrinEvent(ConnectionChaosTest.class, VALID_TITLE, "+39-666-666-66-66", Constants.SHOW_POPUP);
+					try {
+						Socket socket = new Socket("127.0.0.1", port);
+						ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+						out.writeUTF(Constants.INCOMING_DRIN);
+						out.writeObject(event);
+						out.close();
+						socket.close();
+						sent.incrementAndGet();
+					} catch (Exception e) {
+						failedSends.incrementAndGet();
+					}
+					try {
+						connection.sendDrinEvent(event);
+						sent.incrementAndGet();
+					} catch (Exception e) {
+						failedSends.incrementAndGet();
+					}
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {}
+				}
+			}
+		});
+
+		long start = System.nanoTime();
+		for (Thread t : threadList) t.start();
+		for (Thread t : threadList) t.join();
+		long elapsed = System.nanoTime() - start;
+		for (int i = 0; i < 50 && delivered.get() < sent.get(); i++) Thread.sleep(100);
+
+		ConnectionErrors errors = listener.getConnectionErrors();
+		boolean alive = listenerThread.isAlive();
+		System.out.println(String.format("%-8s valid sent %6d  delivered %6d  send failures %d  broken %7.0f conn/sec  listener alive %b",
+				mode, sent.get(), delivered.get(), failedSends.get(), broken.get() / (elapsed / 1e9), alive));
+		System.out.println("         " + errors);
+
+		DrinConnection.closeAllConnections();
+		listener.terminate();
+		listenerThread.join(5000);
+
+		long serverErrors = errors.getCount(ConnectionErrors.Category.SERVER);
+		if (delivered.get() != sent.get() || !alive || serverErrors > 0) {
+			System.out.println("FAILED: " + delivered.get() + " of " + sent.get() + " valid events delivered, listener alive "
+					+ alive + ", " + serverErrors + " server errors");
+			System.exit(1);
+		}
+		System.out.println("OK: the listener survived and delivered every valid event");
+	}
+
+	/**
+	 * builds the broken requests
+	 *
+	 * @return the requests
+	 * @throws Exception
+	 */
+	private static byte[][] buildChaos() throws Exception {
+		IncomingDrinEvent event = new IncomingDrinEvent(ConnectionChaosTest.class, "chaos", "+39-666-666-66-66", Constants.SHOW_POPUP);
+
+		// legacy request truncated in the middle of the event
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeUTF(Constants.INCOMING_DRIN);
+		out.writeObject(event);
+		out.close();
+		byte[] truncatedLegacy = truncate(bytes.toByteArray());
+
+		// legacy request carrying something that's not an event
+		bytes = new ByteArrayOutputStream();
+		out = new ObjectOutputStream(bytes);
+		out.writeUTF(Constants.INCOMING_DRIN);
+		out.writeObject(new int[] { 6, 6, 6 });
+		out.close();
+		byte[] notAnEvent = bytes.toByteArray();
+
+		// unknown request
+		bytes = new ByteArrayOutputStream();
+		out = new ObjectOutputStream(bytes);
+		out.writeUTF("CHAOS");
+		out.close();
+		byte[] unknown = bytes.toByteArray();
+
+		// persistent connection with an event frame truncated in the middle
+		bytes = new ByteArrayOutputStream();
+		bytes.write(DrinEventCodec.STREAM_MAGIC);
+		DrinEventCodec.write(event, new DataOutputStream(bytes));
+		byte[] truncatedFrame = truncate(bytes.toByteArray());
+
+		// persistent connection with a frame of unknown type
+		bytes = new ByteArrayOutputStream();
+		bytes.write(DrinEventCodec.STREAM_MAGIC);
+		OutputStream frame = new DataOutputStream(bytes);
+		frame.write(new byte[] { DrinEventCodec.VERSION, 66, 0, 0, 0, 0 });
+		byte[] badFrame = bytes.toByteArray();
+
+		return new byte[][] { truncatedLegacy, notAnEvent, unknown, truncatedFrame, badFrame };
+	}
+
+	private static byte[] truncate(byte[] data) {
+		byte[] truncated = new byte[data.length * 2 / 3];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		return truncated;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinConnection;
+import com.drinviewer.common.DrinEventCodec;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Loopback benchmark of the ring-to-popup latency: sends SHOW_POPUP
+ * events one at a time, as the device does when the phone rings, and
+ * measures the time from the send to the listener dispatching the event.
+ * Every event is sent on its own connection, both serialized and with
+ * the DrinEventCodec, and then on a single persistent framed connection,
+ * against both the thread per connection and the non blocking listener.
+ *
+ * usage: ConnectionLatencyBenchmark [events] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class ConnectionLatencyBenchmark {
+	/**
+	 * one connection per event, serialized event
+	 */
+	private static final int MODE_LEGACY = 0;
+
+	/**
+	 * one connection per event, encoded event
+	 */
+	private static final int MODE_BINARY = 1;
+
+	/**
+	 * persistent framed connection
+	 */
+	private static final int MODE_FRAMED = 2;
+
+	private static final String[] MODE_NAMES = { "one-shot serialized", "one-shot binary", "persistent framed" };
+
+	public static void main(String[] args) throws Exception {
+		int events = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		int port   = (args.length > 1) ? Integer.parseInt(args[1]) : Constants.PORT + 200;
+
+		for (int mode = MODE_LEGACY; mode <= MODE_FRAMED; mode++) {
+			// first run of each mode is a warm up
+			run("thread per connection", new ServerListener(), port, mode, events / 4 + 1, false);
+			run("thread per connection", new ServerListener(), port, mode, events, true);
+			run("non blocking", new NioServerListener(), port + 1, mode, events / 4 + 1, false);
+			run("non blocking", new NioServerListener(), port + 1, mode, events, true);
+		}
+	}
+
+	/**
+	 * runs the benchmark on the passed listener
+	 *
+	 * @param name the name of the listener to be printed
+	 * @param listener the listener to be benchmarked
+	 * @param port the port to listen on
+	 * @param mode how the events are sent
+	 * @param events number of events to be sent
+	 * @param print true to print the results
+	 * @throws Exception
+	 */
+	private static void run(String name, ServerListener listener, int port, int mode, int events, boolean print) throws Exception {
+		final SynchronousQueue<Long> received = new SynchronousQueue<Long>();
+		listener.addIncomingDrinListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				try {
+					received.put(System.nanoTime());
+				} catch (InterruptedException e) {}
+			}
+		});
+		Thread listenerThread = BenchSupport.startListener(listener, port);
+
+		IncomingDrinEvent event = new IncomingDrinEvent(ConnectionLatencyBenchmark.class, "John Appleseed", "+39-666-666-66-66", Constants.SHOW_POPUP);
+		DrinConnection connection = DrinConnection.getConnection("127.0.0.1", port);
+		long[] latencies = new long[events];
+		int count = 0;
+
+		for (int i = 0; i < events; i++) {
+			long start = System.nanoTime();
+			if (mode == MODE_FRAMED) {
+				connection.sendDrinEvent(event);
+			} else {
+				Socket socket = new Socket("127.0.0.1", port);
+				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+				if (mode == MODE_BINARY) {
+					out.writeUTF(Constants.INCOMING_DRIN + Constants.MESSAGE_CHAR_SEPARATOR + DrinEventCodec.VERSION);
+					DrinEventCodec.write(event, out);
+				} else {
+					out.writeUTF(Constants.INCOMING_DRIN);
+					out.writeObject(event);
+				}
+				out.close();
+				socket.close();
+			}
+			Long dispatched = received.poll(5, TimeUnit.SECONDS);
+			if (dispatched != null) latencies[count++] = dispatched - start;
+		}
+
+		DrinConnection.closeAllConnections();
+		listener.terminate();
+		listenerThread.join(5000);
+
+		if (print) {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			System.out.println(String.format("%-22s %-20s %6d events  p50 %8.3f ms  p99 %8.3f ms  lost %d",
+					name, MODE_NAMES[mode], count,
+					BenchSupport.percentile(sorted, 0.50) / 1e6, BenchSupport.percentile(sorted, 0.99) / 1e6, events - count));
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Loopback soak test of the blocking ServerListener connection modes:
+ * slow clients send the first half of an INCOMING_DRIN request, wait
+ * and then send the rest, so that every connection keeps a server
+ * thread blocked in a read. The clients are driven by a single non
+ * blocking thread, and the peak number of live threads, the peak RSS
+ * of the process and the delivered events/sec are printed.
+ *
+ * Run each mode in its own JVM, as the RSS never goes back down.
+ * Modes: thread (a new thread per connection, as before), pool
+ * (the bounded pool), virtual (virtual threads, JDK 21 or later),
+ * default (what the DesktopServer uses on the running JDK).
+ *
+ * usage: ConnectionSoakTest [mode] [clients] [client delay ms] [connects/sec] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class ConnectionSoakTest {
+
+	public static void main(String[] args) throws Exception {
+		String mode   = (args.length > 0) ? args[0] : "default";
+		int clients   = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+		int delay     = (args.length > 2) ? Integer.parseInt(args[2]) : 4000;
+		int rate      = (args.length > 3) ? Integer.parseInt(args[3]) : 2500;
+		int port      = (args.length > 4) ? Integer.parseInt(args[4]) : Constants.PORT + 600;
+
+		ExecutorService executor = null;
+		if (mode.equals("pool")) {
+			executor = ConnectionExecutors.newBoundedExecutor(ConnectionExecutors.POOL_SIZE, ConnectionExecutors.POOL_QUEUE_SIZE);
+		} else if (mode.equals("virtual")) {
+			executor = ConnectionExecutors.newVirtualThreadExecutor();
+			if (executor == null) {
+				System.out.println("virtual threads not available on this JDK");
+				return;
+			}
+		} else if (mode.equals("default")) {
+			executor = ConnectionExecutors.newConnectionExecutor();
+		} else if (!mode.equals("thread")) {
+			System.out.println("unknown mode " + mode);
+			return;
+		}
+
+		final AtomicInteger delivered = new AtomicInteger();
+		ServerListener listener = new ServerListener();
+		listener.setConnectionExecutor(executor);
+		// every event counts, none must be coalesced
+		listener.getEventBus().addListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				delivered.incrementAndGet();
+			}
+		}, DrinEventBus.SlowConsumerPolicy.DROP, clients);
+		// all the clients share the loopback address
+		listener.setConnectionLimits(ConnectionLimits.none());
+		Thread listenerThread = BenchSupport.startListener(listener, port);
+
+		// the request, split in two halves
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeUTF(Constants.INCOMING_DRIN);
+		out.writeObject(new IncomingDrinEvent(ConnectionSoakTest.class, "John Appleseed", "+39-666-666-66-66", Constants.NO_ACTION));
+		out.close();
+		byte[] request = bytes.toByteArray();
+		byte[] firstHalf = new byte[request.length / 2];
+		byte[] secondHalf = new byte[request.length - firstHalf.length];
+		System.arraycopy(request, 0, firstHalf, 0, firstHalf.length);
+		System.arraycopy(request, firstHalf.length, secondHalf, 0, secondHalf.length);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		RssSampler rss = new RssSampler();
+		Thread rssThread = new Thread(rss);
+		rssThread.setDaemon(true);
+		rssThread.start();
+
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+		Selector selector = Selector.open();
+		ArrayDeque<Object[]> waiting = new ArrayDeque<Object[]>();
+		int opened = 0;
+		int done = 0;
+		int failed = 0;
+		long start = System.nanoTime();
+		long deadline = start + (clients / rate + delay / 1000 + 120) * 1000000000L;
+
+		while (done + failed < clients && System.nanoTime() < deadline) {
+			long now = System.nanoTime();
+
+			// open the clients at the given rate
+			long due = Math.min(clients, (now - start) * rate / 1000000000L + 1);
+			for (; opened < due; opened++) {
+				try {
+					SocketChannel channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.connect(address);
+					channel.register(selector, SelectionKey.OP_CONNECT);
+				} catch (IOException e) {
+					failed++;
+				}
+			}
+
+			selector.select(5);
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+				SelectionKey key = it.next();
+				it.remove();
+				SocketChannel channel = (SocketChannel) key.channel();
+				try {
+					channel.finishConnect();
+					channel.write(ByteBuffer.wrap(firstHalf));
+					key.interestOps(0);
+					waiting.add(new Object[] { channel, System.nanoTime() + delay * 1000000L });
+				} catch (IOException e) {
+					key.cancel();
+					channel.close();
+					failed++;
+				}
+			}
+
+			// the clients that have waited enough send the rest and go
+			while (!waiting.isEmpty() && (Long) waiting.peek()[1] <= now) {
+				SocketChannel channel = (SocketChannel) waiting.poll()[0];
+				try {
+					channel.write(ByteBuffer.wrap(secondHalf));
+					done++;
+				} catch (IOException e) {
+					failed++;
+				}
+				channel.close();
+			}
+		}
+		// wait for the last events
+		long elapsed = System.nanoTime() - start;
+		for (int i = 0; i < 50 && delivered.get() < done; i++) Thread.sleep(100);
+
+		System.out.println(String.format("%-8s %6d clients  delivered %6d  failed %6d  %7.0f events/sec  peak threads %6d  peak rss %6d MB",
+				mode, clients, delivered.get(), failed + (done - delivered.get()), delivered.get() / (elapsed / 1e9),
+				threads.getPeakThreadCount(), rss.peak / 1024));
+
+		listener.terminate();
+		selector.close();
+		if (executor != null) executor.shutdownNow();
+		System.exit(0);
+	}
+
+	/**
+	 * samples the resident set size of the process from /proc
+	 */
+	private static class RssSampler implements Runnable {
+		private volatile long peak = 0;
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+					try {
+						String line;
+						while ((line = in.readLine()) != null) {
+							if (line.startsWith("VmRSS:")) {
+								long kb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+								if (kb > peak) peak = kb;
+							}
+						}
+					} finally {
+						in.close();
+					}
+					Thread.sleep(100);
+				} catch (Exception e) {
+					// not on linux
+					return;
+				}
+			}
+		}
+	}
+}
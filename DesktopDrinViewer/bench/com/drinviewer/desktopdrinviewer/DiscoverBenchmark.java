@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * Loopback benchmark of the BroadCastListener: concurrent devices
+ * send DISCOVER requests, each one waiting for the response before
+ * sending the next, and the DISCOVER replies/sec and the reply
+ * latency percentiles are printed.
+ *
+ * usage: DiscoverBenchmark [devices] [seconds] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class DiscoverBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int devices = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		final int port = (args.length > 2) ? Integer.parseInt(args[2]) : Constants.PORT + 300;
+
+		BroadCastListener listener = BroadCastListener.getInstance();
+		listener.listenOnPort(port);
+		// all the devices share the loopback address
+		listener.setRateLimits(0, 1, 0, 1);
+		listener.initDatagramSocket();
+		Thread listenerThread = new Thread(listener);
+		listenerThread.setDaemon(true);
+		listenerThread.start();
+
+		// first run is a warm up
+		run(devices, Math.max(1, seconds / 5), port, false);
+		run(devices, seconds, port, true);
+
+		listener.terminate();
+		listenerThread.join(5000);
+	}
+
+	/**
+	 * runs the devices for the passed time
+	 *
+	 * @param devices number of concurrent devices
+	 * @param seconds duration of the run
+	 * @param port the port of the listener
+	 * @param print true to print the results
+	 * @throws Exception
+	 */
+	private static void run(int devices, int seconds, final int port, boolean print) throws Exception {
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final long[][] latencies = new long[devices][];
+		final int[] counts = new int[devices];
+		final AtomicInteger timeouts = new AtomicInteger();
+
+		Thread[] threads = new Thread[devices];
+		for (int d = 0; d < devices; d++) {
+			final int device = d;
+			threads[d] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long[] samples = new long[1024];
+					int count = 0;
+					try {
+						DatagramSocket socket = new DatagramSocket();
+						socket.setSoTimeout(1000);
+						byte[] request = (Constants.DISCOVER_REQUEST + Constants.MESSAGE_CHAR_SEPARATOR + UUID.randomUUID()).getBytes();
+						DatagramPacket requestPacket = new DatagramPacket(request, request.length, InetAddress.getByName("127.0.0.1"), port);
+						DatagramPacket responsePacket = new DatagramPacket(new byte[Constants.BUFLEN], Constants.BUFLEN);
+
+						while (System.nanoTime() < end) {
+							long start = System.nanoTime();
+							socket.send(requestPacket);
+							try {
+								socket.receive(responsePacket);
+							} catch (SocketTimeoutException e) {
+								timeouts.incrementAndGet();
+								continue;
+							}
+							if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+							samples[count++] = System.nanoTime() - start;
+						}
+						socket.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					latencies[device] = samples;
+					counts[device] = count;
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		long elapsed = System.nanoTime() - start;
+
+		int total = 0;
+		for (int count : counts) total += count;
+		long[] sorted = new long[total];
+		int pos = 0;
+		for (int d = 0; d < devices; d++) {
+			System.arraycopy(latencies[d], 0, sorted, pos, counts[d]);
+			pos += counts[d];
+		}
+		Arrays.sort(sorted);
+
+		if (print) {
+			System.out.println(String.format("%d devices  %7d replies  %8.0f replies/sec  p50 %8.3f ms  p99 %8.3f ms  timeouts %d",
+					devices, total, total / (elapsed / 1e9),
+					BenchSupport.percentile(sorted, 0.50) / 1e6, BenchSupport.percentile(sorted, 0.99) / 1e6, timeouts.get()));
+		}
+	}
+}
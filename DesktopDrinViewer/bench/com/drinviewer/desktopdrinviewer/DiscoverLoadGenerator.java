@@ -0,0 +1,197 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * Loopback load generator for the BroadCastListener: fires DISCOVER
+ * packets at a fixed rate without waiting for the responses, as a
+ * broadcast storm from many devices would, and prints replies/sec,
+ * the packets that got no reply, the CPU time used by the process and
+ * by the listener thread and the peak number of live threads.
+ *
+ * The rate limits are disabled unless "limited" is passed, to check
+ * that a flood from a single source does not raise the CPU usage:
+ * every sender is then a single device flooding the listener, and the
+ * test exits with status 1 if the listener thread takes more than
+ * MAX_LIMITED_CPU percent of a core at any of the rates.
+ * More rates can be passed comma separated, to be run one after the other.
+ *
+ * usage: DiscoverLoadGenerator [packets/sec[,packets/sec...]] [seconds] [senders] [port] [limited]
+ *
+ * @author giorgio
+ *
+ */
+public class DiscoverLoadGenerator {
+
+	/**
+	 * percent of a core the listener thread may take
+	 * when the rate limits are on, whatever the flood rate
+	 */
+	private static final double MAX_LIMITED_CPU = 15;
+
+	public static void main(String[] args) throws Exception {
+		String[] rates  = (args.length > 0) ? args[0].split(",") : new String[] { "5000" };
+		int seconds     = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int senders     = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+		int port        = (args.length > 3) ? Integer.parseInt(args[3]) : Constants.PORT + 400;
+		boolean limited = (args.length > 4) && args[4].equals("limited");
+
+		BroadCastListener listener = BroadCastListener.getInstance();
+		listener.listenOnPort(port);
+		if (!limited) listener.setRateLimits(0, 1, 0, 1);
+		listener.initDatagramSocket();
+		Thread listenerThread = new Thread(listener);
+		listenerThread.setDaemon(true);
+		listenerThread.start();
+
+		// first run is a warm up
+		run(Integer.parseInt(rates[0]), Math.max(1, seconds / 5), senders, port, null, null);
+		double maxCpu = 0;
+		for (String rate : rates) {
+			maxCpu = Math.max(maxCpu, run(Integer.parseInt(rate), seconds, senders, port, listener, listenerThread));
+		}
+
+		listener.terminate();
+		listenerThread.join(5000);
+
+		if (limited) {
+			if (maxCpu > MAX_LIMITED_CPU) {
+				System.out.println(String.format("FAILED: the listener took %.1f%% of a core, more than %.0f%%", maxCpu, MAX_LIMITED_CPU));
+				System.exit(1);
+			}
+			System.out.println(String.format("OK: the listener took at most %.1f%% of a core", maxCpu));
+		}
+	}
+
+	/**
+	 * fires the packets for the passed time
+	 *
+	 * @param rate packets per second, for all the senders
+	 * @param seconds duration of the run
+	 * @param senders number of sending sockets
+	 * @param port the port of the listener
+	 * @param listener the listener whose counters are printed, null to print nothing
+	 * @param listenerThread the thread running the listener, null not to measure its CPU time
+	 * @return the percent of a core taken by the listener thread
+	 * @throws Exception
+	 */
+	private static double run(final int rate, int seconds, final int senders, final int port, BroadCastListener listener, Thread listenerThread) throws Exception {
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong replies = new AtomicLong();
+
+		long throttled = (listener != null) ? listener.getThrottledPackets() : 0;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		long cpuStart = processCpuTime();
+		long listenerCpuStart = (listenerThread != null) ? threads.getThreadCpuTime(listenerThread.getId()) : 0;
+
+		Thread[] threadList = new Thread[senders * 2];
+		for (int s = 0; s < senders; s++) {
+			final DatagramSocket socket = new DatagramSocket();
+			socket.setReceiveBufferSize(1024 * 1024);
+			socket.setSoTimeout(200);
+
+			// sender, paced every millisecond
+			threadList[s * 2] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						byte[] request = (Constants.DISCOVER_REQUEST + Constants.MESSAGE_CHAR_SEPARATOR + UUID.randomUUID()).getBytes();
+						DatagramPacket packet = new DatagramPacket(request, request.length, InetAddress.getByName("127.0.0.1"), port);
+						long start = System.nanoTime();
+						long count = 0;
+						long now;
+						while ((now = System.nanoTime()) < end) {
+							long due = (now - start) * rate / senders / 1000000000L;
+							for (; count < due; count++) {
+								socket.send(packet);
+								sent.incrementAndGet();
+							}
+							Thread.sleep(1);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+
+			// receiver, until a while after the senders have stopped
+			threadList[s * 2 + 1] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					DatagramPacket packet = new DatagramPacket(new byte[Constants.BUFLEN], Constants.BUFLEN);
+					while (System.nanoTime() < end + 1000000000L) {
+						try {
+							socket.receive(packet);
+							replies.incrementAndGet();
+						} catch (SocketTimeoutException e) {
+							// check the time again
+						} catch (Exception e) {
+							e.printStackTrace();
+							break;
+						}
+					}
+					socket.close();
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread t : threadList) t.start();
+		for (Thread t : threadList) t.join();
+		long elapsed = Math.min(System.nanoTime(), end) - start;
+		long cpu = processCpuTime() - cpuStart;
+		long listenerCpu = (listenerThread != null) ? threads.getThreadCpuTime(listenerThread.getId()) - listenerCpuStart : 0;
+
+		if (listener != null) {
+			System.out.println(String.format("sent %8d  %8.0f packets/sec  replies %8.0f/sec  no reply %7d  throttled %7d  cpu %6.2f s (%5.1f%%)  listener cpu %5.1f%%  peak threads %d",
+					sent.get(), sent.get() / (elapsed / 1e9), replies.get() / (elapsed / 1e9), sent.get() - replies.get(),
+					listener.getThrottledPackets() - throttled, cpu / 1e9, 100.0 * cpu / elapsed, 100.0 * listenerCpu / elapsed, threads.getPeakThreadCount()));
+		}
+		return 100.0 * listenerCpu / elapsed;
+	}
+
+	/**
+	 * gets the CPU time used by the process, if the platform tells it
+	 *
+	 * @return the CPU time in nanoseconds, 0 if not available
+	 */
+	private static long processCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return 0;
+	}
+}
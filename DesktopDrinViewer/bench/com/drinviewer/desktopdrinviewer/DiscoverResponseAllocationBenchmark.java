@@ -0,0 +1,81 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * Measures the bytes allocated for each DISCOVER_RESPONSE sent by
+ * the BroadCastListener, using the per thread allocation counter
+ * of the HotSpot ThreadMXBean, and the time spent for each reply.
+ *
+ * usage: DiscoverResponseAllocationBenchmark [replies] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class DiscoverResponseAllocationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int replies = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int port    = (args.length > 1) ? Integer.parseInt(args[1]) : Constants.PORT + 500;
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("Thread allocation counters not available on this JVM");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		BroadCastListener listener = BroadCastListener.getInstance();
+		listener.listenOnPort(port);
+		listener.initDatagramSocket();
+
+		// the replies are sent to a socket that's never read, the kernel drops them
+		DatagramSocket device = new DatagramSocket();
+		InetSocketAddress target = new InetSocketAddress("127.0.0.1", device.getLocalPort());
+
+		for (int run = 0; run < 2; run++) {
+			// first run is a warm up
+			long bytes = allocations.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			for (int i = 0; i < replies; i++) {
+				listener.sendResponse((i & 1) == 0, target);
+			}
+			long elapsed = System.nanoTime() - start;
+			bytes = allocations.getThreadAllocatedBytes(threadId) - bytes;
+
+			if (run > 0) {
+				System.out.println(String.format("%d replies  %8.1f ns/reply  %8.2f bytes allocated/reply",
+						replies, (double) elapsed / replies, (double) bytes / replies));
+			}
+		}
+
+		listener.terminate();
+		device.close();
+	}
+}
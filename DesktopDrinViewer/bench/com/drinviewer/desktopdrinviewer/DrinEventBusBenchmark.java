@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Publishes events on the DrinEventBus from concurrent network-like
+ * threads, with a fast listener and a slow one, one coalescing and
+ * one dropping, and prints the time the publishers are held and the
+ * metrics of every listener.
+ *
+ * usage: DrinEventBusBenchmark [events per publisher] [publishers] [slow listener ms]
+ *
+ * @author giorgio
+ *
+ */
+public class DrinEventBusBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int events   = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int publishers     = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		final int slowTime = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+
+		final DrinEventBus bus = new DrinEventBus(DesktopDrinViewerConstants.EVENT_QUEUE_SIZE);
+
+		bus.addListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				// fast, like posting to the UI thread
+			}
+		});
+		IncomingDrinListener slow = new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				try {
+					Thread.sleep(slowTime);
+				} catch (InterruptedException e) {}
+			}
+		};
+		bus.addListener(slow, DrinEventBus.SlowConsumerPolicy.COALESCE, DesktopDrinViewerConstants.LISTENER_QUEUE_SIZE);
+		bus.addListener(slow, DrinEventBus.SlowConsumerPolicy.DROP, DesktopDrinViewerConstants.LISTENER_QUEUE_SIZE);
+
+		final AtomicLong publishTime = new AtomicLong();
+		final AtomicLong maxPublishTime = new AtomicLong();
+		Thread[] threads = new Thread[publishers];
+		for (int p = 0; p < publishers; p++) {
+			final int publisher = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < events; i++) {
+						IncomingDrinEvent event = new IncomingDrinEvent(this, "caller " + (i % 10), Integer.toString(publisher),
+								(i % 2 == 0) ? Constants.SHOW_POPUP : Constants.REMOVE_POPUP);
+						long start = System.nanoTime();
+						bus.publish(event);
+						long elapsed = System.nanoTime() - start;
+						publishTime.addAndGet(elapsed);
+						if (elapsed > maxPublishTime.get()) maxPublishTime.set(elapsed);
+						// network threads do some work between two events
+						if (i % 100 == 0) Thread.yield();
+					}
+				}
+			});
+		}
+
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		// let the slow listeners drain their mailboxes
+		Thread.sleep(slowTime * DesktopDrinViewerConstants.LISTENER_QUEUE_SIZE * 2 + 500);
+
+		long total = (long) events * publishers;
+		System.out.println(String.format("published %d  rejected %d  publish mean %.0f ns  max %.3f ms  queue depth %d",
+				bus.getPublished(), bus.getRejected(), (double) publishTime.get() / total, maxPublishTime.get() / 1e6, bus.getQueueDepth()));
+		for (DrinEventBus.Subscription subscription : bus.getSubscriptions()) {
+			System.out.println(subscription);
+		}
+		bus.shutdown();
+	}
+}
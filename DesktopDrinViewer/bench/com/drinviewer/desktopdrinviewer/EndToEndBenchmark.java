@@ -0,0 +1,474 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinConnection;
+import com.drinviewer.common.HostData;
+import com.drinviewer.common.IncomingDrinEvent;
+import com.drinviewer.droiddrinviewer.ClientConnectionManager;
+import com.drinviewer.droiddrinviewer.DroidDrinViewerConstants;
+
+/**
+ * Loopback end to end benchmark of the DesktopServer: starts it with a
+ * headless listener and drives it from simulated phones on 127.0.0.1.
+ * All the phones discover the server some rounds, then pair and unpair
+ * as many rounds ending paired, then send their rings as fast as they
+ * can, and finally unpair. Prints the throughput and the
+ * p50/p99/p999 latencies of discovery, pairing, that counts the
+ * unpairing requests too, and INCOMING_DRIN, this
+ * one from the send to the listener, and the bytes allocated by the whole
+ * process while the rings are sent, and writes them to the results file
+ * as JSON, to be compared between builds.
+ *
+ * The phones pair and ring with the Android ClientConnectionManager and
+ * discover as the Android DiscoverServer does, sending the request to
+ * 127.0.0.1 instead of broadcasting it. The DISCOVER rate limits and the
+ * TCP connection limits are disabled, and the server uses a temporary
+ * directory as the user home, not to pair the phones for real.
+ *
+ * The phones use the protocol version the server declares, unless one is
+ * passed. The persistent connection is kept by DrinConnection per host,
+ * so each phone reaches the server at a loopback address of its own,
+ * 127.0.0.2 and on, to have its own connection as many phones would: that
+ * works out of the box on linux only, pass shared to have all the phones
+ * use 127.0.0.1 and share one connection. Pass protocol 2 to have each
+ * ring sent on its own connection. The results tell how many connections
+ * were open when the phones started ringing, and how many the server has
+ * accepted while they were.
+ *
+ * usage: EndToEndBenchmark [blocking|nio] [phones] [rings per phone] [rounds] [protocol version, 0 as declared] [results file] [port] [phone|shared connections]
+ *
+ * @author giorgio
+ *
+ */
+public class EndToEndBenchmark {
+
+	private static final String[] OPERATIONS = { "discover", "pair", "drin" };
+	private static final int DISCOVER = 0;
+	private static final int PAIR = 1;
+	private static final int DRIN = 2;
+
+	/**
+	 * the run whose events the listener is waiting for
+	 */
+	private static volatile Run current;
+
+	public static void main(String[] args) throws Exception {
+		String mode         = (args.length > 0) ? args[0] : "blocking";
+		int phones          = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		int rings           = (args.length > 2) ? Integer.parseInt(args[2]) : 250;
+		int rounds          = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+		int protocolVersion = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+		String resultsFile  = (args.length > 5) ? args[5] : "e2e-results.json";
+		int port            = (args.length > 6) ? Integer.parseInt(args[6]) : Constants.PORT + 900;
+		boolean shared      = (args.length > 7) && args[7].equals("shared");
+
+		// keep the paired devices and the image cache away from the user ones
+		File home = File.createTempFile("drinviewer", "e2e");
+		home.delete();
+		home.mkdirs();
+		System.setProperty("user.home", home.getAbsolutePath());
+
+		BroadCastListener.getInstance().setRateLimits(0, 1, 0, 1);
+		DesktopServer server = new DesktopServer(port, mode.equals("nio"));
+		server.setConnectionLimits(ConnectionLimits.none());
+		// every event counts, none must be coalesced
+		server.addListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				Run run = current;
+				if (run != null) run.delivered(event);
+			}
+		}, DrinEventBus.SlowConsumerPolicy.DROP, phones * rings);
+		server.startServer();
+		BenchSupport.awaitRunning(server);
+
+		// first run is a warm up
+		run(server, port, phones, Math.max(1, rings / 5), Math.max(1, rounds / 5), protocolVersion, shared);
+		Run run = run(server, port, phones, rings, rounds, protocolVersion, shared);
+
+		System.out.println(String.format("%-8s %d phones, %d rings and %d rounds each, protocol version %d, %s connections",
+				mode, phones, rings, rounds, run.protocolVersion, shared ? "shared" : "phone"));
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			long[] sorted = run.sorted(op);
+			System.out.println(String.format("%-8s %6d ok %5d failed %9.1f ops/sec  p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms",
+					OPERATIONS[op], sorted.length, run.failures[op].get(), run.throughput(op),
+					BenchSupport.percentile(sorted, 0.50) / 1e6, BenchSupport.percentile(sorted, 0.99) / 1e6,
+					BenchSupport.percentile(sorted, 0.999) / 1e6, BenchSupport.percentile(sorted, 1) / 1e6));
+		}
+		if (run.allocated >= 0) {
+			System.out.println(String.format("allocated %.1f MB/sec, %d bytes per ring while ringing",
+					run.allocationRate() / 1e6, run.allocated / Math.max(1, run.count[DRIN].get())));
+		} else {
+			System.out.println("allocated bytes not available on this JVM");
+		}
+		System.out.println(String.format("%d connections open when ringing started, %d accepted while ringing",
+				run.openConnections, run.connections));
+
+		write(resultsFile, mode, phones, rings, rounds, shared, run);
+		System.out.println("results written to " + new File(resultsFile).getAbsolutePath());
+
+		DrinConnection.closeAllConnections();
+		server.stopServer();
+		System.exit(0);
+	}
+
+	/**
+	 * runs the phones once
+	 *
+	 * @param shared true if all the phones share the connection to 127.0.0.1
+	 * @return the run results
+	 * @throws Exception
+	 */
+	private static Run run(DesktopServer server, final int port, int phones, final int rings, final int rounds,
+			final int protocolVersion, final boolean shared) throws Exception {
+		final Run run = new Run(phones, rings, rounds, server.getMetrics());
+		current = run;
+		// the phases start together for all the phones
+		final CyclicBarrier barrier = new CyclicBarrier(phones, new Runnable() {
+			@Override
+			public void run() {
+				run.phaseStarted();
+			}
+		});
+		final CountDownLatch sent = new CountDownLatch(phones);
+		final CountDownLatch measured = new CountDownLatch(1);
+
+		Thread[] threadList = new Thread[phones];
+		for (int p = 0; p < phones; p++) {
+			// a loopback address of its own, not to share the DrinConnection
+			final String address = shared ? "127.0.0.1" : "127.0." + (p / 250) + "." + (2 + p % 250);
+			threadList[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					String uuid = UUID.randomUUID().toString();
+					HostData host = null;
+					ClientConnectionManager manager = null;
+
+					await(barrier);
+					for (int i = 0; i < rounds; i++) {
+						try {
+							long start = System.nanoTime();
+							HostData found = discover(port, uuid);
+							if (found != null) {
+								run.record(DISCOVER, System.nanoTime() - start);
+								host = found;
+							} else {
+								run.failures[DISCOVER].incrementAndGet();
+							}
+						} catch (IOException e) {
+							run.failures[DISCOVER].incrementAndGet();
+						}
+					}
+
+					await(barrier);
+					if (host != null) {
+						if (protocolVersion > 0) host.protocolVersion = protocolVersion;
+						host.address = address;
+						run.protocolVersion = host.protocolVersion;
+						manager = new ClientConnectionManager(host);
+						manager.setUUID(uuid);
+						manager.connectOnPort(port);
+						// pair, unpair and so on, ending paired
+						for (int i = 0; i < 2 * rounds - 1; i++) {
+							try {
+								long start = System.nanoTime();
+								// the protocol gives the new paired state
+								if (manager.runPairProtocol() != host.isPaired) {
+									run.record(PAIR, System.nanoTime() - start);
+									host.isPaired = !host.isPaired;
+								} else {
+									run.failures[PAIR].incrementAndGet();
+								}
+							} catch (IOException e) {
+								run.failures[PAIR].incrementAndGet();
+							}
+						}
+						if (host.isPaired) run.pairedPhones.incrementAndGet();
+					}
+
+					await(barrier);
+					if (host != null && host.isPaired) {
+						for (int r = 0; r < rings; r++) {
+							try {
+								manager.sendDrinEvent(new IncomingDrinEvent(EndToEndBenchmark.class, run.title,
+										Long.toString(System.nanoTime()), Constants.SHOW_POPUP));
+							} catch (IOException e) {
+								run.failures[DRIN].incrementAndGet();
+							}
+						}
+					}
+
+					// wait for the allocated bytes to be measured before leaving
+					sent.countDown();
+					try {
+						measured.await();
+					} catch (InterruptedException e) {}
+
+					if (host != null && host.isPaired) {
+						try {
+							manager.runPairProtocol();
+						} catch (IOException e) {
+							// still paired in the temporary directory, never mind
+						}
+					}
+				}
+			});
+			threadList[p].start();
+		}
+
+		sent.await();
+		// wait for the rings still on the way, as long as they keep coming
+		for (int last = -1; run.count[DRIN].get() + run.failures[DRIN].get() < run.expectedRings() && run.count[DRIN].get() != last;) {
+			last = run.count[DRIN].get();
+			Thread.sleep(1000);
+		}
+		run.ringingDone();
+		measured.countDown();
+		for (Thread t : threadList) t.join();
+		current = null;
+		return run;
+	}
+
+	/**
+	 * discovers the server as the DiscoverServer does, asking 127.0.0.1
+	 * instead of the broadcast address and stopping at the first response
+	 *
+	 * @return the server, null if it has not responded in time
+	 * @throws IOException
+	 */
+	private static HostData discover(int port, String uuid) throws IOException {
+		byte[] sendData = (Constants.DISCOVER_REQUEST+Constants.MESSAGE_CHAR_SEPARATOR+uuid).getBytes();
+		DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName("127.0.0.1"), port);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			byte[] recvBuf = new byte[Constants.BUFLEN];
+			DatagramPacket receivePacket = new DatagramPacket(recvBuf, recvBuf.length);
+			socket.setSoTimeout(DroidDrinViewerConstants.DISCOVER_TIMEOUT);
+			socket.send(sendPacket);
+			long startTime = System.currentTimeMillis();
+			while ((System.currentTimeMillis() - startTime) <= DroidDrinViewerConstants.DISCOVERY_MAX_TIMEOUT) {
+				try {
+					receivePacket.setData(recvBuf);
+					socket.receive(receivePacket);
+				} catch (SocketTimeoutException e) {
+					socket.send(sendPacket);
+					continue;
+				}
+				String message = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
+				HostData host = new HostData();
+				if (HostData.parseDiscoverResponse(message, receivePacket.getAddress().getHostAddress(), host)) return host;
+			}
+		} finally {
+			socket.close();
+		}
+		return null;
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * writes the results as a JSON object
+	 *
+	 * @throws IOException
+	 */
+	private static void write(String resultsFile, String mode, int phones, int rings, int rounds, boolean shared, Run run) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(resultsFile));
+		try {
+			out.println("{");
+			out.println(String.format(Locale.ROOT, "  \"benchmark\": \"%s\",", EndToEndBenchmark.class.getSimpleName()));
+			out.println(String.format(Locale.ROOT, "  \"timestamp\": %d,", System.currentTimeMillis()));
+			out.println(String.format(Locale.ROOT, "  \"java\": \"%s\",", System.getProperty("java.version")));
+			out.println(String.format(Locale.ROOT, "  \"mode\": \"%s\",", mode));
+			out.println(String.format(Locale.ROOT, "  \"phones\": %d,", phones));
+			out.println(String.format(Locale.ROOT, "  \"ringsPerPhone\": %d,", rings));
+			out.println(String.format(Locale.ROOT, "  \"roundsPerPhone\": %d,", rounds));
+			out.println(String.format(Locale.ROOT, "  \"protocolVersion\": %d,", run.protocolVersion));
+			out.println(String.format(Locale.ROOT, "  \"sharedConnection\": %b,", shared));
+			out.println(String.format(Locale.ROOT, "  \"openConnections\": %d,", run.openConnections));
+			out.println(String.format(Locale.ROOT, "  \"connectionsWhileRinging\": %d,", run.connections));
+			out.println("  \"operations\": {");
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				long[] sorted = run.sorted(op);
+				out.println(String.format(Locale.ROOT,
+						"    \"%s\": { \"count\": %d, \"failures\": %d, \"opsPerSecond\": %.1f, \"p50Ms\": %.3f, \"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f }%s",
+						OPERATIONS[op], sorted.length, run.failures[op].get(), run.throughput(op),
+						BenchSupport.percentile(sorted, 0.50) / 1e6, BenchSupport.percentile(sorted, 0.99) / 1e6,
+						BenchSupport.percentile(sorted, 0.999) / 1e6, BenchSupport.percentile(sorted, 1) / 1e6,
+						(op < OPERATIONS.length - 1) ? "," : ""));
+			}
+			out.println("  },");
+			out.println(String.format(Locale.ROOT, "  \"allocatedBytesPerSecond\": %.0f,", run.allocationRate()));
+			out.println(String.format(Locale.ROOT, "  \"allocatedBytesPerDrin\": %d",
+					(run.allocated >= 0) ? run.allocated / Math.max(1, run.count[DRIN].get()) : -1));
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * gets the bytes allocated so far by each live thread
+	 *
+	 * @return the bytes by thread id, null if not supported by the JVM
+	 */
+	private static Map<Long, Long> allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+		if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled()) return null;
+
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = sunThreads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocated = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) if (bytes[i] >= 0) allocated.put(ids[i], bytes[i]);
+		return allocated;
+	}
+
+	/**
+	 * the samples and counters of a run
+	 */
+	private static class Run {
+		final String title = "e2e " + UUID.randomUUID();
+		final long[][] samples;
+		final AtomicInteger[] count = new AtomicInteger[OPERATIONS.length];
+		final AtomicInteger[] failures = new AtomicInteger[OPERATIONS.length];
+		final AtomicInteger pairedPhones = new AtomicInteger();
+		final int rings;
+		volatile int protocolVersion;
+
+		/**
+		 * when each phase has started, the ringing one ends when the last ring is delivered
+		 */
+		final long[] phases = new long[OPERATIONS.length + 1];
+		int phase = 0;
+		volatile long lastDelivery;
+
+		Map<Long, Long> allocatedAtStart;
+		long allocated = -1;
+
+		/**
+		 * the server metrics, the connections open when ringing
+		 * starts and the ones accepted while ringing
+		 */
+		final ServerMetrics metrics;
+		int openConnections;
+		long connectionsAtStart;
+		long connections;
+
+		Run(int phones, int rings, int rounds, ServerMetrics metrics) {
+			this.rings = rings;
+			this.metrics = metrics;
+			samples = new long[][] { new long[phones * rounds], new long[phones * (2 * rounds - 1)], new long[phones * rings] };
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				count[op] = new AtomicInteger();
+				failures[op] = new AtomicInteger();
+			}
+		}
+
+		/**
+		 * called by the barrier when the phones start a phase
+		 */
+		void phaseStarted() {
+			if (phase < phases.length) phases[phase] = System.nanoTime();
+			if (phase == DRIN) {
+				allocatedAtStart = allocatedBytes();
+				openConnections = metrics.getConnectionsActive();
+				connectionsAtStart = metrics.getConnectionsAccepted();
+			}
+			phase++;
+		}
+
+		void record(int op, long latency) {
+			int i = count[op].getAndIncrement();
+			if (i < samples[op].length) samples[op][i] = latency;
+		}
+
+		void delivered(IncomingDrinEvent event) {
+			if (!title.equals(event.title)) return;
+			long now = System.nanoTime();
+			record(DRIN, now - Long.parseLong(event.message));
+			lastDelivery = now;
+		}
+
+		/**
+		 * called when all the rings have been delivered, or will never be
+		 */
+		void ringingDone() {
+			phases[DRIN + 1] = Math.max(lastDelivery, phases[DRIN]);
+			connections = metrics.getConnectionsAccepted() - connectionsAtStart;
+			Map<Long, Long> allocatedAtEnd = allocatedBytes();
+			if (allocatedAtStart != null && allocatedAtEnd != null) {
+				allocated = 0;
+				for (Map.Entry<Long, Long> thread : allocatedAtEnd.entrySet()) {
+					Long start = allocatedAtStart.get(thread.getKey());
+					allocated += thread.getValue() - ((start != null) ? start : 0);
+				}
+			}
+		}
+
+		int expectedRings() {
+			return pairedPhones.get() * rings;
+		}
+
+		long[] sorted(int op) {
+			long[] sorted = Arrays.copyOf(samples[op], Math.min(count[op].get(), samples[op].length));
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		double throughput(int op) {
+			long elapsed = phases[op + 1] - phases[op];
+			return (elapsed > 0) ? count[op].get() / (elapsed / 1e9) : 0;
+		}
+
+		double allocationRate() {
+			long elapsed = phases[DRIN + 1] - phases[DRIN];
+			return (allocated >= 0 && elapsed > 0) ? allocated / (elapsed / 1e9) : -1;
+		}
+	}
+}
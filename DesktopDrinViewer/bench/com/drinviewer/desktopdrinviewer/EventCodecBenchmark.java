@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinEventCodec;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Compares the java serialization of the IncomingDrinEvent with
+ * the DrinEventCodec, printing encode and decode time and the bytes
+ * on the wire for an event with and without a caller photo, both
+ * written as the devices do after the INCOMING_DRIN message.
+ *
+ * usage: EventCodecBenchmark [iterations]
+ *
+ * @author giorgio
+ *
+ */
+public class EventCodecBenchmark {
+	/**
+	 * size of the fake photo, about the size of a 96px PNG contact photo
+	 */
+	private static final int PHOTO_SIZE = 18 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+		byte[] photo = new byte[PHOTO_SIZE];
+		new Random(42).nextBytes(photo);
+
+		IncomingDrinEvent noPhoto = new IncomingDrinEvent(EventCodecBenchmark.class, "John Appleseed", "+39-666-666-66-66", Constants.SHOW_POPUP);
+		IncomingDrinEvent withPhoto = new IncomingDrinEvent(EventCodecBenchmark.class, "John Appleseed", "+39-666-666-66-66", photo, Constants.SHOW_POPUP);
+
+		for (int run = 0; run < 2; run++) {
+			// first run is a warm up
+			boolean print = run > 0;
+			measure("serialization, no photo", noPhoto, false, iterations, print);
+			measure("codec, no photo", noPhoto, true, iterations, print);
+			measure("serialization, 96px photo", withPhoto, false, iterations / 10, print);
+			measure("codec, 96px photo", withPhoto, true, iterations / 10, print);
+		}
+	}
+
+	/**
+	 * measures encoding and decoding of the passed event
+	 *
+	 * @param name the name to be printed
+	 * @param event the event to be encoded
+	 * @param codec true to use the DrinEventCodec, false for the serialization
+	 * @param iterations number of encodings and decodings
+	 * @param print true to print the results
+	 * @throws Exception
+	 */
+	private static void measure(String name, IncomingDrinEvent event, boolean codec, int iterations, boolean print) throws Exception {
+		byte[] encoded = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			encoded = encode(event, codec);
+		}
+		long encodeTime = System.nanoTime() - start;
+
+		int check = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			check += decode(encoded, codec).action;
+		}
+		long decodeTime = System.nanoTime() - start;
+
+		if (print && check == iterations * event.action) {
+			System.out.println(String.format("%-26s encode %8.0f ns  decode %8.0f ns  %6d bytes",
+					name, (double) encodeTime / iterations, (double) decodeTime / iterations, encoded.length));
+		}
+	}
+
+	/**
+	 * encodes the event the way the device does
+	 *
+	 * @param event the event
+	 * @param codec true to use the DrinEventCodec
+	 * @return the bytes sent on the wire
+	 * @throws IOException
+	 */
+	private static byte[] encode(IncomingDrinEvent event, boolean codec) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		if (codec) {
+			out.writeUTF(Constants.INCOMING_DRIN + Constants.MESSAGE_CHAR_SEPARATOR + DrinEventCodec.VERSION);
+			DrinEventCodec.write(event, out);
+		} else {
+			out.writeUTF(Constants.INCOMING_DRIN);
+			out.writeObject(event);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * decodes the event the way the server does
+	 *
+	 * @param data the bytes received from the wire
+	 * @param codec true to use the DrinEventCodec
+	 * @return the decoded event
+	 * @throws Exception
+	 */
+	private static IncomingDrinEvent decode(byte[] data, boolean codec) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		in.readUTF();
+		if (codec) return DrinEventCodec.read(in, EventCodecBenchmark.class);
+		else return (IncomingDrinEvent) in.readObject();
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinMessageParser;
+
+/**
+ * Measures the bytes allocated for each message parsed, using the per
+ * thread allocation counter of the HotSpot ThreadMXBean: the String and
+ * split parsing the listeners used to do against the DrinMessageParser,
+ * for DISCOVER, DISCOVER_RESPONSE, PAIRME and UNPAIRME, and the whole
+ * BroadCastListener.handleMessage for DISCOVER requests from some known
+ * devices, replies included. The parser and the listener must print 0.
+ *
+ * usage: MessageParserAllocationBenchmark [messages] [devices] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class MessageParserAllocationBenchmark {
+
+	private static final String SEPARATOR = Constants.MESSAGE_CHAR_SEPARATOR;
+
+	public static void main(String[] args) throws Exception {
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int devices  = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+		int port     = (args.length > 2) ? Integer.parseInt(args[2]) : Constants.PORT + 1000;
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("Thread allocation counters not available on this JVM");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		String uuid = UUID.randomUUID().toString();
+		String[] names = { "DISCOVER", "DISCOVER_RESPONSE", "PAIRME", "UNPAIRME" };
+		byte[][] packets = {
+				(Constants.DISCOVER_REQUEST + SEPARATOR + uuid).getBytes(),
+				(Constants.DISCOVER_RESPONSE + SEPARATOR + Constants.MESSAGE_DEVICE_IS_PAIRED + SEPARATOR + "giorgio-desktop"
+						+ SEPARATOR + Constants.MESSAGE_PROTOCOL_VERSION + Constants.PROTOCOL_VERSION
+						+ SEPARATOR + Constants.DISCOVER_RESPONSE_END).getBytes(),
+				(Constants.MESSAGE_PAIRME + SEPARATOR + uuid).getBytes(),
+				(Constants.MESSAGE_UNPAIRME + SEPARATOR + uuid).getBytes() };
+		// received packets come in a buffer larger than the message, padded with zeros
+		byte[][] buffers = new byte[packets.length][Constants.BUFLEN];
+		for (int m = 0; m < packets.length; m++) System.arraycopy(packets[m], 0, buffers[m], 0, packets[m].length);
+
+		DrinMessageParser parser = new DrinMessageParser();
+		for (int run = 0; run < 2; run++) {
+			// first run is a warm up
+			for (int m = 0; m < packets.length; m++) {
+				int length = packets[m].length;
+				long sink = 0;
+
+				long bytes = allocations.getThreadAllocatedBytes(threadId);
+				long start = System.nanoTime();
+				for (int i = 0; i < messages; i++) {
+					String message = new String(buffers[m], 0, length).trim();
+					String temp[] = message.split(SEPARATOR);
+					sink += temp.length + (message.startsWith(Constants.DISCOVER_REQUEST) ? 1 : 0);
+				}
+				long splitElapsed = System.nanoTime() - start;
+				long splitBytes = allocations.getThreadAllocatedBytes(threadId) - bytes;
+
+				bytes = allocations.getThreadAllocatedBytes(threadId);
+				start = System.nanoTime();
+				for (int i = 0; i < messages; i++) {
+					sink += parser.parse(buffers[m], 0, length);
+					sink += parser.getFieldCount() + (parser.fieldEquals(1, Constants.MESSAGE_DEVICE_IS_PAIRED) ? 1 : 0);
+				}
+				long parserElapsed = System.nanoTime() - start;
+				long parserBytes = allocations.getThreadAllocatedBytes(threadId) - bytes;
+
+				if (run > 0) {
+					System.out.println(String.format("%-18s split %7.1f ns %7.1f bytes/message   parser %7.1f ns %5.1f bytes/message   (%d)",
+							names[m], (double) splitElapsed / messages, (double) splitBytes / messages,
+							(double) parserElapsed / messages, (double) parserBytes / messages, sink));
+				}
+			}
+		}
+
+		// the whole DISCOVER handling, with the replies sent to a socket that's never read
+		BroadCastListener listener = BroadCastListener.getInstance();
+		listener.listenOnPort(port);
+		// no rate limits, every request gets its reply
+		listener.setRateLimits(0, 1, 0, 1);
+		listener.initDatagramSocket();
+		DatagramSocket device = new DatagramSocket();
+		InetSocketAddress sender = new InetSocketAddress("127.0.0.1", device.getLocalPort());
+
+		ByteBuffer[] requests = new ByteBuffer[devices];
+		for (int d = 0; d < devices; d++) {
+			requests[d] = ByteBuffer.allocate(Constants.BUFLEN);
+			requests[d].put((Constants.DISCOVER_REQUEST + SEPARATOR + UUID.randomUUID()).getBytes());
+		}
+
+		for (int run = 0; run < 2; run++) {
+			// first run is a warm up, and the first time a device is seen
+			long bytes = allocations.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				listener.handleMessage(requests[i % devices], sender);
+			}
+			long elapsed = System.nanoTime() - start;
+			bytes = allocations.getThreadAllocatedBytes(threadId) - bytes;
+
+			if (run > 0) {
+				System.out.println(String.format("handleMessage      %d devices  %7.1f ns/request  %5.1f bytes/request, reply included",
+						devices, (double) elapsed / messages, (double) bytes / messages));
+			}
+		}
+
+		listener.terminate();
+		device.close();
+	}
+}
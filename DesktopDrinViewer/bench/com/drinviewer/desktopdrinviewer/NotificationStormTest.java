@@ -0,0 +1,538 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Fires a burst of events at the popups, 100 events per second by
+ * default: calls on a shared line ringing on three phones, so that
+ * every SHOW comes three times, each one followed by its REMOVE, a
+ * fifth of them so soon that the popup could not be shown yet.
+ * Meanwhile a probe asks the UI thread to run an empty runnable every
+ * 10 milliseconds and measures how late it runs.
+ *
+ * The burst is fired straight at the dialog, as DrinViewer used to do,
+ * and then through a NotificationQueue. The test fails if with the
+ * queue the UI thread lags by more than 100 milliseconds, or if more
+ * popups than the cap, plus the summary, are shown.
+ *
+ * With a display the real NotifierDialog is used. Without one the
+ * dialog is simulated on a UI thread of the test's own: building a
+ * popup takes buildMicros, plus shiftMicros for each popup shown, as
+ * NotifierDialog.notify moves the whole stack, and the popups going
+ * past the top of the screen are removed. Pass the build time measured
+ * by PopupBuildBenchmark on the box being tested.
+ *
+ * Then, with the simulated dialog only, three times the calls that fit
+ * on the screen ring at once and nothing else comes: the popups fade out
+ * after EXPIRY_DISPLAY_TIME, and the test fails unless the waiting calls
+ * take their place until every one has been shown and has faded out.
+ *
+ * usage: NotificationStormTest [events per second] [seconds] [max popups] [buildMicros] [shiftMicros]
+ *
+ * @author giorgio
+ *
+ */
+public class NotificationStormTest {
+	/**
+	 * the max lag allowed to the UI thread, in milliseconds
+	 */
+	private static final long MAX_LAG = 100;
+
+	/**
+	 * how often the probe runs, in milliseconds
+	 */
+	private static final long PROBE_EVERY = 10;
+
+	/**
+	 * the popups fitting in the screen of the simulated dialog
+	 */
+	private static final int SCREEN_POPUPS = 12;
+
+	/**
+	 * how long the simulated popups are shown in the expiry run, in milliseconds
+	 */
+	private static final long EXPIRY_DISPLAY_TIME = 200;
+
+	/**
+	 * an event and when it's fired, in nanoseconds from the start
+	 */
+	private static class TimedEvent {
+		final long at;
+		final String title;
+		final String message;
+		final int action;
+
+		TimedEvent(long at, String title, String message, int action) {
+			this.at = at;
+			this.title = title;
+			this.message = message;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * what a run did
+	 */
+	private static class Result {
+		long events, shown, coalesced, cancelled, dropped;
+		int maxShown;
+		long[] lags;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int rate         = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+		int seconds      = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int maxPopups    = (args.length > 2) ? Integer.parseInt(args[2]) : DesktopDrinViewerConstants.MAX_POPUPS;
+		int buildMicros  = (args.length > 3) ? Integer.parseInt(args[3]) : 2000;
+		int shiftMicros  = (args.length > 4) ? Integer.parseInt(args[4]) : 100;
+
+		Display display = null;
+		try {
+			display = Display.getDefault();
+		} catch (Throwable t) {
+			// no native libraries or no display to connect to
+			System.err.println("No display available, simulating the popups: " + t);
+		}
+
+		List<TimedEvent> burst = buildBurst(rate, seconds);
+		System.out.println(String.format("%d events in %d seconds, at most %d popups", burst.size(), seconds, maxPopups));
+		System.out.println("   mode  shown  max shown  coalesced  cancelled  dropped  lag p50 ms  lag p99 ms  lag max ms");
+
+		Result direct = run(burst, display, false, maxPopups, buildMicros, shiftMicros);
+		print("direct", direct);
+		Result queued = run(burst, display, true, maxPopups, buildMicros, shiftMicros);
+		print("queued", queued);
+
+		if (display != null) display.dispose();
+
+		long maxLag = queued.lags[queued.lags.length - 1] / 1000000L;
+		if (maxLag > MAX_LAG || queued.maxShown > maxPopups + 1) {
+			System.out.println("FAILED: the UI thread lagged by " + maxLag + " ms, " + queued.maxShown + " popups were shown");
+			System.exit(1);
+		}
+		System.out.println("OK: the UI thread kept up with the burst");
+
+		if (display == null && !runExpiry(maxPopups, buildMicros, shiftMicros)) {
+			System.out.println("FAILED: the waiting calls were not shown when the popups faded out");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * rings three times the calls that fit on the screen at once, then
+	 * lets the simulated popups fade out with no new events
+	 *
+	 * @return true if every call has been shown and has faded out, the summary included
+	 */
+	private static boolean runExpiry(int maxPopups, int buildMicros, int shiftMicros) throws Exception {
+		final ExecutorService uiThread = Executors.newSingleThreadExecutor();
+		final SimulatedNotifier notifier = new SimulatedNotifier(buildMicros, shiftMicros);
+		final NotificationQueue queue = new NotificationQueue(notifier, uiThread, maxPopups, DesktopDrinViewerConstants.MAX_WAITING_POPUPS);
+		final int calls = maxPopups * 3;
+
+		long start = System.nanoTime();
+		for (int call = 0; call < calls; call++) {
+			queue.handleDrin(new IncomingDrinEvent(NotificationStormTest.class, "Caller " + call, "+39-666-" + call, Constants.SHOW_POPUP));
+		}
+
+		// a round of popups fades out at a time, give it twice as long
+		long deadline = start + 2 * (calls / maxPopups + 1) * EXPIRY_DISPLAY_TIME * 1000000L;
+		int left = -1;
+		while (System.nanoTime() < deadline) {
+			left = uiThread.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					notifier.expire(EXPIRY_DISPLAY_TIME * 1000000L);
+					return notifier.getShownCount();
+				}
+			}).get();
+			if (left == 0 && queue.getShown() == calls) break;
+			Thread.sleep(PROBE_EVERY);
+		}
+		long elapsed = System.nanoTime() - start;
+		uiThread.shutdown();
+		uiThread.awaitTermination(10, TimeUnit.SECONDS);
+
+		System.out.println(String.format(" expiry  %d of %d calls shown, %d popups left after %.0f ms, popups shown for %d ms",
+				queue.getShown(), calls, left, elapsed / 1e6, EXPIRY_DISPLAY_TIME));
+		return left == 0 && queue.getShown() == calls;
+	}
+
+	/**
+	 * builds the burst: a call every 4 events, ringing on three phones
+	 */
+	private static List<TimedEvent> buildBurst(int rate, int seconds) {
+		Random random = new Random(42);
+		List<TimedEvent> burst = new ArrayList<TimedEvent>();
+		long callEvery = 4 * 1000000000L / rate;
+		int calls = rate * seconds / 4;
+
+		for (int call = 0; call < calls; call++) {
+			long at = call * callEvery;
+			String title = "Caller " + (call % 40);
+			String message = "+39-666-" + call;
+			for (int phone = 0; phone < 3; phone++) {
+				burst.add(new TimedEvent(at + random.nextInt(5000000), title, message, Constants.SHOW_POPUP));
+			}
+			// a fifth of the calls is answered right away, the others ring for up to 5 seconds
+			long removeAfter = (random.nextInt(5) == 0) ? 5000000L + random.nextInt(5000000)
+					: 500000000L + (long) random.nextInt(4500) * 1000000L;
+			burst.add(new TimedEvent(at + removeAfter, title, message, Constants.REMOVE_POPUP));
+		}
+
+		Collections.sort(burst, new Comparator<TimedEvent>() {
+			@Override
+			public int compare(TimedEvent a, TimedEvent b) {
+				return (a.at < b.at) ? -1 : ((a.at == b.at) ? 0 : 1);
+			}
+		});
+		return burst;
+	}
+
+	/**
+	 * fires the burst and probes the UI thread
+	 */
+	private static Result run(final List<TimedEvent> burst, final Display display, boolean useQueue,
+			int maxPopups, int buildMicros, int shiftMicros) throws Exception {
+		// the UI thread: the display one, or a thread of our own
+		final ExecutorService uiThread = (display == null) ? Executors.newSingleThreadExecutor() : null;
+		final Executor ui = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (uiThread != null) uiThread.execute(command);
+				else display.asyncExec(command);
+			}
+		};
+
+		final Result result = new Result();
+		final CountingNotifier notifier = new CountingNotifier((display == null)
+				? new SimulatedNotifier(buildMicros, shiftMicros) : new NotifierDialog(display));
+		final NotificationQueue queue = new NotificationQueue(notifier, ui, maxPopups, DesktopDrinViewerConstants.MAX_WAITING_POPUPS);
+
+		// the listener the server would call
+		final IncomingDrinListener listener = useQueue ? queue : new IncomingDrinListener() {
+			@Override
+			public void handleDrin(final IncomingDrinEvent event) {
+				ui.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (event.action == Constants.REMOVE_POPUP) {
+							notifier.removeNotify(event.title, event.message);
+						} else {
+							notifier.notify(event.title, event.message, event.imageData, false);
+						}
+					}
+				});
+			}
+		};
+
+		final AtomicBoolean firing = new AtomicBoolean(true);
+		final CountDownLatch done = new CountDownLatch(1);
+		// the lags, only touched by the UI thread
+		final List<Long> lags = new ArrayList<Long>();
+
+		Thread probe = new Thread("probe") {
+			@Override
+			public void run() {
+				while (firing.get()) {
+					final long posted = System.nanoTime();
+					ui.execute(new Runnable() {
+						@Override
+						public void run() {
+							lags.add(System.nanoTime() - posted);
+						}
+					});
+					LockSupport.parkNanos(PROBE_EVERY * 1000000L);
+				}
+			}
+		};
+
+		Thread server = new Thread("server") {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				for (TimedEvent timed : burst) {
+					long wait = start + timed.at - System.nanoTime();
+					if (wait > 0) LockSupport.parkNanos(wait);
+					listener.handleDrin(new IncomingDrinEvent(this, timed.title, timed.message, timed.action));
+				}
+				firing.set(false);
+				// the UI thread is done once it runs this
+				ui.execute(new Runnable() {
+					@Override
+					public void run() {
+						done.countDown();
+					}
+				});
+				if (display != null) display.wake();
+			}
+		};
+
+		probe.start();
+		server.start();
+		if (display == null) {
+			done.await();
+		} else {
+			while (done.getCount() > 0) {
+				if (!display.readAndDispatch()) display.sleep();
+			}
+		}
+		server.join();
+		probe.join();
+
+		// the probes still queued run after the done one, collect them too
+		final CountDownLatch collected = new CountDownLatch(1);
+		ui.execute(new Runnable() {
+			@Override
+			public void run() {
+				result.lags = new long[lags.size()];
+				for (int i = 0; i < result.lags.length; i++) result.lags[i] = lags.get(i);
+				result.maxShown = notifier.maxShown;
+				collected.countDown();
+			}
+		});
+		if (display == null) {
+			collected.await();
+			uiThread.shutdown();
+			uiThread.awaitTermination(10, TimeUnit.SECONDS);
+		} else {
+			while (collected.getCount() > 0) {
+				if (!display.readAndDispatch()) display.sleep();
+			}
+			((NotifierDialog) notifier.notifier).dispose();
+			for (Shell shell : display.getShells()) shell.dispose();
+			while (display.readAndDispatch());
+		}
+
+		Arrays.sort(result.lags);
+		result.events = burst.size();
+		result.shown = notifier.shown;
+		if (useQueue) {
+			result.coalesced = queue.getCoalesced();
+			result.cancelled = queue.getCancelled();
+			result.dropped = queue.getDropped();
+		}
+		return result;
+	}
+
+	private static void print(String mode, Result result) {
+		long[] lags = result.lags;
+		System.out.println(String.format("%7s  %5d  %9d  %9d  %9d  %7d  %10.1f  %10.1f  %10.1f", mode, result.shown,
+				result.maxShown, result.coalesced, result.cancelled, result.dropped,
+				lags[lags.length / 2] / 1e6, lags[lags.length * 99 / 100] / 1e6, lags[lags.length - 1] / 1e6));
+	}
+
+	/**
+	 * counts the popups shown and the max shown at once
+	 */
+	private static class CountingNotifier implements PopupNotifier {
+		final PopupNotifier notifier;
+		long shown;
+		int maxShown;
+
+		CountingNotifier(PopupNotifier notifier) {
+			this.notifier = notifier;
+		}
+
+		@Override
+		public void notify(String title, String message, byte[] imageData, boolean isTestNotify) {
+			notifier.notify(title, message, imageData, isTestNotify);
+			shown++;
+			maxShown = Math.max(maxShown, notifier.getShownCount());
+		}
+
+		@Override
+		public void notify(String title, String message, ImageData image, String imageHash, boolean isTestNotify) {
+			notifier.notify(title, message, image, imageHash, isTestNotify);
+			shown++;
+			maxShown = Math.max(maxShown, notifier.getShownCount());
+		}
+
+		@Override
+		public void notify(IncomingDrinEvent event, boolean isTestNotify) {
+			notifier.notify(event, isTestNotify);
+			shown++;
+			maxShown = Math.max(maxShown, notifier.getShownCount());
+		}
+
+		@Override
+		public void removeNotify(String title, String message) {
+			notifier.removeNotify(title, message);
+		}
+
+		@Override
+		public boolean isShown(String title, String message) {
+			return notifier.isShown(title, message);
+		}
+
+		@Override
+		public boolean setTitle(String message, String title) {
+			return notifier.setTitle(message, title);
+		}
+
+		@Override
+		public int getShownCount() {
+			return notifier.getShownCount();
+		}
+
+		@Override
+		public void setRemovalListener(RemovalListener listener) {
+			notifier.setRemovalListener(listener);
+		}
+	}
+
+	/**
+	 * popups that only take the UI thread time
+	 */
+	private static class SimulatedNotifier implements PopupNotifier {
+		final long buildNanos;
+		final long shiftNanos;
+		// the popups shown, oldest first
+		final List<Popup> popups = new ArrayList<Popup>();
+		RemovalListener removalListener;
+
+		SimulatedNotifier(int buildMicros, int shiftMicros) {
+			this.buildNanos = buildMicros * 1000L;
+			this.shiftNanos = shiftMicros * 1000L;
+		}
+
+		@Override
+		public void notify(String title, String message, byte[] imageData, boolean isTestNotify) {
+			busy(buildNanos + shiftNanos * popups.size());
+			popups.add(new Popup(title, message));
+			// the popups going past the top of the screen are removed
+			if (popups.size() > SCREEN_POPUPS) remove(0, false);
+		}
+
+		@Override
+		public void notify(String title, String message, ImageData image, String imageHash, boolean isTestNotify) {
+			notify(title, message, (byte[]) null, isTestNotify);
+		}
+
+		@Override
+		public void notify(IncomingDrinEvent event, boolean isTestNotify) {
+			notify(event.title, event.message, (byte[]) null, isTestNotify);
+			event.stamp(IncomingDrinEvent.STAGE_BUILD);
+			event.stamp(IncomingDrinEvent.STAGE_VISIBLE);
+		}
+
+		@Override
+		public void removeNotify(String title, String message) {
+			if (popups.isEmpty()) return;
+			if (message == null) {
+				remove(popups.size() - 1, false);
+				return;
+			}
+			int i = find(message);
+			if (i >= 0) remove(i, false);
+		}
+
+		@Override
+		public boolean isShown(String title, String message) {
+			int i = find(message);
+			return i >= 0 && (title == null ? popups.get(i).title == null : title.equals(popups.get(i).title));
+		}
+
+		@Override
+		public boolean setTitle(String message, String title) {
+			int i = find(message);
+			if (i >= 0) popups.get(i).title = title;
+			return i >= 0;
+		}
+
+		@Override
+		public void setRemovalListener(RemovalListener listener) {
+			removalListener = listener;
+		}
+
+		/**
+		 * fades out the popups shown for longer than the passed time,
+		 * as the NotifierDialog animator does
+		 *
+		 * @param displayNanos how long a popup is shown
+		 */
+		void expire(long displayNanos) {
+			long now = System.nanoTime();
+			for (int i = popups.size() - 1; i >= 0; i--) {
+				if (now - popups.get(i).at >= displayNanos) remove(i, false);
+			}
+		}
+
+		private void remove(int i, boolean closedByUser) {
+			Popup popup = popups.remove(i);
+			if (removalListener != null) removalListener.popupRemoved(popup.message, closedByUser);
+		}
+
+		@Override
+		public int getShownCount() {
+			return popups.size();
+		}
+
+		private int find(String message) {
+			if (message == null) return -1;
+			for (int i = 0; i < popups.size(); i++) {
+				if (popups.get(i).message.equalsIgnoreCase(message)) return i;
+			}
+			return -1;
+		}
+
+		private static void busy(long nanos) {
+			long until = System.nanoTime() + nanos;
+			while (System.nanoTime() < until);
+		}
+	}
+
+	/**
+	 * a simulated popup, and when it's been shown
+	 */
+	private static class Popup {
+		String title;
+		final String message;
+		final long at = System.nanoTime();
+
+		Popup(String title, String message) {
+			this.title = title;
+			this.message = message;
+		}
+	}
+}
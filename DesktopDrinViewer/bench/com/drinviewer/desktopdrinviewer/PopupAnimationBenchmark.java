@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Shows 1, 10 and 50 test popups at once and lets the PopupAnimator
+ * fade them in, keep them and fade them out, then prints the frames
+ * run and the UI thread time each frame took. Once all the popups are
+ * gone the animator must have no frame scheduled.
+ * It needs a display, e.g. run it under Xvfb on a headless box.
+ *
+ * usage: PopupAnimationBenchmark [popups]...
+ *
+ * @author giorgio
+ *
+ */
+public class PopupAnimationBenchmark {
+
+	public static void main(String[] args) {
+		int[] counts = { 1, 10, 50 };
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++) counts[i] = Integer.parseInt(args[i]);
+		}
+
+		Display display;
+		try {
+			display = Display.getDefault();
+		} catch (Throwable t) {
+			// no native libraries or no display to connect to
+			System.err.println("No display available: " + t);
+			return;
+		}
+
+		NotifierDialog dialog = new NotifierDialog(display);
+		PopupAnimator animator = dialog.getAnimator();
+		boolean idle = true;
+
+		System.out.println(" popups  frames  mean frame us  max frame us  seconds");
+		for (int count : counts) {
+			animator.resetStats();
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				dialog.notify("Caller " + i, "+39-666-" + i, null, true);
+			}
+			// run till every popup has faded out
+			while (animator.size() > 0) {
+				if (!display.readAndDispatch()) display.sleep();
+			}
+			while (display.readAndDispatch());
+			System.out.println(String.format("%7d  %6d  %13.1f  %12.1f  %7.1f", count, animator.getFrames(),
+					animator.getMeanFrameTime() / 1e3, animator.getMaxFrameTime() / 1e3, (System.nanoTime() - start) / 1e9));
+			idle &= !animator.isRunning();
+		}
+
+		dialog.dispose();
+		display.dispose();
+
+		if (!idle) {
+			System.out.println("FAILED: the animator kept running with no popups");
+			System.exit(1);
+		}
+	}
+}
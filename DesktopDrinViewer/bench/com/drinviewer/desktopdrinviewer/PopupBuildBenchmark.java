@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayInputStream;
+
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * Measures the time to get the image of a popup, loading, scaling and
+ * decoding it for every popup as the NotifierDialog used to do against
+ * the PopupImageCache, for the default icon and for a caller image,
+ * and the time to build a whole popup with the NotifierDialog.
+ * It needs a display, e.g. run it under Xvfb on a headless box.
+ *
+ * usage: PopupBuildBenchmark [popups]
+ *
+ * @author giorgio
+ *
+ */
+public class PopupBuildBenchmark {
+
+	public static void main(String[] args) {
+		int popups = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+
+		Display display;
+		try {
+			display = Display.getDefault();
+		} catch (Throwable t) {
+			// no native libraries or no display to connect to
+			System.err.println("No display available: " + t);
+			return;
+		}
+
+		// a caller image, as the devices send it
+		byte[] callerImage = new DrinImageLoader("icon-off.png").getScaled(Constants.ICON_SIZE);
+		PopupImageCache cache = new PopupImageCache(display);
+		NotifierDialog dialog = new NotifierDialog(display);
+
+		for (int run = 0; run < 2; run++) {
+			// first run is a warm up
+			long start = System.nanoTime();
+			for (int i = 0; i < popups; i++) {
+				new Image(display, new ImageData(new ByteArrayInputStream(
+						new DrinImageLoader("icon.png").getScaled(Constants.ICON_SIZE)))).dispose();
+			}
+			long iconUncached = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < popups; i++) {
+				cache.release(cache.acquire(null));
+			}
+			long iconCached = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < popups; i++) {
+				new Image(display, new ImageData(new ByteArrayInputStream(callerImage))).dispose();
+			}
+			long callerUncached = System.nanoTime() - start;
+
+			// a popup of the same caller is already shown, as when a line rings on more phones
+			Image shown = cache.acquire(callerImage);
+			start = System.nanoTime();
+			for (int i = 0; i < popups; i++) {
+				cache.release(cache.acquire(callerImage));
+			}
+			long callerCached = System.nanoTime() - start;
+			cache.release(shown);
+
+			start = System.nanoTime();
+			for (int i = 0; i < popups; i++) {
+				buildAndDispose(display, dialog, null);
+			}
+			long popupIcon = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < popups; i++) {
+				buildAndDispose(display, dialog, callerImage);
+			}
+			long popupCaller = System.nanoTime() - start;
+
+			if (run > 0) {
+				System.out.println(String.format("default icon  uncached %8.3f ms  cached %8.3f ms", ms(iconUncached, popups), ms(iconCached, popups)));
+				System.out.println(String.format("caller image  uncached %8.3f ms  cached %8.3f ms", ms(callerUncached, popups), ms(callerCached, popups)));
+				System.out.println(String.format("buildPopUp    default icon %8.3f ms  caller image %8.3f ms",
+						ms(popupIcon, popups), ms(popupCaller, popups)));
+			}
+		}
+
+		dialog.dispose();
+		cache.dispose();
+		display.dispose();
+	}
+
+	private static void buildAndDispose(Display display, NotifierDialog dialog, byte[] imageData) {
+		Shell popup = dialog.buildPopUp("DrinViewer", "+39-666-666-66-66", imageData);
+		while (display.readAndDispatch());
+		// dispose the hidden shell holding the popup too
+		popup.getParent().dispose();
+	}
+
+	private static double ms(long nanos, int count) {
+		return nanos / 1e6 / count;
+	}
+}
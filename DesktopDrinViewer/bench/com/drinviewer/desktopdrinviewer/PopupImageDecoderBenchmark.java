@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.widgets.Display;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Measures the UI thread time to get the image of a popup out of a
+ * caller photo, from 128 to 2048 pixels and a 4096 pixels one that's
+ * too big: before, decoding the whole photo on the UI thread as the
+ * PopupImageCache does with the encoded image, and after, building the
+ * Image out of the icon scaled by the PopupImageDecoder. The time the
+ * decoder threads take to validate, decode and scale a photo is printed
+ * too. Without a display the Image can't be built, and only the decoding
+ * times are measured.
+ *
+ * usage: PopupImageDecoderBenchmark [photos]
+ *
+ * @author giorgio
+ *
+ */
+public class PopupImageDecoderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int photos = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+		int[] sides = { 128, 512, 1024, 2048, 4096 };
+
+		Display display = null;
+		try {
+			display = Display.getDefault();
+		} catch (Throwable t) {
+			// no native libraries or no display to connect to
+			System.err.println("No display available, measuring the decoding only: " + t);
+		}
+
+		System.out.println("  side    bytes  UI before ms  UI after ms  decoder ms  shown");
+		for (int side : sides) {
+			byte[] photo = buildPhoto(side);
+			int[] size = PopupImageDecoder.readSize(photo);
+			if (size == null || size[0] != side || size[1] != side) {
+				System.out.println("FAILED: the header of a " + side + " pixels photo has been misread");
+				System.exit(1);
+			}
+
+			for (int run = 0; run < 2; run++) {
+				// first run is a warm up
+				long start = System.nanoTime();
+				for (int i = 0; i < photos; i++) {
+					ImageData data = new ImageData(new ByteArrayInputStream(photo));
+					if (display != null) new Image(display, data).dispose();
+				}
+				long before = System.nanoTime() - start;
+
+				// the decoder takes the photos, each one with a hash of its own so that it's decoded
+				final CountDownLatch done = new CountDownLatch(photos);
+				final ImageData[] scaled = new ImageData[1];
+				PopupImageDecoder decoder = new PopupImageDecoder(new IncomingDrinListener() {
+					@Override
+					public void handleDrin(IncomingDrinEvent event) {
+						scaled[0] = ((DecodedDrinEvent) event).image;
+						done.countDown();
+					}
+				}, Constants.ICON_SIZE, 1, photos, DesktopDrinViewerConstants.MAX_IMAGE_SIZE,
+						DesktopDrinViewerConstants.MAX_IMAGE_PIXELS);
+				for (int i = 0; i < photos; i++) {
+					IncomingDrinEvent event = new IncomingDrinEvent(decoder, "Caller", "+39-666-" + i, photo, Constants.SHOW_POPUP);
+					event.imageHash = side + "-" + run + "-" + i;
+					decoder.handleDrin(event);
+				}
+				done.await();
+				decoder.close();
+
+				long after = 0;
+				if (display != null && scaled[0] != null) {
+					start = System.nanoTime();
+					for (int i = 0; i < photos; i++) {
+						new Image(display, scaled[0]).dispose();
+					}
+					after = System.nanoTime() - start;
+				}
+
+				if (run > 0) {
+					System.out.println(String.format("%6d  %7d  %12.3f  %11s  %10.3f  %5s", side, photo.length,
+							before / 1e6 / photos, (display != null) ? String.format("%.3f", after / 1e6 / photos) : "n/a",
+							decoder.getMeanDecodeTime() / 1e6, (scaled[0] != null) ? scaled[0].width + "x" + scaled[0].height : "icon"));
+				}
+			}
+		}
+
+		if (display != null) display.dispose();
+	}
+
+	/**
+	 * builds a JPEG photo, a gradient with some noise
+	 */
+	private static byte[] buildPhoto(int side) {
+		ImageData data = new ImageData(side, side, 24, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+		Random random = new Random(side);
+		for (int y = 0; y < side; y++) {
+			for (int x = 0; x < side; x++) {
+				data.setPixel(x, y, ((x * 255 / side) << 16) | ((y * 255 / side) << 8) | random.nextInt(64));
+			}
+		}
+		ImageLoader loader = new ImageLoader();
+		loader.data = new ImageData[] { data };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		loader.save(out, SWT.IMAGE_JPEG);
+		return out.toByteArray();
+	}
+}
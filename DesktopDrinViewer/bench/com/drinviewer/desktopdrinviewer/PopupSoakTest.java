@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import org.eclipse.swt.graphics.DeviceData;
+import org.eclipse.swt.widgets.Display;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * Fires thousands of notifications at the NotifierDialog, each one
+ * removed right after being shown, and samples the native graphics
+ * objects alive (fonts, colors, images and GCs, as tracked by SWT),
+ * the shells and the heap. They all must stay flat: the test exits
+ * with an error if the graphics objects or the shells grow.
+ * It needs a display, e.g. run it under Xvfb on a headless box.
+ *
+ * usage: PopupSoakTest [notifications] [sample every]
+ *
+ * @author giorgio
+ *
+ */
+public class PopupSoakTest {
+
+	public static void main(String[] args) {
+		int notifications = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+		int sampleEvery   = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+
+		Display display;
+		try {
+			// track the graphics objects, as the SWT Sleak tool does
+			DeviceData data = new DeviceData();
+			data.tracking = true;
+			display = new Display(data);
+		} catch (Throwable t) {
+			// no native libraries or no display to connect to
+			System.err.println("No display available: " + t);
+			return;
+		}
+
+		// some callers with a photo and some without
+		byte[][] images = {
+				null,
+				new DrinImageLoader("icon.png").getScaled(Constants.ICON_SIZE),
+				new DrinImageLoader("icon-off.png").getScaled(Constants.ICON_SIZE) };
+
+		NotifierDialog dialog = new NotifierDialog(display);
+		int firstObjects = -1, firstShells = -1;
+		int objects = 0, shells = 0;
+
+		System.out.println(" notifications  graphics objects  shells  heap KB");
+		for (int i = 1; i <= notifications; i++) {
+			String title = "Caller " + (i % 7);
+			String message = "+39-666-" + i;
+			dialog.notify(title, message, images[i % images.length], true);
+			pump(display);
+			dialog.removeNotify(title, message);
+			pump(display);
+
+			if (i % sampleEvery == 0) {
+				Runtime runtime = Runtime.getRuntime();
+				System.gc();
+				objects = display.getDeviceData().objects.length;
+				shells = display.getShells().length;
+				System.out.println(String.format("%14d  %16d  %6d  %7d", i, objects, shells,
+						(runtime.totalMemory() - runtime.freeMemory()) >> 10));
+				// the first sample is taken once the shared resources are there
+				if (firstObjects < 0) {
+					firstObjects = objects;
+					firstShells = shells;
+				}
+			}
+		}
+
+		dialog.dispose();
+		display.dispose();
+
+		if (objects > firstObjects || shells > firstShells) {
+			System.out.println("FAILED: graphics objects or shells are growing");
+			System.exit(1);
+		}
+		System.out.println("OK: graphics objects and shells are flat");
+	}
+
+	/**
+	 * runs the pending events and async runnables
+	 */
+	private static void pump(Display display) {
+		while (display.readAndDispatch());
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Latency of the ServerDBManager isPaired and pairHost on a database
+ * in a temporary directory, compared with opening a new connection
+ * for each query as it was done before the connection was shared.
+ *
+ * usage: ServerDBManagerBenchmark [iterations]
+ *
+ * @author giorgio
+ *
+ */
+public class ServerDBManagerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+		File dir = File.createTempFile("drinviewer", "bench");
+		dir.delete();
+		dir.mkdirs();
+
+		ServerDBManager db = new ServerDBManager(dir.getAbsolutePath());
+		String connectionString = "jdbc:sqlite:" + dir.getAbsolutePath() + "/" + ServerDBManager.DB_FILENAME;
+
+		String[] uuids = new String[iterations];
+		for (int i = 0; i < iterations; i++) uuids[i] = UUID.randomUUID().toString();
+
+		for (int run = 0; run < 2; run++) {
+			// first run is a warm up
+			boolean print = run > 0;
+			long[] samples = new long[iterations];
+
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				db.pairHost(uuids[i]);
+				samples[i] = System.nanoTime() - start;
+			}
+			print("pairHost", samples, print);
+
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				db.isPaired(uuids[i]);
+				samples[i] = System.nanoTime() - start;
+			}
+			print("isPaired", samples, print);
+
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				isPairedOwnConnection(connectionString, uuids[i]);
+				samples[i] = System.nanoTime() - start;
+			}
+			print("isPaired, own connection", samples, print);
+
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				db.unpairHost(uuids[i]);
+				samples[i] = System.nanoTime() - start;
+			}
+			print("unpairHost", samples, print);
+		}
+
+		db.close();
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * checks the uuid opening a new connection, as it was done
+	 * before the connection was shared
+	 *
+	 * @param connectionString the database connection string
+	 * @param uuid the uuid to be checked
+	 * @return true if found
+	 * @throws Exception
+	 */
+	private static boolean isPairedOwnConnection(String connectionString, String uuid) throws Exception {
+		boolean isPaired = false;
+		Class.forName("org.sqlite.JDBC");
+		Connection c = DriverManager.getConnection(connectionString);
+		PreparedStatement prep = c.prepareStatement("SELECT id FROM hosts WHERE uuid=?");
+		prep.setString(1, uuid);
+		ResultSet rs = prep.executeQuery();
+		while (rs.next()) {
+			isPaired = (rs.getInt("id") > 0);
+		}
+		rs.close();
+		prep.close();
+		c.close();
+		return isPaired;
+	}
+
+	/**
+	 * prints mean and percentiles of the samples
+	 *
+	 * @param name the name to be printed
+	 * @param samples the samples, in nanoseconds
+	 * @param print true to print them
+	 */
+	private static void print(String name, long[] samples, boolean print) {
+		if (!print) return;
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		long sum = 0;
+		for (long sample : sorted) sum += sample;
+		System.out.println(String.format("%-26s mean %9.1f us  p50 %9.1f us  p99 %9.1f us",
+				name, sum / 1e3 / sorted.length, BenchSupport.percentile(sorted, 0.50) / 1e3, BenchSupport.percentile(sorted, 0.99) / 1e3));
+	}
+}
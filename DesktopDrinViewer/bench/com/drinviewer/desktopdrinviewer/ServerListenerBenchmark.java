@@ -0,0 +1,132 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Loopback benchmark of the TCP listeners: fires INCOMING_DRIN
+ * requests from concurrent clients against the thread per connection
+ * and the non blocking listener and prints connections/sec and the
+ * connect-to-dispatch latency percentiles for both of them.
+ *
+ * usage: ServerListenerBenchmark [clients] [requests per client] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class ServerListenerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients  = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		int port     = (args.length > 2) ? Integer.parseInt(args[2]) : Constants.PORT + 100;
+
+		// first run of each listener is a warm up
+		run("thread per connection", new ServerListener(), port, clients, requests / 4 + 1);
+		run("thread per connection", new ServerListener(), port, clients, requests);
+		run("non blocking", new NioServerListener(), port + 1, clients, requests / 4 + 1);
+		run("non blocking", new NioServerListener(), port + 1, clients, requests);
+	}
+
+	/**
+	 * runs the benchmark on the passed listener
+	 *
+	 * @param name the name to be printed
+	 * @param listener the listener to be benchmarked
+	 * @param port the port to listen on
+	 * @param clients number of concurrent clients
+	 * @param requests number of requests sent by each client
+	 * @throws Exception
+	 */
+	private static void run(String name, ServerListener listener, final int port, int clients, final int requests) throws Exception {
+		final int total = clients * requests;
+		final long[] latencies = new long[total];
+		final AtomicInteger dispatched = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(total);
+
+		// the message of each event carries the nanoTime of the connect
+		// every event counts, none must be coalesced
+		listener.getEventBus().addListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				long now = System.nanoTime();
+				int i = dispatched.getAndIncrement();
+				if (i < total) latencies[i] = now - Long.parseLong(event.message);
+				done.countDown();
+			}
+		}, DrinEventBus.SlowConsumerPolicy.DROP, total);
+		// all the clients share the loopback address
+		listener.setConnectionLimits(ConnectionLimits.none());
+		Thread listenerThread = BenchSupport.startListener(listener, port);
+
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] clientThreads = new Thread[clients];
+		for (int c = 0; c < clients; c++) {
+			clientThreads[c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int r = 0; r < requests; r++) {
+						try {
+							String sent = Long.toString(System.nanoTime());
+							Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+							ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+							out.writeUTF(Constants.INCOMING_DRIN);
+							out.writeObject(new IncomingDrinEvent(this, "bench", sent, Constants.NO_ACTION));
+							out.flush();
+							out.close();
+							socket.close();
+						} catch (Exception e) {
+							if (failures.incrementAndGet() == 1) e.printStackTrace();
+							done.countDown();
+						}
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread t : clientThreads) t.start();
+		boolean completed = done.await(120, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		listener.terminate();
+		listenerThread.join(5000);
+
+		int count = Math.min(dispatched.get(), total);
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+
+		System.out.println(String.format("%-22s %6d conns  %9.0f conns/sec  p50 %8.3f ms  p99 %8.3f ms  failed %d%s",
+				name, count, count / (elapsed / 1e9),
+				BenchSupport.percentile(sorted, 0.50) / 1e6, BenchSupport.percentile(sorted, 0.99) / 1e6,
+				failures.get(), completed ? "" : " (timed out)"));
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * Loopback slowloris harness for the TCP listeners: attackers from
+ * some loopback addresses other than 127.0.0.1 keep as many
+ * connections open as they can, sending a valid request one byte a
+ * second and reconnecting when dropped, while a device on 127.0.0.1
+ * sends an event every 100ms. Prints how many of the device events
+ * were delivered within the latency budget, the latency percentiles,
+ * the connections the attackers got dropped and the listener errors.
+ * The protected run exits with status 1 unless every device event
+ * was delivered within the latency budget.
+ *
+ * Loopback addresses other than 127.0.0.1 work out of the box on linux only.
+ *
+ * usage: SlowlorisTest [blocking|nio] [protected|unprotected] [seconds] [attacker addresses] [connections per address] [budget ms] [port]
+ *
+ * @author giorgio
+ *
+ */
+public class SlowlorisTest {
+
+	private static final int DRIP_INTERVAL = 1000;
+	private static final int MAX_CONNECTS_PER_SECOND = 500;
+
+	public static void main(String[] args) throws Exception {
+		String mode        = (args.length > 0) ? args[0] : "blocking";
+		boolean protect    = !((args.length > 1) && args[1].equals("unprotected"));
+		int seconds        = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+		int addresses      = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+		int perAddress     = (args.length > 4) ? Integer.parseInt(args[4]) : 500;
+		long budget        = (args.length > 5) ? Integer.parseInt(args[5]) : 500;
+		int port           = (args.length > 6) ? Integer.parseInt(args[6]) : Constants.PORT + 800;
+
+		ServerListener listener;
+		if (mode.equals("nio")) {
+			listener = new NioServerListener();
+		} else {
+			listener = new ServerListener();
+			listener.setConnectionExecutor(ConnectionExecutors.newConnectionExecutor());
+		}
+		if (!protect) listener.setConnectionLimits(ConnectionLimits.none());
+
+		// the message of each event carries the nanoTime of the connect
+		final long[] latencies = new long[seconds * 20 + 100];
+		final int[] delivered = new int[1];
+		// every event counts, none must be coalesced
+		listener.getEventBus().addListener(new IncomingDrinListener() {
+			@Override
+			public void handleDrin(IncomingDrinEvent event) {
+				long latency = System.nanoTime() - Long.parseLong(event.message);
+				synchronized (delivered) {
+					if (delivered[0] < latencies.length) latencies[delivered[0]++] = latency;
+				}
+			}
+		}, DrinEventBus.SlowConsumerPolicy.DROP, latencies.length);
+		Thread listenerThread = BenchSupport.startListener(listener, port);
+
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final int devicePort = port;
+		final int[] sent = new int[1];
+		Thread device = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (System.nanoTime() < end) {
+					try {
+						Socket socket = new Socket();
+						String start = Long.toString(System.nanoTime());
+						socket.connect(new InetSocketAddress("127.0.0.1", devicePort), 5000);
+						ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+						out.writeUTF(Constants.INCOMING_DRIN);
+						out.writeObject(new IncomingDrinEvent(SlowlorisTest.class, "John Appleseed", start, Constants.SHOW_POPUP));
+						out.close();
+						socket.close();
+					} catch (IOException e) {
+						// not delivered, that's what is being measured
+					}
+					sent[0]++;
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {}
+				}
+			}
+		});
+		device.start();
+
+		long[] attack = attack(port, addresses, perAddress, end);
+		device.join();
+		Thread.sleep(Math.max(budget, 1000));
+
+		long[] sorted;
+		synchronized (delivered) {
+			sorted = Arrays.copyOf(latencies, delivered[0]);
+		}
+		Arrays.sort(sorted);
+		int inBudget = 0;
+		for (long latency : sorted) if (latency <= budget * 1000000L) inBudget++;
+
+		System.out.println(String.format("%-8s %-11s device sent %4d  delivered %4d  in budget (%dms) %4d  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms",
+				mode, protect ? "protected" : "unprotected", sent[0], sorted.length, budget, inBudget,
+				BenchSupport.percentile(sorted, 0.50) / 1e6, BenchSupport.percentile(sorted, 0.99) / 1e6, BenchSupport.percentile(sorted, 1) / 1e6));
+		System.out.println(String.format("         attackers peak open %d  dropped %d  connect failures %d",
+				attack[0], attack[1], attack[2]));
+		System.out.println("         " + listener.getConnectionErrors());
+
+		listener.terminate();
+		if (protect && inBudget < sent[0]) {
+			System.out.println("FAILED: " + inBudget + " of " + sent[0] + " device events delivered within " + budget + " ms");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * runs the attackers until the passed time
+	 *
+	 * @return peak open connections, connections dropped by the listener, connect failures
+	 * @throws Exception
+	 */
+	private static long[] attack(int port, int addresses, int perAddress, long end) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeUTF(Constants.INCOMING_DRIN);
+		out.writeObject(new IncomingDrinEvent(SlowlorisTest.class, "slowloris", "0", Constants.SHOW_POPUP));
+		out.close();
+		byte[] request = bytes.toByteArray();
+
+		InetSocketAddress target = new InetSocketAddress("127.0.0.1", port);
+		Selector selector = Selector.open();
+		int[] open = new int[addresses];
+		long peak = 0;
+		long dropped = 0;
+		long failures = 0;
+		long connects = 0;
+		long start = System.nanoTime();
+		long lastDrip = 0;
+		ByteBuffer readBuffer = ByteBuffer.allocate(256);
+
+		while (System.nanoTime() < end) {
+			long now = System.nanoTime();
+
+			// open connections up to the target, at a limited rate, one address at a time
+			boolean opening = true;
+			while (opening && connects < (now - start) * MAX_CONNECTS_PER_SECOND / 1000000000L + 1) {
+				opening = false;
+				for (int a = 0; a < addresses; a++) {
+					if (open[a] >= perAddress) continue;
+					opening = true;
+					connects++;
+					try {
+						SocketChannel channel = SocketChannel.open();
+						channel.configureBlocking(false);
+						channel.socket().bind(new InetSocketAddress("127.0.1." + (a + 1), 0));
+						channel.connect(target);
+						channel.register(selector, SelectionKey.OP_CONNECT, new int[] { a, 0 });
+						open[a]++;
+					} catch (IOException e) {
+						failures++;
+					}
+				}
+			}
+
+			selector.select(10);
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+				SelectionKey key = it.next();
+				it.remove();
+				SocketChannel channel = (SocketChannel) key.channel();
+				int[] state = (int[]) key.attachment();
+				try {
+					if (key.isConnectable()) {
+						channel.finishConnect();
+						key.interestOps(SelectionKey.OP_READ);
+					} else if (key.isReadable()) {
+						readBuffer.clear();
+						if (channel.read(readBuffer) < 0) throw new IOException("dropped");
+					}
+				} catch (IOException e) {
+					if (key.isValid() && key.isConnectable()) failures++;
+					else dropped++;
+					key.cancel();
+					channel.close();
+					open[state[0]]--;
+				}
+			}
+
+			// a byte a second on every connection
+			if (now - lastDrip > DRIP_INTERVAL * 1000000L) {
+				lastDrip = now;
+				for (SelectionKey key : selector.keys()) {
+					if (!key.isValid() || (key.interestOps() & SelectionKey.OP_READ) == 0) continue;
+					int[] state = (int[]) key.attachment();
+					SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						if (state[1] < request.length) channel.write(ByteBuffer.wrap(request, state[1]++, 1));
+					} catch (IOException e) {
+						dropped++;
+						key.cancel();
+						channel.close();
+						open[state[0]]--;
+					}
+				}
+			}
+
+			long total = 0;
+			for (int count : open) total += count;
+			peak = Math.max(peak, total);
+		}
+
+		for (SelectionKey key : selector.keys()) key.channel().close();
+		selector.close();
+		return new long[] { peak, dropped, failures };
+	}
+}
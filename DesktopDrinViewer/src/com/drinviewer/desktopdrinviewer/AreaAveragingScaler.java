@@ -0,0 +1,602 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+
+/**
+ * downscales images averaging, for every destination pixel, the source
+ * pixels it covers, weighted by how much of them it covers: the same
+ * result as java.awt.image.AreaAveragingScaleFilter, with none of the
+ * aliasing of ImageData.scaledTo, that just picks one pixel out of many.
+ *
+ * It works on ARGB int arrays: the source is read one row at a time,
+ * each row is scaled horizontally and added to the destination row it
+ * falls in, so that a big image is never converted as a whole. Weights
+ * are fixed point integers, and the colors are premultiplied by their
+ * alpha, if any, so that transparent pixels don't darken the edges.
+ *
+ * A photo many times bigger than the destination is first halved, as
+ * long as it's more than twice as big, averaging boxes of 2x2 pixels,
+ * all four channels at once: that's an exact area average too, and much
+ * cheaper than the weighted one, that's left for the last step only.
+ * The last row and column of an odd sized image cover less of the source
+ * than the others, they're weighted by how much they cover, and so they
+ * are by the last step. The result is a little softer than the exact
+ * average, where a destination pixel edge falls inside a halved pixel,
+ * by less than a pixel of the last step.
+ *
+ * Reading the pixels is where most of the time goes: the first halving
+ * of a 24 or 32 bits RGB image is done straight out of its data, every
+ * pixel of it, without converting the pixels first.
+ *
+ * Only downscaling is done here, to make an image bigger use scaledTo.
+ * It's thread safe, every call has its own buffers.
+ *
+ * @author giorgio
+ *
+ */
+public class AreaAveragingScaler {
+	/**
+	 * the weights of the source pixels making a destination one sum to this
+	 */
+	private static final int WEIGHT_BITS = 12;
+	private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+	/**
+	 * the extra bits of precision of the horizontally scaled rows
+	 */
+	private static final int ROW_BITS = 8;
+
+	/**
+	 * the source rows
+	 */
+	private interface Rows {
+		/**
+		 * reads a row of the source as ARGB, premultiplied if the source has an alpha
+		 */
+		void read(int y, int[] row);
+	}
+
+	/**
+	 * the rows of a source halved averaging 2x2 boxes. The source pixels
+	 * cover step x step pixels of the original image, but the last column
+	 * and row, that cover what's left of it
+	 */
+	private static class HalvedRows implements Rows {
+		private final Rows src;
+		private final int width;
+		private final int height;
+		private final int step;
+		// how many original pixels the last source column and row cover
+		private final int lastColumn;
+		private final int lastRow;
+		private final int[] even;
+		private final int[] odd;
+
+		/**
+		 * @param src the source rows
+		 * @param width the source width
+		 * @param height the source height
+		 * @param step the original pixels a source pixel covers, in each direction
+		 * @param originalWidth the original image width
+		 * @param originalHeight the original image height
+		 */
+		HalvedRows(Rows src, int width, int height, int step, int originalWidth, int originalHeight) {
+			this.src = src;
+			this.width = width;
+			this.height = height;
+			this.step = step;
+			this.lastColumn = originalWidth - (width - 1) * step;
+			this.lastRow = originalHeight - (height - 1) * step;
+			this.even = new int[width];
+			this.odd = new int[width];
+		}
+
+		@Override
+		public void read(int y, int[] row) {
+			int sy = 2 * y;
+			src.read(sy, even);
+			int[] next = even;
+			int wy0 = (sy == height - 1) ? lastRow : step;
+			int wy1 = 0;
+			if (sy + 1 < height) {
+				src.read(sy + 1, odd);
+				next = odd;
+				wy1 = (sy + 1 == height - 1) ? lastRow : step;
+			}
+
+			// the boxes whose four pixels cover the same, all of them if the sizes are even
+			int end = (wy0 == wy1) ? ((width % 2 == 0 && lastColumn == step) ? width / 2 : (width - 1) / 2) : 0;
+			for (int x = 0, sx = 0; x < end; x++, sx += 2) {
+				int p = even[sx], q = even[sx + 1], r = next[sx], s = next[sx + 1];
+				// alpha and green, red and blue, two 8 bits channels 16 bits apart in an int
+				int ag = ((p >>> 8) & 0xFF00FF) + ((q >>> 8) & 0xFF00FF) + ((r >>> 8) & 0xFF00FF) + ((s >>> 8) & 0xFF00FF);
+				int rb = (p & 0xFF00FF) + (q & 0xFF00FF) + (r & 0xFF00FF) + (s & 0xFF00FF);
+				row[x] = ((((ag + 0x20002) >>> 2) & 0xFF00FF) << 8) | (((rb + 0x20002) >>> 2) & 0xFF00FF);
+			}
+
+			// the others, on the edges, weighted by what they cover
+			for (int x = end, sx = 2 * end; sx < width; x++, sx += 2) {
+				int wx0 = (sx == width - 1) ? lastColumn : step;
+				int wx1 = (sx + 1 < width) ? ((sx + 1 == width - 1) ? lastColumn : step) : 0;
+				int sx1 = Math.min(sx + 1, width - 1);
+				row[x] = average(even[sx], even[sx1], next[sx], next[sx1],
+						(long) wx0 * wy0, (long) wx1 * wy0, (long) wx0 * wy1, (long) wx1 * wy1);
+			}
+		}
+
+		/**
+		 * averages four pixels, channel by channel
+		 */
+		private static int average(int p, int q, int r, int s, long wp, long wq, long wr, long ws) {
+			long total = wp + wq + wr + ws;
+			int color = 0;
+			for (int shift = 0; shift < 32; shift += 8) {
+				long sum = ((p >>> shift) & 0xFF) * wp + ((q >>> shift) & 0xFF) * wq
+						+ ((r >>> shift) & 0xFF) * wr + ((s >>> shift) & 0xFF) * ws;
+				color |= (int) ((sum + total / 2) / total) << shift;
+			}
+			return color;
+		}
+	}
+
+	/**
+	 * the rows of a 24 or 32 bits RGB or BGR image, with its alpha data if
+	 * any, halved averaging 2x2 boxes: the same as HalvedRows over the image
+	 * rows, read straight out of the image data. An odd last row or column
+	 * is averaged with itself, it covers as much as the others
+	 */
+	private static class HalvedDataRows implements Rows {
+		private final ImageData src;
+		private final int bytesPerPixel;
+		// offsets of the color bytes in a pixel
+		private final int red;
+		private final int green;
+		private final int blue;
+
+		/**
+		 * @param src the image
+		 * @param bytesPerPixel 3 or 4
+		 * @param rgb true if the red mask is the most significant one, false if it's the least
+		 */
+		HalvedDataRows(ImageData src, int bytesPerPixel, boolean rgb) {
+			this.src = src;
+			this.bytesPerPixel = bytesPerPixel;
+			this.red = rgb ? bytesPerPixel - 3 : bytesPerPixel - 1;
+			this.green = bytesPerPixel - 2;
+			this.blue = rgb ? bytesPerPixel - 1 : bytesPerPixel - 3;
+		}
+
+		@Override
+		public void read(int y, int[] row) {
+			int width = src.width;
+			int y0 = 2 * y;
+			int y1 = Math.min(y0 + 1, src.height - 1);
+			// the boxes of two columns, then the odd last column averaged with itself
+			int boxes = width / 2;
+			if (src.alphaData == null) {
+				// a box of 24 bits pixels is 6 bytes, read 8 at once but where the data end
+				int words = (bytesPerPixel == 3) ? Math.min(boxes, (src.data.length - y1 * src.bytesPerLine - 2) / 6) : 0;
+				readWords(y0 * src.bytesPerLine, y1 * src.bytesPerLine, words, row);
+				readOpaque(y0 * src.bytesPerLine, y1 * src.bytesPerLine, words, boxes, bytesPerPixel, row);
+				if (boxes * 2 < width) readOpaque(y0 * src.bytesPerLine, y1 * src.bytesPerLine, boxes, boxes + 1, 0, row);
+			} else {
+				readAlpha(y0, y1, 0, boxes, 1, row);
+				if (boxes * 2 < width) readAlpha(y0, y1, boxes, boxes + 1, 0, row);
+			}
+		}
+
+		/**
+		 * averages the boxes of an opaque 24 bits image reading 8 bytes at
+		 * once from each row, the 6 of a box and 2 more: the bytes of the
+		 * two rows are summed up in 16 bits lanes, the even and the odd
+		 * ones apart, then each byte with the one 3 bytes after it
+		 *
+		 * @param line0 offset of the first row
+		 * @param line1 offset of the second row
+		 * @param to last box, exclusive
+		 * @param row where to put the averages
+		 */
+		private void readWords(int line0, int line1, int to, int[] row) {
+			ByteBuffer data = ByteBuffer.wrap(src.data);
+			final long mask = 0x00FF00FF00FF00FFL;
+			boolean rgb = red == 0;
+			for (int x = 0, p = line0, q = line1; x < to; x++, p += 6, q += 6) {
+				long w0 = data.getLong(p), w1 = data.getLong(q);
+				// bytes 0, 2, 4, 6 and 1, 3, 5, 7 of the word, most significant first
+				long even = ((w0 >>> 8) & mask) + ((w1 >>> 8) & mask);
+				long odd = (w0 & mask) + (w1 & mask);
+				int s0 = (int) (even >>> 48) + (int) ((odd >>> 32) & 0xFFFF);
+				int s1 = (int) (odd >>> 48) + (int) ((even >>> 16) & 0xFFFF);
+				int s2 = (int) ((even >>> 32) & 0xFFFF) + (int) ((odd >>> 16) & 0xFFFF);
+				int sr = rgb ? s0 : s2, sb = rgb ? s2 : s0;
+				row[x] = 0xFF000000 | (((sr + 2) >> 2) << 16) | (((s1 + 2) >> 2) << 8) | ((sb + 2) >> 2);
+			}
+		}
+
+		/**
+		 * averages the boxes of an opaque image
+		 *
+		 * @param line0 offset of the first row
+		 * @param line1 offset of the second row
+		 * @param from first box
+		 * @param to last box, exclusive
+		 * @param next bytes from the left pixel of a box to the right one
+		 * @param row where to put the averages
+		 */
+		private void readOpaque(int line0, int line1, int from, int to, int next, int[] row) {
+			byte[] data = src.data;
+			int bpp = bytesPerPixel, red = this.red, green = this.green, blue = this.blue;
+			for (int x = from, p = line0 + 2 * from * bpp, q = line1 + 2 * from * bpp; x < to; x++, p += 2 * bpp, q += 2 * bpp) {
+				int sr = (data[p + red] & 0xFF) + (data[p + next + red] & 0xFF) + (data[q + red] & 0xFF) + (data[q + next + red] & 0xFF);
+				int sg = (data[p + green] & 0xFF) + (data[p + next + green] & 0xFF) + (data[q + green] & 0xFF) + (data[q + next + green] & 0xFF);
+				int sb = (data[p + blue] & 0xFF) + (data[p + next + blue] & 0xFF) + (data[q + blue] & 0xFF) + (data[q + next + blue] & 0xFF);
+				row[x] = 0xFF000000 | (((sr + 2) >> 2) << 16) | (((sg + 2) >> 2) << 8) | ((sb + 2) >> 2);
+			}
+		}
+
+		/**
+		 * averages the boxes of an image with alpha data, premultiplied
+		 *
+		 * @param y0 the first row
+		 * @param y1 the second row
+		 * @param from first box
+		 * @param to last box, exclusive
+		 * @param next pixels from the left pixel of a box to the right one
+		 * @param row where to put the averages
+		 */
+		private void readAlpha(int y0, int y1, int from, int to, int next, int[] row) {
+			byte[] data = src.data;
+			byte[] alphas = src.alphaData;
+			int bpp = bytesPerPixel, red = this.red, green = this.green, blue = this.blue;
+			int step = next * bpp;
+			for (int x = from, p = y0 * src.bytesPerLine + 2 * from * bpp, q = y1 * src.bytesPerLine + 2 * from * bpp,
+					ap = y0 * src.width + 2 * from, aq = y1 * src.width + 2 * from; x < to; x++, p += 2 * bpp, q += 2 * bpp, ap += 2, aq += 2) {
+				int a0 = alphas[ap] & 0xFF, a1 = alphas[ap + next] & 0xFF, a2 = alphas[aq] & 0xFF, a3 = alphas[aq + next] & 0xFF;
+				int sr = multiply(data[p + red], a0) + multiply(data[p + step + red], a1) + multiply(data[q + red], a2) + multiply(data[q + step + red], a3);
+				int sg = multiply(data[p + green], a0) + multiply(data[p + step + green], a1) + multiply(data[q + green], a2) + multiply(data[q + step + green], a3);
+				int sb = multiply(data[p + blue], a0) + multiply(data[p + step + blue], a1) + multiply(data[q + blue], a2) + multiply(data[q + step + blue], a3);
+				int sa = a0 + a1 + a2 + a3;
+				row[x] = (((sa + 2) >> 2) << 24) | (((sr + 2) >> 2) << 16) | (((sg + 2) >> 2) << 8) | ((sb + 2) >> 2);
+			}
+		}
+
+		/**
+		 * premultiplies a color component by its alpha, rounding as
+		 * premultiply does: (c * a + 127) / 255 without the division
+		 */
+		private static int multiply(byte component, int alpha) {
+			int t = (component & 0xFF) * alpha + 128;
+			return (t + (t >> 8)) >> 8;
+		}
+	}
+
+	/**
+	 * the source pixels a destination pixel is made of
+	 */
+	private static class Contributions {
+		// for each destination pixel, its first source pixel and how many
+		final int[] first;
+		final int[] count;
+		// the weights, count[i] of them for each destination pixel, one after the other
+		final int[] weights;
+		final int[] offset;
+
+		/**
+		 * computes the contributions of the pixels of a source, srcLength pixels of the
+		 * original image halved to pixels covering step of them, the last one what's left,
+		 * to dstLength pixels: destination pixel i covers [i * srcLength, (i + 1) * srcLength)
+		 * and source pixel j covers [j * step * dstLength, min((j + 1) * step, srcLength) * dstLength),
+		 * so the overlaps are exact integers
+		 */
+		Contributions(int srcLength, int step, int dstLength) {
+			int pixels = (srcLength + step - 1) / step;
+			long pixelLength = (long) step * dstLength;
+			long srcEnd = (long) srcLength * dstLength;
+			first = new int[dstLength];
+			count = new int[dstLength];
+			offset = new int[dstLength];
+			weights = new int[pixels + dstLength];
+			int next = 0;
+			for (int i = 0; i < dstLength; i++) {
+				long start = (long) i * srcLength;
+				long end = start + srcLength;
+				int j = (int) (start / pixelLength);
+				first[i] = j;
+				offset[i] = next;
+				int sum = 0, max = next;
+				for (; j * pixelLength < end && j < pixels; j++) {
+					long overlap = Math.min(end, Math.min((j + 1) * pixelLength, srcEnd)) - Math.max(start, j * pixelLength);
+					int weight = (int) (overlap * WEIGHT_ONE / srcLength);
+					weights[next] = weight;
+					sum += weight;
+					if (weight > weights[max]) max = next;
+					next++;
+				}
+				count[i] = next - offset[i];
+				// the rounding leftover goes to the heaviest one
+				weights[max] += WEIGHT_ONE - sum;
+			}
+		}
+	}
+
+	/**
+	 * downscales an ARGB image
+	 *
+	 * @param argb the source pixels, row after row
+	 * @param width the source width
+	 * @param height the source height
+	 * @param dstWidth the destination width, at most width
+	 * @param dstHeight the destination height, at most height
+	 * @param hasAlpha true if the alpha of the pixels must be kept, false if they're opaque
+	 * @return the destination pixels, row after row, opaque if hasAlpha is false
+	 */
+	public static int[] scale(final int[] argb, final int width, int height, int dstWidth, int dstHeight, final boolean hasAlpha) {
+		int[] dst = new int[dstWidth * dstHeight];
+		scale(new Rows() {
+			@Override
+			public void read(int y, int[] row) {
+				System.arraycopy(argb, y * width, row, 0, width);
+				if (hasAlpha) {
+					for (int x = 0; x < width; x++) row[x] = premultiply(row[x]);
+				}
+			}
+		}, null, width, height, dst, dstWidth, dstHeight, hasAlpha);
+		return dst;
+	}
+
+	/**
+	 * downscales an image
+	 *
+	 * @param src the source image
+	 * @param dstWidth the destination width, at most the source one
+	 * @param dstHeight the destination height, at most the source one
+	 * @return the destination image, 24 bits RGB with its alpha data if the source is not opaque
+	 */
+	public static ImageData scale(final ImageData src, int dstWidth, int dstHeight) {
+		final int width = src.width;
+		final PaletteData palette = src.palette;
+		final boolean hasAlpha = src.alphaData != null || src.alpha != -1 || src.transparentPixel != -1;
+		// the ARGB of every index of an indexed image
+		final int[] colors;
+		if (palette.isDirect) {
+			colors = null;
+		} else {
+			RGB[] rgbs = palette.getRGBs();
+			colors = new int[rgbs.length];
+			for (int i = 0; i < rgbs.length; i++) colors[i] = 0xFF000000 | (rgbs[i].red << 16) | (rgbs[i].green << 8) | rgbs[i].blue;
+		}
+		final byte[] alphas = (src.alphaData != null) ? new byte[width] : null;
+		// 24 and 32 bits pixels are read straight out of the data, most significant byte first
+		final int bytesPerPixel = (palette.isDirect && (src.depth == 24 || src.depth == 32)) ? src.depth / 8 : 0;
+		// the usual RGB and BGR masks need no shifting
+		final boolean rgb = palette.redMask == 0xFF0000 && palette.greenMask == 0xFF00 && palette.blueMask == 0xFF;
+		final boolean bgr = palette.redMask == 0xFF && palette.greenMask == 0xFF00 && palette.blueMask == 0xFF0000;
+
+		int[] dst = new int[dstWidth * dstHeight];
+		scale(new Rows() {
+			@Override
+			public void read(int y, int[] row) {
+				if (bytesPerPixel == 3) {
+					byte[] data = src.data;
+					for (int x = 0, i = y * src.bytesPerLine; x < width; x++, i += 3) {
+						row[x] = ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+					}
+					// an opaque RGB row is ready
+					if (rgb && !hasAlpha) return;
+				} else if (bytesPerPixel == 4) {
+					byte[] data = src.data;
+					for (int x = 0, i = y * src.bytesPerLine; x < width; x++, i += 4) {
+						row[x] = ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16) | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+					}
+				} else {
+					src.getPixels(0, y, width, row, 0);
+				}
+				if (alphas != null) src.getAlphas(0, y, width, alphas, 0);
+				for (int x = 0; x < width; x++) {
+					int pixel = row[x];
+					int color;
+					if (colors != null) {
+						color = colors[pixel];
+					} else if (rgb) {
+						color = 0xFF000000 | (pixel & 0xFFFFFF);
+					} else if (bgr) {
+						color = 0xFF000000 | ((pixel & 0xFF) << 16) | (pixel & 0xFF00) | ((pixel >> 16) & 0xFF);
+					} else {
+						color = 0xFF000000 | (component(pixel, palette.redMask, palette.redShift) << 16)
+								| (component(pixel, palette.greenMask, palette.greenShift) << 8)
+								| component(pixel, palette.blueMask, palette.blueShift);
+					}
+					if (hasAlpha) {
+						int alpha;
+						if (pixel == src.transparentPixel) alpha = 0;
+						else if (alphas != null) alpha = alphas[x] & 0xFF;
+						else if (src.alpha != -1) alpha = src.alpha;
+						else alpha = 0xFF;
+						color = premultiply((alpha << 24) | (color & 0xFFFFFF));
+					}
+					row[x] = color;
+				}
+			}
+		}, (bytesPerPixel != 0 && (rgb || bgr) && src.transparentPixel == -1 && src.alpha == -1)
+				? new HalvedDataRows(src, bytesPerPixel, rgb) : null,
+			width, src.height, dst, dstWidth, dstHeight, hasAlpha);
+
+		ImageData scaled = new ImageData(dstWidth, dstHeight, 24, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+		if (hasAlpha) scaled.alphaData = new byte[dstWidth * dstHeight];
+		byte[] data = scaled.data;
+		for (int y = 0, i = 0; y < dstHeight; y++) {
+			int line = y * scaled.bytesPerLine;
+			for (int x = 0; x < dstWidth; x++, i++) {
+				int color = dst[i];
+				// 24 bits pixels are stored most significant byte first
+				data[line++] = (byte) (color >> 16);
+				data[line++] = (byte) (color >> 8);
+				data[line++] = (byte) color;
+				if (hasAlpha) scaled.alphaData[i] = (byte) (color >>> 24);
+			}
+		}
+		return scaled;
+	}
+
+	/**
+	 * gets the size of an image scaled so that its longest side is longestSide
+	 *
+	 * @param width the image width
+	 * @param height the image height
+	 * @param longestSide the length of the longest side of the scaled image
+	 * @return the scaled width and height, at least 1
+	 */
+	public static int[] fit(int width, int height, int longestSide) {
+		// the same rounding DrinImageLoader always used
+		if (height >= width) {
+			return new int[] { Math.max(1, (int) ((float) width / (float) height * longestSide)), longestSide };
+		} else {
+			return new int[] { longestSide, Math.max(1, (int) ((float) height / (float) width * longestSide)) };
+		}
+	}
+
+	/**
+	 * the scaling engine, dst gets the pixels unpremultiplied
+	 *
+	 * @param halved the source rows halved, as HalvedRows would, null to halve src
+	 */
+	private static void scale(Rows src, Rows halved, int width, int height, int[] dst, int dstWidth, int dstHeight, boolean hasAlpha) {
+		if (dstWidth > width || dstHeight > height || dstWidth < 1 || dstHeight < 1) {
+			throw new IllegalArgumentException("cannot scale " + width + "x" + height + " to " + dstWidth + "x" + dstHeight);
+		}
+		// halve the source down to at most twice the destination
+		int step = 1;
+		int srcWidth = width, srcHeight = height;
+		while (srcWidth > 2 * dstWidth && srcHeight > 2 * dstHeight) {
+			src = (step == 1 && halved != null) ? halved : new HalvedRows(src, srcWidth, srcHeight, step, width, height);
+			srcWidth = (srcWidth + 1) / 2;
+			srcHeight = (srcHeight + 1) / 2;
+			step *= 2;
+		}
+		Contributions columns = new Contributions(width, step, dstWidth);
+		Contributions rows = new Contributions(height, step, dstHeight);
+
+		int[] row = new int[srcWidth];
+		// the source row scaled horizontally, 4 channels for each pixel
+		int[] scaledRow = new int[dstWidth * 4];
+		// the destination row being summed up, 4 channels for each pixel
+		int[] sum = new int[dstWidth * 4];
+		int lastRow = -1;
+		final int rowShift = WEIGHT_BITS - ROW_BITS;
+		final int sumShift = WEIGHT_BITS + ROW_BITS;
+		final int round = 1 << (sumShift - 1);
+
+		for (int dy = 0; dy < dstHeight; dy++) {
+			Arrays.fill(sum, 0);
+			for (int k = 0; k < rows.count[dy]; k++) {
+				int sy = rows.first[dy] + k;
+				int wy = rows.weights[rows.offset[dy] + k];
+				// a source row on the edge of two destination rows is scaled once
+				if (sy != lastRow) {
+					src.read(sy, row);
+					scaleRow(row, scaledRow, columns, rowShift, hasAlpha);
+					lastRow = sy;
+				}
+				for (int i = 0; i < sum.length; i++) sum[i] += scaledRow[i] * wy;
+			}
+
+			for (int dx = 0, i = 0, d = dy * dstWidth; dx < dstWidth; dx++, i += 4, d++) {
+				int a = (sum[i] + round) >>> sumShift;
+				int r = (sum[i + 1] + round) >>> sumShift;
+				int g = (sum[i + 2] + round) >>> sumShift;
+				int b = (sum[i + 3] + round) >>> sumShift;
+				if (hasAlpha) {
+					if (a == 0) {
+						r = g = b = 0;
+					} else if (a < 0xFF) {
+						r = Math.min(0xFF, (r * 0xFF + a / 2) / a);
+						g = Math.min(0xFF, (g * 0xFF + a / 2) / a);
+						b = Math.min(0xFF, (b * 0xFF + a / 2) / a);
+					}
+				} else {
+					a = 0xFF;
+				}
+				dst[d] = (Math.min(a, 0xFF) << 24) | (Math.min(r, 0xFF) << 16) | (Math.min(g, 0xFF) << 8) | Math.min(b, 0xFF);
+			}
+		}
+	}
+
+	/**
+	 * scales a row horizontally, each channel keeping ROW_BITS extra bits,
+	 * the alpha is not summed up if the row is opaque
+	 */
+	private static void scaleRow(int[] row, int[] scaledRow, Contributions columns, int shift, boolean hasAlpha) {
+		int[] weights = columns.weights;
+		for (int dx = 0, i = 0; dx < columns.first.length; dx++, i += 4) {
+			int a = 0, r = 0, g = 0, b = 0;
+			int sx = columns.first[dx];
+			int k = columns.offset[dx];
+			int end = k + columns.count[dx];
+			if (hasAlpha) {
+				for (; k < end; k++, sx++) {
+					int color = row[sx];
+					int w = weights[k];
+					a += (color >>> 24) * w;
+					r += ((color >> 16) & 0xFF) * w;
+					g += ((color >> 8) & 0xFF) * w;
+					b += (color & 0xFF) * w;
+				}
+			} else {
+				for (; k < end; k++, sx++) {
+					int color = row[sx];
+					int w = weights[k];
+					r += ((color >> 16) & 0xFF) * w;
+					g += ((color >> 8) & 0xFF) * w;
+					b += (color & 0xFF) * w;
+				}
+			}
+			scaledRow[i] = a >>> shift;
+			scaledRow[i + 1] = r >>> shift;
+			scaledRow[i + 2] = g >>> shift;
+			scaledRow[i + 3] = b >>> shift;
+		}
+	}
+
+	private static int premultiply(int color) {
+		int a = color >>> 24;
+		if (a == 0xFF) return color;
+		if (a == 0) return 0;
+		int r = (((color >> 16) & 0xFF) * a + 127) / 255;
+		int g = (((color >> 8) & 0xFF) * a + 127) / 255;
+		int b = ((color & 0xFF) * a + 127) / 255;
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * gets an 8 bits component of a direct palette pixel
+	 */
+	private static int component(int pixel, int mask, int shift) {
+		int value = pixel & mask;
+		return (shift < 0) ? (value >>> -shift) & 0xFF : (value << shift) & 0xFF;
+	}
+}
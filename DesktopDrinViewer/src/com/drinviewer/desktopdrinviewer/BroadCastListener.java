@@ -22,15 +22,17 @@ package com.drinviewer.desktopdrinviewer;
 
 import java.io.IOException;
 import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 
 import com.drinviewer.common.Constants;
-import com.drinviewer.common.HostData;
+import com.drinviewer.common.DrinMessageParser;
 
 /**
  * Main class for the server
@@ -42,10 +44,10 @@ import com.drinviewer.common.HostData;
 public class BroadCastListener implements Runnable {
 
 	/**
-	 * socket used for listening
+	 * channel used for listening and replying
 	 * 
 	 */
-	private DatagramSocket socket = null;
+	private DatagramChannel channel = null;
 	
 	/**
 	 * port number to open
@@ -70,7 +72,76 @@ public class BroadCastListener implements Runnable {
 	 * respond to broadcast request coming from unpaired devices
 	 * 
 	 */
-	private boolean doNotDisturbMode = false;
+	private volatile boolean doNotDisturbMode = false;
+
+	/**
+	 * buffer the packets are received into, reused for every packet
+	 * 
+	 */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(Constants.BUFLEN);
+
+	/**
+	 * parser of the received packets, used by the receiving thread only
+	 * 
+	 */
+	private final DrinMessageParser parser = new DrinMessageParser();
+
+	/**
+	 * uuids of the devices seen lately, not to make a new String
+	 * for every request of the same device
+	 * 
+	 */
+	private final String[] seenUUIDs = new String[DesktopDrinViewerConstants.DISCOVER_MAX_SOURCES];
+
+	/**
+	 * pre-encoded response to a paired device
+	 * 
+	 */
+	private volatile ByteBuffer pairedResponse;
+
+	/**
+	 * pre-encoded response to an unpaired device,
+	 * null if unpaired devices must not get a response
+	 * 
+	 */
+	private volatile ByteBuffer unpairedResponse;
+
+	/**
+	 * DISCOVER rate limiter by source address
+	 * 
+	 */
+	private volatile RateLimiter<InetAddress> addressLimiter;
+
+	/**
+	 * DISCOVER rate limiter by device uuid
+	 * 
+	 */
+	private volatile RateLimiter<String> uuidLimiter;
+
+	/**
+	 * number of packets received
+	 * 
+	 */
+	private final StripedCounter receivedPackets = new StripedCounter();
+
+	/**
+	 * number of DISCOVER requests answered
+	 * 
+	 */
+	private final StripedCounter repliedPackets = new StripedCounter();
+
+	/**
+	 * number of packets refused by the rate limiters
+	 * 
+	 */
+	private final StripedCounter throttledPackets = new StripedCounter();
+
+	/**
+	 * number of packets not answered for any other reason:
+	 * not a DISCOVER request or do not disturb mode
+	 * 
+	 */
+	private final StripedCounter droppedPackets = new StripedCounter();
 
 	/**
 	 * Class constructor:
@@ -85,10 +156,101 @@ public class BroadCastListener implements Runnable {
 		} catch (UnknownHostException e) {
 			localHostName = null;
 		}		
+		buildResponses();
+		setRateLimits(DesktopDrinViewerConstants.DISCOVER_ADDRESS_RATE, DesktopDrinViewerConstants.DISCOVER_ADDRESS_BURST,
+				DesktopDrinViewerConstants.DISCOVER_UUID_RATE, DesktopDrinViewerConstants.DISCOVER_UUID_BURST);
+	}
+	
+	/**
+	 * sets the DISCOVER rate limits, a rate of 0 disables the limit
+	 * 
+	 * @param addressRate requests per second allowed from a single address
+	 * @param addressBurst requests allowed at once from a single address
+	 * @param uuidRate requests per second allowed from a single device uuid
+	 * @param uuidBurst requests allowed at once from a single device uuid
+	 */
+	public void setRateLimits(double addressRate, int addressBurst, double uuidRate, int uuidBurst) {
+		addressLimiter = new RateLimiter<InetAddress>(addressRate, addressBurst, DesktopDrinViewerConstants.DISCOVER_MAX_SOURCES);
+		uuidLimiter = new RateLimiter<String>(uuidRate, uuidBurst, DesktopDrinViewerConstants.DISCOVER_MAX_SOURCES);
+	}
+	
+	/**
+	 * gets the number of packets received
+	 * 
+	 * @return the received packets
+	 */
+	public long getReceivedPackets() {
+		return receivedPackets.get();
+	}
+	
+	/**
+	 * gets the number of DISCOVER requests answered
+	 * 
+	 * @return the replied packets
+	 */
+	public long getRepliedPackets() {
+		return repliedPackets.get();
+	}
+	
+	/**
+	 * gets the number of packets refused by the rate limiters
+	 * 
+	 * @return the throttled packets
+	 */
+	public long getThrottledPackets() {
+		return throttledPackets.get();
+	}
+	
+	/**
+	 * gets the number of packets not answered for any other
+	 * reason than the rate limits
+	 * 
+	 * @return the dropped packets
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets.get();
 	}
 	
 	/**
-	 * init the datagram socket
+	 * builds the pre-encoded DISCOVER_RESPONSE messages, to be
+	 * called whenever something they depend on has changed
+	 */
+	private synchronized void buildResponses() {
+		pairedResponse = encodeResponse(Constants.MESSAGE_DEVICE_IS_PAIRED);
+		/**
+		 * in doNotDisturb mode only the
+		 * devices already paired get a response
+		 */
+		unpairedResponse = (doNotDisturbMode) ? null : encodeResponse(Constants.MESSAGE_DEVICE_IS_UNPAIRED);
+	}
+	
+	/**
+	 * encodes a DISCOVER_RESPONSE message
+	 * 
+	 * @param pairedState MESSAGE_DEVICE_IS_PAIRED or MESSAGE_DEVICE_IS_UNPAIRED
+	 * @return the encoded message, ready to be sent
+	 */
+	private ByteBuffer encodeResponse(String pairedState) {
+		// prepare the message to send out
+		String sendMessage = Constants.DISCOVER_RESPONSE + Constants.MESSAGE_CHAR_SEPARATOR + pairedState;
+		
+		// if there's a localHostName, put it as second optional message parameter
+		if (localHostName!=null) sendMessage += Constants.MESSAGE_CHAR_SEPARATOR + localHostName;
+		
+		// tell the device which protocol version we speak
+		sendMessage += Constants.MESSAGE_CHAR_SEPARATOR + Constants.MESSAGE_PROTOCOL_VERSION + Constants.PROTOCOL_VERSION;
+		
+		// sendMessage ends here
+		sendMessage += Constants.MESSAGE_CHAR_SEPARATOR + Constants.DISCOVER_RESPONSE_END;
+		
+		byte[] sendData = sendMessage.getBytes();
+		ByteBuffer response = ByteBuffer.allocateDirect(sendData.length);
+		response.put(sendData);
+		return response;
+	}
+	
+	/**
+	 * init the datagram channel
 	 * The exception is thrown if the port has
 	 * already been taken (server already running
 	 * or port in use by someone else)
@@ -97,14 +259,17 @@ public class BroadCastListener implements Runnable {
 	 */
 	public void initDatagramSocket() throws BindException {
 		try {
-			socket = new DatagramSocket(port, InetAddress.getByName(Constants.ZERO_ADDRESS));
-			socket.setBroadcast(true);
-			socket.setSoTimeout(500);
-			port = socket.getLocalPort();
+			channel = DatagramChannel.open();
+			channel.socket().setBroadcast(true);
+			channel.socket().bind(new InetSocketAddress(InetAddress.getByName(Constants.ZERO_ADDRESS), port));
+			port = channel.socket().getLocalPort();
+			// the host name may have changed since the last start
+			refreshLocalHostName();
 			// print a message to the user
-			// System.out.println(getClass().getName() + ">>> " + socket.getClass().getName() + " socket opened on port " + port);
+			// System.out.println(getClass().getName() + ">>> " + channel.getClass().getName() + " channel opened on port " + port);
 			running = true;
 		} catch (BindException e) {
+			closeChannel();
 			throw e;
 		} catch (SocketException e) {
 			e.printStackTrace();
@@ -113,109 +278,134 @@ public class BroadCastListener implements Runnable {
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 			System.exit(-1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
 		}
 	}
 
 	/**
 	 * run method implementation:
-	 * while we're running, receive a packet and pass it to the handler
+	 * while we're running, receive a packet and reply to it
+	 * on this same thread, there's no blocking work to be done
 	 */
 	@Override
 	public void run() {
 		try {
 			// note: running is set to true in initDatagramSocket
 			while (running) {
-				try {	
-					// Receive a packet, the timeout is there to properly stop the Runnable
-					byte[] recvBuf = new byte[Constants.BUFLEN];
-					DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
-					socket.receive(packet);
-					// a packet has arrived!! print a message to the user
-					// System.out.println(getClass().getName() + ">>>Packet received; data: " + new String(packet.getData()));
-					// handle the incoming message
-					handleMessage(packet);
-				} catch (SocketTimeoutException e) {
-					// it's safe to do nothing and restart if the socket times out.
-					// the timeout is there only to terminate suddenly 
-					// when terminate() is called.
-					// This catch must be inside the loop
-				}			
+				receiveBuffer.clear();
+				// blocks until a packet arrives or terminate() closes the channel
+				SocketAddress sender = channel.receive(receiveBuffer);
+				// a packet has arrived!! print a message to the user
+				// System.out.println(getClass().getName() + ">>>Packet received from: " + sender);
+				// handle the incoming message
+				if (sender != null) handleMessage(receiveBuffer, sender);
 			} // ends while
-			if (socket != null) socket.close();
+		} catch (ClosedChannelException e) {
+			// nothing to do when terminate() closes the channel
 		} catch (IOException e) {
-			terminate();
+			running = false;
 			e.printStackTrace();
+		} finally {
+			closeChannel();
+		}
+	}
+	
+	/**
+	 * handles a received packet, checking its validity, produces and
+	 * sends out the appropriate response. The packet is parsed where
+	 * it is and the uuid of a known device comes out of the seen uuids,
+	 * so that nothing is allocated for the usual requests
+	 * 
+	 * @param packet the received packet, from 0 to its position
+	 * @param sender the address the packet came from
+	 */
+	void handleMessage(ByteBuffer packet, SocketAddress sender) {
+		receivedPackets.increment();
+		// refuse flooding sources before doing any work
+		long now = System.nanoTime();
+		if (!addressLimiter.tryAcquire(((InetSocketAddress) sender).getAddress(), now)) {
+			throttledPackets.increment();
+			return;
 		}
+		
+        // so, if it's a DISCOVER_REQUEST, do something with the received data	
+        if (parser.parse(packet.array(), packet.arrayOffset(), packet.position()) == DrinMessageParser.DISCOVER) {
+        	
+			// if there's more than one field, there's the uuid in the received message
+			String receivedUUID = parser.getField(1, seenUUIDs);
+			
+			// refuse a device sending too many requests, whatever its address
+			if (receivedUUID != null && !uuidLimiter.tryAcquire(receivedUUID, now)) {
+				throttledPackets.increment();
+				return;
+			}
+			
+        	// get paired state for receivedUUID and send out the response
+        	if (sendResponse(PairingRegistry.getInstance().isPaired(receivedUUID), sender)) {
+        		repliedPackets.increment();
+        	} else {
+        		droppedPackets.increment();
+        	}
+        } else {
+        	droppedPackets.increment();
+        } // ends if DISCOVER
 	}
 	
 	/**
-	 * handles the incoming packet, checking its validity,
-	 * produces and sends out appropriate responses in a
-	 * new thread
+	 * sends the pre-encoded response, this is called
+	 * by the run method thread only
 	 * 
-	 * @param packet
+	 * @param isPaired true if the device is paired
+	 * @param target the address of the device
+	 * @return false if the device must not get a response or it could not be sent
 	 */
-	private void handleMessage(final DatagramPacket packet) {
-		// temporarily store the uuid
-		final String receivedUUID;
+	boolean sendResponse(boolean isPaired, SocketAddress target) {
+		ByteBuffer response = (isPaired) ? pairedResponse : unpairedResponse;
+		if (response == null) return false;
 		
-		// extract the response to a string and check if it's what we'd expected
-        final String message = new String(packet.getData()).trim();
-        
-	        // so, if it's a DISCOVER_REQUEST, do something with the received data	
-	        if (message.startsWith(Constants.DISCOVER_REQUEST)) {
-	        	
-	        	// look for a received uuid and place it as first message parametr
-	        	String temp[] = message.split(Constants.MESSAGE_CHAR_SEPARATOR);
-	        	
-				// if the splitted array has more than one element, there's the uuid in the received message
-				if (temp.length>1) receivedUUID = temp[1];
-				else receivedUUID = null;
-				
-				// do the real message handling in a new thread
-	        	new Thread (new Runnable() 
-	        	{
-	        		@Override
-					public void run() {
-			        	// prepare the message to send out
-			        	String sendMessage = Constants.DISCOVER_RESPONSE;
-			        	
-			        	// get paired state for receivedUUID
-			        	boolean isPaired = new ServerDBManager().isPaired( new HostData(receivedUUID, packet.getAddress().getHostAddress()));
-			        	
-			        	// check if the receivedUUID owns to a paired device
-						if (receivedUUID!=null && isPaired) {
-							sendMessage += Constants.MESSAGE_CHAR_SEPARATOR+Constants.MESSAGE_DEVICE_IS_PAIRED;
-						} else {
-							sendMessage += Constants.MESSAGE_CHAR_SEPARATOR+Constants.MESSAGE_DEVICE_IS_UNPAIRED;
-						}
-			        	
-						// if there's a localHostName, put it as second optional message parameter
-			        	if (localHostName!=null) sendMessage += Constants.MESSAGE_CHAR_SEPARATOR + localHostName;
-			        	
-			        	// sendMessage ends here
-			        	sendMessage += Constants.MESSAGE_CHAR_SEPARATOR + Constants.DISCOVER_RESPONSE_END;
-			        	
-			            byte[] sendData = sendMessage.getBytes();
-			 
-			            // send out the response
-			            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, packet.getAddress(), packet.getPort());
-			            try {
-			            	/**
-			            	 * send out response packet only if doNotDisturb mode is
-			            	 * false or if it is true and the device was already paired
-			            	 */
-			            	if (!isDoNotDisturbMode() || (isDoNotDisturbMode() && isPaired)) {
-			            		socket.send(sendPacket);
-			            	}			            	
-			            	// print a message to the user
-			            	// System.out.println(this.getClass().getName() + ">>>Sent packet to: " + sendPacket.getAddress().getHostAddress());
-			            } catch (IOException e) {
-			            	// System.out.println(this.getClass().getName() + ">>>ERROR SENDING PACKET: " + e.getMessage() );
-			            }			            
-	        		} // ends run method
-	        	}).start();
-	        } // ends if message.startsWith
+		try {
+			response.clear();
+			channel.send(response, target);
+			// print a message to the user
+			// System.out.println(this.getClass().getName() + ">>>Sent packet to: " + target);
+		} catch (ClosedChannelException e) {
+			// terminate() has been called
+			return false;
+		} catch (IOException e) {
+			// System.out.println(this.getClass().getName() + ">>>ERROR SENDING PACKET: " + e.getMessage() );
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * gets the local host name again, rebuilding
+	 * the responses if it has changed
+	 */
+	public synchronized void refreshLocalHostName() {
+		String hostName;
+		try {
+			hostName = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			hostName = null;
+		}
+		if (hostName == null ? localHostName != null : !hostName.equals(localHostName)) {
+			localHostName = hostName;
+			buildResponses();
+		}
+	}
+	
+	/**
+	 * closes the channel, if it's open
+	 */
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
 	}
 	
 	/**
@@ -233,6 +423,8 @@ public class BroadCastListener implements Runnable {
 	 */
 	public void terminate() {
 		running = false;
+		// wakes the run method up if it's waiting for a packet
+		closeChannel();
 	}
 
 	/**
@@ -263,8 +455,11 @@ public class BroadCastListener implements Runnable {
 	/**
 	 * @param doNotDisturbMode the doNotDisturbMode to set
 	 */
-	public void setDoNotDisturbMode(boolean doNotDisturbMode) {
-		this.doNotDisturbMode = doNotDisturbMode;
+	public synchronized void setDoNotDisturbMode(boolean doNotDisturbMode) {
+		if (this.doNotDisturbMode != doNotDisturbMode) {
+			this.doNotDisturbMode = doNotDisturbMode;
+			buildResponses();
+		}
 	}
 
 	/**
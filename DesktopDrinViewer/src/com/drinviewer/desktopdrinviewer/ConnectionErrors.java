@@ -0,0 +1,246 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ObjectStreamException;
+import java.io.UTFDataFormatException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counts the failed client connections of a listener.
+ *
+ * A failing connection is closed and counted, and never stops the
+ * listener. Failures are counted by category since the start, and
+ * together with the opened connections in one second buckets over
+ * a rolling window, to get the recent error rate.
+ *
+ * @author giorgio
+ *
+ */
+public class ConnectionErrors {
+	/**
+	 * the kind of failure
+	 */
+	public enum Category {
+		/**
+		 * the device has been silent for too long
+		 */
+		TIMEOUT,
+		/**
+		 * the device has not followed the protocol:
+		 * unknown requests, truncated data, reset connections
+		 */
+		PROTOCOL,
+		/**
+		 * the device has sent an event that cannot be decoded
+		 */
+		DECODE,
+		/**
+		 * the server has failed handling the connection, a bug
+		 * rather than the device's fault: it's logged as well
+		 */
+		SERVER
+	}
+
+	private final AtomicLong[] counts = new AtomicLong[Category.values().length];
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * the rolling window, one slot for each second, guarded by this
+	 *
+	 */
+	private final long[] slotSecond;
+	private final long[] slotConnections;
+	private final long[] slotErrors;
+	private final long start = System.nanoTime();
+
+	/**
+	 * instantiates the counters
+	 *
+	 * @param windowSeconds length of the window of the error rate
+	 */
+	public ConnectionErrors(int windowSeconds) {
+		for (int i = 0; i < counts.length; i++) counts[i] = new AtomicLong();
+		slotSecond = new long[Math.max(1, windowSeconds)];
+		slotConnections = new long[slotSecond.length];
+		slotErrors = new long[slotSecond.length];
+	}
+
+	/**
+	 * tells the category of a failure: the unchecked exceptions
+	 * that are not about a malformed event are server bugs
+	 *
+	 * @param e what made the connection fail
+	 * @return the category
+	 */
+	public static Category categorize(Throwable e) {
+		if (e instanceof SocketTimeoutException) return Category.TIMEOUT;
+		if (e instanceof ObjectStreamException || e instanceof UTFDataFormatException ||
+				e instanceof ClassNotFoundException || e instanceof ClassCastException ||
+				e instanceof IllegalArgumentException) {
+			return Category.DECODE;
+		}
+		if (e instanceof RuntimeException) return Category.SERVER;
+		return Category.PROTOCOL;
+	}
+
+	/**
+	 * counts an opened connection
+	 */
+	public void connectionOpened() {
+		connections.incrementAndGet();
+		add(1, 0);
+	}
+
+	/**
+	 * counts a connection closed as soon as it was
+	 * accepted, because there were too many open
+	 */
+	public void connectionRejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * counts a failure
+	 *
+	 * @param e what made the connection fail
+	 * @return the category the failure has been counted in
+	 */
+	public Category record(Throwable e) {
+		Category category = categorize(e);
+		if (category == Category.SERVER) e.printStackTrace();
+		record(category);
+		return category;
+	}
+
+	/**
+	 * counts a failure
+	 *
+	 * @param category the category of the failure
+	 */
+	public void record(Category category) {
+		counts[category.ordinal()].incrementAndGet();
+		add(0, 1);
+	}
+
+	/**
+	 * gets the number of failures of a category since the start
+	 *
+	 * @param category the category
+	 * @return the failures
+	 */
+	public long getCount(Category category) {
+		return counts[category.ordinal()].get();
+	}
+
+	/**
+	 * gets the number of failures since the start
+	 *
+	 * @return the failures
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (AtomicLong count : counts) total += count.get();
+		return total;
+	}
+
+	/**
+	 * gets the number of connections since the start
+	 *
+	 * @return the connections
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * gets the number of connections rejected since the start
+	 *
+	 * @return the rejected connections
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * gets the failures over the connections in the rolling window
+	 *
+	 * @return the error rate, from 0 to 1
+	 */
+	public synchronized double getErrorRate() {
+		long second = currentSecond();
+		long opened = 0;
+		long failed = 0;
+		for (int i = 0; i < slotSecond.length; i++) {
+			if (second - slotSecond[i] < slotSecond.length) {
+				opened += slotConnections[i];
+				failed += slotErrors[i];
+			}
+		}
+		if (opened == 0) return (failed > 0) ? 1 : 0;
+		return Math.min(1, (double) failed / opened);
+	}
+
+	/**
+	 * gets the failures per second in the rolling window
+	 *
+	 * @return the failures per second
+	 */
+	public synchronized double getErrorsPerSecond() {
+		long second = currentSecond();
+		long failed = 0;
+		for (int i = 0; i < slotSecond.length; i++) {
+			if (second - slotSecond[i] < slotSecond.length) failed += slotErrors[i];
+		}
+		return (double) failed / slotSecond.length;
+	}
+
+	/**
+	 * adds to the slot of the current second, emptying it if it's stale
+	 *
+	 * @param opened connections to be added
+	 * @param failed failures to be added
+	 */
+	private synchronized void add(long opened, long failed) {
+		long second = currentSecond();
+		int slot = (int) (second % slotSecond.length);
+		if (slotSecond[slot] != second) {
+			slotSecond[slot] = second;
+			slotConnections[slot] = 0;
+			slotErrors[slot] = 0;
+		}
+		slotConnections[slot] += opened;
+		slotErrors[slot] += failed;
+	}
+
+	private long currentSecond() {
+		// starts a window ahead, so that the empty slots are stale
+		return (System.nanoTime() - start) / 1000000000L + slotSecond.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("connections=%d, rejected=%d, timeout=%d, protocol=%d, decode=%d, server=%d, errorRate=%.4f",
+				getConnections(), getRejected(), getCount(Category.TIMEOUT), getCount(Category.PROTOCOL), getCount(Category.DECODE), getCount(Category.SERVER), getErrorRate());
+	}
+}
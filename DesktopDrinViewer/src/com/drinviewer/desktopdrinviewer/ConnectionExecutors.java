@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * factory of the executors running the ServerListener connections.
+ *
+ * On a JDK 21 or later every connection gets its own virtual thread,
+ * so that a blocking read costs next to nothing. The application is
+ * built for older JDKs as well, so virtual threads are looked up by
+ * reflection and every connection gets a platform thread when they're
+ * not there, the number of open connections being capped by the
+ * ConnectionLimits. A bounded pool does not fit the persistent
+ * connections, that hold their thread for as long as the device is
+ * connected: with more devices than threads the new connections would
+ * wait in the queue until they're rejected.
+ *
+ * @author giorgio
+ *
+ */
+public final class ConnectionExecutors {
+	/**
+	 * maximum number of threads of the bounded pool
+	 */
+	public static final int POOL_SIZE = 64;
+
+	/**
+	 * number of connections waiting for a thread of the bounded pool
+	 */
+	public static final int POOL_QUEUE_SIZE = 256;
+
+	/**
+	 * tells if the running JDK has virtual threads
+	 *
+	 * @return true if virtual threads are available
+	 */
+	public static boolean hasVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * gets the default connections executor: virtual threads
+	 * if available, else none so that a thread is started
+	 * for each connection
+	 *
+	 * @return the executor, null to start a thread for each connection
+	 */
+	public static ExecutorService newConnectionExecutor() {
+		return newVirtualThreadExecutor();
+	}
+
+	/**
+	 * gets an executor starting a virtual thread for each task
+	 *
+	 * @return the executor, null if virtual threads are not available
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * gets a bounded pool of daemon threads, rejecting
+	 * the tasks when all the threads are busy and the queue is full,
+	 * for one-shot connections only, see the class comment
+	 *
+	 * @param threads maximum number of threads
+	 * @param queueSize number of tasks waiting for a thread
+	 * @return the executor
+	 */
+	public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DrinViewer-connection-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		// idle threads go away, the desktop is quiet most of the time
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private ConnectionExecutors() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ObjectInputStream;
+import java.lang.reflect.Method;
+
+/**
+ * limits protecting the TCP listeners from stalled or
+ * hostile clients, 0 means no limit for every value.
+ *
+ * The handshake timeout is the time a new connection has to send
+ * its first line, or the persistent connection magic. The read
+ * timeout is the time it has to send the rest of a request, or of a
+ * frame once it has started sending it. These are deadlines, not the
+ * time allowed between two reads, so that a client cannot hold a
+ * connection sending a byte at a time.
+ *
+ * The limits are read when the connections are accepted and when
+ * the requests are read, so changing them affects new requests only.
+ *
+ * @author giorgio
+ *
+ */
+public class ConnectionLimits {
+	private volatile int handshakeTimeout = DesktopDrinViewerConstants.HANDSHAKE_TIMEOUT;
+	private volatile int readTimeout = DesktopDrinViewerConstants.READ_TIMEOUT;
+	private volatile int maxConnections = DesktopDrinViewerConstants.MAX_CONNECTIONS;
+	private volatile int maxConnectionsPerAddress = DesktopDrinViewerConstants.MAX_CONNECTIONS_PER_ADDRESS;
+	private volatile int maxFrameSize = DesktopDrinViewerConstants.MAX_FRAME_SIZE;
+
+	/**
+	 * gets limits with no limit at all, as the listeners had before
+	 *
+	 * @return the limits
+	 */
+	public static ConnectionLimits none() {
+		ConnectionLimits limits = new ConnectionLimits();
+		limits.setHandshakeTimeout(0);
+		limits.setReadTimeout(0);
+		limits.setMaxConnections(0);
+		limits.setMaxConnectionsPerAddress(0);
+		limits.setMaxFrameSize(0);
+		return limits;
+	}
+
+	/**
+	 * @return the millis a new connection has to send its first line
+	 */
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * @param handshakeTimeout the millis a new connection has to send its first line
+	 */
+	public void setHandshakeTimeout(int handshakeTimeout) {
+		this.handshakeTimeout = Math.max(0, handshakeTimeout);
+	}
+
+	/**
+	 * @return the millis a connection has to complete a request or frame
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param readTimeout the millis a connection has to complete a request or frame
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = Math.max(0, readTimeout);
+	}
+
+	/**
+	 * @return the max number of open connections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections the max number of open connections
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(0, maxConnections);
+	}
+
+	/**
+	 * @return the max number of open connections from a single address
+	 */
+	public int getMaxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
+	}
+
+	/**
+	 * @param maxConnectionsPerAddress the max number of open connections from a single address
+	 */
+	public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+		this.maxConnectionsPerAddress = Math.max(0, maxConnectionsPerAddress);
+	}
+
+	/**
+	 * @return the max bytes of a request or frame, image included
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * @param maxFrameSize the max bytes of a request or frame, image included
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = Math.max(0, maxFrameSize);
+	}
+
+	/**
+	 * gets the max frame size to be checked against
+	 *
+	 * @return the max frame size, Integer.MAX_VALUE if there's no limit
+	 */
+	int frameSizeLimit() {
+		return (maxFrameSize > 0) ? maxFrameSize : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * limits the length of the arrays a serialized event can hold,
+	 * so that a forged length cannot make the stream allocate them.
+	 * Serialization filters came with Java 9 and are looked up by
+	 * reflection, nothing is done on older JDKs
+	 *
+	 * @param in the stream the event is going to be read from
+	 */
+	void applyTo(ObjectInputStream in) {
+		if (maxFrameSize <= 0) return;
+		try {
+			Class<?> filterClass = Class.forName("java.io.ObjectInputFilter");
+			Method createFilter = Class.forName("java.io.ObjectInputFilter$Config").getMethod("createFilter", String.class);
+			Object filter = createFilter.invoke(null, "maxarray=" + maxFrameSize);
+			ObjectInputStream.class.getMethod("setObjectInputFilter", filterClass).invoke(in, filter);
+		} catch (Exception e) {
+			// no serialization filters, or one has been set for the whole JVM
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("handshakeTimeout=%dms, readTimeout=%dms, maxConnections=%d, maxConnectionsPerAddress=%d, maxFrameSize=%d",
+				handshakeTimeout, readTimeout, maxConnections, maxConnectionsPerAddress, maxFrameSize);
+	}
+}
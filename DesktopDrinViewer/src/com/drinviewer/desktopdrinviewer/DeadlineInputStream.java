@@ -0,0 +1,167 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * socket input stream enforcing a deadline and a max number of bytes
+ * on what is being read, so that a stalled client or one sending a byte
+ * at a time cannot hold the connection, and a huge request is refused
+ * before it is buffered.
+ *
+ * The socket timeout is set before every read hitting the socket to
+ * the time left before the deadline.
+ *
+ * @author giorgio
+ *
+ */
+class DeadlineInputStream extends FilterInputStream {
+	private final Socket socket;
+
+	/**
+	 * when the current read must be done, in millis, 0 for no deadline
+	 *
+	 */
+	private long deadline = 0;
+
+	/**
+	 * socket timeout when there's no deadline
+	 *
+	 */
+	private int idleTimeout = 0;
+
+	/**
+	 * bytes that can still be read
+	 *
+	 */
+	private long remaining = Long.MAX_VALUE;
+	private long markRemaining = Long.MAX_VALUE;
+
+	/**
+	 * the timeout last set on the socket
+	 *
+	 */
+	private int socketTimeout = -1;
+
+	/**
+	 * @param in the stream to read from, on top of the socket stream
+	 * @param socket the socket whose timeout is set
+	 */
+	DeadlineInputStream(InputStream in, Socket socket) {
+		super(in);
+		this.socket = socket;
+	}
+
+	/**
+	 * sets the deadline of what is going to be read
+	 *
+	 * @param timeout millis from now, 0 for no deadline
+	 */
+	void setDeadline(int timeout) {
+		deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+	}
+
+	/**
+	 * sets the max number of bytes that can be read from now
+	 *
+	 * @param maxBytes the bytes, 0 for no limit
+	 */
+	void setLimit(long maxBytes) {
+		remaining = (maxBytes > 0) ? maxBytes : Long.MAX_VALUE;
+	}
+
+	/**
+	 * removes deadline and limit, and waits at most the passed time for
+	 * the next byte, as a persistent connection does between two frames
+	 *
+	 * @param timeout the socket timeout, 0 to wait forever
+	 */
+	void idle(int timeout) {
+		deadline = 0;
+		idleTimeout = timeout;
+		remaining = Long.MAX_VALUE;
+	}
+
+	@Override
+	public int read() throws IOException {
+		prepare();
+		int b = in.read();
+		if (b >= 0) remaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		prepare();
+		int read = in.read(b, off, (int) Math.min(len, remaining));
+		if (read > 0) remaining -= read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) return 0;
+		prepare();
+		long skipped = in.skip(Math.min(n, remaining));
+		if (skipped > 0) remaining -= skipped;
+		return skipped;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		in.mark(readlimit);
+		markRemaining = remaining;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		in.reset();
+		remaining = markRemaining;
+	}
+
+	/**
+	 * checks the limit and the deadline, and sets the
+	 * socket timeout if the next read is going to block
+	 *
+	 * @throws IOException if the limit has been reached or the deadline has passed
+	 */
+	private void prepare() throws IOException {
+		if (remaining <= 0) throw new StreamCorruptedException("Request too long");
+
+		int timeout = idleTimeout;
+		if (deadline != 0) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) throw new SocketTimeoutException("Deadline expired");
+			timeout = (int) left;
+		}
+		if (timeout != socketTimeout && in.available() == 0) {
+			socket.setSoTimeout(timeout);
+			socketTimeout = timeout;
+		}
+	}
+}
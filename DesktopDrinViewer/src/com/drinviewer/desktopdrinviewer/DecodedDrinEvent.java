@@ -0,0 +1,57 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import org.eclipse.swt.graphics.ImageData;
+
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * an IncomingDrinEvent whose image has been decoded and scaled
+ * by the PopupImageDecoder, ready to be shown by the UI thread.
+ * The encoded image is not kept, only its hash.
+ *
+ * @author giorgio
+ *
+ */
+public class DecodedDrinEvent extends IncomingDrinEvent {
+
+	private static final long serialVersionUID = -2101447019517253196L;
+
+	/**
+	 * the scaled image, null to show the default icon
+	 */
+	public final transient ImageData image;
+
+	/**
+	 * Instantiate the class
+	 *
+	 * @param event the event the image has been decoded for
+	 * @param image the scaled image, null to show the default icon
+	 * @param imageHash the hash of the encoded image, null if image is null
+	 */
+	public DecodedDrinEvent(IncomingDrinEvent event, ImageData image, String imageHash) {
+		super(event.getSource(), event.title, event.message, event.action);
+		this.image = image;
+		this.imageHash = imageHash;
+		this.stageTimes = event.stageTimes;
+	}
+}
@@ -49,6 +49,53 @@ public class DesktopDrinViewerConstants extends Constants {
 	 public static final String PREFS_TEXTFONTSTYLE = "TextFontStyle";
 	 // preferences string to tell if donotditrub mode is on or off
 	 public static final String PREFS_DONOTDISTURB = "donotdisturb";
+	 // preferences string to tell if the non blocking TCP listener must be used
+	 public static final String PREFS_NONBLOCKING = "nonBlockingServer";
+	 // preferences string to get the max number of popups shown at once
+	 public static final String PREFS_MAX_POPUPS = "maxPopups";
+	 
+	 // DISCOVER requests per second allowed from a single address and burst size
+	 public static final double DISCOVER_ADDRESS_RATE = 5;
+	 public static final int    DISCOVER_ADDRESS_BURST = 10;
+	 // DISCOVER requests per second allowed from a single device uuid and burst size
+	 public static final double DISCOVER_UUID_RATE = 2;
+	 public static final int    DISCOVER_UUID_BURST = 5;
+	 // number of recent DISCOVER sources tracked by the rate limiters
+	 public static final int    DISCOVER_MAX_SOURCES = 256;
+	 
+	 // number of incoming events waiting to be dispatched to the listeners
+	 public static final int    EVENT_QUEUE_SIZE = 1024;
+	 // millis an event waits for room in the full queue, if a listener holds it back
+	 public static final int    PUBLISH_TIMEOUT = 1000;
+	 // number of events waiting for a single listener before it's a slow consumer
+	 public static final int    LISTENER_QUEUE_SIZE = 16;
+	 // default max number of popups shown at once, the "+N more" summary excluded
+	 public static final int    MAX_POPUPS = 5;
+	 // max number of popups waiting to be shown, beyond that they're only counted
+	 public static final int    MAX_WAITING_POPUPS = 64;
+	 // seconds of the rolling window of the connections error rate
+	 public static final int    ERROR_RATE_WINDOW = 60;
+	 // millis between two writings of the server metrics file
+	 public static final int    METRICS_INTERVAL = 60000;
+	 // millis the queued database writes have to complete when it's closed
+	 public static final int    DB_CLOSE_TIMEOUT = 5000;
+	 
+	 // millis a new TCP connection has to send its first line
+	 public static final int    HANDSHAKE_TIMEOUT = 5000;
+	 // millis a TCP connection has to send the rest of a request, or a whole frame
+	 public static final int    READ_TIMEOUT = 10000;
+	 // max number of open TCP connections, overall and from a single address
+	 public static final int    MAX_CONNECTIONS = 256;
+	 public static final int    MAX_CONNECTIONS_PER_ADDRESS = 8;
+	 // max bytes of a single request or frame, image included
+	 public static final int    MAX_FRAME_SIZE = 4 * 1024 * 1024;
+	 
+	 // threads decoding the caller images, and images waiting for them
+	 public static final int    IMAGE_DECODER_THREADS = 2;
+	 public static final int    IMAGE_DECODER_QUEUE_SIZE = 32;
+	 // max bytes and pixels of a caller image, bigger ones are not shown
+	 public static final int    MAX_IMAGE_SIZE = 1024 * 1024;
+	 public static final int    MAX_IMAGE_PIXELS = 2048 * 2048;
 	 
 	 public static String getAppSaveDir()
 	 {
@@ -37,6 +37,8 @@ public class DesktopServer {
 	private BroadCastListener broadcastListener;
 	// the TCP listener object
 	protected ServerListener serverListener;
+	// the numbers of the listeners, for JMX clients and as plain text
+	private ServerMetrics metrics;
 	
 	// the thread running the broadcastListener
 	private Thread broadcastListenerThread;
@@ -45,19 +47,37 @@ public class DesktopServer {
 	
 	/**
 	 * instantiate the class setting a port to listen to
+	 * and the kind of TCP listener to be used
 	 * 
 	 * @param port
+	 * @param nonBlocking true to use the selector based TCP listener,
+	 *        false to use a thread for each connection
 	 */
-	public DesktopServer(int port) {
+	public DesktopServer(int port, boolean nonBlocking) {
 		this.port = port;		
+		// load the paired devices once, before answering any request
+		PairingRegistry.getInstance();
 		// get the Singleton instance of the BroadCastListener class
 		broadcastListener = BroadCastListener.getInstance();
 		// set the port (unnecessary if using the default)
 		if (Constants.PORT != this.port) broadcastListener.listenOnPort(this.port);
 		// instantiate a new TCP listener
-		serverListener = new ServerListener();
+		serverListener = (nonBlocking) ? new NioServerListener() : new ServerListener();
+		serverListener.setImageCache(ImageCache.getInstance());
+		// run the connections of the blocking listener on virtual threads, or on a thread each
+		if (!nonBlocking) serverListener.setConnectionExecutor(ConnectionExecutors.newConnectionExecutor());
 		// set the port (unnecessary if using the default)
 		if (Constants.PORT != this.port) serverListener.listenOnPort(port);
+		metrics = new ServerMetrics(broadcastListener, serverListener);
+	}
+
+	/**
+	 * instantiate the class setting a port to listen to
+	 * 
+	 * @param port
+	 */
+	public DesktopServer(int port) {
+		this (port, false);
 	}
 
 	/**
@@ -76,6 +96,16 @@ public class DesktopServer {
 		return broadcastListener.isRunning() && serverListener.isListening();
 	}
 	
+	/**
+	 * gets the metrics of the server, to be registered
+	 * in the platform MBean server or written as plain text
+	 * 
+	 * @return the server metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * starts the server
 	 * Throws the exception if cannot bind so
@@ -142,6 +172,27 @@ public class DesktopServer {
 		broadcastListener.setDoNotDisturbMode(mode);
 	}
 	
+	/**
+	 * sets the limits protecting the TCP listener from stalled or
+	 * hostile devices: handshake and read deadlines, caps on the
+	 * connections from a single address and overall and the max
+	 * size of a request or frame
+	 * 
+	 * @param limits the limits, ConnectionLimits.none() for no limits
+	 */
+	public void setConnectionLimits(ConnectionLimits limits) {
+		serverListener.setConnectionLimits(limits);
+	}
+	
+	/**
+	 * gets the limits of the TCP listener
+	 * 
+	 * @return the connection limits
+	 */
+	public ConnectionLimits getConnectionLimits() {
+		return serverListener.getConnectionLimits();
+	}
+	
 	/**
 	 * adds a listener for the custom IncomingDrin event
 	 * 
@@ -150,4 +201,16 @@ public class DesktopServer {
 	public void addListener (IncomingDrinListener listener) {
 		serverListener.addIncomingDrinListener(listener);
 	}
+
+	/**
+	 * adds a listener for the custom IncomingDrin event, with its
+	 * own policy for when it cannot keep up with the events
+	 *
+	 * @param listener the IncomingDrinListener to be added
+	 * @param policy what to do when its mailbox is full
+	 * @param mailboxSize the events that can be waiting for it
+	 */
+	public void addListener (IncomingDrinListener listener, DrinEventBus.SlowConsumerPolicy policy, int mailboxSize) {
+		serverListener.getEventBus().addListener(listener, policy, mailboxSize);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,524 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * asynchronous dispatch of the IncomingDrinEvent from the network
+ * threads to the IncomingDrinListener.
+ *
+ * The network threads put the events in a bounded queue and return
+ * straight away, a dispatcher thread moves them to a small mailbox
+ * for each listener and every listener is called on its own thread,
+ * so that a slow listener does not delay the others.
+ * When a listener mailbox is full the listener is a slow consumer
+ * and its SlowConsumerPolicy tells what to do with the new event.
+ * A REMOVE_POPUP is never dropped, whatever the policy: it goes in
+ * a full mailbox anyway, unless the same one is already pending,
+ * otherwise its popup would stay on the screen. The bus queue keeps
+ * some room for them too, that the other events cannot take.
+ *
+ * The threads are stopped by shutdown() and started again, with the
+ * same listeners, by start(), as the server is stopped and started.
+ *
+ * @author giorgio
+ *
+ */
+public class DrinEventBus {
+	/**
+	 * what to do when a listener mailbox is full
+	 */
+	public enum SlowConsumerPolicy {
+		/**
+		 * the new event is dropped
+		 */
+		DROP,
+		/**
+		 * the new event is dropped, counted as coalesced if an equal
+		 * one is pending: the pending one keeps its place, so that
+		 * the events are never reordered
+		 */
+		COALESCE,
+		/**
+		 * the dispatcher waits for room in the mailbox, holding back
+		 * the other listeners and then the publishers: once the bus
+		 * queue is full they wait up to PUBLISH_TIMEOUT for room, and
+		 * the event is rejected only then. For the sinks that must not
+		 * lose events, e.g. a log, as long as they are slow rather than
+		 * stuck: a device sends a rejected event once more, if it asks
+		 * for an acknowledgement
+		 */
+		BLOCK
+	}
+
+	/**
+	 * room of the queue kept for the REMOVE_POPUP events
+	 */
+	private static final int REMOVE_POPUP_ROOM = 64;
+
+	/**
+	 * the events published and not yet dispatched
+	 *
+	 */
+	private final BlockingQueue<Envelope> queue;
+
+	/**
+	 * room of the queue, a permit is taken when an event is published
+	 * and given back when it's dispatched: the REMOVE_POPUP take one of
+	 * removeRoom when there's no room left
+	 *
+	 */
+	private final Semaphore room;
+	private final Semaphore removeRoom = new Semaphore(REMOVE_POPUP_ROOM);
+
+	/**
+	 * the listeners, the network threads never lock to read them
+	 *
+	 */
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * the thread moving the events to the listeners mailboxes, null once stopped
+	 *
+	 */
+	private volatile Thread dispatcher;
+
+	/**
+	 * number of listeners with SlowConsumerPolicy.BLOCK
+	 *
+	 */
+	private volatile int blockingListeners = 0;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * instantiates the bus and starts its dispatcher thread
+	 *
+	 * @param capacity number of events the queue can hold
+	 */
+	public DrinEventBus(int capacity) {
+		queue = new ArrayBlockingQueue<Envelope>(capacity + REMOVE_POPUP_ROOM);
+		room = new Semaphore(capacity);
+		start();
+	}
+
+	/**
+	 * starts the dispatcher and the listeners threads, if they are not running
+	 */
+	public synchronized void start() {
+		if (dispatcher != null) return;
+		dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "DrinViewer-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		for (Subscription subscription : subscriptions) subscription.start();
+	}
+
+	/**
+	 * adds a listener coalescing its events when it's slow
+	 *
+	 * @param listener the listener to be added
+	 */
+	public void addListener(IncomingDrinListener listener) {
+		addListener(listener, SlowConsumerPolicy.COALESCE, DesktopDrinViewerConstants.LISTENER_QUEUE_SIZE);
+	}
+
+	/**
+	 * adds a listener
+	 *
+	 * @param listener the listener to be added
+	 * @param policy what to do when the listener is slow
+	 * @param mailboxSize number of events waiting for the listener before it's slow
+	 */
+	public void addListener(IncomingDrinListener listener, SlowConsumerPolicy policy, int mailboxSize) {
+		Subscription subscription = new Subscription(listener, policy, mailboxSize);
+		synchronized (this) {
+			subscriptions.add(subscription);
+			if (policy == SlowConsumerPolicy.BLOCK) blockingListeners++;
+			if (dispatcher != null) subscription.start();
+		}
+	}
+
+	/**
+	 * removes a listener, the events waiting for it are discarded
+	 *
+	 * @param listener the listener to be removed
+	 */
+	public synchronized void removeListener(IncomingDrinListener listener) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.listener == listener) {
+				subscriptions.remove(subscription);
+				if (subscription.policy == SlowConsumerPolicy.BLOCK) blockingListeners--;
+				subscription.stop();
+			}
+		}
+	}
+
+	/**
+	 * publishes an event. It never blocks unless the queue is full and
+	 * there is a listener with SlowConsumerPolicy.BLOCK, or the room kept
+	 * for the REMOVE_POPUP is full too: it waits then up to PUBLISH_TIMEOUT
+	 * for room
+	 *
+	 * @param event the event to be published
+	 * @return false if the queue is full and the event has been rejected
+	 */
+	public boolean publish(IncomingDrinEvent event) {
+		long now = System.nanoTime();
+		Semaphore permit = room;
+		boolean accepted = room.tryAcquire();
+		try {
+			if (!accepted && event.action == Constants.REMOVE_POPUP) {
+				permit = removeRoom;
+				accepted = removeRoom.tryAcquire(DesktopDrinViewerConstants.PUBLISH_TIMEOUT, TimeUnit.MILLISECONDS);
+			} else if (!accepted && blockingListeners > 0) {
+				accepted = room.tryAcquire(DesktopDrinViewerConstants.PUBLISH_TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (accepted) {
+			// there's always room in the queue for an event holding a permit
+			queue.add(new Envelope(event, now, permit));
+			published.incrementAndGet();
+			return true;
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * stops the dispatcher and the listeners threads, the events
+	 * waiting are dispatched if the threads are started again
+	 */
+	public synchronized void shutdown() {
+		Thread stopped = dispatcher;
+		if (stopped == null) return;
+		dispatcher = null;
+		stopped.interrupt();
+		for (Subscription subscription : subscriptions) subscription.stop();
+	}
+
+	/**
+	 * gets the number of events waiting to be dispatched
+	 *
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * gets the number of events published
+	 *
+	 * @return the published events
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * gets the number of events rejected because the queue was full
+	 *
+	 * @return the rejected events
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * gets the listeners subscriptions, to read their metrics
+	 *
+	 * @return the subscriptions
+	 */
+	public List<Subscription> getSubscriptions() {
+		return Collections.<Subscription>unmodifiableList(subscriptions);
+	}
+
+	/**
+	 * dispatcher thread loop, moves every event
+	 * to the mailboxes of all the listeners
+	 */
+	private void dispatch() {
+		while (dispatcher == Thread.currentThread()) {
+			try {
+				Envelope envelope = queue.take();
+				envelope.permit.release();
+				envelope.event.stamp(IncomingDrinEvent.STAGE_DISPATCH);
+				for (Subscription subscription : subscriptions) {
+					subscription.deliver(envelope);
+				}
+			} catch (InterruptedException e) {
+				// shutdown() has been called
+			}
+		}
+	}
+
+	/**
+	 * an event together with its publishing time
+	 */
+	private static class Envelope {
+		private final IncomingDrinEvent event;
+		private final long publishedAt;
+		// the room it has taken a permit of
+		private final Semaphore permit;
+
+		private Envelope(IncomingDrinEvent event, long publishedAt, Semaphore permit) {
+			this.event = event;
+			this.publishedAt = publishedAt;
+			this.permit = permit;
+		}
+
+		/**
+		 * tells if the passed envelope holds an event equal to this one
+		 *
+		 * @param other the envelope to be compared
+		 * @return true if the events have same action, title and message
+		 */
+		private boolean sameEvent(Envelope other) {
+			return event.action == other.event.action &&
+					(event.title == null ? other.event.title == null : event.title.equals(other.event.title)) &&
+					(event.message == null ? other.event.message == null : event.message.equals(other.event.message));
+		}
+	}
+
+	/**
+	 * a listener, with its mailbox, thread and metrics
+	 *
+	 * @author giorgio
+	 *
+	 */
+	public static class Subscription implements Runnable {
+		private final IncomingDrinListener listener;
+		private final SlowConsumerPolicy policy;
+		private final int mailboxSize;
+
+		/**
+		 * events waiting for the listener, guarded by itself
+		 *
+		 */
+		private final ArrayDeque<Envelope> mailbox;
+
+		/**
+		 * the thread calling the listener, null once stopped
+		 *
+		 */
+		private volatile Thread thread;
+
+		private final AtomicLong delivered = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		private final AtomicLong coalesced = new AtomicLong();
+		private final AtomicLong totalLatency = new AtomicLong();
+		private volatile long maxLatency = 0;
+
+		private Subscription(IncomingDrinListener listener, SlowConsumerPolicy policy, int mailboxSize) {
+			this.listener = listener;
+			this.policy = policy;
+			this.mailboxSize = Math.max(1, mailboxSize);
+			this.mailbox = new ArrayDeque<Envelope>(this.mailboxSize);
+		}
+
+		private void start() {
+			Thread started = new Thread(this, "DrinViewer-listener-" + listener.getClass().getName());
+			started.setDaemon(true);
+			thread = started;
+			started.start();
+		}
+
+		private void stop() {
+			Thread stopped = thread;
+			thread = null;
+			// wakes the dispatcher up if it's waiting for room
+			synchronized (mailbox) {
+				mailbox.notifyAll();
+			}
+			if (stopped != null) stopped.interrupt();
+		}
+
+		/**
+		 * puts an event in the mailbox, applying the
+		 * policy if the listener is a slow consumer
+		 *
+		 * @param envelope the event to be delivered
+		 * @throws InterruptedException if the dispatcher is stopped while waiting for room
+		 */
+		private void deliver(Envelope envelope) throws InterruptedException {
+			synchronized (mailbox) {
+				if (mailbox.size() >= mailboxSize) {
+					if (policy == SlowConsumerPolicy.BLOCK) {
+						while (thread != null && mailbox.size() >= mailboxSize) mailbox.wait();
+						if (thread == null) return;
+					} else if (envelope.event.action == Constants.REMOVE_POPUP) {
+						// never dropped, but the same REMOVE is pending only once
+						if (isPending(envelope)) {
+							coalesced.incrementAndGet();
+							return;
+						}
+					} else if (policy == SlowConsumerPolicy.COALESCE && isPending(envelope)) {
+						coalesced.incrementAndGet();
+						return;
+					} else {
+						dropped.incrementAndGet();
+						return;
+					}
+				}
+				mailbox.add(envelope);
+				mailbox.notifyAll();
+			}
+		}
+
+		/**
+		 * tells if an event equal to the passed one is in the mailbox,
+		 * to be called holding the mailbox lock
+		 *
+		 * @param envelope the event to be looked for
+		 * @return true if it's pending
+		 */
+		private boolean isPending(Envelope envelope) {
+			for (Envelope pending : mailbox) {
+				if (pending.sameEvent(envelope)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * listener thread loop, calls the listener for every event in the mailbox
+		 */
+		@Override
+		public void run() {
+			while (thread == Thread.currentThread()) {
+				Envelope envelope;
+				try {
+					synchronized (mailbox) {
+						while (mailbox.isEmpty()) mailbox.wait();
+						envelope = mailbox.poll();
+						// wakes the dispatcher up if it's waiting for room
+						mailbox.notifyAll();
+					}
+				} catch (InterruptedException e) {
+					// stop() has been called
+					continue;
+				}
+
+				try {
+					listener.handleDrin(envelope.event);
+				} catch (RuntimeException e) {
+					// a failing listener must not stop the others
+					e.printStackTrace();
+				}
+
+				long latency = System.nanoTime() - envelope.publishedAt;
+				delivered.incrementAndGet();
+				totalLatency.addAndGet(latency);
+				if (latency > maxLatency) maxLatency = latency;
+			}
+		}
+
+		/**
+		 * gets the listener
+		 *
+		 * @return the listener
+		 */
+		public IncomingDrinListener getListener() {
+			return listener;
+		}
+
+		/**
+		 * gets the number of events waiting for the listener
+		 *
+		 * @return the mailbox depth
+		 */
+		public int getQueueDepth() {
+			synchronized (mailbox) {
+				return mailbox.size();
+			}
+		}
+
+		/**
+		 * gets the number of events handled by the listener
+		 *
+		 * @return the delivered events
+		 */
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		/**
+		 * gets the number of events dropped because the listener was slow
+		 *
+		 * @return the dropped events
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * gets the number of events coalesced because the listener was slow
+		 *
+		 * @return the coalesced events
+		 */
+		public long getCoalesced() {
+			return coalesced.get();
+		}
+
+		/**
+		 * gets the mean time from publishing to the listener having handled the event
+		 *
+		 * @return the mean latency in nanoseconds
+		 */
+		public long getMeanLatency() {
+			long count = delivered.get();
+			return (count > 0) ? totalLatency.get() / count : 0;
+		}
+
+		/**
+		 * gets the longest time from publishing to the listener having handled an event
+		 *
+		 * @return the max latency in nanoseconds
+		 */
+		public long getMaxLatency() {
+			return maxLatency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s [policy=%s, depth=%d, delivered=%d, dropped=%d, coalesced=%d, meanLatency=%dns, maxLatency=%dns]",
+					listener.getClass().getName(), policy, getQueueDepth(), getDelivered(), getDropped(), getCoalesced(), getMeanLatency(), getMaxLatency());
+		}
+	}
+}
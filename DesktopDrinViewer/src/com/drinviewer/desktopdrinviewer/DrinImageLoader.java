@@ -62,27 +62,49 @@ public class DrinImageLoader extends ImageLoader {
 		load (is);
 	}
 	
+	/**
+	 * gets the first loaded frame proportionally scaled and encoded as PNG,
+	 * the other frames are not scaled as a PNG holds only one
+	 * 
+	 * @param longestSidePx the length of the longest side of the scaled frame
+	 * @return the PNG bytes, null if nothing has been loaded
+	 */
 	public byte[] getScaled (int longestSidePx) {
-		
-		ImageData[] imageData = null;
-		
-		if (data.length > 0) {
-			imageData = new ImageData[data.length];
-			for (int i=0; i < data.length; i++) {
-				
-			    // return the image proportionally scaled, having the longest side to longestSidePx
-			    if (data[i].height>=data[i].width)
-			    	imageData[i] = data[i].scaledTo((int) ((float)data[i].width / (float)data[i].height * longestSidePx), longestSidePx);
-			    else
-			    	imageData[i] = data[i].scaledTo(longestSidePx,(int) ((float)data[i].height / (float)data[i].width * longestSidePx));
-			}
-		}
+		ImageData frame = getScaledFrame(longestSidePx);
+		if (frame == null) return null;
 		
 		ImageLoader temp = new ImageLoader();
-		temp.data = imageData;
+		temp.data = new ImageData[] { frame };
 		
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		temp.save(out, SWT.IMAGE_PNG);
 		return out.toByteArray();
 	}
+	
+	/**
+	 * gets the first loaded frame proportionally scaled, without
+	 * encoding it, ready to build an Image out of it
+	 * 
+	 * @param longestSidePx the length of the longest side of the scaled frame
+	 * @return the scaled frame, null if nothing has been loaded
+	 */
+	public ImageData getScaledFrame (int longestSidePx) {
+		if (data == null || data.length == 0) return null;
+		return scale(data[0], longestSidePx);
+	}
+	
+	/**
+	 * scales a frame proportionally, having the longest side to longestSidePx:
+	 * averaging its pixels if it gets smaller, with ImageData.scaledTo if it gets bigger
+	 * 
+	 * @param frame the frame to be scaled
+	 * @param longestSidePx the length of the longest side of the scaled frame
+	 * @return the scaled frame, the passed one if it has the right size already
+	 */
+	public static ImageData scale (ImageData frame, int longestSidePx) {
+		int[] size = AreaAveragingScaler.fit(frame.width, frame.height, longestSidePx);
+		if (size[0] == frame.width && size[1] == frame.height) return frame;
+		if (size[0] <= frame.width && size[1] <= frame.height) return AreaAveragingScaler.scale(frame, size[0], size[1]);
+		return frame.scaledTo(size[0], size[1]);
+	}
 }
@@ -20,19 +20,21 @@
 
 package com.drinviewer.desktopdrinviewer;
 
+import java.io.IOException;
 import java.net.BindException;
 import java.text.MessageFormat;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executor;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 import org.eclipse.swt.SWT;
-import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.FontData;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.FontDialog;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Menu;
@@ -43,7 +45,6 @@ import org.eclipse.swt.widgets.Tray;
 import org.eclipse.swt.widgets.TrayItem;
 
 import com.drinviewer.common.Constants;
-import com.drinviewer.common.IncomingDrinEvent;
 
 /**
  * DrinViewer main method
@@ -86,6 +87,7 @@ public class DrinViewer {
 		
 		boolean serverWasRunning = prefs.getBoolean(DesktopDrinViewerConstants.PREFS_SERVER, true);
 		boolean doNotDisturbMode = prefs.getBoolean(DesktopDrinViewerConstants.PREFS_DONOTDISTURB, false);
+		boolean nonBlockingServer = prefs.getBoolean(DesktopDrinViewerConstants.PREFS_NONBLOCKING, false);
 		
 		Display.setAppName(Constants.APPNAME);
 		Display.setAppVersion(Constants.APPVERSION);		
@@ -143,7 +145,7 @@ public class DrinViewer {
 		/**
 		 * THE SERVER OBJECT
 		 */
-		final DesktopServer ds = new DesktopServer();
+		final DesktopServer ds = new DesktopServer(port, nonBlockingServer);
 		try {
 			if (serverWasRunning) ds.startServer();
 		} catch (BindException e) {
@@ -157,24 +159,39 @@ public class DrinViewer {
 		
 		/**
 		 * add the DesktopServer event listener, this
-		 * actually cause the popup to be displayed
+		 * actually cause the popup to be displayed,
+		 * through a queue keeping bursts of events at bay
+		 * and a decoder scaling the caller images off the UI thread
 		 */
-		ds.addListener(new IncomingDrinListener() {
+		NotificationQueue notificationQueue = new NotificationQueue(ndlg, new Executor() {
 			@Override
-			public void handleDrin(final IncomingDrinEvent event) {
-				display.asyncExec(new Runnable() {
-				    public void run() {
-				    	if (event.action == Constants.SHOW_POPUP) {
-				    		ndlg.notify(event.title, event.message, event.imageData, false);
-				    	} else if (event.action == Constants.SHOW_PAIRED) {
-				    		ndlg.notify(event.title, event.message, event.imageData, true);
-				    	} else if (event.action == Constants.REMOVE_POPUP) {
-				    		ndlg.removeNotify(event.title, event.message);
-				    	}
-				    }
-				});
+			public void execute(Runnable command) {
+				display.asyncExec(command);
+			}
+		}, prefs.getInt(DesktopDrinViewerConstants.PREFS_MAX_POPUPS, DesktopDrinViewerConstants.MAX_POPUPS),
+		DesktopDrinViewerConstants.MAX_WAITING_POPUPS);
+		PopupImageDecoder imageDecoder = new PopupImageDecoder(notificationQueue);
+		ds.addListener(imageDecoder);
+		
+		/**
+		 * the latency of each stage of the shown events,
+		 * readable by jconsole and saved from the tray menu
+		 */
+		final LatencyHistograms latency = new LatencyHistograms();
+		latency.register();
+		notificationQueue.setLatencyHistograms(latency);
+		
+		/**
+		 * the server numbers, readable by jconsole and saved from the tray menu
+		 */
+		final ServerMetrics metrics = ds.getMetrics();
+		metrics.setActivePopups(new ServerMetrics.Gauge() {
+			@Override
+			public int get() {
+				return ndlg.getLivePopups();
 			}
 		});
+		metrics.register();
 		
 		if (tray == null) {
 			System.out.println(DesktopDrinViewerConstants.i18nMessages.getString("trayerror"));
@@ -370,6 +387,52 @@ public class DrinViewer {
 				}
 			});
 			
+			/**
+			 * save latency report menu item
+			 */
+			MenuItem saveLatency = new MenuItem(menu, SWT.PUSH);
+			saveLatency.setText(DesktopDrinViewerConstants.i18nMessages.getString("savelatency"));
+			saveLatency.addListener(SWT.Selection, new Listener() {
+				@Override
+				public void handleEvent(Event event) {
+					FileDialog fd = new FileDialog(shell, SWT.SAVE);
+					fd.setText(DesktopDrinViewerConstants.i18nMessages.getString("savelatency"));
+					fd.setFileName("drinviewer-latency.txt");
+					fd.setOverwrite(true);
+					String path = fd.open();
+					if (path != null) {
+						try {
+							latency.dumpTo(path);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+			
+			/**
+			 * save server metrics menu item
+			 */
+			MenuItem saveMetrics = new MenuItem(menu, SWT.PUSH);
+			saveMetrics.setText(DesktopDrinViewerConstants.i18nMessages.getString("savemetrics"));
+			saveMetrics.addListener(SWT.Selection, new Listener() {
+				@Override
+				public void handleEvent(Event event) {
+					FileDialog fd = new FileDialog(shell, SWT.SAVE);
+					fd.setText(DesktopDrinViewerConstants.i18nMessages.getString("savemetrics"));
+					fd.setFileName("drinviewer-metrics.txt");
+					fd.setOverwrite(true);
+					String path = fd.open();
+					if (path != null) {
+						try {
+							metrics.dumpTo(path);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+			
 			// separator before website and exit menu item
 			new MenuItem(menu, SWT.SEPARATOR);
 			
@@ -407,6 +470,8 @@ public class DrinViewer {
 			item.setHighlightImage(highlightImage);
 		}
 
+		System.out.println(StartupReport.describe("tray", port));
+
 		/**
 		 * wait for something to happen till the shell is there
 		 */
@@ -418,10 +483,16 @@ public class DrinViewer {
 		/**
 		 * dispose unneeded stuff
 		 */
+		imageDecoder.close();
+		latency.unregister();
+		metrics.unregister();
+		ndlg.dispose();
 		highlightImage.dispose();
 		normalImage.dispose();
 		disabledImage.dispose();
 		display.dispose();
+		// close the database, checkpointing its write ahead log
+		ServerDBManager.getInstance().close();
 	}
 	
 	/**
@@ -482,7 +553,8 @@ public class DrinViewer {
 		int fontSize = prefs.getInt(sizePref, fd.getHeight());
 		int fontStyle = prefs.getInt(stylePref, (isTitle) ? SWT.BOLD : fd.getStyle());
 
-		return (new Font(display, fontName, fontSize, fontStyle)).getFontData(); 
+		// no need to build a Font, and leak it, to get its FontData
+		return new FontData[] { new FontData(fontName, fontSize, fontStyle) };
 	}
 	
 	/**
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * DrinViewer without the user interface: runs the DesktopServer
+ * and hands the received events to some sinks, the JSON lines
+ * ones or any IncomingDrinListener. It does not load SWT, so
+ * it runs on headless boxes relaying or logging the calls.
+ *
+ * usage: HeadlessDrinViewer [port] [--nio] [--donotdisturb] [--stdout] [--file path]... [--metrics path]
+ *
+ * the events go to the standard output if no sink is given,
+ * and the startup report goes to the standard error.
+ * The server metrics are registered in the platform MBean server,
+ * and written to the metrics file every METRICS_INTERVAL if one is given.
+ *
+ * @author giorgio
+ *
+ */
+public class HeadlessDrinViewer {
+	/**
+	 * the server
+	 */
+	private final DesktopServer ds;
+
+	/**
+	 * the port the server listens to
+	 */
+	private final int port;
+
+	/**
+	 * the sinks the events are handed to
+	 */
+	private final List<IncomingDrinListener> sinks = new ArrayList<IncomingDrinListener>();
+
+	/**
+	 * the metrics file and what writes it, null if there's none
+	 */
+	private File metricsFile = null;
+	private Timer metricsWriter = null;
+
+	/**
+	 * released when the viewer has been stopped
+	 */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * instantiate the viewer
+	 *
+	 * @param port the port to listen to
+	 * @param nonBlocking true to use the selector based TCP listener
+	 */
+	public HeadlessDrinViewer(int port, boolean nonBlocking) {
+		this.port = port;
+		this.ds = new DesktopServer(port, nonBlocking);
+	}
+
+	/**
+	 * adds a sink, that's called for every received event on its
+	 * own thread. A slow sink holds the events back instead of losing
+	 * them, see DrinEventBus.SlowConsumerPolicy.BLOCK. The sinks that
+	 * are Closeable are closed when the viewer is stopped
+	 *
+	 * @param sink the sink to be added
+	 */
+	public void addSink(IncomingDrinListener sink) {
+		sinks.add(sink);
+		ds.addListener(sink, DrinEventBus.SlowConsumerPolicy.BLOCK, DesktopDrinViewerConstants.LISTENER_QUEUE_SIZE);
+	}
+
+	/**
+	 * sets the do not disturb mode, see DesktopServer
+	 *
+	 * @param mode true to not respond to unpaired devices
+	 */
+	public void setDoNotDisturbMode(boolean mode) {
+		ds.setDoNotDisturbMode(mode);
+	}
+
+	/**
+	 * gets the server, e.g. to set its limits
+	 *
+	 * @return the DesktopServer
+	 */
+	public DesktopServer getServer() {
+		return ds;
+	}
+
+	/**
+	 * writes the server metrics to a file every METRICS_INTERVAL
+	 * and when the viewer is stopped
+	 *
+	 * @param file the metrics file, rewritten every time
+	 */
+	public synchronized void writeMetricsTo(final File file) {
+		if (metricsWriter != null) metricsWriter.cancel();
+		metricsFile = file;
+		metricsWriter = new Timer("DrinViewer-metrics", true);
+		metricsWriter.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				writeMetrics(file);
+			}
+		}, DesktopDrinViewerConstants.METRICS_INTERVAL, DesktopDrinViewerConstants.METRICS_INTERVAL);
+	}
+
+	/**
+	 * starts the server and registers its metrics
+	 *
+	 * @throws BindException if the port is in use
+	 */
+	public void start() throws BindException {
+		ds.startServer();
+		ds.getMetrics().register();
+	}
+
+	/**
+	 * stops the server, closes the sinks and the database,
+	 * can be called more than once
+	 */
+	public synchronized void stop() {
+		if (stopped.getCount() == 0) return;
+		ds.stopServer();
+		if (metricsWriter != null) {
+			metricsWriter.cancel();
+			writeMetrics(metricsFile);
+		}
+		ds.getMetrics().unregister();
+		for (IncomingDrinListener sink : sinks) {
+			if (sink instanceof Closeable) {
+				try {
+					((Closeable) sink).close();
+				} catch (IOException e) {
+					System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				}
+			}
+		}
+		// close the database, checkpointing its write ahead log
+		ServerDBManager.getInstance().close();
+		stopped.countDown();
+	}
+
+	/**
+	 * writes the server metrics
+	 *
+	 * @param file the metrics file
+	 */
+	private void writeMetrics(File file) {
+		try {
+			ds.getMetrics().dumpTo(file);
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * waits for the viewer to be stopped
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitStop() throws InterruptedException {
+		stopped.await();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = Constants.PORT;
+		boolean nonBlocking = false;
+		boolean doNotDisturb = false;
+		File metricsFile = null;
+		List<IncomingDrinListener> sinks = new ArrayList<IncomingDrinListener>();
+
+		for (int i = 0; i < args.length; i++) {
+			if ("--nio".equals(args[i])) nonBlocking = true;
+			else if ("--donotdisturb".equals(args[i])) doNotDisturb = true;
+			else if ("--stdout".equals(args[i])) sinks.add(JsonLinesSink.toStandardOutput());
+			else if ("--file".equals(args[i]) && i + 1 < args.length) sinks.add(JsonLinesSink.toFile(new File(args[++i])));
+			else if ("--metrics".equals(args[i]) && i + 1 < args.length) metricsFile = new File(args[++i]);
+			else if (i == 0) port = Integer.parseInt(args[i]);
+			else {
+				System.err.println("usage: HeadlessDrinViewer [port] [--nio] [--donotdisturb] [--stdout] [--file path]... [--metrics path]");
+				System.exit(-1);
+			}
+		}
+		if (sinks.isEmpty()) sinks.add(JsonLinesSink.toStandardOutput());
+
+		final HeadlessDrinViewer viewer = new HeadlessDrinViewer(port, nonBlocking);
+		for (IncomingDrinListener sink : sinks) viewer.addSink(sink);
+		viewer.setDoNotDisturbMode(doNotDisturb);
+		if (metricsFile != null) viewer.writeMetricsTo(metricsFile);
+
+		try {
+			viewer.start();
+		} catch (BindException e) {
+			System.err.println(new MessageFormat(DesktopDrinViewerConstants.i18nMessages.getString("alreadyrunning"))
+					.format(new Object[] { Integer.toString(port) }));
+			System.exit(-1);
+		}
+
+		// stop on ctrl-c or kill
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				viewer.stop();
+			}
+		});
+
+		System.err.println(StartupReport.describe("headless", port));
+		// the server threads are daemons, keep the JVM alive
+		viewer.awaitStop();
+	}
+}
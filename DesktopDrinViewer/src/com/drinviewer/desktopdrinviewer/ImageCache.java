@@ -0,0 +1,337 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.drinviewer.common.DrinEventCodec;
+
+/**
+ * cache of the caller images sent by the devices, keyed by
+ * their DrinEventCodec.imageHash so that a device can send
+ * the hash alone when the image is already here.
+ *
+ * Images are kept both in memory and on disk, each one
+ * bounded in size and evicting the least recently used first.
+ *
+ * @author giorgio
+ *
+ */
+public class ImageCache {
+	/**
+	 * default size of the memory cache, in bytes
+	 */
+	public static final long MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+
+	/**
+	 * default size of the disk cache, in bytes
+	 */
+	public static final long DISK_CACHE_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * name of the disk cache directory inside the app save dir
+	 */
+	public static final String CACHE_DIRNAME = "imagecache";
+
+	/**
+	 * images in memory, least recently used first
+	 *
+	 */
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	/**
+	 * sizes of the images on disk, least recently used first
+	 *
+	 */
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/**
+	 * disk cache directory, null if the images are kept in memory only
+	 *
+	 */
+	private final File directory;
+
+	private final long maxMemorySize;
+	private final long maxDiskSize;
+	private long memorySize = 0;
+	private long diskSize = 0;
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * instantiates the cache
+	 *
+	 * @param directory the disk cache directory, null to keep the images in memory only
+	 * @param maxMemorySize size of the memory cache, in bytes
+	 * @param maxDiskSize size of the disk cache, in bytes
+	 */
+	public ImageCache(File directory, long maxMemorySize, long maxDiskSize) {
+		this.maxMemorySize = maxMemorySize;
+		this.maxDiskSize = maxDiskSize;
+
+		if (directory != null && (directory.isDirectory() || directory.mkdirs())) {
+			this.directory = directory;
+			loadDiskIndex();
+		} else {
+			this.directory = null;
+		}
+	}
+
+	/**
+	 * tells if the image is in the cache, counting the hit or miss
+	 *
+	 * @param hash the image hash
+	 * @return true if the image is in the cache
+	 */
+	public synchronized boolean contains(String hash) {
+		if (memory.containsKey(hash)) {
+			memoryHits.incrementAndGet();
+			return true;
+		} else if (disk.containsKey(hash)) {
+			diskHits.incrementAndGet();
+			return true;
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * gets an image out of the cache
+	 *
+	 * @param hash the image hash
+	 * @return the image, null if it's not in the cache
+	 */
+	public synchronized byte[] get(String hash) {
+		byte[] image = memory.get(hash);
+		if (image == null && disk.get(hash) != null) {
+			File file = new File(directory, hash);
+			try {
+				image = readFile(file);
+				file.setLastModified(System.currentTimeMillis());
+				putInMemory(hash, image);
+			} catch (IOException e) {
+				// lost from the disk
+				diskSize -= disk.remove(hash);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * puts an image in the cache
+	 *
+	 * @param hash the image hash, as computed by DrinEventCodec.imageHash
+	 * @param image the image
+	 */
+	public synchronized void put(String hash, byte[] image) {
+		if (!DrinEventCodec.isImageHash(hash)) return;
+
+		putInMemory(hash, image);
+
+		if (directory != null && !disk.containsKey(hash) && image.length <= maxDiskSize) {
+			File temp = new File(directory, hash + ".tmp");
+			try {
+				FileOutputStream fos = new FileOutputStream(temp);
+				try {
+					fos.write(image);
+				} finally {
+					fos.close();
+				}
+				if (temp.renameTo(new File(directory, hash))) {
+					disk.put(hash, (long) image.length);
+					diskSize += image.length;
+					evictFromDisk();
+				} else {
+					temp.delete();
+				}
+			} catch (IOException e) {
+				// it's a cache, the image stays in memory only
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * gets the number of lookups satisfied from memory
+	 *
+	 * @return the memory hits
+	 */
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	/**
+	 * gets the number of lookups satisfied from disk
+	 *
+	 * @return the disk hits
+	 */
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	/**
+	 * gets the number of lookups of images not in the cache
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * gets the fraction of lookups satisfied by the cache
+	 *
+	 * @return the hit rate, from 0 to 1
+	 */
+	public double getHitRate() {
+		long hits = getMemoryHits() + getDiskHits();
+		long lookups = hits + getMisses();
+		return (lookups > 0) ? (double) hits / lookups : 0;
+	}
+
+	/**
+	 * gets the bytes held in memory
+	 *
+	 * @return the memory cache size
+	 */
+	public synchronized long getMemorySize() {
+		return memorySize;
+	}
+
+	/**
+	 * gets the bytes held on disk
+	 *
+	 * @return the disk cache size
+	 */
+	public synchronized long getDiskSize() {
+		return diskSize;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ImageCache [hitRate=%.3f, memoryHits=%d, diskHits=%d, misses=%d, memorySize=%d, diskSize=%d]",
+				getHitRate(), getMemoryHits(), getDiskHits(), getMisses(), getMemorySize(), getDiskSize());
+	}
+
+	/**
+	 * puts an image in memory, evicting the least recently used ones
+	 *
+	 * @param hash the image hash
+	 * @param image the image
+	 */
+	private void putInMemory(String hash, byte[] image) {
+		if (image.length > maxMemorySize) return;
+
+		byte[] old = memory.put(hash, image);
+		if (old != null) memorySize -= old.length;
+		memorySize += image.length;
+
+		for (Iterator<byte[]> it = memory.values().iterator(); memorySize > maxMemorySize && it.hasNext();) {
+			memorySize -= it.next().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * deletes the least recently used images from disk until the size fits
+	 */
+	private void evictFromDisk() {
+		for (Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator(); diskSize > maxDiskSize && it.hasNext();) {
+			Map.Entry<String, Long> entry = it.next();
+			new File(directory, entry.getKey()).delete();
+			diskSize -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	/**
+	 * builds the disk index out of the cache directory,
+	 * using the last modified time as the last use time
+	 */
+	private void loadDiskIndex() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+
+		for (File file : files) {
+			if (file.isFile() && DrinEventCodec.isImageHash(file.getName())) {
+				disk.put(file.getName(), file.length());
+				diskSize += file.length();
+			} else if (file.getName().endsWith(".tmp")) {
+				// left over by an interrupted write
+				file.delete();
+			}
+		}
+		evictFromDisk();
+	}
+
+	/**
+	 * reads a whole file
+	 *
+	 * @param file the file to be read
+	 * @return the file content
+	 * @throws IOException
+	 */
+	private static byte[] readFile(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] data = new byte[(int) file.length()];
+			in.readFully(data);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * gets the shared instance, keeping its images
+	 * in the application save directory
+	 *
+	 * @return the ImageCache instance
+	 */
+	public static ImageCache getInstance() {
+		return imageCacheHolder.INSTANCE;
+	}
+
+	private static class imageCacheHolder {
+		private static final ImageCache INSTANCE = new ImageCache(
+				new File(DesktopDrinViewerConstants.getAppSaveDir(), CACHE_DIRNAME), MEMORY_CACHE_SIZE, DISK_CACHE_SIZE);
+	}
+}
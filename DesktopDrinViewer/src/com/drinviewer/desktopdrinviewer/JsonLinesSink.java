@@ -0,0 +1,185 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * sink writing every IncomingDrinEvent as a line of JSON, e.g.
+ *
+ * {"time":1400000000000,"action":"show","title":"...","message":"...","imageHash":null,"imageSize":0}
+ *
+ * the action is one of show, paired and remove. The image is not
+ * written, only its hash and size. Each line is flushed as soon as
+ * it's written, so that the output can be piped to other programs.
+ *
+ * @author giorgio
+ *
+ */
+public class JsonLinesSink implements IncomingDrinListener, Closeable {
+	/**
+	 * where the lines are written
+	 */
+	private final Writer out;
+
+	/**
+	 * true if the writer must be closed with the sink
+	 */
+	private final boolean closeWriter;
+
+	/**
+	 * the line being written, reused
+	 */
+	private final StringBuilder line = new StringBuilder(256);
+
+	/**
+	 * the write errors, the events that could not be written
+	 */
+	private long errors;
+
+	/**
+	 * instantiate the sink
+	 *
+	 * @param out where the lines are written
+	 * @param closeWriter true if the writer must be closed with the sink
+	 */
+	public JsonLinesSink(Writer out, boolean closeWriter) {
+		this.out = out;
+		this.closeWriter = closeWriter;
+	}
+
+	/**
+	 * gets a sink writing to the standard output, that's flushed
+	 * but not closed when the sink is closed
+	 *
+	 * @return the sink
+	 */
+	public static JsonLinesSink toStandardOutput() {
+		return new JsonLinesSink(utf8Writer(System.out), false);
+	}
+
+	/**
+	 * gets a sink appending to a file
+	 *
+	 * @param file the file, created if it's not there
+	 * @return the sink
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static JsonLinesSink toFile(File file) throws IOException {
+		return new JsonLinesSink(utf8Writer(new FileOutputStream(file, true)), true);
+	}
+
+	private static Writer utf8Writer(OutputStream out) {
+		try {
+			return new OutputStreamWriter(out, "UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			// UTF-8 is always there
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized void handleDrin(IncomingDrinEvent event) {
+		line.setLength(0);
+		line.append("{\"time\":").append(System.currentTimeMillis());
+		line.append(",\"action\":");
+		appendString(actionName(event.action));
+		line.append(",\"title\":");
+		appendString(event.title);
+		line.append(",\"message\":");
+		appendString(event.message);
+		line.append(",\"imageHash\":");
+		appendString(event.imageHash);
+		line.append(",\"imageSize\":").append((event.imageData == null) ? 0 : event.imageData.length);
+		line.append("}\n");
+		try {
+			out.append(line);
+			out.flush();
+		} catch (IOException e) {
+			// tell it once, the sink goes on with the next events
+			if (errors++ == 0) System.err.println(this.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * gets the number of events that could not be written
+	 *
+	 * @return the write errors
+	 */
+	public synchronized long getErrors() {
+		return errors;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closeWriter) out.close();
+		else out.flush();
+	}
+
+	private static String actionName(int action) {
+		switch (action) {
+		case Constants.SHOW_POPUP:   return "show";
+		case Constants.SHOW_PAIRED:  return "paired";
+		case Constants.REMOVE_POPUP: return "remove";
+		default: return Integer.toString(action);
+		}
+	}
+
+	/**
+	 * appends a JSON string, or null
+	 */
+	private void appendString(String value) {
+		if (value == null) {
+			line.append("null");
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':  line.append("\\\""); break;
+			case '\\': line.append("\\\\"); break;
+			case '\n': line.append("\\n"); break;
+			case '\r': line.append("\\r"); break;
+			case '\t': line.append("\\t"); break;
+			default:
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					line.append("\\u");
+					String hex = Integer.toHexString(c);
+					for (int pad = hex.length(); pad < 4; pad++) line.append('0');
+					line.append(hex);
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		line.append('"');
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * histograms of the time the shown events spend in each stage,
+ * from the call on the device to the popup being visible.
+ *
+ * The time of a stage is the time from the previous stage the event
+ * has gone through: the device stages are there only for devices
+ * sending them, and the events fired by the desktop itself start
+ * with the dispatch. The total is the time from the first stage to
+ * the popup being visible.
+ * The histograms have 8 buckets for every power of two microseconds,
+ * so the percentiles are rounded up by 12.5% at most.
+ *
+ * The events are recorded by one thread at a time, the UI thread,
+ * the histograms can be read by any thread.
+ *
+ * @author giorgio
+ *
+ */
+public class LatencyHistograms implements LatencyHistogramsMBean {
+	/**
+	 * the name the histograms are registered with in the platform MBean server
+	 */
+	public static final String OBJECT_NAME = "com.drinviewer:type=LatencyHistograms";
+
+	/**
+	 * the stage names, indexed by the IncomingDrinEvent STAGE constants
+	 */
+	private static final String[] STAGE_NAMES = { "call", "connect", "receive", "decode", "dispatch", "enqueue", "build", "visible" };
+
+	/**
+	 * the histograms of each stage, the first one is never
+	 * recorded since there's no stage before it
+	 */
+	private final Histogram[] stages = new Histogram[IncomingDrinEvent.STAGES];
+
+	/**
+	 * the histogram of the time from the first stage to the popup being visible
+	 */
+	private final Histogram total = new Histogram();
+
+	/**
+	 * when the histograms have been emptied
+	 */
+	private volatile long since = System.currentTimeMillis();
+
+	public LatencyHistograms() {
+		for (int i = 0; i < stages.length; i++) stages[i] = new Histogram();
+	}
+
+	/**
+	 * records the stage times of an event whose popup is visible
+	 *
+	 * @param event the event
+	 */
+	public void record(IncomingDrinEvent event) {
+		long[] times = event.stageTimes;
+		if (times == null || times[IncomingDrinEvent.STAGE_VISIBLE] == 0) return;
+
+		int first = -1, previous = -1;
+		for (int i = 0; i < times.length; i++) {
+			if (times[i] == 0) continue;
+			if (previous < 0) first = i;
+			// the device stages are placed by the host, never before the previous one
+			else stages[i].record(Math.max(0, times[i] - times[previous]));
+			previous = i;
+		}
+		total.record(Math.max(0, times[IncomingDrinEvent.STAGE_VISIBLE] - times[first]));
+	}
+
+	@Override
+	public String[] getStages() {
+		return STAGE_NAMES.clone();
+	}
+
+	@Override
+	public long getEvents() {
+		return total.count.get();
+	}
+
+	@Override
+	public long[] getMedianMicros() {
+		long[] micros = new long[stages.length];
+		for (int i = 0; i < stages.length; i++) micros[i] = stages[i].percentile(0.5);
+		return micros;
+	}
+
+	@Override
+	public long[] getP99Micros() {
+		long[] micros = new long[stages.length];
+		for (int i = 0; i < stages.length; i++) micros[i] = stages[i].percentile(0.99);
+		return micros;
+	}
+
+	@Override
+	public long[] getMaxMicros() {
+		long[] micros = new long[stages.length];
+		for (int i = 0; i < stages.length; i++) micros[i] = stages[i].max;
+		return micros;
+	}
+
+	@Override
+	public long getTotalMedianMicros() {
+		return total.percentile(0.5);
+	}
+
+	@Override
+	public long getTotalP99Micros() {
+		return total.percentile(0.99);
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder(1024);
+		report.append(String.format("DrinViewer event latency, %d events since %tF %<tT%n", getEvents(), new Date(since)));
+		report.append(String.format("%-10s %8s %10s %10s %10s %10s%n", "stage", "events", "mean ms", "p50 ms", "p99 ms", "max ms"));
+		for (int i = 1; i < stages.length; i++) appendRow(report, STAGE_NAMES[i], stages[i]);
+		appendRow(report, "total", total);
+		return report.toString();
+	}
+
+	/**
+	 * writes the report followed by the not empty buckets of every
+	 * histogram, as the bucket upper bound in microseconds and its count
+	 *
+	 * @param file the file to be written
+	 * @throws IOException if the file cannot be written
+	 */
+	public void dumpTo(File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(getReport());
+			for (int i = 1; i < stages.length; i++) writeBuckets(out, STAGE_NAMES[i], stages[i]);
+			writeBuckets(out, "total", total);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void dumpTo(String path) throws IOException {
+		dumpTo(new File(path));
+	}
+
+	@Override
+	public void reset() {
+		for (Histogram histogram : stages) histogram.reset();
+		total.reset();
+		since = System.currentTimeMillis();
+	}
+
+	/**
+	 * registers the histograms in the platform MBean server,
+	 * so that any JMX client can read them
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * removes the histograms from the platform MBean server
+	 */
+	public void unregister() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			// not registered
+		}
+	}
+
+	private static void appendRow(StringBuilder report, String name, Histogram histogram) {
+		long count = histogram.count.get();
+		report.append(String.format("%-10s %8d %10.3f %10.3f %10.3f %10.3f%n", name, count,
+				(count > 0) ? histogram.sum.get() / (count * 1000.0) : 0.0,
+				histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0, histogram.max / 1000.0));
+	}
+
+	private static void writeBuckets(Writer out, String name, Histogram histogram) throws IOException {
+		out.write(String.format("%n%s%n", name));
+		for (int i = 0; i < Histogram.BUCKETS; i++) {
+			long count = histogram.buckets.get(i);
+			if (count > 0) out.write(String.format("%12d %10d%n", Histogram.upperBound(i), count));
+		}
+	}
+
+	/**
+	 * a log linear histogram of times in microseconds
+	 */
+	private static class Histogram {
+		/**
+		 * buckets for every power of two, and the number of buckets
+		 * needed for any positive long
+		 */
+		private static final int SUB_BUCKETS = 8;
+		private static final int BUCKETS = (63 - 2) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		// in microseconds
+		private final AtomicLong sum = new AtomicLong();
+		private volatile long max = 0;
+
+		/**
+		 * records a time
+		 *
+		 * @param nanos the time, in nanoseconds
+		 */
+		void record(long nanos) {
+			long micros = nanos / 1000;
+			buckets.incrementAndGet(bucket(micros));
+			count.incrementAndGet();
+			sum.addAndGet(micros);
+			if (micros > max) max = micros;
+		}
+
+		/**
+		 * gets a percentile
+		 *
+		 * @param fraction the percentile, between 0 and 1
+		 * @return the upper bound of the bucket holding it, in microseconds
+		 */
+		long percentile(double fraction) {
+			long target = (long) Math.ceil(count.get() * fraction);
+			if (target == 0) return 0;
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= target) return Math.min(upperBound(i), max);
+			}
+			return max;
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max = 0;
+		}
+
+		static int bucket(long micros) {
+			if (micros < SUB_BUCKETS) return (int) micros;
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			return (exponent - 2) * SUB_BUCKETS + (int) ((micros >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+		}
+
+		static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) return bucket;
+			int exponent = bucket / SUB_BUCKETS + 2;
+			return ((SUB_BUCKETS + bucket % SUB_BUCKETS + 1L) << (exponent - 3)) - 1;
+		}
+	}
+}
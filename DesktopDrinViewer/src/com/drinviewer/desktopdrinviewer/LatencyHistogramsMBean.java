@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.IOException;
+
+/**
+ * the LatencyHistograms as seen by a JMX client, e.g. jconsole.
+ * The arrays are indexed by stage, as getStages.
+ *
+ * @author giorgio
+ *
+ */
+public interface LatencyHistogramsMBean {
+	/**
+	 * gets the names of the stages
+	 *
+	 * @return the stage names
+	 */
+	public String[] getStages();
+
+	/**
+	 * gets the number of events recorded
+	 *
+	 * @return the events
+	 */
+	public long getEvents();
+
+	/**
+	 * gets the median time from the previous stage reached to each stage
+	 *
+	 * @return the times, in microseconds
+	 */
+	public long[] getMedianMicros();
+
+	/**
+	 * gets the 99th percentile of the time from the previous stage reached to each stage
+	 *
+	 * @return the times, in microseconds
+	 */
+	public long[] getP99Micros();
+
+	/**
+	 * gets the longest time from the previous stage reached to each stage
+	 *
+	 * @return the times, in microseconds
+	 */
+	public long[] getMaxMicros();
+
+	/**
+	 * gets the median time from the first stage to the popup being visible
+	 *
+	 * @return the time, in microseconds
+	 */
+	public long getTotalMedianMicros();
+
+	/**
+	 * gets the 99th percentile of the time from the first stage to the popup being visible
+	 *
+	 * @return the time, in microseconds
+	 */
+	public long getTotalP99Micros();
+
+	/**
+	 * gets the stage percentiles as a plain text table
+	 *
+	 * @return the report
+	 */
+	public String getReport();
+
+	/**
+	 * writes the report and the histograms to a file
+	 *
+	 * @param path the file path
+	 * @throws IOException if the file cannot be written
+	 */
+	public void dumpTo(String path) throws IOException;
+
+	/**
+	 * empties the histograms
+	 */
+	public void reset();
+}
@@ -67,7 +67,7 @@ public class ManagePairedDialog extends Dialog {
 	
 	private void createContents(final Shell shell) {
 		
-		final ServerDBManager db = new ServerDBManager();
+		final PairingRegistry db = PairingRegistry.getInstance();
 		
 		GridLayout gridLayout = new GridLayout();
 		GridData gridData;
@@ -0,0 +1,803 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinEventCodec;
+
+/**
+ * Non blocking implementation of the TCP server listener:
+ * a single thread accepts the connections and reads the requests
+ * using a Selector, and the complete requests are handed to a
+ * bounded pool of worker threads that run the protocol and give
+ * the response back to the selector thread to be written out.
+ *
+ * The protocol itself is the one of the ServerListener class, both
+ * for the legacy connections and for the persistent ones.
+ *
+ * @author giorgio
+ *
+ */
+public class NioServerListener extends ServerListener {
+	/**
+	 * number of worker threads running the protocol
+	 *
+	 */
+	private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * max number of complete requests waiting for a worker thread
+	 *
+	 */
+	private static final int WORKER_QUEUE_SIZE = 256;
+
+	/**
+	 * size of the buffer used to read from the channels
+	 *
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * max number of bytes to be read while waiting for the first line
+	 *
+	 */
+	private static final int MAX_FIRST_LINE_SIZE = 4096;
+
+	/**
+	 * the first bytes of a java serialization stream
+	 *
+	 */
+	private static final byte[] SERIALIZATION_HEADER = {
+		(byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+		(byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION };
+
+	/**
+	 * max number of pending connections not yet accepted
+	 *
+	 */
+	private static final int ACCEPT_BACKLOG = 1024;
+
+	/**
+	 * millis to wait before handing the deferred requests to the workers again
+	 *
+	 */
+	private static final long DEFERRED_RETRY_TIME = 10;
+
+	/**
+	 * millis between two checks of the connections deadlines
+	 *
+	 */
+	private static final long DEADLINE_CHECK_INTERVAL = 250;
+
+	/**
+	 * the selector used by the event loop
+	 *
+	 */
+	private Selector selector = null;
+
+	/**
+	 * the channel accepting the connections
+	 *
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * the worker threads pool
+	 *
+	 */
+	private ThreadPoolExecutor workers = null;
+
+	/**
+	 * connections whose response is ready to be written,
+	 * filled by the workers and emptied by the event loop
+	 *
+	 */
+	private final ConcurrentLinkedQueue<Connection> pendingResponses = new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * complete requests refused by the workers because their queue was full,
+	 * only accessed by the event loop. New connections are not accepted
+	 * until this is empty, so that the clients wait in the accept backlog
+	 *
+	 */
+	private final ArrayDeque<Connection> deferredRequests = new ArrayDeque<Connection>();
+
+	/**
+	 * opens the channel and runs the event loop until terminate is called
+	 */
+	@Override
+	public void run() {
+		getEventBus().start();
+		workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_SIZE), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DrinViewer-worker");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		try {
+			Selector selector = Selector.open();
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			this.selector = selector;
+			this.serverChannel = serverChannel;
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+			SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			// listening once bound only, so that a failed bind can be told
+			listening = true;
+
+			ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+			long lastIdleCheck = System.currentTimeMillis();
+			long lastDeadlineCheck = lastIdleCheck;
+
+			while (listening) {
+				selector.select(deferredRequests.isEmpty() ? DEADLINE_CHECK_INTERVAL : DEFERRED_RETRY_TIME);
+
+				// hand the deferred requests to the workers again
+				Connection deferred;
+				while ((deferred = deferredRequests.peek()) != null && dispatch(deferred)) {
+					deferredRequests.poll();
+				}
+				acceptKey.interestOps(deferredRequests.isEmpty() ? SelectionKey.OP_ACCEPT : 0);
+
+				// register write interest for the responses made ready by the workers
+				Connection ready;
+				while ((ready = pendingResponses.poll()) != null) {
+					if (ready.key.isValid()) ready.key.interestOps(ready.key.interestOps() | SelectionKey.OP_WRITE);
+				}
+
+				if (System.currentTimeMillis() - lastIdleCheck > Constants.HEARTBEAT_INTERVAL) {
+					closeIdleConnections(selector);
+					lastIdleCheck = System.currentTimeMillis();
+				}
+				if (System.currentTimeMillis() - lastDeadlineCheck > DEADLINE_CHECK_INTERVAL) {
+					closeExpiredConnections(selector);
+					lastDeadlineCheck = System.currentTimeMillis();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) accept(serverChannel, selector);
+						else {
+							if (key.isReadable()) read(key, readBuffer);
+							if (key.isValid() && key.isWritable()) write(key);
+						}
+					} catch (IOException e) {
+						// out of file descriptors or the like, accept again later
+						if (key == acceptKey) continue;
+						// something went wrong with this client only, drop it
+						getConnectionErrors().record(e);
+						close(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.exit(-1);
+		} finally {
+			workers.shutdownNow();
+			closeAll();
+		}
+	}
+
+	/**
+	 * terminates by waking up the event loop, that
+	 * will close the channels and the selector, the event bus
+	 * threads are stopped too until the listener is run again
+	 */
+	@Override
+	public void terminate() {
+		listening = false;
+		getEventBus().shutdown();
+		Selector selector = this.selector;
+		if (selector != null) selector.wakeup();
+	}
+
+	/**
+	 * closes every channel registered to the selector,
+	 * the selector itself and the listening channel
+	 */
+	private void closeAll() {
+		if (selector != null) {
+			for (SelectionKey key : selector.keys()) close(key);
+			try {
+				selector.close();
+			} catch (IOException e) {}
+		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {}
+		}
+		deferredRequests.clear();
+		pendingResponses.clear();
+		serverChannel = null;
+		selector = null;
+	}
+
+	/**
+	 * accepts all the pending connections
+	 *
+	 * @param serverChannel the channel accepting the connections
+	 * @param selector the selector to register the clients to
+	 * @throws IOException
+	 */
+	private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			InetAddress address = channel.socket().getInetAddress();
+			if (!admit(address)) {
+				// too many connections, from this device or overall
+				getConnectionErrors().connectionRejected();
+				closeQuietly(channel);
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+				clientKey.attach(new Connection(clientKey, address, getConnectionLimits()));
+				getConnectionErrors().connectionOpened();
+			} catch (IOException e) {
+				release(address);
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	/**
+	 * closes a channel not registered yet, a failure concerns
+	 * that device only and must not stop accepting the others
+	 *
+	 * @param channel the channel to be closed
+	 */
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * reads what's available from the client and hands the
+	 * request, or the complete frames, to the workers
+	 *
+	 * @param key the key of the client
+	 * @param readBuffer the buffer to read into
+	 * @throws IOException
+	 */
+	private void read(SelectionKey key, ByteBuffer readBuffer) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+
+		int read;
+		boolean endOfStream = false;
+		boolean framesFound = false;
+		readBuffer.clear();
+		while ((read = channel.read(readBuffer)) > 0) {
+			readBuffer.flip();
+			connection.append(readBuffer);
+			readBuffer.clear();
+			// extract as it goes, so that only a single frame is ever buffered
+			if (connection.isFramed() && connection.extractFrames()) framesFound = true;
+		}
+		if (read < 0) endOfStream = true;
+		connection.lastActivity = System.currentTimeMillis();
+
+		if (connection.isFramed()) {
+			// persistent connection: queue the complete frames and keep reading
+			connection.updateDeadline(framesFound);
+			if (framesFound && connection.schedule() && !dispatch(connection)) {
+				deferredRequests.add(connection);
+			}
+			if (endOfStream) {
+				// the device has gone in the middle of a frame
+				if (connection.length > 0) getConnectionErrors().record(ConnectionErrors.Category.PROTOCOL);
+				close(key);
+			}
+		} else if (connection.isComplete(endOfStream)) {
+			// stop reading and let a worker do the job
+			connection.deadline = 0;
+			key.interestOps(0);
+			if (!dispatch(connection)) {
+				// workers are overloaded, retry later
+				deferredRequests.add(connection);
+			}
+		} else if (endOfStream) {
+			close(key);
+		} else {
+			connection.updateDeadline(false);
+		}
+	}
+
+	/**
+	 * hands a complete request to the workers
+	 *
+	 * @param connection the connection holding the request
+	 * @return false if the workers queue is full
+	 */
+	private boolean dispatch(Connection connection) {
+		if (!connection.key.isValid()) return true;
+		try {
+			workers.execute(connection);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * writes the responses to the client, closes a legacy
+	 * connection when its response has been fully written
+	 *
+	 * @param key the key of the client
+	 * @throws IOException
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+
+		ByteBuffer response;
+		while ((response = connection.responses.peek()) != null) {
+			channel.write(response);
+			if (response.hasRemaining()) return;
+			connection.responses.poll();
+		}
+
+		if (connection.isFramed()) key.interestOps(SelectionKey.OP_READ);
+		else close(key);
+	}
+
+	/**
+	 * closes the persistent connections that have not
+	 * sent anything, not even a heartbeat, for too long
+	 *
+	 * @param selector the selector the connections are registered to
+	 */
+	private void closeIdleConnections(Selector selector) {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null && connection.isFramed() && now - connection.lastActivity > Constants.HEARTBEAT_TIMEOUT) {
+				getConnectionErrors().record(ConnectionErrors.Category.TIMEOUT);
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * closes the connections that have not sent their
+	 * first line, request or frame before their deadline
+	 *
+	 * @param selector the selector the connections are registered to
+	 */
+	private void closeExpiredConnections(Selector selector) {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null && connection.deadline != 0 && now > connection.deadline) {
+				getConnectionErrors().record(ConnectionErrors.Category.TIMEOUT);
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * closes a client connection
+	 *
+	 * @param key the key of the client to be closed
+	 */
+	private void close(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		if (connection != null) connection.release();
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * state of a single client connection, accumulates the incoming
+	 * bytes and runs the protocol on them as a worker task.
+	 *
+	 * A legacy connection holds a single request, and is closed once
+	 * its response is written. A persistent connection, opened with
+	 * DrinEventCodec.STREAM_MAGIC, holds a queue of frames handled in
+	 * order by one worker at a time.
+	 *
+	 * @author giorgio
+	 *
+	 */
+	private class Connection implements Runnable {
+		/**
+		 * the selection key of the client
+		 *
+		 */
+		private final SelectionKey key;
+
+		/**
+		 * bytes read so far and not yet extracted as frames
+		 *
+		 */
+		private byte[] data = new byte[256];
+
+		/**
+		 * number of valid bytes in data
+		 *
+		 */
+		private int length = 0;
+
+		/**
+		 * null until the first bytes tell the kind of connection,
+		 * then true if it's a persistent connection
+		 *
+		 */
+		private Boolean framed = null;
+
+		/**
+		 * the first line sent by a legacy client, null until it's fully read
+		 *
+		 */
+		private String inputLine = null;
+
+		/**
+		 * complete frames received on a persistent connection
+		 *
+		 */
+		private final ConcurrentLinkedQueue<byte[]> frames = new ConcurrentLinkedQueue<byte[]>();
+
+		/**
+		 * true while a worker is handling the frames
+		 *
+		 */
+		private boolean scheduled = false;
+
+		/**
+		 * responses to be written out
+		 *
+		 */
+		private final ConcurrentLinkedQueue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		/**
+		 * last time something was read from the client
+		 *
+		 */
+		private volatile long lastActivity = System.currentTimeMillis();
+
+		/**
+		 * the address of the client, and its limits
+		 *
+		 */
+		private final InetAddress address;
+		private final ConnectionLimits limits;
+
+		/**
+		 * when the first line, the request or the
+		 * current frame must be complete, 0 for never
+		 *
+		 */
+		private volatile long deadline;
+
+		/**
+		 * true once the first line of a legacy request has been read
+		 *
+		 */
+		private boolean lineRead = false;
+
+		/**
+		 * true if the client is in the middle of a frame
+		 *
+		 */
+		private boolean inFrame = false;
+
+		/**
+		 * true once the connection has been released
+		 *
+		 */
+		private boolean released = false;
+
+		public Connection(SelectionKey key, InetAddress address, ConnectionLimits limits) {
+			this.key = key;
+			this.address = address;
+			this.limits = limits;
+			this.deadline = deadlineFrom(limits.getHandshakeTimeout());
+		}
+
+		/**
+		 * moves the deadline on as the request, or the frames, go on:
+		 * the rest of a legacy request must come in time once the first
+		 * line is there, a started frame must be completed in time and
+		 * there is no deadline between two frames
+		 *
+		 * @param framesFound true if a frame has just been completed
+		 */
+		private void updateDeadline(boolean framesFound) {
+			if (isFramed()) {
+				if (length == 0) deadline = 0;
+				else if (!inFrame || framesFound) deadline = deadlineFrom(limits.getReadTimeout());
+				inFrame = length > 0;
+			} else if (inputLine != null && !lineRead) {
+				lineRead = true;
+				deadline = deadlineFrom(limits.getReadTimeout());
+			}
+		}
+
+		/**
+		 * gets the deadline after the passed timeout
+		 *
+		 * @param timeout millis from now, 0 for no deadline
+		 * @return the deadline, 0 for no deadline
+		 */
+		private long deadlineFrom(int timeout) {
+			return (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+		}
+
+		/**
+		 * releases the connection once, as it may be closed
+		 * both by the event loop and by a worker
+		 */
+		private synchronized void release() {
+			if (released) return;
+			released = true;
+			NioServerListener.this.release(address);
+		}
+
+		/**
+		 * appends the buffer content to the read bytes
+		 *
+		 * @param buffer the buffer, ready to be read
+		 * @throws IOException if a legacy request grows too long
+		 */
+		private void append(ByteBuffer buffer) throws IOException {
+			int count = buffer.remaining();
+			if (!isFramed() && (long) length + count > limits.frameSizeLimit()) {
+				throw new StreamCorruptedException("Request too long");
+			}
+			if (length + count > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+			}
+			buffer.get(data, length, count);
+			length += count;
+
+			if (framed == null && length >= DrinEventCodec.STREAM_MAGIC.length) {
+				framed = DrinEventCodec.isStreamMagic(data, length);
+				if (framed) consume(DrinEventCodec.STREAM_MAGIC.length);
+			}
+		}
+
+		/**
+		 * tells if it's a persistent connection
+		 *
+		 * @return true if the client has sent DrinEventCodec.STREAM_MAGIC
+		 */
+		private boolean isFramed() {
+			return framed != null && framed;
+		}
+
+		/**
+		 * removes bytes from the start of the read ones
+		 *
+		 * @param count number of bytes to be removed
+		 */
+		private void consume(int count) {
+			System.arraycopy(data, count, data, 0, length - count);
+			length -= count;
+		}
+
+		/**
+		 * moves the complete frames from the read bytes to the frames queue
+		 *
+		 * @return true if at least one frame has been queued
+		 * @throws IOException if a frame is not valid
+		 */
+		private boolean extractFrames() throws IOException {
+			boolean found = false;
+			while (length >= DrinEventCodec.HEADER_LENGTH) {
+				int payloadLength = ((data[2] & 0xff) << 24) | ((data[3] & 0xff) << 16) | ((data[4] & 0xff) << 8) | (data[5] & 0xff);
+				if (payloadLength < 0) throw new StreamCorruptedException("Invalid length " + payloadLength);
+				// refuse it before buffering it
+				if (payloadLength > limits.frameSizeLimit()) throw new StreamCorruptedException("Frame too long " + payloadLength);
+
+				int frameLength = DrinEventCodec.HEADER_LENGTH + payloadLength;
+				if (length < frameLength) break;
+
+				frames.add(Arrays.copyOf(data, frameLength));
+				consume(frameLength);
+				found = true;
+			}
+			return found;
+		}
+
+		/**
+		 * marks the connection as being handled by a worker
+		 *
+		 * @return false if a worker is already handling it
+		 */
+		private synchronized boolean schedule() {
+			if (scheduled) return false;
+			scheduled = true;
+			return true;
+		}
+
+		/**
+		 * marks the connection as no longer handled by a worker,
+		 * unless some frames have been queued in the meanwhile
+		 *
+		 * @return true if the worker can stop
+		 */
+		private synchronized boolean unschedule() {
+			if (!frames.isEmpty()) return false;
+			scheduled = false;
+			return true;
+		}
+
+		/**
+		 * tells if the legacy request is complete: pairing requests are complete
+		 * as soon as the first line is read, since the device waits for the
+		 * response, while the device closes its side after an INCOMING_DRIN
+		 *
+		 * @param endOfStream true if the device has closed its side
+		 * @return true if the request can be handled
+		 * @throws IOException if the received data are not valid
+		 */
+		private boolean isComplete(boolean endOfStream) throws IOException {
+			if (inputLine == null) {
+				// it may still be the start of DrinEventCodec.STREAM_MAGIC
+				if (framed == null && !endOfStream) return false;
+				try {
+					inputLine = new ObjectInputStream(new ByteArrayInputStream(data, 0, length)).readUTF();
+				} catch (IOException e) {
+					// first line not fully received yet, a corrupt one fails straight away
+					if (endOfStream || length > MAX_FIRST_LINE_SIZE || !isFirstLineStart()) throw e;
+					return false;
+				}
+			}
+			return endOfStream || !inputLine.startsWith(Constants.INCOMING_DRIN);
+		}
+
+		/**
+		 * tells if the read bytes are the start of a serialization stream
+		 * whose first block data are going to hold the first line: the
+		 * ObjectInputStream fails on a truncated one as on a corrupt one
+		 *
+		 * @return true if the first line is truncated, false if it's not valid
+		 */
+		private boolean isFirstLineStart() {
+			for (int i = 0; i < Math.min(length, SERIALIZATION_HEADER.length); i++) {
+				if (data[i] != SERIALIZATION_HEADER[i]) return false;
+			}
+			// the UTF length, then the UTF bytes, in as many blocks as it takes
+			int position = SERIALIZATION_HEADER.length;
+			int utfRead = 0, utfLength = -1, high = 0;
+			while (position < length) {
+				int blockLength;
+				if (data[position] == ObjectStreamConstants.TC_BLOCKDATA) {
+					if (position + 2 > length) return true;
+					blockLength = data[position + 1] & 0xff;
+					position += 2;
+				} else if (data[position] == ObjectStreamConstants.TC_BLOCKDATALONG) {
+					if (position + 5 > length) return true;
+					blockLength = ((data[position + 1] & 0xff) << 24) | ((data[position + 2] & 0xff) << 16) | ((data[position + 3] & 0xff) << 8) | (data[position + 4] & 0xff);
+					if (blockLength < 0) return false;
+					position += 5;
+				} else {
+					return false;
+				}
+				for (int end = Math.min(length, position + blockLength); position < end; position++) {
+					if (utfRead == 0) high = data[position] & 0xff;
+					else if (utfRead == 1) utfLength = (high << 8) | (data[position] & 0xff);
+					utfRead++;
+					// the whole line is there, it's not truncated
+					if (utfLength >= 0 && utfRead >= 2 + utfLength) return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * runs the protocol and passes the responses to the event loop
+		 */
+		@Override
+		public void run() {
+			try {
+				if (isFramed()) runFramed();
+				else runLegacy();
+			} catch (Exception e) {
+				getConnectionErrors().record(e);
+				close(key);
+			}
+		}
+
+		/**
+		 * handles the legacy request
+		 *
+		 * @throws Exception
+		 */
+		private void runLegacy() throws Exception {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, 0, length));
+			limits.applyTo(in);
+			in.readUTF();
+			String outputLine = handleRequest(inputLine, in) + System.getProperty("line.separator");
+			respond(ByteBuffer.wrap(outputLine.getBytes()));
+		}
+
+		/**
+		 * handles the queued frames in order
+		 *
+		 * @throws Exception
+		 */
+		private void runFramed() throws Exception {
+			do {
+				byte[] frame;
+				while ((frame = frames.poll()) != null) {
+					String response = handleFrame(DrinEventCodec.readFrame(new DataInputStream(new ByteArrayInputStream(frame)), NioServerListener.this));
+					if (response != null) {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						DrinEventCodec.writeMessage(response, new DataOutputStream(bytes));
+						respond(ByteBuffer.wrap(bytes.toByteArray()));
+					}
+				}
+			} while (!unschedule());
+		}
+
+		/**
+		 * queues a response and wakes the event loop up to write it
+		 *
+		 * @param response the response to be written
+		 */
+		private void respond(ByteBuffer response) {
+			responses.add(response);
+			pendingResponses.add(this);
+			key.selector().wakeup();
+		}
+	}
+}
@@ -0,0 +1,445 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * queue between the DesktopServer events and the popups, so that a
+ * burst of events, or a shared line ringing on several phones, does
+ * not flood the screen and the UI thread:
+ *
+ * - the events are queued by the server threads and run on the UI
+ *   thread in small batches, by a single runnable that's scheduled
+ *   when the first event is queued
+ * - a SHOW for a title and message that's already queued or shown
+ *   is coalesced, i.e. dropped
+ * - a REMOVE cancels the queued SHOWs having its message, so that
+ *   they're never shown, and then removes the popup if it's shown
+ * - no more than maxVisible popups are shown: the SHOWs beyond that
+ *   wait, and a summary popup "+N more" tells how many are waiting.
+ *   When popups go away, removed or faded out, the waiting ones are
+ *   shown, oldest first. If the user closes the summary the waiting
+ *   ones are forgotten, if it fades out it's shown again
+ *
+ * handleDrin is thread safe, the rest runs on the UI thread.
+ * The queue is told by the notifier when the popups go away.
+ *
+ * @author giorgio
+ *
+ */
+public class NotificationQueue implements IncomingDrinListener, PopupNotifier.RemovalListener {
+	/**
+	 * max number of events run by the UI thread in a row, before
+	 * letting it do something else
+	 */
+	private static final int DRAIN_BATCH = 8;
+
+	private final PopupNotifier notifier;
+
+	/**
+	 * runs the queued events on the UI thread, e.g. Display.asyncExec
+	 */
+	private final Executor uiExecutor;
+
+	/**
+	 * max number of popups shown, the summary popup excluded
+	 */
+	private volatile int maxVisible;
+
+	/**
+	 * max number of events queued, and of SHOWs waiting
+	 */
+	private final int maxQueued;
+
+	/**
+	 * the events waiting for the UI thread and the SHOWs dropped
+	 * because there were too many, guarded by themselves
+	 */
+	private final List<IncomingDrinEvent> pending = new ArrayList<IncomingDrinEvent>();
+	private int pendingDropped = 0;
+	private boolean drainScheduled = false;
+
+	/**
+	 * the events run by the UI thread, reused
+	 */
+	private final List<IncomingDrinEvent> batch = new ArrayList<IncomingDrinEvent>(DRAIN_BATCH);
+
+	/**
+	 * the SHOWs waiting for a free popup and the ones dropped because
+	 * there were too many, both counted by the summary popup
+	 */
+	private final LinkedList<IncomingDrinEvent> waiting = new LinkedList<IncomingDrinEvent>();
+	private int waitingDropped = 0;
+
+	/**
+	 * the summary popup message and the title it's been shown with,
+	 * null if it's not shown
+	 */
+	private final String summaryMessage;
+	private String summaryTitle = null;
+
+	/**
+	 * true if the user has clicked the summary popup away
+	 */
+	private boolean summaryClosed = false;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * the events received and what has been done with them
+	 */
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong shown = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * where the stage times of the shown events are recorded, null for nowhere
+	 */
+	private volatile LatencyHistograms latency = null;
+
+	/**
+	 * instantiate the queue
+	 *
+	 * @param notifier the popups
+	 * @param uiExecutor runs the queued events on the UI thread
+	 * @param maxVisible max number of popups shown, the summary popup excluded
+	 * @param maxQueued max number of events queued, and of SHOWs waiting
+	 */
+	public NotificationQueue(PopupNotifier notifier, Executor uiExecutor, int maxVisible, int maxQueued) {
+		this.notifier = notifier;
+		this.uiExecutor = uiExecutor;
+		this.maxVisible = Math.max(1, maxVisible);
+		this.maxQueued = Math.max(1, maxQueued);
+		this.summaryMessage = DesktopDrinViewerConstants.i18nMessages.getString("morepopupstext");
+		notifier.setRemovalListener(this);
+	}
+
+	/**
+	 * queues an event, to be run on the UI thread
+	 *
+	 * @param event the event
+	 */
+	@Override
+	public void handleDrin(IncomingDrinEvent event) {
+		received.incrementAndGet();
+		boolean schedule = false;
+
+		synchronized (pending) {
+			if (event.action == Constants.REMOVE_POPUP) {
+				if (event.message != null) {
+					for (int i = pending.size() - 1; i >= 0; i--) {
+						IncomingDrinEvent queued = pending.get(i);
+						if (!event.message.equalsIgnoreCase(queued.message)) continue;
+						if (isShow(queued)) {
+							// never rendered, cancel it
+							pending.remove(i);
+							cancelled.incrementAndGet();
+						} else {
+							// the same REMOVE is already queued
+							coalesced.incrementAndGet();
+							return;
+						}
+					}
+				}
+			} else if (isShow(event)) {
+				for (IncomingDrinEvent queued : pending) {
+					if (isSame(queued, event)) {
+						coalesced.incrementAndGet();
+						return;
+					}
+				}
+				if (pending.size() >= maxQueued) {
+					// the UI thread is not keeping up, drop the oldest SHOW
+					for (int i = 0; i < pending.size(); i++) {
+						if (isShow(pending.get(i))) {
+							pending.remove(i);
+							pendingDropped++;
+							dropped.incrementAndGet();
+							break;
+						}
+					}
+				}
+			} else {
+				return;
+			}
+
+			event.stamp(IncomingDrinEvent.STAGE_ENQUEUE);
+			pending.add(event);
+			if (!drainScheduled) {
+				drainScheduled = schedule = true;
+			}
+		}
+
+		if (schedule) uiExecutor.execute(drain);
+	}
+
+	/**
+	 * a popup has gone away, there may be room for the waiting ones.
+	 * Called by the notifier on the UI thread.
+	 *
+	 * @param message message of the popup
+	 * @param closedByUser true if the user has clicked it away
+	 */
+	@Override
+	public void popupRemoved(String message, boolean closedByUser) {
+		if (closedByUser && summaryTitle != null && summaryMessage.equalsIgnoreCase(message)) {
+			summaryClosed = true;
+		}
+
+		boolean schedule = false;
+		synchronized (pending) {
+			if (!drainScheduled) {
+				drainScheduled = schedule = true;
+			}
+		}
+
+		if (schedule) uiExecutor.execute(drain);
+	}
+
+	/**
+	 * sets the max number of popups shown, the summary popup excluded
+	 *
+	 * @param maxVisible the max number of popups
+	 */
+	public void setMaxVisible(int maxVisible) {
+		this.maxVisible = Math.max(1, maxVisible);
+	}
+
+	/**
+	 * gets the max number of popups shown, the summary popup excluded
+	 *
+	 * @return the max number of popups
+	 */
+	public int getMaxVisible() {
+		return maxVisible;
+	}
+
+	/**
+	 * sets where the stage times of the shown events are recorded
+	 *
+	 * @param latency the histograms, null to not record them
+	 */
+	public void setLatencyHistograms(LatencyHistograms latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * gets the number of events received
+	 *
+	 * @return the events
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * gets the number of popups shown, the summary popup excluded
+	 *
+	 * @return the popups
+	 */
+	public long getShown() {
+		return shown.get();
+	}
+
+	/**
+	 * gets the number of events coalesced with an event queued,
+	 * waiting or shown
+	 *
+	 * @return the events
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * gets the number of SHOWs cancelled by a REMOVE before being shown
+	 *
+	 * @return the SHOWs
+	 */
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	/**
+	 * gets the number of SHOWs dropped because too many were queued or waiting
+	 *
+	 * @return the SHOWs
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * runs a batch of the queued events, on the UI thread
+	 */
+	private void drain() {
+		boolean more;
+		synchronized (pending) {
+			int count = Math.min(pending.size(), DRAIN_BATCH);
+			List<IncomingDrinEvent> head = pending.subList(0, count);
+			batch.addAll(head);
+			head.clear();
+			waitingDropped += pendingDropped;
+			pendingDropped = 0;
+			more = !pending.isEmpty();
+			drainScheduled = more;
+		}
+
+		try {
+			if (summaryTitle != null && !notifier.isShown(summaryTitle, summaryMessage)) {
+				summaryTitle = null;
+				if (summaryClosed) {
+					// the user has closed the summary, forget the waiting popups
+					waiting.clear();
+					waitingDropped = 0;
+				}
+				// else it has faded out, and is shown again below if popups are still waiting
+			}
+			summaryClosed = false;
+
+			boolean rendered = false;
+			for (IncomingDrinEvent event : batch) {
+				if (event.action == Constants.REMOVE_POPUP) {
+					remove(event);
+				} else if (notifier.isShown(event.title, event.message) || isWaiting(event)) {
+					coalesced.incrementAndGet();
+				} else if (waiting.isEmpty() && getVisibleCount() < maxVisible) {
+					rendered |= show(event);
+				} else {
+					waiting.add(event);
+					if (waiting.size() > maxQueued) {
+						waiting.removeFirst();
+						waitingDropped++;
+						dropped.incrementAndGet();
+					}
+				}
+			}
+
+			// show the waiting popups there's room for
+			while (!waiting.isEmpty() && getVisibleCount() < maxVisible) {
+				rendered |= show(waiting.removeFirst());
+			}
+
+			updateSummary(rendered);
+		} finally {
+			batch.clear();
+			// the rest of the events goes after what's already waiting for the UI thread
+			if (more) uiExecutor.execute(drain);
+		}
+	}
+
+	private boolean show(IncomingDrinEvent event) {
+		try {
+			notifier.notify(event, event.action == Constants.SHOW_PAIRED);
+			shown.incrementAndGet();
+			LatencyHistograms latency = this.latency;
+			if (latency != null) latency.record(event);
+			return true;
+		} catch (Exception err) {
+			err.printStackTrace();
+			return false;
+		}
+	}
+
+	private void remove(IncomingDrinEvent event) {
+		if (event.message != null) {
+			for (Iterator<IncomingDrinEvent> it = waiting.iterator(); it.hasNext();) {
+				if (event.message.equalsIgnoreCase(it.next().message)) {
+					it.remove();
+					cancelled.incrementAndGet();
+				}
+			}
+		}
+		notifier.removeNotify(event.title, event.message);
+	}
+
+	/**
+	 * shows, updates or removes the summary popup
+	 *
+	 * @param rendered true if popups have been shown since the last update,
+	 * the summary is then shown again to stay the last one
+	 */
+	private void updateSummary(boolean rendered) {
+		int more = waiting.size() + waitingDropped;
+		if (more == 0) {
+			if (summaryTitle != null) notifier.removeNotify(summaryTitle, summaryMessage);
+			summaryTitle = null;
+			waitingDropped = 0;
+			return;
+		}
+
+		String title = MessageFormat.format(DesktopDrinViewerConstants.i18nMessages.getString("morepopups"), more);
+		if (summaryTitle != null) {
+			if (!rendered) {
+				if (!title.equals(summaryTitle)) notifier.setTitle(summaryMessage, title);
+				summaryTitle = title;
+				return;
+			}
+			notifier.removeNotify(summaryTitle, summaryMessage);
+		}
+		notifier.notify(title, summaryMessage, null, false);
+		summaryTitle = title;
+	}
+
+	/**
+	 * gets the number of popups shown, the summary popup excluded
+	 */
+	private int getVisibleCount() {
+		return notifier.getShownCount() - ((summaryTitle != null) ? 1 : 0);
+	}
+
+	private boolean isWaiting(IncomingDrinEvent event) {
+		for (IncomingDrinEvent w : waiting) {
+			if (isSame(w, event)) return true;
+		}
+		return false;
+	}
+
+	private static boolean isShow(IncomingDrinEvent event) {
+		return event.action == Constants.SHOW_POPUP || event.action == Constants.SHOW_PAIRED;
+	}
+
+	/**
+	 * tells if two SHOWs are for the same title and message
+	 */
+	private static boolean isSame(IncomingDrinEvent a, IncomingDrinEvent b) {
+		if (!isShow(a) || !isShow(b)) return false;
+		return (a.title == null ? b.title == null : a.title.equals(b.title))
+				&& (a.message == null ? b.message == null : a.message.equalsIgnoreCase(b.message));
+	}
+}
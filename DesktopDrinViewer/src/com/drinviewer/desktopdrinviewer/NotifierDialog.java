@@ -23,7 +23,6 @@
  */
 package com.drinviewer.desktopdrinviewer;
 
-import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -33,7 +32,6 @@ import java.util.prefs.Preferences;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.CLabel;
 import org.eclipse.swt.graphics.Color;
-import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
@@ -52,6 +50,7 @@ import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
 
 import com.drinviewer.common.Constants;
+import com.drinviewer.common.IncomingDrinEvent;
 
 /**
  * Class to build dialog notification popup,
@@ -60,7 +59,7 @@ import com.drinviewer.common.Constants;
  * @author giorgio
  *
  */
-public class NotifierDialog {
+public class NotifierDialog implements PopupNotifier {
     // how long the tray popup is displayed after fading in (in milliseconds)
     private final int   DISPLAY_TIME  = 60000;
  // how long the tray TEST popup is displayed after fading in (in milliseconds)
@@ -82,16 +81,18 @@ public class NotifierDialog {
     private final int   MARGIN = 5;
 
     // title foreground color
-    private Color       _titleFgColor = new Color(Display.getCurrent(), new RGB(40, 73, 97)); 
-    // text foreground color
-    private Color       _fgColor      = _titleFgColor;
-
+    private final RGB   TITLE_FG_RGB  = new RGB(40, 73, 97);
     // shell gradient background color - top
-    private Color       _bgFgGradient = new Color(Display.getCurrent(), new RGB(226, 239, 249));
+    private final RGB   BG_TOP_RGB    = new RGB(226, 239, 249);
     // shell gradient background color - bottom    
-    private Color       _bgBgGradient = new Color(Display.getCurrent(), new RGB(177, 211, 243));
+    private final RGB   BG_BOTTOM_RGB = new RGB(177, 211, 243);
     // shell border color
-    private Color       _borderColor  = new Color(Display.getCurrent(), new RGB(40, 73, 97));
+    private final RGB   BORDER_RGB    = new RGB(40, 73, 97);
+
+    // title foreground color
+    private Color       _titleFgColor;
+    // text foreground color
+    private Color       _fgColor;
     
     // contains list of all active popup shells
     private List<Shell> _activeShells;
@@ -99,9 +100,35 @@ public class NotifierDialog {
     private Shell   _shell;
     private Display _display;
     
+    // the default icon and the caller images shown by the popups
+    private final PopupImageCache _images;
+    // the fonts, colors and backgrounds of the popups
+    private final PopupResources _resources;
+    // number of popups built and not yet disposed, written by the UI thread only
+    private volatile int _livePopups = 0;
+    // fades in and out all the popups
+    private final PopupAnimator _animator;
+    // key of the popup title label in the popup shell data
+    private static final String TITLE_LABEL = "titleLabel";
+    // key in the popup shell data set when the user clicks the popup away
+    private static final String CLOSED_BY_USER = "closedByUser";
+    // told when a popup goes away
+    private RemovalListener _removalListener;
+    
     public NotifierDialog(Display _display) {
 		this._display = _display;
 		_activeShells = new ArrayList<Shell>();
+		_images = new PopupImageCache(_display);
+		_resources = new PopupResources(_display);
+		_titleFgColor = _resources.getColor(TITLE_FG_RGB);
+		_fgColor = _titleFgColor;
+		_animator = new PopupAnimator(_display, FADE_TIMER, FADE_IN_STEP, FADE_OUT_STEP, FINAL_ALPHA,
+				new PopupAnimator.AnimationListener() {
+					@Override
+					public void fadedOut(Shell shell) {
+						removeShell(shell);
+					}
+				});
 	}
     
     /**
@@ -120,20 +147,48 @@ public class NotifierDialog {
      * 
      * @return the builded popup, just set its position and display it
      */
-    
-    private Shell buildPopUp(final String title, final String message, byte[] imageData) {
+    Shell buildPopUp(final String title, final String message, byte[] imageData) {
+        // gets the image out of the cache, the scaled default icon if the passed one is null
+        return buildPopUp(title, message, _images.acquire(imageData));
+    }
+
+    /**
+     * builds the popup to be displayed
+     * 
+     * @param title title of the popup
+     * @param message message of the popup
+     * @param image image of the popup acquired from the cache, released when the popup goes away
+     * 
+     * @return the builded popup, just set its position and display it
+     */
+    private Shell buildPopUp(final String title, final String message, final Image image) {
     	// hidden shell used to hide the popup to appear as a desktop window
-		Shell _hiddenShell = new Shell(_display, SWT.NO_FOCUS | SWT.NO_TRIM);
+		final Shell _hiddenShell = new Shell(_display, SWT.NO_FOCUS | SWT.NO_TRIM);
 		
         final Shell popUpShell = new Shell(_hiddenShell, SWT.NO_FOCUS | SWT.NO_TRIM | SWT.ON_TOP);    	        
         popUpShell.setLayout(new FillLayout());
         popUpShell.setForeground(_fgColor);
         popUpShell.setBackgroundMode(SWT.INHERIT_DEFAULT);
+        _livePopups++;
         
         popUpShell.addListener(SWT.Dispose, new Listener() {
             @Override
             public void handleEvent(Event event) {
                 _activeShells.remove(popUpShell);
+                // stop its fade, if any
+                _animator.cancel(popUpShell);
+                if (_removalListener != null) {
+                    _removalListener.popupRemoved(message, popUpShell.getData(CLOSED_BY_USER) != null);
+                }
+                // the hidden shell goes away with its popup, once the popup is gone
+                _display.asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!_hiddenShell.isDisposed()) _hiddenShell.dispose();
+                        // the fonts replaced by a preferences change are no more used
+                        if (--_livePopups == 0) _resources.disposeRetiredFonts();
+                    }
+                });
             }
         });
 
@@ -144,35 +199,34 @@ public class NotifierDialog {
         gl.marginWidth = MARGIN;
 
         inner.setLayout(gl);
-        popUpShell.addListener(SWT.Resize, new Listener() {
+        Listener backgroundListener = new Listener() {
+            // the background image the popup is showing
+            private Image background;
+
             @Override
             public void handleEvent(Event e) {
                 try {
-                    // get the size of the drawing area
-                    Rectangle rect = popUpShell.getClientArea();
-                    // create a new image with that size
-                    Image newImage = new Image(Display.getDefault(), Math.max(1, rect.width), rect.height);
-                    // create a GC object we can use to draw with
-                    GC gc = new GC(newImage);
-                    gc.setAdvanced(true);
-                    gc.setAntialias(SWT.ON);
-                    // fill background
-                    gc.setForeground(_bgFgGradient);
-                    gc.setBackground(_bgBgGradient);
-                    gc.fillGradientRectangle(rect.x, rect.y, rect.width, rect.height, true);
-                    // draw shell edge
-                    gc.setLineWidth(BORDER);
-                    gc.setForeground(_borderColor);
-                    gc.drawRectangle(rect.x + 1, rect.y + 1, rect.width - BORDER, rect.height - BORDER);
-                    // remember to dispose the GC object!
-                    gc.dispose();
-                    // now set the background image on the shell
-                    popUpShell.setBackgroundImage(newImage);
+                    Image oldImage = background;
+                    if (e.type == SWT.Resize) {
+                        // get the size of the drawing area
+                        Rectangle rect = popUpShell.getClientArea();
+                        // get the background image having that size
+                        background = _resources.acquireBackground(rect.width, rect.height,
+                                BG_TOP_RGB, BG_BOTTOM_RGB, BORDER_RGB, BORDER);
+                        // now set the background image on the shell
+                        popUpShell.setBackgroundImage(background);
+                    } else {
+                        background = null;
+                    }
+                    // the old background may be shared, give it back
+                    if (oldImage != null) _resources.releaseBackground(oldImage);
                 } catch (Exception err) {
                     err.printStackTrace();
                 }
             }
-        });
+        };
+        popUpShell.addListener(SWT.Resize, backgroundListener);
+        popUpShell.addListener(SWT.Dispose, backgroundListener);
 
         // add the image to the popup
         CLabel imgLabel = new CLabel(inner, SWT.NONE);
@@ -180,13 +234,14 @@ public class NotifierDialog {
         glimg.verticalSpan = 2;
         imgLabel.setLayoutData(glimg);
 
-        // loads the scaled version of the default icon image if the passed one is null
-        if (imageData == null)
-        { 
-        	imageData = new DrinImageLoader("icon.png").getScaled(Constants.ICON_SIZE);
-        }        
-        // and put it in the popup
-        imgLabel.setImage( new Image (_display, new ImageData(new ByteArrayInputStream(imageData))) );
+        // put the image in the popup, releasing it when the popup goes away
+        imgLabel.setImage(image);
+        popUpShell.addListener(SWT.Dispose, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                _images.release(image);
+            }
+        });
         
         // minimum popup height is the height of the image
         int minHeight = Constants.ICON_SIZE+(MARGIN*2)+(BORDER*2); // img. height + margin *2 + border *2
@@ -198,7 +253,9 @@ public class NotifierDialog {
         titleLabel.setForeground(_titleFgColor);
         titleLabel.setTopMargin(15);
         // Set title font
-        titleLabel.setFont(new Font(_display, DrinViewer.getNotificationFont(_display, true)));
+        titleLabel.setFont(_resources.getFont(true));
+        // keep the label to look for and change the popup title
+        popUpShell.setData(TITLE_LABEL, titleLabel);
         
         // compute popup width basing on how long the title is
         // adding an extra "X" char for safety...
@@ -212,7 +269,7 @@ public class NotifierDialog {
         // add text to the popup
         Label text = new Label(inner, SWT.WRAP);
         // set text font
-        text.setFont(new Font(_display, DrinViewer.getNotificationFont(_display, false)));
+        text.setFont(_resources.getFont(false));
         GridData gd = new GridData(GridData.FILL_BOTH);
         text.setLayoutData(gd);
         text.setForeground(_fgColor);
@@ -244,6 +301,7 @@ public class NotifierDialog {
 			@Override
 			public void handleEvent(Event event) {
 				if (event.type == SWT.MouseUp) {
+					popUpShell.setData(CLOSED_BY_USER, Boolean.TRUE);
 					removeNotify(title, message);
 				}
 			}        	
@@ -367,10 +425,57 @@ public class NotifierDialog {
      * @param isTestNotify true if is the test notification popup
      * 
      */
+	@Override
 	public void notify(String title, String message, byte[] imageData, boolean isTestNotify) {
+		notify(buildPopUp(title, message, imageData), isTestNotify);
+	}
 
-		// get the popup
-		_shell = buildPopUp(title, message, imageData);
+    /**
+     * show the DrinViewer popup with an image already decoded and scaled,
+     * disappearing after DISPLAY_TIME secs with fadeIn and fadeOut effect
+     * 
+     * @param title title of the popup
+     * @param message message of the popup
+     * @param image image of the popup, null for the default icon
+     * @param imageHash hash of the encoded image, used to share it among the popups
+     * @param isTestNotify true if is the test notification popup
+     * 
+     */
+	@Override
+	public void notify(String title, String message, ImageData image, String imageHash, boolean isTestNotify) {
+		notify(buildPopUp(title, message, _images.acquire(imageHash, image)), isTestNotify);
+	}
+
+    /**
+     * show the popup of an event, disappearing after DISPLAY_TIME
+     * secs with fadeIn and fadeOut effect, timing its build and visible stages
+     * 
+     * @param event the event, a DecodedDrinEvent if its image has been decoded
+     * @param isTestNotify true if is the test notification popup
+     * 
+     */
+	@Override
+	public void notify(IncomingDrinEvent event, boolean isTestNotify) {
+		Shell popup;
+		if (event instanceof DecodedDrinEvent) {
+			popup = buildPopUp(event.title, event.message, _images.acquire(event.imageHash, ((DecodedDrinEvent) event).image));
+		} else {
+			popup = buildPopUp(event.title, event.message, event.imageData);
+		}
+		event.stamp(IncomingDrinEvent.STAGE_BUILD);
+		notify(popup, isTestNotify);
+		event.stamp(IncomingDrinEvent.STAGE_VISIBLE);
+	}
+
+    /**
+     * places the popup on top of the active ones and fades it in
+     * 
+     * @param popup the popup built by buildPopUp
+     * @param isTestNotify true if is the test notification popup
+     */
+	private void notify(Shell popup, boolean isTestNotify) {
+
+		_shell = popup;
 		
 		if (_display == null || _shell == null) { return ; }
 		
@@ -434,114 +539,88 @@ public class NotifierDialog {
         _shell.setAlpha(0);
         _shell.setVisible(true);
         _activeShells.add(_shell);
-        fadeIn(_shell, isTestNotify);
+        _animator.fadeIn(_shell, isTestNotify ? TEST_DISPLAY_TIME : DISPLAY_TIME);
     }
     
-	/**
-	 * fades in the popup notificaition
-	 * 
-	 * @param _shell the popup to be faded
-	 * @param isTestNotify true if is the test notification popup
-	 */
-    private void fadeIn(final Shell _shell, final boolean isTestNotify) {
-        Runnable run = new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    if (_shell == null || _shell.isDisposed()) { return; }
-
-                    int cur = _shell.getAlpha();
-                    cur += FADE_IN_STEP;
-
-                    if (cur > FINAL_ALPHA) {
-                        _shell.setAlpha(FINAL_ALPHA);
-                        startTimer(_shell, isTestNotify);
-                        return;
-                    }
-
-                    _shell.setAlpha(cur);
-                    Display.getDefault().timerExec(FADE_TIMER, this);
-                } catch (Exception err) {
-                    err.printStackTrace();
-                }
-            }
-
-        };
-        Display.getDefault().timerExec(FADE_TIMER, run);
+    /**
+     * tells if a popup with the passed title and message is shown
+     * 
+     * @param title title of the popup
+     * @param message message of the popup
+     * @return true if it's shown
+     */
+    @Override
+    public boolean isShown(String title, String message) {
+        Shell shell = findShell(message);
+        if (shell == null) return false;
+        String shownTitle = ((CLabel) shell.getData(TITLE_LABEL)).getText();
+        return (title == null) ? shownTitle == null : title.equals(shownTitle);
     }
-
+    
     /**
-     * delays the fadeout on the popup to be removed
+     * changes the title of a popup being shown
      * 
-     * @param _shell the popup to be faded
-	 * @param isTestNotify true if is the test notification popup
+     * @param message message of the popup
+     * @param title the new title
+     * @return true if the popup was found
      */
-    private void startTimer(final Shell _shell, boolean isTestNotify) {
-        Runnable run = new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    if (_shell == null || _shell.isDisposed()) { return; }
-
-                    fadeOut(_shell);
-                } catch (Exception err) {
-                    err.printStackTrace();
-                }
-            }
-
-        };
-        Display.getDefault().timerExec(isTestNotify ? TEST_DISPLAY_TIME : DISPLAY_TIME, run);
-
+    @Override
+    public boolean setTitle(String message, String title) {
+        Shell shell = findShell(message);
+        if (shell == null) return false;
+        ((CLabel) shell.getData(TITLE_LABEL)).setText(title);
+        return true;
     }
-
+    
     /**
-     * fades out the popup notification
+     * sets who's told when a popup goes away
      * 
-     * @param _shell the popup to be faded
+     * @param listener the listener, null for no one
      */
-    private void fadeOut(final Shell _shell) {
-    	
-        final Runnable run = new Runnable() {
-        	
-            @Override
-            public void run() {
-                try {
-                    if (_shell == null || _shell.isDisposed()) { return; }
-
-                    int cur = _shell.getAlpha();
-                    cur -= FADE_OUT_STEP;
-
-                    if (cur <= 0) {
-                    	_shell.setVisible(false);
-                        _shell.setAlpha(0);
-                        
-                        removeShell(_shell);
-                        return;
-                    }
-
-                    _shell.setAlpha(cur);
-                    
-                    if (cur != _shell.getAlpha()) {
-                    	/**
-                    	 * shell alpha did not change, remove it without fadeOut
-                    	 */
-                    	removeShell(_shell);
-                    } else {
-                    	/**
-                    	 * go on with fadeOut effect
-                    	 */
-                    	Display.getDefault().timerExec(FADE_TIMER, this);
-                    }
-
-                } catch (Exception err) {
-                    err.printStackTrace();
-                }
-            }
-
-        };
-        Display.getDefault().timerExec(FADE_TIMER, run);
+    @Override
+    public void setRemovalListener(RemovalListener listener) {
+        _removalListener = listener;
+    }
+    
+    /**
+     * @return number of popups being shown
+     */
+    @Override
+    public int getShownCount() {
+        return _activeShells.size();
+    }
+    
+    /**
+     * gets the number of popups built and not yet disposed, fading out
+     * ones included, that unlike getShownCount can be called by any thread
+     * 
+     * @return number of live popups
+     */
+    public int getLivePopups() {
+        return _livePopups;
+    }
+    
+    /**
+     * looks for the active shell showing the passed message
+     * 
+     * @param message message of the popup
+     * @return the shell or null if none is found
+     */
+    private Shell findShell(String message) {
+        if (message == null) return null;
+        for (Shell shell : _activeShells) {
+            if (shell.getText().equalsIgnoreCase(message)) return shell;
+        }
+        return null;
+    }
+    
+    /**
+     * gets the animator fading the popups
+     * 
+     * @return the PopupAnimator
+     */
+    PopupAnimator getAnimator() {
+        return _animator;
     }
     
     /**
@@ -555,6 +634,17 @@ public class NotifierDialog {
         return;
     }
     
+    /**
+     * stops the animations and disposes the images, fonts and colors held for the popups,
+     * to be called when the dialog is no more used
+     */
+    public void dispose() {
+        _removalListener = null;
+        _animator.dispose();
+        _images.dispose();
+        _resources.dispose();
+    }
+    
     /**
      * looks like SWT does not propagate the events,
      * so event listener must be added for each Composite child
@@ -587,16 +677,13 @@ public class NotifierDialog {
      * @param message message of the popup
      * 
      */
+	@Override
 	public void removeNotify(String title, String message) {
 		if (!_activeShells.isEmpty()) {
 			if (message!=null) {
 				// look for active shell to be removed
-				for (Shell shell : _activeShells) {
-					if (shell.getText().equalsIgnoreCase(message)) {
-						removeShell (shell);
-						break;
-					}
-				}				
+				Shell shell = findShell(message);
+				if (shell != null) removeShell (shell);
 			} else {
 				// remove last active shell
 	            removeShell(_activeShells.get(_activeShells.size()-1));
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * in memory copy of the paired devices uuids, loaded from the
+ * ServerDBManager once and then kept in sync by writing every
+ * change through to the database.
+ *
+ * Being the whole hosts table loaded and every pairing change
+ * going through here, an uuid not in the set is an unpaired one
+ * and the discovery is answered without touching the database.
+ * This is a singleton, this is why it has a holder class below
+ *
+ * @author giorgio
+ *
+ */
+public class PairingRegistry {
+	/**
+	 * uuids of the paired devices
+	 *
+	 */
+	private final Set<String> paired = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * the database the changes are written to
+	 *
+	 */
+	private final ServerDBManager db;
+
+	/**
+	 * instantiates the registry loading the paired uuids
+	 *
+	 * @param db the database to load them from
+	 */
+	public PairingRegistry(ServerDBManager db) {
+		this.db = db;
+		ArrayList<String> uuids = db.getPairedDevices();
+		if (uuids != null) paired.addAll(uuids);
+	}
+
+	/**
+	 * checks if the passed uuid belongs to a paired device
+	 *
+	 * @param uuid the uuid to be checked, may be null
+	 * @return true if paired
+	 */
+	public boolean isPaired(String uuid) {
+		return uuid != null && paired.contains(uuid);
+	}
+
+	/**
+	 * pairs a device, storing its uuid in the database
+	 *
+	 * @param uuid the uuid of the device
+	 */
+	public synchronized void pairHost(String uuid) {
+		if (!paired.contains(uuid)) {
+			db.pairHost(uuid);
+			paired.add(uuid);
+		}
+	}
+
+	/**
+	 * unpairs a device, removing its uuid from the database
+	 *
+	 * @param uuid the uuid of the device
+	 */
+	public synchronized void unpairHost(String uuid) {
+		if (paired.contains(uuid)) {
+			db.unpairHost(uuid);
+			paired.remove(uuid);
+		}
+	}
+
+	/**
+	 * gets the list of the paired devices uuids
+	 *
+	 * @return the uuids, null if there are no paired devices
+	 */
+	public ArrayList<String> getPairedDevices() {
+		ArrayList<String> uuids = new ArrayList<String>(paired);
+		Collections.sort(uuids);
+		return (uuids.size() > 0) ? uuids : null;
+	}
+
+	/**
+	 * gets the singleton instance
+	 *
+	 * @return PairingRegistry
+	 */
+	public static PairingRegistry getInstance() {
+		return registryHolder.INSTANCE;
+	}
+
+	/**
+	 * holder class for the singleton implementation
+	 *
+	 * @author giorgio
+	 *
+	 */
+	private static class registryHolder {
+		private static final PairingRegistry INSTANCE = new PairingRegistry(ServerDBManager.getInstance());
+	}
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+
+/**
+ * drives the fade in, display time and fade out of all the popups
+ * with a single timer: every frame advances the alpha of all the
+ * fading popups. When no popup is fading the timer is set to the
+ * first popup to be faded out, and when there are no popups at all
+ * there's no timer.
+ *
+ * This is not thread safe, it must be used on the UI thread.
+ *
+ * @author giorgio
+ *
+ */
+public class PopupAnimator {
+	/**
+	 * told when a popup has been faded out
+	 */
+	public interface AnimationListener {
+		/**
+		 * the popup has been faded out, or its alpha
+		 * cannot be changed, and can be removed
+		 *
+		 * @param shell the popup
+		 */
+		public void fadedOut(Shell shell);
+	}
+
+	/**
+	 * the animation states
+	 */
+	private static final int FADING_IN = 0;
+	private static final int SHOWN = 1;
+	private static final int FADING_OUT = 2;
+
+	/**
+	 * a popup being animated
+	 */
+	private static class Animation {
+		final Shell shell;
+		final long displayTime;
+		int state = FADING_IN;
+		// when the popup must start fading out, in nanoseconds
+		long fadeOutAt;
+
+		Animation(Shell shell, long displayTime) {
+			this.shell = shell;
+			this.displayTime = displayTime;
+		}
+	}
+
+	private final Display display;
+	private final AnimationListener listener;
+
+	/**
+	 * the frame length, in milliseconds
+	 */
+	private final int frameTime;
+	private final int fadeInStep;
+	private final int fadeOutStep;
+	private final int finalAlpha;
+
+	private final List<Animation> animations = new ArrayList<Animation>();
+
+	/**
+	 * the popups faded out by the last frame, reused
+	 */
+	private final List<Shell> fadedOut = new ArrayList<Shell>();
+
+	/**
+	 * the next frame, and when it's going to run, in nanoseconds
+	 */
+	private final Runnable frame = new Runnable() {
+		@Override
+		public void run() {
+			scheduled = false;
+			runFrame();
+		}
+	};
+	private boolean scheduled = false;
+	private long scheduledAt;
+
+	/**
+	 * the frames run and the UI thread time they took
+	 */
+	private long frames;
+	private long frameNanos;
+	private long maxFrameNanos;
+
+	/**
+	 * instantiate the animator
+	 *
+	 * @param display the display running the animations
+	 * @param frameTime the frame length, in milliseconds
+	 * @param fadeInStep the alpha added at each fade in frame
+	 * @param fadeOutStep the alpha subtracted at each fade out frame
+	 * @param finalAlpha the alpha of a popup that has faded in
+	 * @param listener told when a popup has been faded out
+	 */
+	public PopupAnimator(Display display, int frameTime, int fadeInStep, int fadeOutStep, int finalAlpha, AnimationListener listener) {
+		this.display = display;
+		this.frameTime = frameTime;
+		this.fadeInStep = fadeInStep;
+		this.fadeOutStep = fadeOutStep;
+		this.finalAlpha = finalAlpha;
+		this.listener = listener;
+	}
+
+	/**
+	 * starts fading in a popup, that will be faded out after being
+	 * fully shown for displayTime. The popup alpha should be 0
+	 *
+	 * @param shell the popup
+	 * @param displayTime how long the popup is shown, in milliseconds
+	 */
+	public void fadeIn(Shell shell, int displayTime) {
+		cancel(shell);
+		animations.add(new Animation(shell, displayTime * 1000000L));
+		schedule(System.nanoTime(), frameTime * 1000000L);
+	}
+
+	/**
+	 * starts fading out a popup right now
+	 *
+	 * @param shell the popup
+	 */
+	public void fadeOut(Shell shell) {
+		for (Animation animation : animations) {
+			if (animation.shell == shell) {
+				animation.state = FADING_OUT;
+				schedule(System.nanoTime(), frameTime * 1000000L);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * stops animating a popup, e.g. because it's being removed.
+	 * The listener is not told
+	 *
+	 * @param shell the popup
+	 */
+	public void cancel(Shell shell) {
+		for (int i = 0; i < animations.size(); i++) {
+			if (animations.get(i).shell == shell) {
+				animations.remove(i);
+				break;
+			}
+		}
+		if (animations.isEmpty()) stop();
+	}
+
+	/**
+	 * gets the number of popups being animated
+	 *
+	 * @return the number of popups
+	 */
+	public int size() {
+		return animations.size();
+	}
+
+	/**
+	 * tells if the animator has a frame scheduled
+	 *
+	 * @return true if it's running
+	 */
+	public boolean isRunning() {
+		return scheduled;
+	}
+
+	/**
+	 * gets the number of frames run
+	 *
+	 * @return the frames
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * gets the mean UI thread time of a frame
+	 *
+	 * @return the mean time, in nanoseconds
+	 */
+	public long getMeanFrameTime() {
+		return (frames == 0) ? 0 : frameNanos / frames;
+	}
+
+	/**
+	 * gets the max UI thread time of a frame
+	 *
+	 * @return the max time, in nanoseconds
+	 */
+	public long getMaxFrameTime() {
+		return maxFrameNanos;
+	}
+
+	/**
+	 * resets the frame counters
+	 */
+	public void resetStats() {
+		frames = frameNanos = maxFrameNanos = 0;
+	}
+
+	/**
+	 * stops all the animations
+	 */
+	public void dispose() {
+		animations.clear();
+		stop();
+	}
+
+	/**
+	 * advances all the animations
+	 */
+	private void runFrame() {
+		long start = System.nanoTime();
+		long frameLength = frameTime * 1000000L;
+		// how long till the next frame is needed
+		long next = Long.MAX_VALUE;
+
+		for (int i = 0; i < animations.size(); i++) {
+			Animation animation = animations.get(i);
+			Shell shell = animation.shell;
+			if (shell.isDisposed()) {
+				animations.remove(i--);
+				continue;
+			}
+
+			if (animation.state == FADING_IN) {
+				int alpha = shell.getAlpha() + fadeInStep;
+				if (alpha > finalAlpha) {
+					shell.setAlpha(finalAlpha);
+					animation.state = SHOWN;
+					animation.fadeOutAt = start + animation.displayTime;
+					next = Math.min(next, animation.displayTime);
+				} else {
+					shell.setAlpha(alpha);
+					next = frameLength;
+				}
+			} else if (animation.state == SHOWN) {
+				if (start >= animation.fadeOutAt) {
+					// start fading out with the next frame
+					animation.state = FADING_OUT;
+					next = frameLength;
+				} else {
+					next = Math.min(next, animation.fadeOutAt - start);
+				}
+			} else {
+				int alpha = shell.getAlpha() - fadeOutStep;
+				if (alpha <= 0) {
+					shell.setVisible(false);
+					shell.setAlpha(0);
+					fadedOut.add(shell);
+					animations.remove(i--);
+				} else {
+					shell.setAlpha(alpha);
+					if (alpha != shell.getAlpha()) {
+						// shell alpha did not change, remove it without fadeOut
+						fadedOut.add(shell);
+						animations.remove(i--);
+					} else {
+						next = frameLength;
+					}
+				}
+			}
+		}
+
+		if (!animations.isEmpty()) schedule(start, Math.max(next, frameLength));
+
+		long elapsed = System.nanoTime() - start;
+		frames++;
+		frameNanos += elapsed;
+		if (elapsed > maxFrameNanos) maxFrameNanos = elapsed;
+
+		// the listener may remove or add popups
+		for (int i = 0; i < fadedOut.size(); i++) {
+			try {
+				listener.fadedOut(fadedOut.get(i));
+			} catch (Exception err) {
+				err.printStackTrace();
+			}
+		}
+		fadedOut.clear();
+	}
+
+	/**
+	 * makes the next frame run after delay, unless it's going to run before
+	 */
+	private void schedule(long now, long delay) {
+		long at = now + delay;
+		if (scheduled) {
+			if (scheduledAt <= at) return;
+			// the new animation needs a frame before the scheduled one
+			display.timerExec(-1, frame);
+		}
+		display.timerExec((int) Math.max(1, delay / 1000000L), frame);
+		scheduled = true;
+		scheduledAt = at;
+	}
+
+	private void stop() {
+		if (scheduled && !display.isDisposed()) display.timerExec(-1, frame);
+		scheduled = false;
+	}
+}
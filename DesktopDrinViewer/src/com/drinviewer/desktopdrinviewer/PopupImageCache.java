@@ -0,0 +1,228 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinEventCodec;
+
+/**
+ * cache of the images shown by the popups: the default icon is
+ * scaled and turned into an Image once and lives as long as the
+ * cache, the caller images are decoded once, or come already
+ * decoded, keyed by the hash of their content, and shared by all
+ * the popups showing them.
+ * Every acquired image must be released, a caller image is
+ * disposed when the last popup showing it releases it.
+ *
+ * This is not thread safe, it must be used on the UI thread.
+ *
+ * @author giorgio
+ *
+ */
+public class PopupImageCache {
+	/**
+	 * a caller image and the number of popups showing it
+	 */
+	private static class Entry {
+		final String hash;
+		final Image image;
+		int refs;
+
+		Entry(String hash, Image image) {
+			this.hash = hash;
+			this.image = image;
+		}
+	}
+
+	private final Display display;
+
+	/**
+	 * the scaled default icon, built when it's first needed
+	 */
+	private Image defaultIcon;
+
+	/**
+	 * the caller images, by hash and by image
+	 */
+	private final Map<String, Entry> byHash = new HashMap<String, Entry>();
+	private final Map<Image, Entry> byImage = new IdentityHashMap<Image, Entry>();
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * instantiate the cache
+	 *
+	 * @param display the display the images are built for
+	 */
+	public PopupImageCache(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * gets the image to be shown, to be released when it's no more shown
+	 *
+	 * @param imageData the encoded caller image, null for the default icon
+	 * @return the image, the default icon if the caller image cannot be decoded
+	 */
+	public Image acquire(byte[] imageData) {
+		if (imageData == null) return getDefaultIcon();
+
+		String hash = DrinEventCodec.imageHash(imageData);
+		Image image = acquireCached(hash);
+		if (image != null) return image;
+		try {
+			return put(hash, new Image(display, new ImageData(new ByteArrayInputStream(imageData))));
+		} catch (SWTException e) {
+			// not an image SWT can decode, show the default icon
+			System.err.println(this.getClass().getName() + ": " + e.getMessage());
+			return getDefaultIcon();
+		}
+	}
+
+	/**
+	 * gets the image to be shown out of an image already decoded,
+	 * e.g. by the PopupImageDecoder, to be released when it's no more shown
+	 *
+	 * @param hash the hash of the encoded caller image
+	 * @param imageData the decoded caller image, null for the default icon
+	 * @return the image, the default icon if the caller image cannot be built
+	 */
+	public Image acquire(String hash, ImageData imageData) {
+		if (imageData == null || hash == null) return getDefaultIcon();
+
+		Image image = acquireCached(hash);
+		if (image != null) return image;
+		try {
+			return put(hash, new Image(display, imageData));
+		} catch (SWTException e) {
+			System.err.println(this.getClass().getName() + ": " + e.getMessage());
+			return getDefaultIcon();
+		}
+	}
+
+	/**
+	 * acquires a caller image that's already there
+	 *
+	 * @return the image, null if it's not there
+	 */
+	private Image acquireCached(String hash) {
+		Entry entry = byHash.get(hash);
+		if (entry == null) return null;
+		hits++;
+		entry.refs++;
+		return entry.image;
+	}
+
+	/**
+	 * adds a caller image and acquires it
+	 *
+	 * @return the image
+	 */
+	private Image put(String hash, Image image) {
+		Entry entry = new Entry(hash, image);
+		byHash.put(hash, entry);
+		byImage.put(image, entry);
+		misses++;
+		entry.refs++;
+		return image;
+	}
+
+	/**
+	 * releases an acquired image, disposing it if no
+	 * popup is showing it anymore
+	 *
+	 * @param image the image returned by acquire
+	 */
+	public void release(Image image) {
+		Entry entry = byImage.get(image);
+		// the default icon stays
+		if (entry == null) return;
+
+		if (--entry.refs == 0) {
+			byImage.remove(image);
+			byHash.remove(entry.hash);
+			entry.image.dispose();
+		}
+	}
+
+	/**
+	 * gets the default icon, scaled to the popup icon size
+	 *
+	 * @return the default icon
+	 */
+	public Image getDefaultIcon() {
+		if (defaultIcon == null || defaultIcon.isDisposed()) {
+			defaultIcon = new Image(display, new DrinImageLoader("icon.png").getScaledFrame(Constants.ICON_SIZE));
+		}
+		return defaultIcon;
+	}
+
+	/**
+	 * gets the number of caller images being shown
+	 *
+	 * @return the number of images
+	 */
+	public int size() {
+		return byHash.size();
+	}
+
+	/**
+	 * gets the number of caller images found already decoded
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * gets the number of caller images that have been decoded
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * disposes all the images, the cache can still be used after this
+	 */
+	public void dispose() {
+		for (Entry entry : byHash.values()) entry.image.dispose();
+		byHash.clear();
+		byImage.clear();
+		if (defaultIcon != null) {
+			defaultIcon.dispose();
+			defaultIcon = null;
+		}
+	}
+}
@@ -0,0 +1,395 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.swt.graphics.ImageData;
+
+import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinEventCodec;
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * stage between the server and the popups decoding the caller images
+ * off the UI thread: the SHOWs carrying an image are handed to a small
+ * pool of threads that validate, decode and scale the image and pass
+ * the next listener a DecodedDrinEvent, so that the UI thread only has
+ * to turn a scaled ImageData into an Image. The other events are
+ * passed on right away.
+ *
+ * An image is not shown, and the popup gets the default icon, if it's
+ * bigger than maxBytes, if its header does not tell a PNG, JPEG, GIF or
+ * BMP image of at most maxPixels, if it cannot be decoded, or if the
+ * pool queue is full. A REMOVE cancels the SHOWs with its message still
+ * being decoded. The last images decoded are kept, so that a line
+ * ringing on several phones decodes the caller image once.
+ *
+ * handleDrin is thread safe.
+ *
+ * @author giorgio
+ *
+ */
+public class PopupImageDecoder implements IncomingDrinListener, Closeable {
+	/**
+	 * number of decoded images kept
+	 */
+	private static final int DECODED_CACHE_SIZE = 16;
+
+	/**
+	 * a SHOW whose image is being decoded
+	 */
+	private class Task implements Runnable {
+		final IncomingDrinEvent event;
+		// guarded by inFlight
+		boolean cancelled = false;
+
+		Task(IncomingDrinEvent event) {
+			this.event = event;
+		}
+
+		@Override
+		public void run() {
+			String hash = null;
+			ImageData image = null;
+			if (!isCancelled(this)) {
+				hash = (event.imageHash != null) ? event.imageHash : DrinEventCodec.imageHash(event.imageData);
+				image = decode(event.imageData, hash);
+			}
+			synchronized (inFlight) {
+				inFlight.remove(this);
+				if (cancelled) {
+					cancelledCount.incrementAndGet();
+					return;
+				}
+				// passed on holding the lock, so that a REMOVE can't get there first
+				next.handleDrin(new DecodedDrinEvent(event, image, (image != null) ? hash : null));
+			}
+		}
+	}
+
+	/**
+	 * where the events are passed on
+	 */
+	private final IncomingDrinListener next;
+
+	/**
+	 * the longest side of the scaled images
+	 */
+	private final int size;
+
+	private final int maxBytes;
+	private final int maxPixels;
+
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * the SHOWs being decoded, guarded by itself
+	 */
+	private final List<Task> inFlight = new ArrayList<Task>();
+
+	/**
+	 * the last images decoded by hash, least recently used first, guarded by itself
+	 */
+	private final LinkedHashMap<String, ImageData> decoded = new LinkedHashMap<String, ImageData>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ImageData> eldest) {
+			return size() > DECODED_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * the images decoded and the time it took, the ones found
+	 * already decoded, and the ones not shown
+	 */
+	private final AtomicLong decodedCount = new AtomicLong();
+	private final AtomicLong decodeNanos = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+
+	/**
+	 * instantiate the decoder
+	 *
+	 * @param next where the events are passed on
+	 * @param size the longest side of the scaled images
+	 * @param threads the number of decoding threads
+	 * @param queueSize the number of images waiting for a thread, beyond that they're not shown
+	 * @param maxBytes the max size of an encoded image
+	 * @param maxPixels the max number of pixels of an image
+	 */
+	public PopupImageDecoder(IncomingDrinListener next, int size, int threads, int queueSize, int maxBytes, int maxPixels) {
+		this.next = next;
+		this.size = size;
+		this.maxBytes = maxBytes;
+		this.maxPixels = maxPixels;
+		workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DrinViewer-image");
+						t.setDaemon(true);
+						// the UI thread comes first
+						t.setPriority(Thread.NORM_PRIORITY - 1);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * instantiate the decoder with the default settings,
+	 * scaling the images to Constants.ICON_SIZE
+	 *
+	 * @param next where the events are passed on
+	 */
+	public PopupImageDecoder(IncomingDrinListener next) {
+		this(next, Constants.ICON_SIZE, DesktopDrinViewerConstants.IMAGE_DECODER_THREADS,
+				DesktopDrinViewerConstants.IMAGE_DECODER_QUEUE_SIZE,
+				DesktopDrinViewerConstants.MAX_IMAGE_SIZE, DesktopDrinViewerConstants.MAX_IMAGE_PIXELS);
+	}
+
+	@Override
+	public void handleDrin(IncomingDrinEvent event) {
+		if (event.action == Constants.REMOVE_POPUP) {
+			synchronized (inFlight) {
+				if (event.message != null) {
+					for (Task task : inFlight) {
+						if (event.message.equalsIgnoreCase(task.event.message)) task.cancelled = true;
+					}
+				}
+				next.handleDrin(event);
+			}
+			return;
+		}
+
+		if (event.imageData == null || (event.action != Constants.SHOW_POPUP && event.action != Constants.SHOW_PAIRED)) {
+			next.handleDrin(event);
+			return;
+		}
+
+		Task task = new Task(event);
+		synchronized (inFlight) {
+			inFlight.add(task);
+		}
+		try {
+			workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			// too many images waiting, show the default icon
+			rejected.incrementAndGet();
+			synchronized (inFlight) {
+				inFlight.remove(task);
+				next.handleDrin(new DecodedDrinEvent(event, null, null));
+			}
+		}
+	}
+
+	/**
+	 * stops the decoding threads, the images still to be decoded are dropped
+	 */
+	@Override
+	public void close() {
+		workers.shutdownNow();
+	}
+
+	/**
+	 * gets the number of images decoded
+	 *
+	 * @return the images
+	 */
+	public long getDecoded() {
+		return decodedCount.get();
+	}
+
+	/**
+	 * gets the mean time to validate, decode and scale an image
+	 *
+	 * @return the mean time, in nanoseconds
+	 */
+	public long getMeanDecodeTime() {
+		long count = decodedCount.get();
+		return (count == 0) ? 0 : decodeNanos.get() / count;
+	}
+
+	/**
+	 * gets the number of images found already decoded
+	 *
+	 * @return the images
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * gets the number of images too big or that could not be decoded
+	 *
+	 * @return the images
+	 */
+	public long getInvalid() {
+		return invalid.get();
+	}
+
+	/**
+	 * gets the number of images not decoded because the queue was full
+	 *
+	 * @return the images
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * gets the number of SHOWs cancelled by a REMOVE while decoding their image
+	 *
+	 * @return the SHOWs
+	 */
+	public long getCancelled() {
+		return cancelledCount.get();
+	}
+
+	private boolean isCancelled(Task task) {
+		synchronized (inFlight) {
+			return task.cancelled;
+		}
+	}
+
+	/**
+	 * validates, decodes and scales an image
+	 *
+	 * @param data the encoded image
+	 * @param hash the hash of the encoded image
+	 * @return the scaled first frame, null if the image can't be shown
+	 */
+	private ImageData decode(byte[] data, String hash) {
+		synchronized (decoded) {
+			ImageData image = decoded.get(hash);
+			if (image != null) {
+				hits.incrementAndGet();
+				return image;
+			}
+		}
+
+		long start = System.nanoTime();
+		int[] dimensions = (data.length <= maxBytes) ? readSize(data) : null;
+		if (dimensions == null || dimensions[0] <= 0 || dimensions[1] <= 0
+				|| (long) dimensions[0] * dimensions[1] > maxPixels) {
+			invalid.incrementAndGet();
+			return null;
+		}
+
+		ImageData image;
+		try {
+			DrinImageLoader loader = new DrinImageLoader(new ByteArrayInputStream(data));
+			image = loader.data[0];
+			// the images smaller than the icon are shown as they are
+			if (Math.max(image.width, image.height) > size) image = loader.getScaledFrame(size);
+		} catch (RuntimeException e) {
+			// SWTException or whatever a broken image makes the decoders throw
+			System.err.println(this.getClass().getName() + ": " + e.getMessage());
+			invalid.incrementAndGet();
+			return null;
+		}
+
+		decodeNanos.addAndGet(System.nanoTime() - start);
+		decodedCount.incrementAndGet();
+		synchronized (decoded) {
+			decoded.put(hash, image);
+		}
+		return image;
+	}
+
+	/**
+	 * reads the width and height of a PNG, JPEG, GIF or BMP
+	 * image out of its header, without decoding it
+	 *
+	 * @param data the encoded image
+	 * @return width and height, null if the format is not known or the header is broken
+	 */
+	static int[] readSize(byte[] data) {
+		int length = data.length;
+		if (length >= 24 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+			// IHDR is the first chunk
+			return new int[] { readInt(data, 16), readInt(data, 20) };
+		}
+		if (length >= 10 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
+			return new int[] { readShortLE(data, 6), readShortLE(data, 8) };
+		}
+		if (length >= 26 && data[0] == 'B' && data[1] == 'M') {
+			// height is negative for top down bitmaps
+			return new int[] { readIntLE(data, 18), Math.abs(readIntLE(data, 22)) };
+		}
+		if (length >= 4 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+			// look for the start of frame marker
+			int i = 2;
+			while (i + 3 < length) {
+				if ((data[i] & 0xFF) != 0xFF) return null;
+				int marker = data[i + 1] & 0xFF;
+				if (marker == 0xFF) {
+					// fill byte
+					i++;
+					continue;
+				}
+				if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+					// markers without a segment
+					i += 2;
+					continue;
+				}
+				int segment = readShort(data, i + 2);
+				if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+					if (i + 8 >= length) return null;
+					return new int[] { readShort(data, i + 7), readShort(data, i + 5) };
+				}
+				if (segment < 2) return null;
+				i += 2 + segment;
+			}
+		}
+		return null;
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	private static int readShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	private static int readIntLE(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+	}
+
+	private static int readShortLE(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import org.eclipse.swt.graphics.ImageData;
+
+import com.drinviewer.common.IncomingDrinEvent;
+
+/**
+ * the popups shown by the NotificationQueue, implemented by
+ * NotifierDialog. A popup is found by its message, as
+ * NotifierDialog.removeNotify does.
+ *
+ * This is not thread safe, it must be used on the UI thread.
+ *
+ * @author giorgio
+ *
+ */
+public interface PopupNotifier {
+	/**
+	 * told when a popup goes away, on the UI thread
+	 */
+	public interface RemovalListener {
+		/**
+		 * called when a popup is gone, removed by removeNotify,
+		 * clicked away by the user, faded out or pushed off the screen
+		 *
+		 * @param message message of the popup
+		 * @param closedByUser true if the user has clicked it away
+		 */
+		public void popupRemoved(String message, boolean closedByUser);
+	}
+
+	/**
+	 * sets who's told when a popup goes away
+	 *
+	 * @param listener the listener, null for no one
+	 */
+	public void setRemovalListener(RemovalListener listener);
+
+	/**
+	 * shows a popup
+	 *
+	 * @param title title of the popup
+	 * @param message message of the popup
+	 * @param imageData image of the popup as a byte array, null for the default icon
+	 * @param isTestNotify true if is the test notification popup
+	 */
+	public void notify(String title, String message, byte[] imageData, boolean isTestNotify);
+
+	/**
+	 * shows a popup with an image already decoded and scaled
+	 *
+	 * @param title title of the popup
+	 * @param message message of the popup
+	 * @param image image of the popup, null for the default icon
+	 * @param imageHash hash of the encoded image
+	 * @param isTestNotify true if is the test notification popup
+	 */
+	public void notify(String title, String message, ImageData image, String imageHash, boolean isTestNotify);
+
+	/**
+	 * shows the popup of an event, with its image decoded by the
+	 * PopupImageDecoder if it's a DecodedDrinEvent, and sets the
+	 * build and visible stage times of the event
+	 *
+	 * @param event the event
+	 * @param isTestNotify true if is the test notification popup
+	 */
+	public void notify(IncomingDrinEvent event, boolean isTestNotify);
+
+	/**
+	 * removes a popup
+	 *
+	 * @param title title of the popup
+	 * @param message message of the popup, null to remove the last popup shown
+	 */
+	public void removeNotify(String title, String message);
+
+	/**
+	 * tells if a popup with the passed title and message is shown
+	 *
+	 * @param title title of the popup
+	 * @param message message of the popup
+	 * @return true if it's shown
+	 */
+	public boolean isShown(String title, String message);
+
+	/**
+	 * changes the title of a popup being shown
+	 *
+	 * @param message message of the popup
+	 * @param title the new title
+	 * @return true if the popup was found
+	 */
+	public boolean setTitle(String message, String title);
+
+	/**
+	 * gets the number of popups being shown
+	 *
+	 * @return the number of popups
+	 */
+	public int getShownCount();
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.Font;
+import org.eclipse.swt.graphics.FontData;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.RGB;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * registry of the native resources used by the popups, so that
+ * they're not allocated for every popup:
+ *
+ * - colors, one for each RGB, living as long as the registry
+ * - the title and text fonts, built from the font preferences and
+ *   built again only when the preferences change. The fonts they
+ *   replace may still be used by some popup, they're disposed by
+ *   disposeRetiredFonts when no popup is shown
+ * - the popup background images, one for each size, shared by the
+ *   popups having that size and reference counted. A few of the
+ *   ones no popup is using are kept for the next popups
+ *
+ * This is not thread safe, it must be used on the UI thread.
+ *
+ * @author giorgio
+ *
+ */
+public class PopupResources {
+	/**
+	 * background images kept when no popup is using them
+	 */
+	private static final int MAX_IDLE_BACKGROUNDS = 4;
+
+	/**
+	 * what a background image looks like
+	 */
+	private static class BackgroundKey {
+		final int width;
+		final int height;
+		final RGB top;
+		final RGB bottom;
+		final RGB border;
+		final int borderWidth;
+
+		BackgroundKey(int width, int height, RGB top, RGB bottom, RGB border, int borderWidth) {
+			this.width = width;
+			this.height = height;
+			this.top = top;
+			this.bottom = bottom;
+			this.border = border;
+			this.borderWidth = borderWidth;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + width;
+			result = prime * result + height;
+			result = prime * result + top.hashCode();
+			result = prime * result + bottom.hashCode();
+			result = prime * result + border.hashCode();
+			result = prime * result + borderWidth;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof BackgroundKey)) return false;
+			BackgroundKey other = (BackgroundKey) obj;
+			return width == other.width && height == other.height && borderWidth == other.borderWidth
+					&& top.equals(other.top) && bottom.equals(other.bottom) && border.equals(other.border);
+		}
+	}
+
+	/**
+	 * a background image and the number of popups using it
+	 */
+	private static class Background {
+		final Image image;
+		int refs;
+
+		Background(Image image) {
+			this.image = image;
+		}
+	}
+
+	private final Display display;
+
+	private final Map<RGB, Color> colors = new HashMap<RGB, Color>();
+
+	/**
+	 * the current fonts and the font data they've been built from
+	 */
+	private Font titleFont;
+	private Font textFont;
+	private FontData titleFontData;
+	private FontData textFontData;
+
+	/**
+	 * the fonts replaced after a change of the preferences
+	 */
+	private final List<Font> retiredFonts = new ArrayList<Font>();
+
+	/**
+	 * the background images, least recently used first
+	 */
+	private final LinkedHashMap<BackgroundKey, Background> backgrounds = new LinkedHashMap<BackgroundKey, Background>(16, 0.75f, true);
+	private final Map<Image, Background> backgroundsByImage = new IdentityHashMap<Image, Background>();
+
+	/**
+	 * instantiate the registry
+	 *
+	 * @param display the display the resources are built for
+	 */
+	public PopupResources(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * gets a color
+	 *
+	 * @param rgb the color RGB
+	 * @return the color, not to be disposed
+	 */
+	public Color getColor(RGB rgb) {
+		Color color = colors.get(rgb);
+		if (color == null) {
+			color = new Color(display, rgb);
+			colors.put(rgb, color);
+		}
+		return color;
+	}
+
+	/**
+	 * gets the notification font set in the preferences,
+	 * see DrinViewer.getNotificationFont
+	 *
+	 * @param isTitle true to get the title font, false for the text one
+	 * @return the font, not to be disposed
+	 */
+	public Font getFont(boolean isTitle) {
+		FontData fontData = DrinViewer.getNotificationFont(display, isTitle)[0];
+		if (isTitle) {
+			if (titleFont == null || !fontData.equals(titleFontData)) {
+				if (titleFont != null) retiredFonts.add(titleFont);
+				titleFont = new Font(display, fontData);
+				titleFontData = fontData;
+			}
+			return titleFont;
+		} else {
+			if (textFont == null || !fontData.equals(textFontData)) {
+				if (textFont != null) retiredFonts.add(textFont);
+				textFont = new Font(display, fontData);
+				textFontData = fontData;
+			}
+			return textFont;
+		}
+	}
+
+	/**
+	 * gets a popup background: a vertical gradient with a border.
+	 * Every acquired background must be released
+	 *
+	 * @param width the background width
+	 * @param height the background height
+	 * @param top the gradient top color
+	 * @param bottom the gradient bottom color
+	 * @param border the border color
+	 * @param borderWidth the border width
+	 * @return the background image
+	 */
+	public Image acquireBackground(int width, int height, RGB top, RGB bottom, RGB border, int borderWidth) {
+		BackgroundKey key = new BackgroundKey(Math.max(1, width), Math.max(1, height), top, bottom, border, borderWidth);
+		Background background = backgrounds.get(key);
+		if (background == null) {
+			background = new Background(drawBackground(key));
+			backgrounds.put(key, background);
+			backgroundsByImage.put(background.image, background);
+		}
+		background.refs++;
+		return background.image;
+	}
+
+	/**
+	 * releases an acquired background
+	 *
+	 * @param image the image returned by acquireBackground
+	 */
+	public void releaseBackground(Image image) {
+		Background background = backgroundsByImage.get(image);
+		if (background == null) return;
+
+		if (--background.refs == 0) {
+			// dispose the least recently used backgrounds that are not used
+			int idle = 0;
+			for (Background b : backgrounds.values()) {
+				if (b.refs == 0) idle++;
+			}
+			for (Iterator<Background> it = backgrounds.values().iterator(); it.hasNext() && idle > MAX_IDLE_BACKGROUNDS;) {
+				Background b = it.next();
+				if (b.refs == 0) {
+					it.remove();
+					backgroundsByImage.remove(b.image);
+					b.image.dispose();
+					idle--;
+				}
+			}
+		}
+	}
+
+	private Image drawBackground(BackgroundKey key) {
+		Image image = new Image(display, key.width, key.height);
+		// create a GC object we can use to draw with
+		GC gc = new GC(image);
+		gc.setAdvanced(true);
+		gc.setAntialias(SWT.ON);
+		// fill background
+		gc.setForeground(getColor(key.top));
+		gc.setBackground(getColor(key.bottom));
+		gc.fillGradientRectangle(0, 0, key.width, key.height, true);
+		// draw shell edge
+		gc.setLineWidth(key.borderWidth);
+		gc.setForeground(getColor(key.border));
+		gc.drawRectangle(1, 1, key.width - key.borderWidth, key.height - key.borderWidth);
+		// remember to dispose the GC object!
+		gc.dispose();
+		return image;
+	}
+
+	/**
+	 * disposes the fonts replaced after a change of the
+	 * preferences, to be called when no popup is shown
+	 */
+	public void disposeRetiredFonts() {
+		for (Font font : retiredFonts) font.dispose();
+		retiredFonts.clear();
+	}
+
+	/**
+	 * gets the number of background images held
+	 *
+	 * @return the number of backgrounds
+	 */
+	public int getBackgroundCount() {
+		return backgrounds.size();
+	}
+
+	/**
+	 * disposes all the resources, the registry can still be used after this
+	 */
+	public void dispose() {
+		for (Background b : backgrounds.values()) b.image.dispose();
+		backgrounds.clear();
+		backgroundsByImage.clear();
+
+		for (Font font : retiredFonts) font.dispose();
+		retiredFonts.clear();
+		if (titleFont != null) titleFont.dispose();
+		if (textFont != null) textFont.dispose();
+		titleFont = textFont = null;
+		titleFontData = textFontData = null;
+
+		for (Color color : colors.values()) color.dispose();
+		colors.clear();
+	}
+}
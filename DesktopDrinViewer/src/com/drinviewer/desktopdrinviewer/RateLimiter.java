@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * token bucket rate limiter keyed by source: every source gets
+ * a bucket of burst tokens refilled at rate tokens per second,
+ * and each request takes one token or is refused.
+ *
+ * Only the most recently seen sources are tracked, the least
+ * recently seen one is forgotten when the table is full, which
+ * is the same as giving it a full bucket when it comes back.
+ *
+ * This is not thread safe, it's meant to be used by a single
+ * receiving thread.
+ *
+ * @author giorgio
+ *
+ * @param <K> the source key type
+ */
+public class RateLimiter<K> {
+	/**
+	 * tokens refilled every second, 0 to disable the limiter
+	 */
+	private final double rate;
+
+	/**
+	 * maximum number of tokens in a bucket
+	 */
+	private final double burst;
+
+	/**
+	 * buckets of the recently seen sources, least recently seen first
+	 */
+	private final LinkedHashMap<K, Bucket> buckets;
+
+	/**
+	 * instantiates the limiter
+	 *
+	 * @param rate requests per second allowed to every source, 0 to allow them all
+	 * @param burst requests a source can make at once after being quiet
+	 * @param maxSources number of sources to be tracked
+	 */
+	public RateLimiter(double rate, int burst, final int maxSources) {
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.buckets = new LinkedHashMap<K, Bucket>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Bucket> eldest) {
+				return size() > maxSources;
+			}
+		};
+	}
+
+	/**
+	 * takes a token from the source bucket
+	 *
+	 * @param source the source of the request
+	 * @param now the current System.nanoTime
+	 * @return true if the request is allowed
+	 */
+	public boolean tryAcquire(K source, long now) {
+		if (rate <= 0) return true;
+
+		Bucket bucket = buckets.get(source);
+		if (bucket == null) {
+			bucket = new Bucket(burst, now);
+			buckets.put(source, bucket);
+		} else {
+			bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * rate / 1e9);
+			bucket.lastRefill = now;
+		}
+
+		if (bucket.tokens < 1) return false;
+		bucket.tokens--;
+		return true;
+	}
+
+	/**
+	 * gets the number of tracked sources
+	 *
+	 * @return the number of sources
+	 */
+	public int size() {
+		return buckets.size();
+	}
+
+	/**
+	 * the tokens of a source
+	 */
+	private static class Bucket {
+		private double tokens;
+		private long lastRefill;
+
+		private Bucket(double tokens, long lastRefill) {
+			this.tokens = tokens;
+			this.lastRefill = lastRefill;
+		}
+	}
+}
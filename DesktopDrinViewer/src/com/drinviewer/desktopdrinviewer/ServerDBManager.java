@@ -30,12 +30,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.drinviewer.common.HostData;
 
 /**
  * class for managing the Server SQLiteDB 
  * 
+ * A single connection is opened when the class is instantiated
+ * and shared by every caller, with its statements prepared once.
+ * Reads run on the calling thread, writes are serialized on a
+ * dedicated thread and the callers wait for them to be committed.
+ * This is a singleton, this is why it has a holder class below
+ * 
  * @author giorgio
  */
 public class ServerDBManager {
@@ -56,6 +69,33 @@ public class ServerDBManager {
 	 */
 	private String appSavePath;
 	
+	/**
+	 * cached prepared statements
+	 */
+	private PreparedStatement selectHostStmt;
+	private PreparedStatement selectAllHostsStmt;
+	private PreparedStatement insertHostStmt;
+	private PreparedStatement deleteHostStmt;
+	
+	/**
+	 * number of queries and their total time in nanoseconds,
+	 * waiting for the connection included
+	 */
+	private final StripedCounter queries = new StripedCounter();
+	private final StripedCounter queryTime = new StripedCounter();
+	
+	/**
+	 * the thread where the writes are executed
+	 */
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "DrinViewer-db");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
 	/**
 	 * the filename of the database
 	 */
@@ -66,11 +106,62 @@ public class ServerDBManager {
 	 */
 	private static final String DB_VERSION = "0.0.1";
 
-	public ServerDBManager() {
-		appSavePath = DesktopDrinViewerConstants.getAppSaveDir();
+	/**
+	 * instantiates the class using the database
+	 * in the application save directory
+	 */
+	private ServerDBManager() {
+		this (DesktopDrinViewerConstants.getAppSaveDir());
+	}
+	
+	/**
+	 * instantiates the class using the database in
+	 * the passed directory, creating it if needed
+	 * 
+	 * @param appSavePath the directory of the database
+	 */
+	ServerDBManager(String appSavePath) {
+		this.appSavePath = appSavePath;
 		connectionString = "jdbc:sqlite:"+ appSavePath + "/" + DB_FILENAME;
-		createIfNotExists();		
-		if (!checkDBVersion()) updateDB();		
+		createIfNotExists();
+		c = getConnection();
+		if (c == null) System.exit(-1);
+		setPragmas();
+		if (!checkDBVersion()) updateDB();
+		prepareStatements();
+	}
+	
+	/**
+	 * sets the connection pragmas: the write ahead log lets the
+	 * reads go on while a write is being committed, and with it
+	 * a NORMAL synchronous mode is still safe for the database
+	 */
+	private void setPragmas() {
+		try {
+			Statement stmt = c.createStatement();
+			stmt.executeQuery("PRAGMA journal_mode=WAL").close();
+			stmt.executeUpdate("PRAGMA synchronous=NORMAL");
+			stmt.executeUpdate("PRAGMA temp_store=MEMORY");
+			stmt.close();
+		} catch (SQLException e) {
+			// the defaults are fine as well
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * prepares the statements used by the class methods
+	 */
+	private void prepareStatements() {
+		try {
+			selectHostStmt = c.prepareStatement("SELECT id FROM hosts WHERE uuid=?");
+			selectAllHostsStmt = c.prepareStatement("SELECT uuid FROM hosts");
+			insertHostStmt = c.prepareStatement("INSERT INTO hosts (uuid) VALUES (?)");
+			deleteHostStmt = c.prepareStatement("DELETE FROM hosts WHERE uuid=?");
+		} catch (SQLException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			System.exit(-1);
+		}
 	}
 	
 	/**
@@ -81,15 +172,11 @@ public class ServerDBManager {
 	 */
 	private void updateDB() {
 		// TODO: Implement db update logic when it shall be needed
-		c = getConnection();
 		Statement stmt = null;
 		try {
-			c.setAutoCommit(false);
 			stmt = c.createStatement();
 			stmt.executeUpdate("UPDATE version SET version='" + DB_VERSION + "'");
 			stmt.close();
-			c.commit();
-			c.close();
 		} catch (SQLException e) {
 			e.printStackTrace();			
 		}
@@ -105,7 +192,6 @@ public class ServerDBManager {
 		String  version = "0.0.0";
 		
 		try {
-			c = getConnection();
 			PreparedStatement prep = c.prepareStatement("SELECT * FROM version");
 
 			ResultSet rs = prep.executeQuery();
@@ -114,7 +200,6 @@ public class ServerDBManager {
 			}
 			rs.close();
 			prep.close();
-			c.close();
 			
 		} catch (Exception e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
@@ -176,26 +261,23 @@ public class ServerDBManager {
 	public ArrayList<String> getPairedDevices() {
 		
 		ArrayList<String> uuidList = new ArrayList<String>();
+		long start = System.nanoTime();
 		
 		try {
-			c = getConnection();
-			
-			PreparedStatement prep = c.prepareStatement("SELECT uuid FROM hosts");
-			
-			ResultSet rs = prep.executeQuery();
-			
-			while (rs.next()) {
-				uuidList.add(rs.getString("uuid"));
+			synchronized (c) {
+				ResultSet rs = selectAllHostsStmt.executeQuery();
+				
+				while (rs.next()) {
+					uuidList.add(rs.getString("uuid"));
+				}
+				
+				rs.close();
 			}
-			
-			rs.close();
-			prep.close();
-			c.close();
-			
 		} catch (SQLException e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
 			System.exit(-1);
 		}
+		countQuery(start);
 		
 		if (uuidList.size()>0) return uuidList;
 		else return null;		
@@ -208,59 +290,88 @@ public class ServerDBManager {
 	 * @return true if found
 	 */
 	public boolean isPaired (HostData hostData)
+	{
+		return isPaired(hostData.hostname);
+	}
+	
+	/**
+	 * checks if the passed uuid is found in the database
+	 * 
+	 * @param uuid the uuid to be checked
+	 * @return true if found
+	 */
+	public boolean isPaired (String uuid)
 	{
 		boolean isPaired = false;
+		long start = System.nanoTime();
 		
 		try {
-			c = getConnection();
-			
-			PreparedStatement prep = c.prepareStatement("SELECT id FROM hosts WHERE uuid=?");
-			prep.setString(1, hostData.hostname);
-			
-			ResultSet rs = prep.executeQuery(); 
-			
-			while (rs.next()) {
-				isPaired = (rs.getInt("id") > 0);
+			synchronized (c) {
+				selectHostStmt.setString(1, uuid);
+				
+				ResultSet rs = selectHostStmt.executeQuery(); 
+				
+				while (rs.next()) {
+					isPaired = (rs.getInt("id") > 0);
+				}
+				rs.close();
 			}
-			rs.close();
-			prep.close();
-			c.close();
 		} catch (SQLException e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
 			System.exit(-1);
 		}
+		countQuery(start);
 		return isPaired;
 	}
 	
+	/**
+	 * counts a query
+	 * 
+	 * @param start when the query started, as System.nanoTime
+	 */
+	private void countQuery(long start) {
+		queryTime.add(System.nanoTime() - start);
+		queries.increment();
+	}
+	
+	/**
+	 * gets the number of queries since the start
+	 * 
+	 * @return the queries
+	 */
+	public long getQueries() {
+		return queries.get();
+	}
+	
+	/**
+	 * gets the mean time of a query, waiting for the connection included
+	 * 
+	 * @return the mean query time in nanoseconds
+	 */
+	public long getMeanQueryTime() {
+		long count = queries.get();
+		return (count > 0) ? queryTime.get() / count : 0;
+	}
+	
 	/**
 	 * unpairs a host by removing its uuid from the database
 	 * 
 	 * @param uuid
 	 */
-	public void unpairHost (String uuid)
+	public void unpairHost (final String uuid)
 	{
-		if (isPaired(new HostData (uuid, "")))
-		{
-			c = getConnection();
-	
-			if (c != null) {
-				try {
-					c.setAutoCommit(false);
-					PreparedStatement prep = c.prepareStatement("DELETE FROM hosts WHERE uuid=?");
-					prep.setString(1, uuid);
-					
-					prep.executeUpdate(); 
-	
-					prep.close();
-					c.commit();
-					c.close();
-				} catch (Exception e) {
-					System.err.println(e.getClass().getName() + ": " + e.getMessage());
-					System.exit(-1);
+		write(new Callable<Void>() {
+			@Override
+			public Void call() throws SQLException {
+				if (isPaired(uuid)) {
+					synchronized (c) {
+						deleteHostStmt.setString(1, uuid);
+						deleteHostStmt.executeUpdate();
+					}
 				}
+				return null;
 			}
-		}
-		
+		});
 	}
 	
 	/**
@@ -268,28 +379,80 @@ public class ServerDBManager {
 	 * 
 	 * @param uuid
 	 */
-	public void pairHost (String uuid)
+	public void pairHost (final String uuid)
 	{
-		if (!isPaired(new HostData (uuid, "")))
-		{
-			c = getConnection();
+		write(new Callable<Void>() {
+			@Override
+			public Void call() throws SQLException {
+				if (!isPaired(uuid)) {
+					synchronized (c) {
+						insertHostStmt.setString(1, uuid);
+						insertHostStmt.executeUpdate();
+					}
+				}
+				return null;
+			}
+		});
+	}
 	
-			if (c != null) {
-				try {
-					c.setAutoCommit(false);
-					PreparedStatement prep = c.prepareStatement("INSERT INTO hosts (uuid) VALUES (?)");
-					prep.setString(1, uuid);
-					
-					prep.executeUpdate(); 
+	/**
+	 * runs a write on the writer thread and waits for it to
+	 * complete, every statement being committed on its own
+	 * 
+	 * @param task the write to be executed
+	 */
+	private void write(Callable<Void> task) {
+		try {
+			writer.submit(task).get();
+		} catch (RejectedExecutionException e) {
+			// close() has been called, the connection is gone
+			System.err.println("The database is closed, the write is lost");
+		} catch (ExecutionException e) {
+			System.err.println(e.getCause().getClass().getName() + ": " + e.getCause().getMessage());
+			System.exit(-1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 	
-					prep.close();
-					c.commit();
-					c.close();
-				} catch (Exception e) {
-					System.err.println(e.getClass().getName() + ": " + e.getMessage());
-					System.exit(-1);
-				}
+	/**
+	 * stops the writer thread and closes the connection
+	 * once the queued writes are done
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(DesktopDrinViewerConstants.DB_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				System.err.println("The database writes did not complete in " + DesktopDrinViewerConstants.DB_CLOSE_TIMEOUT + "ms");
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		try {
+			synchronized (c) {
+				c.close();
+			}
+		} catch (SQLException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * gets the singleton instance
+	 * 
+	 * @return ServerDBManager
+	 */
+	public static ServerDBManager getInstance() {
+		return dbManagerHolder.INSTANCE;
+	}
+	
+	/**
+	 * holder class for the singleton implementation
+	 * 
+	 * @author giorgio
+	 *
+	 */
+	private static class dbManagerHolder {
+		private static final ServerDBManager INSTANCE = new ServerDBManager();
 	}
 }
@@ -20,15 +20,26 @@
 
 package com.drinviewer.desktopdrinviewer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinEventCodec;
+import com.drinviewer.common.DrinFrame;
+import com.drinviewer.common.DrinMessageParser;
 import com.drinviewer.common.IncomingDrinEvent;
 
 /**
@@ -40,23 +51,80 @@ import com.drinviewer.common.IncomingDrinEvent;
  *
  */
 public class ServerListener implements Runnable {
+	/**
+	 * milliseconds to wait before accepting again when accept fails
+	 * 
+	 */
+	private static final int ACCEPT_RETRY_TIME = 100;
+	
 	/**
 	 * port number to open
 	 * 
 	 */
-	private int port = Constants.PORT;
+	protected int port = Constants.PORT;
+	
+	/**
+	 * bus dispatching the IncomingDrin custom events to the listeners,
+	 * so that the network threads never wait for them
+	 * 
+	 */
+	private final DrinEventBus eventBus = new DrinEventBus(DesktopDrinViewerConstants.EVENT_QUEUE_SIZE);
+	
+	/**
+	 * failed client connections, each one closed without stopping the others
+	 * 
+	 */
+	private final ConnectionErrors connectionErrors = new ConnectionErrors(DesktopDrinViewerConstants.ERROR_RATE_WINDOW);
+	
+	/**
+	 * number of devices paired and unpaired
+	 * 
+	 */
+	private final StripedCounter pairs = new StripedCounter();
+	private final StripedCounter unpairs = new StripedCounter();
+	
+	/**
+	 * number of events fired, indexed by action: the SHOW_PAIRED
+	 * ones are fired by the pairing requests, the unknown actions
+	 * are counted as NO_ACTION
+	 * 
+	 */
+	private final StripedCounter[] events = newCounters(Constants.SHOW_PAIRED + 1);
+	
+	/**
+	 * parser of the requests, one for each thread handling them
+	 * 
+	 */
+	private final ThreadLocal<DrinMessageParser> parser = new ThreadLocal<DrinMessageParser>() {
+		@Override
+		protected DrinMessageParser initialValue() {
+			return new DrinMessageParser();
+		}
+	};
 	
 	/**
-	 * list of listeners to be called when the IncomingDrin custom event is fired
+	 * deadlines, connections caps and max frame size
 	 * 
 	 */
-	private ArrayList<IncomingDrinListener> drinListeners = new ArrayList<IncomingDrinListener>();
+	private volatile ConnectionLimits connectionLimits = new ConnectionLimits();
+	
+	/**
+	 * number of open connections from each address, guarded by itself
+	 * 
+	 */
+	private final HashMap<InetAddress, Integer> openConnections = new HashMap<InetAddress, Integer>();
+	
+	/**
+	 * number of open connections, guarded by openConnections
+	 * 
+	 */
+	private int openCount = 0;
 	
 	/**
 	 * tells if the server is listening
 	 * 
 	 */ 
-	private volatile boolean listening = false;
+	protected volatile boolean listening = false;
 	
 	/**
 	 * the socket used for the communication
@@ -64,17 +132,57 @@ public class ServerListener implements Runnable {
 	 */
 	private ServerSocket serverSocket = null;	
 	
+	/**
+	 * executor running the connections, null to start a new thread for each one
+	 * 
+	 */
+	private ExecutorService connectionExecutor = null;
+	
+	/**
+	 * cache of the images sent on the persistent connections
+	 * 
+	 */
+	private ImageCache imageCache = null;
+	
 	/**
 	 * starts listening on a new thread, so multiple clients could be accepted
 	 */
 	@Override
 	public void run() {
-		listening = true;
+		eventBus.start();
         try { 
-        	serverSocket = new ServerSocket(port);
+        	ServerSocket server = serverSocket = new ServerSocket(port);
+        	// listening once bound only, so that a failed bind can be told
+        	listening = true;
             while (listening) {
 //            	System.out.println("Starting an accept thread");
-	            new Thread(new ServerListenerRunnable(serverSocket.accept())).start();
+            	Socket socket;
+            	try {
+            		socket = server.accept();
+            	} catch (IOException e) {
+            		if (server.isClosed()) break;
+            		// out of file descriptors or the like, wait for some connection to go
+            		try {
+            			Thread.sleep(ACCEPT_RETRY_TIME);
+            		} catch (InterruptedException ie) {}
+            		continue;
+            	}
+            	if (!admit(socket.getInetAddress())) {
+            		// too many connections, from this device or overall
+            		connectionErrors.connectionRejected();
+            		closeQuietly(socket);
+            	} else if (connectionExecutor == null) {
+            		new Thread(new ServerListenerRunnable(socket)).start();
+            	} else {
+            		try {
+            			connectionExecutor.execute(new ServerListenerRunnable(socket));
+            		} catch (RejectedExecutionException e) {
+            			// too many connections waiting, the device will try again
+            			release(socket.getInetAddress());
+            			connectionErrors.connectionRejected();
+            			closeQuietly(socket);
+            		}
+            	}
 	        }
 	    } catch (SocketException e) {
 	    	// nothing to do when the close() method is called on the serverSocket
@@ -84,26 +192,105 @@ public class ServerListener implements Runnable {
         }
 	}
 	
+	/**
+	 * closes a rejected socket, a failure concerns that device only
+	 * and must not reach the accept loop
+	 * 
+	 * @param socket the socket to be closed
+	 */
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+	
 	/**
 	 * adds a new listener to the listeners list
 	 * 
 	 * @param listener the IncomingDrinListener to be added
 	 */
 	public void addIncomingDrinListener(IncomingDrinListener listener) {
-		drinListeners.add(listener);
+		eventBus.addListener(listener);
 	}
 	
 	/**
-	 * terminates by closing the socket
+	 * terminates by closing the socket, the event bus threads
+	 * are stopped too until the listener is run again
 	 */
 	public void terminate()
 	{
 		try {
-			serverSocket.close();
+			// null if it has never been bound
+			if (serverSocket != null) serverSocket.close();
 		} catch (IOException e) {}
 		
 		serverSocket = null;
 		listening = false;
+		eventBus.shutdown();
+	}
+	
+	/**
+	 * gets the bus dispatching the events to the listeners
+	 * 
+	 * @return the event bus
+	 */
+	public DrinEventBus getEventBus() {
+		return eventBus;
+	}
+	
+	/**
+	 * gets the counters of the failed client connections
+	 * 
+	 * @return the connection errors
+	 */
+	public ConnectionErrors getConnectionErrors() {
+		return connectionErrors;
+	}
+	
+	/**
+	 * gets the number of devices paired since the start
+	 * 
+	 * @return the pairs
+	 */
+	public long getPairs() {
+		return pairs.get();
+	}
+	
+	/**
+	 * gets the number of devices unpaired since the start
+	 * 
+	 * @return the unpairs
+	 */
+	public long getUnpairs() {
+		return unpairs.get();
+	}
+	
+	/**
+	 * gets the number of events fired with an action since the start
+	 * 
+	 * @param action the action, one of the Constants actions
+	 * @return the events, 0 for an unknown action
+	 */
+	public long getEvents(int action) {
+		return (action >= 0 && action < events.length) ? events[action].get() : 0;
+	}
+	
+	/**
+	 * gets the deadlines, connections caps and max frame size
+	 * 
+	 * @return the connection limits
+	 */
+	public ConnectionLimits getConnectionLimits() {
+		return connectionLimits;
+	}
+	
+	/**
+	 * sets the deadlines, connections caps and max frame size
+	 * 
+	 * @param connectionLimits the limits, ConnectionLimits.none() for no limits
+	 */
+	public void setConnectionLimits(ConnectionLimits connectionLimits) {
+		this.connectionLimits = connectionLimits;
 	}
 	
 	/**
@@ -115,6 +302,25 @@ public class ServerListener implements Runnable {
 		this.port = port;
 	}
 	
+	/**
+	 * sets the executor running the connections, each connection
+	 * being a task blocking on its socket until it's done
+	 * 
+	 * @param connectionExecutor the executor, null to start a new thread for each connection
+	 */
+	public void setConnectionExecutor(ExecutorService connectionExecutor) {
+		this.connectionExecutor = connectionExecutor;
+	}
+	
+	/**
+	 * sets the cache of the images sent on the persistent connections
+	 * 
+	 * @param imageCache the cache, null to not cache the images
+	 */
+	public void setImageCache(ImageCache imageCache) {
+		this.imageCache = imageCache;
+	}
+	
 	/**
 	 * gets the listening status
 	 * 
@@ -124,6 +330,209 @@ public class ServerListener implements Runnable {
 		return listening;
 	}
 	
+	/**
+	 * fires and IncomingDrin custom Event, the listeners
+	 * are called later on the event bus threads
+	 * 
+	 * @param e the IncomingDrinEvent to be fired
+	 * @return false if the event bus has rejected the event, its queue being full
+	 */
+	protected boolean fireIncomingDrinEvent(IncomingDrinEvent e)
+	{
+		events[(e.action >= 0 && e.action < events.length) ? e.action : Constants.NO_ACTION].increment();
+		return eventBus.publish(e);
+	}
+	
+	/**
+	 * makes the counters of an array
+	 * 
+	 * @param count number of counters
+	 * @return the counters
+	 */
+	private static StripedCounter[] newCounters(int count) {
+		StripedCounter[] counters = new StripedCounter[count];
+		for (int i = 0; i < count; i++) counters[i] = new StripedCounter();
+		return counters;
+	}
+	
+	/**
+	 * counts a new connection, unless there are already too
+	 * many from its address or overall
+	 * 
+	 * @param address the address of the device
+	 * @return false if the connection must be closed
+	 */
+	protected boolean admit(InetAddress address) {
+		ConnectionLimits limits = connectionLimits;
+		synchronized (openConnections) {
+			if (limits.getMaxConnections() > 0 && openCount >= limits.getMaxConnections()) return false;
+			Integer count = openConnections.get(address);
+			int open = (count != null) ? count : 0;
+			if (limits.getMaxConnectionsPerAddress() > 0 && open >= limits.getMaxConnectionsPerAddress()) return false;
+			openConnections.put(address, open + 1);
+			openCount++;
+			return true;
+		}
+	}
+	
+	/**
+	 * counts a closed connection, that was admitted
+	 * 
+	 * @param address the address of the device
+	 */
+	protected void release(InetAddress address) {
+		synchronized (openConnections) {
+			Integer count = openConnections.get(address);
+			if (count == null) return;
+			if (count > 1) openConnections.put(address, count - 1);
+			else openConnections.remove(address);
+			openCount--;
+		}
+	}
+	
+	/**
+	 * gets the number of open connections
+	 * 
+	 * @return the open connections
+	 */
+	public int getOpenConnections() {
+		synchronized (openConnections) {
+			return openCount;
+		}
+	}
+	
+	/**
+	 * actual protocol implementation, shared by every listening mode:
+	 * takes the first line sent by the device, reads whatever else
+	 * is needed from the passed stream and returns the line to be
+	 * sent back to the device
+	 * 
+	 * @param inputLine the first line sent by the device
+	 * @param in the stream the line was read from, null for a message frame
+	 * @return the response line
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected String handleRequest(String inputLine, ObjectInputStream in) throws IOException, ClassNotFoundException {
+		String incomingMessage = null;		// message to check that's coming from the device
+		String outgoingMessage = null; 	 	// message to send out as per protocol
+		String responseParam   = "";        // response parameter to be appended to the response
+		Boolean actionIsPair   = null;      // true if it's a pair request
+		DrinMessageParser message = parser.get();
+		int type = message.parse(inputLine);
+		
+		if (type == DrinMessageParser.PAIRME) {
+			// it's a pair request
+			incomingMessage = Constants.MESSAGE_PAIRME;
+			outgoingMessage = Constants.MESSAGE_PAIRED;
+			actionIsPair = true;
+			fireIncomingDrinEvent(new IncomingDrinEvent(this, Constants.APPNAME, DesktopDrinViewerConstants.i18nMessages.getString("paired"), Constants.SHOW_PAIRED));
+		} else if (type == DrinMessageParser.UNPAIRME) {
+			// it's an unpair request
+			incomingMessage = Constants.MESSAGE_UNPAIRME;
+			outgoingMessage = Constants.MESSAGE_UNPAIRED;
+			actionIsPair = false;
+			fireIncomingDrinEvent(new IncomingDrinEvent(this, Constants.APPNAME, DesktopDrinViewerConstants.i18nMessages.getString("unpaired"), Constants.SHOW_PAIRED));
+		} else if (type == DrinMessageParser.INCOMING_DRIN && in != null) {
+			fireIncomingDrinEvent(readIncomingDrinEvent(inputLine, in));
+		} else if (type == DrinMessageParser.HASIMAGE) {
+			// the device asks if it has to send the image with the passed hash
+			outgoingMessage = Constants.MESSAGE_HASIMAGE;
+			responseParam = (imageCache != null && message.getFieldCount() > 1 && imageCache.contains(message.getField(1))) ? Constants.MESSAGE_OK : Constants.MESSAGE_MISSING;
+		} else if (type == DrinMessageParser.HEARTBEAT) {
+			// it's a heartbeat on a persistent connection
+			outgoingMessage = Constants.MESSAGE_HEARTBEAT;
+			responseParam = Constants.MESSAGE_OK;
+		} else { 					        // handle other kind of messages here, and events not sent as event frames
+			outgoingMessage = Constants.MESSAGE_ERROR;
+			connectionErrors.record(ConnectionErrors.Category.PROTOCOL);
+		}
+		
+		if (incomingMessage!=null && actionIsPair!=null)
+		{
+			// is a pairing message, extract the uuid to be paired
+			String uuid = message.getField(1);
+
+			if (uuid != null) {
+				// the uuid is there, take the required action and respond OK
+				if (actionIsPair) {
+					PairingRegistry.getInstance().pairHost(uuid);
+					pairs.increment();
+				} else {
+					PairingRegistry.getInstance().unpairHost(uuid);
+					unpairs.increment();
+				}
+				
+				responseParam = Constants.MESSAGE_OK;
+				
+			} else {
+				// the uuid isn't there, respond ERORR
+				responseParam = Constants.MESSAGE_ERROR;
+				connectionErrors.record(ConnectionErrors.Category.PROTOCOL);
+			}						
+		}
+		
+		// prepare the paired message response
+		return outgoingMessage + Constants.MESSAGE_CHAR_SEPARATOR + responseParam;
+	}
+	
+	/**
+	 * handles a frame received on a persistent connection: events are
+	 * fired straight away, after getting their image out of the cache
+	 * or putting it in, and acknowledged if the device asks for it and
+	 * the event bus has taken them: a rejected event gets an ERROR, for
+	 * the device to send it once more, messages are handled as the
+	 * first line of a legacy connection
+	 * 
+	 * @param frame the received frame
+	 * @return the response line, null if there's nothing to respond
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected String handleFrame(DrinFrame frame) throws IOException, ClassNotFoundException {
+		if (frame.type == DrinEventCodec.TYPE_EVENT) {
+			if (imageCache != null) {
+				if (frame.event.imageHash != null) {
+					// the device has sent the hash of an image that's here
+					frame.event.imageData = imageCache.get(frame.event.imageHash);
+				} else if (frame.event.imageData != null && frame.event.action == Constants.SHOW_POPUP) {
+					imageCache.put(DrinEventCodec.imageHash(frame.event.imageData), frame.event.imageData);
+				}
+			}
+			boolean accepted = fireIncomingDrinEvent(frame.event);
+			if (!frame.acknowledge) return null;
+			return Constants.INCOMING_DRIN + Constants.MESSAGE_CHAR_SEPARATOR + (accepted ? Constants.MESSAGE_OK : Constants.MESSAGE_ERROR);
+		} else {
+			// events must come as event frames here, there's no stream to read them from
+			return handleRequest(frame.message, null);
+		}
+	}
+	
+	/**
+	 * reads the IncomingDrinEvent following an INCOMING_DRIN message:
+	 * devices speaking the binary protocol append the DrinEventCodec
+	 * version to the message, the others send a serialized Object
+	 * 
+	 * @param inputLine the INCOMING_DRIN message sent by the device
+	 * @param in the stream to read the event from
+	 * @return the read event
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected IncomingDrinEvent readIncomingDrinEvent(String inputLine, ObjectInputStream in) throws IOException, ClassNotFoundException {
+		DrinMessageParser message = parser.get();
+		message.parse(inputLine);
+		
+		if (message.getFieldCount() > 1) {
+			if (message.getFieldInt(1, 0, -1) != DrinEventCodec.VERSION) {
+				throw new StreamCorruptedException("Unsupported codec version " + message.getField(1));
+			}
+			return DrinEventCodec.read(in, this, connectionLimits.frameSizeLimit());
+		} else {
+			return (IncomingDrinEvent) in.readObject();
+		}
+	}
+	
 	/**
 	 * runnable used by ServerListener to make its own listening threads
 	 * this is were the actual communication takes place
@@ -148,90 +557,81 @@ public class ServerListener implements Runnable {
 		}
 		
 		/**
-		 * fires and IncomingDrin custom Event
-		 * 
-		 * @param e the IncomingDrinEvent to be fired
-		 */
-		private void fireIncomingDrinEvent(IncomingDrinEvent e)
-		{
-			int size = drinListeners.size();
-			if (size>0)
-			{
-				for (int i=0; i<size; i++) {
-					// simply calls the handleDrin method for every listener
-					drinListeners.get(i).handleDrin(e);
-				}
-			}
-		}
-
-		/**
-		 * actual protocol implementation
+		 * reads the request and sends out the response,
+		 * or keeps reading frames if the device has opened
+		 * a persistent connection. Whatever goes wrong is
+		 * counted and closes this connection only
 		 */
 		@Override
 		public void run() {
+			connectionErrors.connectionOpened();
+			ConnectionLimits limits = connectionLimits;
 	        try {
+	        	DeadlineInputStream socketIn = new DeadlineInputStream(new BufferedInputStream(socket.getInputStream()), socket);
+	        	socketIn.setDeadline(limits.getHandshakeTimeout());
+	        	socketIn.setLimit(limits.getMaxFrameSize());
+	        	byte[] magic = new byte[DrinEventCodec.STREAM_MAGIC.length];
+	        	socketIn.mark(magic.length);
+	        	new DataInputStream(socketIn).readFully(magic);
+	        	
+	        	if (DrinEventCodec.isStreamMagic(magic, magic.length)) {
+	        		runFramed(socketIn, limits);
+	        		return;
+	        	}
+	        	socketIn.reset();
+	        	
 	        	PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-	        	ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-				String inputLine, outputLine;
+	        	ObjectInputStream in = new ObjectInputStream(socketIn);
+	        	limits.applyTo(in);
+				String inputLine;
 
 				if ((inputLine = in.readUTF()) != null) {
-					
-					String incomingMessage = null;		// message to check that's coming from the device
-					String outgoingMessage = null; 	 	// message to send out as per protocol
-					String responseParam   = "";        // response parameter to be appended to the response
-					Boolean actionIsPair   = null;      // true if it's a pair request
-					
-					if (inputLine.startsWith(Constants.MESSAGE_PAIRME)) {
-						// it's a pair request
-						incomingMessage = Constants.MESSAGE_PAIRME;
-						outgoingMessage = Constants.MESSAGE_PAIRED;
-						actionIsPair = true;
-						fireIncomingDrinEvent(new IncomingDrinEvent(this, Constants.APPNAME, DesktopDrinViewerConstants.i18nMessages.getString("paired"), Constants.SHOW_PAIRED));
-					} else if (inputLine.startsWith(Constants.MESSAGE_UNPAIRME)) {
-						// it's an unpair request
-						incomingMessage = Constants.MESSAGE_UNPAIRME;
-						outgoingMessage = Constants.MESSAGE_UNPAIRED;
-						actionIsPair = false;
-						fireIncomingDrinEvent(new IncomingDrinEvent(this, Constants.APPNAME, DesktopDrinViewerConstants.i18nMessages.getString("unpaired"), Constants.SHOW_PAIRED));
-					} else if (inputLine.startsWith(Constants.INCOMING_DRIN)) {
-						fireIncomingDrinEvent((IncomingDrinEvent) in.readObject());
-					} else { 					        // handle other kind of messages here
-						outgoingMessage = Constants.MESSAGE_ERROR;
-					}
-					
-					if (incomingMessage!=null && actionIsPair!=null)
-					{
-						// is a pairing message, extract the uuid to be paired
-						String temp[] = inputLine.split(Constants.MESSAGE_CHAR_SEPARATOR);
-
-						if (temp.length > 1) {
-							// the uuid is there, take the required action and respond OK
-							ServerDBManager db = new ServerDBManager();
-							if (actionIsPair) db.pairHost(temp[1]);
-							else db.unpairHost(temp[1]);
-							
-							responseParam = Constants.MESSAGE_OK;
-							
-						} else {
-							// the uuid isn't there, respond ERORR
-							responseParam = Constants.MESSAGE_ERROR;
-						}						
-					}
-					
-					// prepare the paired message response
-					outputLine = outgoingMessage + Constants.MESSAGE_CHAR_SEPARATOR + responseParam;
-					// and send it
-					out.println(outputLine);
+					// the rest of the request has its own deadline
+					socketIn.setDeadline(limits.getReadTimeout());
+					// send the response
+					out.println(handleRequest(inputLine, in));
 				}
 				out.close();
 				in.close();
-				socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.exit(-1);
-			} catch (ClassNotFoundException e){
-				e.printStackTrace();
-				System.exit(-1);
+			} catch (Exception e) {
+				// a broken device, the others must go on
+				connectionErrors.record(e);
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+				release(socket.getInetAddress());
+			}
+		}
+		
+		/**
+		 * reads and handles the frames until the device closes the
+		 * persistent connection or stops sending its heartbeats
+		 * 
+		 * @param socketIn the socket input stream, STREAM_MAGIC already read
+		 * @param limits the limits of the connection
+		 * @throws IOException if the device breaks the protocol or is silent for too long
+		 * @throws ClassNotFoundException
+		 */
+		private void runFramed(DeadlineInputStream socketIn, ConnectionLimits limits) throws IOException, ClassNotFoundException {
+			DataInputStream in = new DataInputStream(socketIn);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			
+			while (listening) {
+				// the device may close between two frames, not inside one
+				socketIn.idle(Constants.HEARTBEAT_TIMEOUT);
+				socketIn.mark(1);
+				if (socketIn.read() < 0) return;
+				socketIn.reset();
+				
+				// a started frame must be complete in time
+				socketIn.setDeadline(limits.getReadTimeout());
+				if (limits.getMaxFrameSize() > 0) socketIn.setLimit(DrinEventCodec.HEADER_LENGTH + limits.getMaxFrameSize());
+				String response = handleFrame(DrinEventCodec.readFrame(in, ServerListener.this, limits.frameSizeLimit()));
+				if (response != null) {
+					DrinEventCodec.writeMessage(response, out);
+					out.flush();
+				}
 			}
 		}
 	}
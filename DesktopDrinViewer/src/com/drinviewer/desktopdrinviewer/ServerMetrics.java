@@ -0,0 +1,295 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * the numbers of a DesktopServer under load, for JMX clients and
+ * as plain text.
+ *
+ * The counters are kept by the parts of the server counting them,
+ * in StripedCounters where the network threads add to them, and
+ * are only read here: nothing is done on the hot path to get them.
+ * The popups are not the server's, the user interface tells how
+ * many there are by setting a gauge.
+ *
+ * @author giorgio
+ *
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	/**
+	 * the name the metrics are registered with in the platform MBean server
+	 */
+	public static final String OBJECT_NAME = "com.drinviewer:type=DesktopServer";
+
+	/**
+	 * a value read when the metrics are, e.g. the popups on the screen
+	 */
+	public interface Gauge {
+		/**
+		 * gets the value, called by any thread
+		 *
+		 * @return the value
+		 */
+		public int get();
+	}
+
+	private final BroadCastListener broadcastListener;
+	private final ServerListener serverListener;
+
+	/**
+	 * tells how many popups are on the screen, null if there's no user interface
+	 */
+	private volatile Gauge activePopups = null;
+
+	/**
+	 * instantiate the metrics of a server
+	 *
+	 * @param broadcastListener the server broadcast listener
+	 * @param serverListener the server TCP listener
+	 */
+	public ServerMetrics(BroadCastListener broadcastListener, ServerListener serverListener) {
+		this.broadcastListener = broadcastListener;
+		this.serverListener = serverListener;
+	}
+
+	/**
+	 * sets what tells how many popups are on the screen
+	 *
+	 * @param activePopups the gauge, null if there's no user interface
+	 */
+	public void setActivePopups(Gauge activePopups) {
+		this.activePopups = activePopups;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return broadcastListener.isRunning() && serverListener.isListening();
+	}
+
+	@Override
+	public long getConnectionsAccepted() {
+		return serverListener.getConnectionErrors().getConnections();
+	}
+
+	@Override
+	public long getConnectionsRejected() {
+		return serverListener.getConnectionErrors().getRejected();
+	}
+
+	@Override
+	public int getConnectionsActive() {
+		return serverListener.getOpenConnections();
+	}
+
+	@Override
+	public long getDiscoverReceived() {
+		return broadcastListener.getReceivedPackets();
+	}
+
+	@Override
+	public long getDiscoverReplied() {
+		return broadcastListener.getRepliedPackets();
+	}
+
+	@Override
+	public long getDiscoverThrottled() {
+		return broadcastListener.getThrottledPackets();
+	}
+
+	@Override
+	public long getDiscoverDropped() {
+		return broadcastListener.getDroppedPackets();
+	}
+
+	@Override
+	public long getPairs() {
+		return serverListener.getPairs();
+	}
+
+	@Override
+	public long getUnpairs() {
+		return serverListener.getUnpairs();
+	}
+
+	@Override
+	public long getShowPopupEvents() {
+		return serverListener.getEvents(Constants.SHOW_POPUP);
+	}
+
+	@Override
+	public long getRemovePopupEvents() {
+		return serverListener.getEvents(Constants.REMOVE_POPUP);
+	}
+
+	@Override
+	public long getShowPairedEvents() {
+		return serverListener.getEvents(Constants.SHOW_PAIRED);
+	}
+
+	@Override
+	public long getNoActionEvents() {
+		return serverListener.getEvents(Constants.NO_ACTION);
+	}
+
+	@Override
+	public long getDecodeErrors() {
+		return serverListener.getConnectionErrors().getCount(ConnectionErrors.Category.DECODE);
+	}
+
+	@Override
+	public long getTimeoutErrors() {
+		return serverListener.getConnectionErrors().getCount(ConnectionErrors.Category.TIMEOUT);
+	}
+
+	@Override
+	public long getProtocolErrors() {
+		return serverListener.getConnectionErrors().getCount(ConnectionErrors.Category.PROTOCOL);
+	}
+
+	@Override
+	public long getServerErrors() {
+		return serverListener.getConnectionErrors().getCount(ConnectionErrors.Category.SERVER);
+	}
+
+	@Override
+	public int getEventQueueDepth() {
+		return serverListener.getEventBus().getQueueDepth();
+	}
+
+	@Override
+	public int getListenerQueueDepth() {
+		int depth = 0;
+		for (DrinEventBus.Subscription subscription : serverListener.getEventBus().getSubscriptions()) {
+			depth += subscription.getQueueDepth();
+		}
+		return depth;
+	}
+
+	@Override
+	public long getEventsRejected() {
+		return serverListener.getEventBus().getRejected();
+	}
+
+	@Override
+	public long getDbQueries() {
+		return ServerDBManager.getInstance().getQueries();
+	}
+
+	@Override
+	public long getDbMeanQueryMicros() {
+		return ServerDBManager.getInstance().getMeanQueryTime() / 1000;
+	}
+
+	@Override
+	public int getActivePopups() {
+		Gauge gauge = activePopups;
+		return (gauge != null) ? gauge.get() : 0;
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder(1024);
+		append(report, "running", isRunning() ? 1 : 0);
+		append(report, "connections_accepted_total", getConnectionsAccepted());
+		append(report, "connections_rejected_total", getConnectionsRejected());
+		append(report, "connections_active", getConnectionsActive());
+		append(report, "discover_received_total", getDiscoverReceived());
+		append(report, "discover_replied_total", getDiscoverReplied());
+		append(report, "discover_throttled_total", getDiscoverThrottled());
+		append(report, "discover_dropped_total", getDiscoverDropped());
+		append(report, "pairs_total", getPairs());
+		append(report, "unpairs_total", getUnpairs());
+		append(report, "events_show_popup_total", getShowPopupEvents());
+		append(report, "events_remove_popup_total", getRemovePopupEvents());
+		append(report, "events_show_paired_total", getShowPairedEvents());
+		append(report, "events_no_action_total", getNoActionEvents());
+		append(report, "errors_decode_total", getDecodeErrors());
+		append(report, "errors_timeout_total", getTimeoutErrors());
+		append(report, "errors_protocol_total", getProtocolErrors());
+		append(report, "errors_server_total", getServerErrors());
+		append(report, "event_queue_depth", getEventQueueDepth());
+		append(report, "listener_queue_depth", getListenerQueueDepth());
+		append(report, "events_rejected_total", getEventsRejected());
+		append(report, "db_queries_total", getDbQueries());
+		append(report, "db_mean_query_micros", getDbMeanQueryMicros());
+		append(report, "popups_active", getActivePopups());
+		return report.toString();
+	}
+
+	/**
+	 * writes the report, e.g. to a file scraped by a monitoring agent
+	 *
+	 * @param file the file to be written
+	 * @throws IOException if the file cannot be written
+	 */
+	public void dumpTo(File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(getReport());
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void dumpTo(String path) throws IOException {
+		dumpTo(new File(path));
+	}
+
+	/**
+	 * registers the metrics in the platform MBean server,
+	 * so that any JMX client can read them
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * removes the metrics from the platform MBean server
+	 */
+	public void unregister() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			// not registered
+		}
+	}
+
+	private static void append(StringBuilder report, String name, long value) {
+		report.append("drinviewer_").append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.io.IOException;
+
+/**
+ * the ServerMetrics as seen by a JMX client, e.g. jconsole.
+ * The counters are since the start of the application.
+ *
+ * @author giorgio
+ *
+ */
+public interface ServerMetricsMBean {
+	/**
+	 * tells if the server is running
+	 *
+	 * @return true if the broadcast server is running and the TCP is listening
+	 */
+	public boolean isRunning();
+
+	/**
+	 * gets the number of TCP connections accepted
+	 *
+	 * @return the accepted connections
+	 */
+	public long getConnectionsAccepted();
+
+	/**
+	 * gets the number of TCP connections closed as soon as
+	 * they were accepted, because there were too many open
+	 *
+	 * @return the rejected connections
+	 */
+	public long getConnectionsRejected();
+
+	/**
+	 * gets the number of open TCP connections
+	 *
+	 * @return the active connections
+	 */
+	public int getConnectionsActive();
+
+	/**
+	 * gets the number of DISCOVER packets received
+	 *
+	 * @return the received packets
+	 */
+	public long getDiscoverReceived();
+
+	/**
+	 * gets the number of DISCOVER requests answered
+	 *
+	 * @return the replied packets
+	 */
+	public long getDiscoverReplied();
+
+	/**
+	 * gets the number of DISCOVER packets refused by the rate limiters
+	 *
+	 * @return the throttled packets
+	 */
+	public long getDiscoverThrottled();
+
+	/**
+	 * gets the number of DISCOVER packets not answered for any other reason
+	 *
+	 * @return the dropped packets
+	 */
+	public long getDiscoverDropped();
+
+	/**
+	 * gets the number of devices paired
+	 *
+	 * @return the pairs
+	 */
+	public long getPairs();
+
+	/**
+	 * gets the number of devices unpaired
+	 *
+	 * @return the unpairs
+	 */
+	public long getUnpairs();
+
+	/**
+	 * gets the number of SHOW_POPUP events
+	 *
+	 * @return the events
+	 */
+	public long getShowPopupEvents();
+
+	/**
+	 * gets the number of REMOVE_POPUP events
+	 *
+	 * @return the events
+	 */
+	public long getRemovePopupEvents();
+
+	/**
+	 * gets the number of SHOW_PAIRED events
+	 *
+	 * @return the events
+	 */
+	public long getShowPairedEvents();
+
+	/**
+	 * gets the number of events with no or an unknown action
+	 *
+	 * @return the events
+	 */
+	public long getNoActionEvents();
+
+	/**
+	 * gets the number of connections failed because an event could not be decoded
+	 *
+	 * @return the decode errors
+	 */
+	public long getDecodeErrors();
+
+	/**
+	 * gets the number of connections failed because the device has been silent for too long
+	 *
+	 * @return the timeout errors
+	 */
+	public long getTimeoutErrors();
+
+	/**
+	 * gets the number of connections failed because the device has not followed the protocol
+	 *
+	 * @return the protocol errors
+	 */
+	public long getProtocolErrors();
+
+	/**
+	 * gets the number of connections failed because of a server bug
+	 *
+	 * @return the server errors
+	 */
+	public long getServerErrors();
+
+	/**
+	 * gets the number of events waiting to be dispatched to the listeners
+	 *
+	 * @return the event bus queue depth
+	 */
+	public int getEventQueueDepth();
+
+	/**
+	 * gets the number of events waiting for any listener
+	 *
+	 * @return the sum of the listeners queue depths
+	 */
+	public int getListenerQueueDepth();
+
+	/**
+	 * gets the number of events rejected because the event bus queue was full
+	 *
+	 * @return the rejected events
+	 */
+	public long getEventsRejected();
+
+	/**
+	 * gets the number of database queries
+	 *
+	 * @return the queries
+	 */
+	public long getDbQueries();
+
+	/**
+	 * gets the mean time of a database query
+	 *
+	 * @return the mean query time, in microseconds
+	 */
+	public long getDbMeanQueryMicros();
+
+	/**
+	 * gets the number of popups on the screen
+	 *
+	 * @return the active popups, 0 if there's no user interface
+	 */
+	public int getActivePopups();
+
+	/**
+	 * gets the metrics as plain text, one "name value" line each
+	 *
+	 * @return the report
+	 */
+	public String getReport();
+
+	/**
+	 * writes the report to a file
+	 *
+	 * @param path the file path
+	 * @throws IOException if the file cannot be written
+	 */
+	public void dumpTo(String path) throws IOException;
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import com.drinviewer.common.Constants;
+
+/**
+ * tells how long the application took to start and how much memory
+ * it's using once started, so that the tray and the headless modes
+ * can be compared
+ *
+ * @author giorgio
+ *
+ */
+public final class StartupReport {
+
+	private StartupReport() {
+	}
+
+	/**
+	 * describes the startup of the application, to be called
+	 * as soon as it's ready to receive
+	 *
+	 * @param mode the application mode, e.g. tray or headless
+	 * @param port the port the server listens to
+	 * @return the description, on one line
+	 */
+	public static String describe(String mode, int port) {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		return Constants.APPNAME + " " + Constants.APPVERSION + " " + mode + " on port " + port
+				+ ": started in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms"
+				+ ", heap " + (memory.getHeapMemoryUsage().getUsed() >> 10) + " KB"
+				+ ", non heap " + (memory.getNonHeapMemoryUsage().getUsed() >> 10) + " KB"
+				+ ", " + ManagementFactory.getClassLoadingMXBean().getLoadedClassCount() + " classes"
+				+ ", " + Thread.activeCount() + " threads";
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2014 Giorgio Consorti <giorgio.consorti@gmail.com>
+ *
+ * This file is part of DrinViewer.
+ *
+ * DrinViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DrinViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrinViewer.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.drinviewer.desktopdrinviewer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a counter that's cheap to add to from many threads at once,
+ * for the metrics counted on the network threads.
+ *
+ * Each thread adds to one of several cells, chosen by its id,
+ * and the cells are a cache line apart so that the threads do
+ * not contend for them: the value is the sum of the cells, that
+ * costs a bit more to read. It's java.util.concurrent.atomic.LongAdder
+ * in short, that the java 6 the application is built for has not.
+ *
+ * @author giorgio
+ *
+ */
+public class StripedCounter {
+	/**
+	 * longs between two cells, a 64 bytes cache line
+	 */
+	private static final int PADDING = 8;
+
+	/**
+	 * number of cells, a power of two, and the mask choosing one
+	 */
+	private static final int CELLS;
+	private static final int MASK;
+
+	static {
+		int cells = 1;
+		while (cells < Runtime.getRuntime().availableProcessors() * 2 && cells < 64) cells <<= 1;
+		CELLS = cells;
+		MASK = cells - 1;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+	/**
+	 * adds one
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * adds to the counter
+	 *
+	 * @param value what's to be added
+	 */
+	public void add(long value) {
+		cells.addAndGet(cell(), value);
+	}
+
+	/**
+	 * gets the value, that's not a snapshot if
+	 * some thread is adding to the counter
+	 *
+	 * @return the sum of the cells
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++) sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	/**
+	 * the cell of the current thread
+	 *
+	 * @return the index of the cell
+	 */
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		// thread ids are sequential, spread them a bit
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & MASK) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+}
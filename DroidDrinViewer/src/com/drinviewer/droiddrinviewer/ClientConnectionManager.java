@@ -28,6 +28,8 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinConnection;
+import com.drinviewer.common.DrinEventCodec;
 import com.drinviewer.common.HostData;
 import com.drinviewer.common.IncomingDrinEvent;
 
@@ -122,22 +124,55 @@ public class ClientConnectionManager {
 
 	/**
 	 * Sends out the incoming drin event to the host
-	 * passed when calling the constructor
+	 * passed when calling the constructor, using the
+	 * persistent connection, the image cache or the
+	 * binary encoding if the host supports them
 	 * 
 	 * @param event IncomingDrinEvent Object to send
 	 * @throws UnknownHostException
 	 * @throws IOException
 	 */
 	public void sendDrinEvent (IncomingDrinEvent event) throws UnknownHostException, IOException {
+		event = copyForHost(event);
+		// a host that acknowledges the events tells if one has been lost on a dead connection
+		boolean acknowledged = hostToPair.protocolVersion >= Constants.PROTOCOL_VERSION_EVENT_ACK;
+		if (hostToPair.protocolVersion >= Constants.PROTOCOL_VERSION_IMAGE_CACHE) {
+			DrinConnection.getConnection(hostToPair.address, port).sendCachedDrinEvent(event, acknowledged);
+			return;
+		} else if (hostToPair.protocolVersion >= Constants.PROTOCOL_VERSION_FRAMED) {
+			DrinConnection.getConnection(hostToPair.address, port).sendDrinEvent(event);
+			return;
+		}
 		initConnection();
 		try {
-			out.writeUTF(Constants.INCOMING_DRIN);
-			out.writeObject(event);
+			if (hostToPair.protocolVersion >= Constants.PROTOCOL_VERSION_BINARY) {
+				out.writeUTF(Constants.INCOMING_DRIN + Constants.MESSAGE_CHAR_SEPARATOR + DrinEventCodec.VERSION);
+				DrinEventCodec.write(event, out);
+			} else {
+				out.writeUTF(Constants.INCOMING_DRIN);
+				out.writeObject(event);
+			}
 		} finally {
 			closeConnection();
 		}
 	}
 
+	/**
+	 * Copies the event to be sent to the host, since the same event
+	 * goes to every paired host and each connection times its own
+	 * connect stage. The stage times are kept only if the host reads them
+	 * 
+	 * @param event the event to be sent
+	 * @return the copy to be sent to the host
+	 */
+	private IncomingDrinEvent copyForHost(IncomingDrinEvent event) {
+		IncomingDrinEvent copy = new IncomingDrinEvent(event.getSource(), event.title, event.message, event.imageData, event.action);
+		if (event.isTimed() && hostToPair.protocolVersion >= Constants.PROTOCOL_VERSION_TIMINGS) {
+			copy.stageTimes = event.stageTimes.clone();
+		}
+		return copy;
+	}
+
 	/**
 	 * Issues a pair request to the server and waits for a response
 	 * 
@@ -150,6 +185,8 @@ public class ClientConnectionManager {
 	 * @throws UnknownHostException 
 	 */
 	public boolean runPairProtocol() throws UnknownHostException, IOException {
+		if (hostToPair.protocolVersion >= Constants.PROTOCOL_VERSION_FRAMED) return runFramedPairProtocol();
+
 		boolean isPaired = false;
 		initConnection();
 		try {			
@@ -193,6 +230,29 @@ public class ClientConnectionManager {
         return isPaired;
 	}
 	
+	/**
+	 * Issues a pair request to the server on the persistent
+	 * connection and waits for a response
+	 * 
+	 * @return true if success
+	 * @throws IOException
+	 */
+	private boolean runFramedPairProtocol() throws IOException {
+		if (uuid == null) return false;
+
+		String sendMessage = (!hostToPair.isPaired) ? Constants.MESSAGE_PAIRME : Constants.MESSAGE_UNPAIRME;
+		String expectedMessage = (!hostToPair.isPaired) ? Constants.MESSAGE_PAIRED : Constants.MESSAGE_UNPAIRED;
+
+		String fromServer = DrinConnection.getConnection(hostToPair.address, port)
+				.sendMessage(sendMessage + Constants.MESSAGE_CHAR_SEPARATOR + uuid, DroidDrinViewerConstants.PAIRING_TIMEOUT);
+
+		if (fromServer.startsWith(expectedMessage) && fromServer.contains(Constants.MESSAGE_OK)) {
+			// the device has been successfully paired, do something
+			return !hostToPair.isPaired;
+		}
+		return false;
+	}
+	
 	/**
 	 * uuid setter 
 	 * @param uuid the device uuid to set
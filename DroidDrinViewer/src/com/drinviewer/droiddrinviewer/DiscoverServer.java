@@ -27,6 +27,8 @@ import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 
 import com.drinviewer.common.Constants;
+import com.drinviewer.common.DrinMessageParser;
+import com.drinviewer.common.HostData;
 
 
 /**
@@ -65,6 +67,11 @@ public class DiscoverServer implements Runnable {
 	 */
 	private String wifiBroadcastAddress;
 	
+	/**
+	 * parser of the received responses
+	 */
+	private final DrinMessageParser parser = new DrinMessageParser();
+	
 	/**
 	 * constructor, just sets the serverCollection
 	 * 
@@ -117,34 +124,17 @@ public class DiscoverServer implements Runnable {
 							socket.receive(receivePacket);
 						}
 						
-						// extract the response to a string and check if it's what we'd expected
-						String message = new String(receivePacket.getData()).trim();
-						
-						// so, if it's a DISCOVER_RESPONSE, do something with the received data			
-					    if (message.indexOf(Constants.DISCOVER_RESPONSE)==0) {
-					    	// initialize the responding server as unpaired
-					    	boolean isPaired = false;
-					    	// get the server host address
-							String serverHostAddress = receivePacket.getAddress().getHostAddress();
-							// for time being the server host name is its address
-							String serverHostName = serverHostAddress;
-							// split the received string using MESSAGE_CHAR_SEPARATOR to look for the server name
-							String temp[] = message.split(Constants.MESSAGE_CHAR_SEPARATOR);
-							// if the splitted array has more than two elements, there's the host name in the received message
-							// the paired parameter is (should be) always there, but double check it						
-							if (temp.length>2) serverHostName = temp[2];
-							if (temp.length>1) isPaired = temp[1].equals(Constants.MESSAGE_DEVICE_IS_PAIRED);
-							// add the the hostname and IP address to the list of discovered servers
-							DrinHostData foundHost = new DrinHostData(serverHostName,serverHostAddress,isPaired);
-							// if found host is not in the collection, add it and decrease the loop
-							// count so that this host does not count in the total timeout count
+						// parse the response in the receive buffer and check if it's what we'd expected
+						// so, if it's a DISCOVER_RESPONSE, add the the hostname and IP address to the list of discovered servers
+					    if (parser.parse(receivePacket.getData(), receivePacket.getOffset(), receivePacket.getLength()) == DrinMessageParser.DISCOVER_RESPONSE) {
+							DrinHostData foundHost = new DrinHostData();
+							HostData.parseDiscoverResponse(parser, receivePacket.getAddress().getHostAddress(), foundHost);
+							// if found host is not in the collection, add it
 							if (!serverCollection.isInList(foundHost)) {
 //								System.err.println(getClass().getName()+">>> ADDING HOST");
 								serverCollection.put(foundHost);
 							}
 						  }
-					    
-					    message = null;
 					} catch (SocketTimeoutException e) {
 						/**
 						 * should be safe to do nothing and keep waiting for
@@ -25,6 +25,9 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+
+import com.drinviewer.common.DrinConnection;
+
 /**
  * Discover DrinViewer Hosts available for pairing or already paired
  * 
@@ -128,6 +131,8 @@ public class DiscoverServerService extends Service {
 				}
 			} else if (intent.getAction().equals(getResources().getString(R.string.broadcast_cleanhostcollection))) {
 				hostCollection.init();
+				// the hosts are no longer reachable, drop the persistent connections
+				DrinConnection.closeAllConnections();
 				/**
 				 * Sends a host init event to all listeners
 				 */
@@ -191,6 +196,7 @@ public class DiscoverServerService extends Service {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		DrinConnection.closeAllConnections();
 		listeners.kill();
 	}
 
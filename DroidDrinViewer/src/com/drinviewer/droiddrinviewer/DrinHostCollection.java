@@ -65,7 +65,7 @@ public class DrinHostCollection extends HostCollection implements Parcelable {
 	@Override
 	public DrinHostData getLast() {
 		HostData hs = super.getLast();
-		if (hs != null) return new DrinHostData(hs.hostname, hs.address, hs.isPaired);		
+		if (hs != null) return new DrinHostData(hs.hostname, hs.address, hs.isPaired, hs.protocolVersion);		
 		else return null;
 	}
 	
@@ -81,7 +81,7 @@ public class DrinHostCollection extends HostCollection implements Parcelable {
 		if (isInList(element))
 		{
 			int index = hostList.indexOf(element);
-			hostList.set(index, new DrinHostData(element.hostname, element.address, isPaired));
+			hostList.set(index, new DrinHostData(element.hostname, element.address, isPaired, element.protocolVersion));
 		}
 	}
 
@@ -51,6 +51,13 @@ public class DrinHostData extends HostData implements Parcelable {
 		}
 	};
 	
+	/**
+	 * constructor, just calls the super
+	 */
+	public DrinHostData() {
+		super();
+	}
+
 	/**
 	 * constructor, sets hostname and IP address and isPaired
 	 * 
@@ -62,6 +69,18 @@ public class DrinHostData extends HostData implements Parcelable {
 		super(hostname, address, isPaired);
 	}
 	
+	/**
+	 * constructor, sets hostname and IP address, isPaired and protocolVersion
+	 * 
+	 * @param hostname the server hostname to be set
+	 * @param address the server IP address to be set
+	 * @param isPaired true if the server is paired with the device
+	 * @param protocolVersion the protocol version declared by the server
+	 */
+	public DrinHostData(String hostname, String address, boolean isPaired, int protocolVersion) {
+		super(hostname, address, isPaired, protocolVersion);
+	}
+	
 	/**
 	 * constructor from a parcel Object
 	 * 
@@ -73,6 +92,7 @@ public class DrinHostData extends HostData implements Parcelable {
 		boolean[] tmpBooleanArr = new boolean[1];
 		parcel.readBooleanArray(tmpBooleanArr);
 		isPaired = tmpBooleanArr[0];
+		protocolVersion = parcel.readInt();
 	}
 
 	@Override
@@ -85,5 +105,6 @@ public class DrinHostData extends HostData implements Parcelable {
 		dest.writeString(hostname);
 		dest.writeString(address);
 		dest.writeBooleanArray(new boolean[] {isPaired});
+		dest.writeInt(protocolVersion);
 	}
 }
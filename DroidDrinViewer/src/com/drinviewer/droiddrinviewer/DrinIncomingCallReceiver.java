@@ -140,6 +140,11 @@ public class DrinIncomingCallReceiver extends BroadcastReceiver {
         @Override
 		public void onCallStateChanged(int state, String incomingNumber) {
         	
+        	/**
+        	 * when the call state has changed, the first stage of the event
+        	 */
+        	long callTime = System.nanoTime();
+        	
         	/**
         	 * contactId used to query for contact image
         	 */
@@ -222,6 +227,7 @@ public class DrinIncomingCallReceiver extends BroadcastReceiver {
             	}
             	
             	final IncomingDrinEvent event = new IncomingDrinEvent(this, name, incomingNumber, imgData, action);
+            	event.stamp(IncomingDrinEvent.STAGE_CALL, callTime);
             	
             	for (int i=0; i<hostCollection.size();i++) {
             		final HostData currentHost = hostCollection.get(i);